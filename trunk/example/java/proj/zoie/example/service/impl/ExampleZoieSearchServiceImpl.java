@@ -1,6 +1,5 @@
 package proj.zoie.example.service.impl;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -18,7 +17,6 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
@@ -29,6 +27,7 @@ import org.apache.lucene.util.Version;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.ZoieSearcherManager;
 import proj.zoie.service.api.SearchHit;
 import proj.zoie.service.api.SearchRequest;
 import proj.zoie.service.api.SearchResult;
@@ -39,9 +38,19 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 	private static final Logger log = Logger.getLogger(ExampleZoieSearchServiceImpl.class);
 	
 	private IndexReaderFactory<ZoieIndexReader<R>> _idxReaderFactory;
+	private final ZoieSearcherManager<ZoieIndexReader<R>> _searcherManager;
+	
+	// a query parser is not thread safe, but can parse any number of queries
+	private final ThreadLocal<QueryParser> _qparser = new ThreadLocal<QueryParser>(){
+		@Override
+		protected QueryParser initialValue(){
+			return new QueryParser(Version.LUCENE_CURRENT,"content",_idxReaderFactory.getAnalyzer());
+		}
+	};
 	
 	public ExampleZoieSearchServiceImpl(IndexReaderFactory<ZoieIndexReader<R>> idxReaderFactory){
 		_idxReaderFactory=idxReaderFactory;
+		_searcherManager=new ZoieSearcherManager<ZoieIndexReader<R>>(idxReaderFactory);
 	}
 	
 	private static Map<String,String[]> convert(Document doc)
@@ -64,14 +73,10 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 	public SearchResult search(SearchRequest req) throws ZoieException{
 		String queryString=req.getQuery();
 		Analyzer analyzer=_idxReaderFactory.getAnalyzer();
-		QueryParser qparser=new QueryParser(Version.LUCENE_CURRENT,"content",analyzer);
 		
 		SearchResult result=new SearchResult();
 		
-		List<ZoieIndexReader<R>> readers=null;
-
-		MultiReader multiReader=null;
-		Searcher searcher = null;
+		ZoieSearcherManager.ManagedSearcher<ZoieIndexReader<R>> managedSearcher=null;
 		try
 		{
 			Query q=null;
@@ -81,11 +86,11 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 			}
 			else
 			{
-				q = qparser.parse(queryString); 
+				q = _qparser.get().parse(queryString); 
 			}
-			readers=_idxReaderFactory.getIndexReaders();
-			multiReader=new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
-			searcher=new IndexSearcher(multiReader);
+			managedSearcher=_searcherManager.acquire();
+			MultiReader multiReader=managedSearcher.getIndexReader();
+			IndexSearcher searcher=managedSearcher.getSearcher();
 			
 			long start=System.currentTimeMillis();
 			TopDocs docs=searcher.search(q, null, 10);
@@ -129,19 +134,15 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 		}
 		finally
 		{
-			try{
-			  if (searcher!=null)
-			  {
-				try {
-					searcher.close();
-				} catch (IOException e) {
-					log.error(e.getMessage(),e);
-				}
-			  }
-			}
-			finally{
-			  _idxReaderFactory.returnIndexReaders(readers);
-			}
+			_searcherManager.release(managedSearcher);
 		}
 	}
+	
+	/**
+	 * Gives the readers of the shared searcher back to the index reader factory, before the factory shuts down.
+	 */
+	public void shutdown()
+	{
+		_searcherManager.close();
+	}
 }
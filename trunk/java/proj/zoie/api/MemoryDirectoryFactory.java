@@ -0,0 +1,20 @@
+package proj.zoie.api;
+
+import org.apache.lucene.store.Directory;
+
+/**
+ * Creates the directories behind the in-memory (RAM A/B) indexes.
+ */
+public interface MemoryDirectoryFactory {
+  Directory newDirectory();
+
+  /**
+   * @return bytes of memory reserved by the directories of this factory, including pooled free space
+   */
+  long getAllocatedBytes();
+
+  /**
+   * @return bytes of memory holding index data
+   */
+  long getUsedBytes();
+}
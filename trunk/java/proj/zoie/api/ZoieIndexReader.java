@@ -18,7 +18,6 @@ package proj.zoie.api;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -31,17 +30,19 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.ReaderUtil;
 
 import proj.zoie.api.impl.DefaultIndexReaderMerger;
+import proj.zoie.api.impl.util.ImmutableDocIdSet;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndexReader {
 	public static final long DELETED_UID = Long.MIN_VALUE;
 	
-	protected ThreadLocal<int[]> _delDocIds;
+	// duplicates hidden by this reader, only a snapshot taken by getDeletesSnapshot() has any
+	protected ImmutableDocIdSet _delDocs = ImmutableDocIdSet.EMPTY;
 	protected long _minUID;
 	protected long _maxUID;
 	protected boolean _noDedup = false;
     protected final IndexReaderDecorator<R> _decorator;
-    protected DocIDMapper _docIDMapper;
+    protected volatile DocIDMapper _docIDMapper;
     
     public static <R extends IndexReader> List<R> extractDecoratedReaders(List<ZoieIndexReader<R>> readerList) throws IOException{
   	  LinkedList<R> retList = new LinkedList<R>();
@@ -171,16 +172,34 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	{
 		super(in);
 		_decorator = decorator;
-		_delDocIds=new ThreadLocal<int[]>();
 		_minUID=Long.MAX_VALUE;
 		_maxUID=0;
 	}
 	
 	abstract public List<R> getDecoratedReaders() throws IOException;
-    abstract public void setDelDocIds();
     abstract public void markDeletes(LongSet delDocs, LongSet deltedUIDs);
     abstract public void commitDeletes();
+    
+    /**
+     * A search should use the snapshots of its readers. A snapshot hides the duplicates that were committed by
+     * {@link #commitDeletes()} when it was taken, and keeps hiding exactly those while later deletes are committed,
+     * so the search sees one consistent generation of deletes. The snapshot shares everything else with this
+     * reader and is reused until the next commit. Its reference count is the one of this reader.
+     * @return this reader if there are no committed duplicates
+     */
+    abstract public ZoieIndexReader<R> getDeletesSnapshot() throws IOException;
 	     
+	/**
+	 * Takes a reference unless the reader is already closed, for callers that may race with the last
+	 * {@link #decRef()}.
+	 * @return false if no reference was taken
+	 */
+	public synchronized boolean tryIncRef(){
+		if (getRefCount() <= 0) return false;
+		incRef();
+		return true;
+	}
+	
 	public IndexReader getInnerReader(){
 		return in;
 	}
@@ -188,11 +207,7 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	@Override
 	public boolean hasDeletions()
 	{
-	  if(!_noDedup)
-	  {
-		int[] delSet = _delDocIds.get();
-	    if(delSet != null && delSet.length > 0) return true;
-	  }
+	  if(!_noDedup && hasDuplicates()) return true;
 	  return in.hasDeletions();
 	}
 	
@@ -200,8 +215,7 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	
 	public boolean hasDuplicates()
 	{
-		int[] delSet = _delDocIds.get();
-		return (delSet!=null && delSet.length > 0);
+		return !_delDocs.isEmpty();
 	}
 
 	@Override
@@ -209,18 +223,17 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	
 	public boolean isDuplicate(int docid)
 	{
-	  int[] delSet = _delDocIds.get();
-	  return delSet!=null && Arrays.binarySearch(delSet, docid) >= 0;
+	  return _delDocs.contains(docid);
 	}
 	
 	public boolean isDuplicateUID(long uid){
-	  int docid = _docIDMapper.getDocID(uid);
+	  int docid = getDocIDMaper().getDocID(uid);
 	  return isDuplicate(docid);
 	}
 	
 	public int[] getDelDocIds()
 	{
-	  return _delDocIds.get();
+	  return _delDocs.toArray();
 	}
 	
 	public long getMinUID()
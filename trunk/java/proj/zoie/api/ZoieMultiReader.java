@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
@@ -31,6 +33,7 @@ import org.apache.lucene.index.MultiZoieTermPositions;
 import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.store.AlreadyClosedException;
 
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
@@ -40,28 +43,68 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 	private ArrayList<ZoieSegmentReader<R>> _subZoieReaders;
 	private int[] _starts;
 	private List<R> _decoratedReaders;
+	// the reader this one is a snapshot of, see getDeletesSnapshot()
+	private final ZoieMultiReader<R> _origin;
+	private volatile ZoieMultiReader<R> _snapshot = null;
+	// references of this reader, IndexReader keeps its own count at 1 until the last one is released
+	private final AtomicInteger _refCount = new AtomicInteger(1);
+	private final ConcurrentLinkedQueue<AcquireSite> _acquireSites = new ConcurrentLinkedQueue<AcquireSite>();
+	private static volatile boolean _trackAcquireSites = false;
 	
 	public ZoieMultiReader(IndexReader in,IndexReaderDecorator<R> decorator) throws IOException
+	{
+	  this(in,decorator,false);
+	}
+	
+	/**
+	 * @param writeUIDColumn see {@link ZoieSegmentReader#ZoieSegmentReader(IndexReader, IndexReaderDecorator, boolean)}
+	 */
+	public ZoieMultiReader(IndexReader in,IndexReaderDecorator<R> decorator,boolean writeUIDColumn) throws IOException
 	{
 	  super(in,decorator);
+	  _origin = null;
 	  _readerMap = new HashMap<String,ZoieSegmentReader<R>>();
 	  _decoratedReaders = null; 
 	  IndexReader[] subReaders = in.getSequentialSubReaders();
-	  init(subReaders);
+	  init(subReaders,writeUIDColumn);
 	}
 
 	public ZoieMultiReader(IndexReader in,IndexReader[] subReaders,IndexReaderDecorator<R> decorator) throws IOException {
 		super(in,decorator);
+		_origin = null;
 		_readerMap = new HashMap<String,ZoieSegmentReader<R>>();
 		_decoratedReaders = null; 
-		init(subReaders);
+		init(subReaders,false);
+	}
+	
+	/**
+	 * A snapshot of <code>origin</code> over snapshots of its segments. It shares the inner reader and the
+	 * reference count of <code>origin</code>.
+	 */
+	protected ZoieMultiReader(ZoieMultiReader<R> origin,IndexReader[] subReaders) throws IOException {
+		super(origin.in,origin._decorator);
+		_origin = origin;
+		_readerMap = new HashMap<String,ZoieSegmentReader<R>>();
+		_decoratedReaders = null;
+		_minUID = origin._minUID;
+		_maxUID = origin._maxUID;
+		_noDedup = origin._noDedup;
+		_docIDMapper = origin._docIDMapper;
+		init(subReaders,false);
+	}
+	
+	/**
+	 * Whether segments read on reopen save their uids in a {@link proj.zoie.api.impl.util.UIDColumnFile}.
+	 */
+	protected boolean isWriteUIDColumn(){
+		return false;
 	}
 	
 	public int[] getStarts(){
 		return _starts;
 	}
 	
-	private void init(IndexReader[] subReaders) throws IOException{
+	private void init(IndexReader[] subReaders,boolean writeUIDColumn) throws IOException{
 		_subZoieReaders = new ArrayList<ZoieSegmentReader<R>>(subReaders.length);
 		_starts = new int[subReaders.length+1];
 		int i = 0;
@@ -73,7 +116,7 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 			}
 			else if (subReader instanceof SegmentReader){
 				SegmentReader sr = (SegmentReader)subReader;
-				zr = new ZoieSegmentReader<R>(sr,_decorator);
+				zr = new ZoieSegmentReader<R>(sr,_decorator,writeUIDColumn);
 			}
 			if (zr!=null){
 			    String segmentName = zr.getSegmentName();
@@ -141,13 +184,76 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 	}
 	
 	@Override
-	public void setDelDocIds()
+	public ZoieMultiReader<R> getDeletesSnapshot() throws IOException
 	{
-	  ZoieIndexReader<R>[] subReaders = getSequentialSubReaders();
-	  for(ZoieIndexReader<R> subReader : subReaders)
+	  if (_origin != null) return this;
+	  
+	  // reuse the last snapshot while no segment committed new deletes
+	  ZoieMultiReader<R> snapshot = _snapshot;
+	  boolean current = (snapshot != null);
+	  boolean hasDuplicates = false;
+	  int count = _subZoieReaders.size();
+	  for (int i = 0; i < count; ++i)
+	  {
+	    ZoieSegmentReader<R> subReader = _subZoieReaders.get(i);
+	    ZoieSegmentReader<R> subSnapshot = subReader.getDeletesSnapshot();
+	    if (subSnapshot != subReader) hasDuplicates = true;
+	    if (current && snapshot._subZoieReaders.get(i) != subSnapshot) current = false;
+	  }
+	  if (!hasDuplicates) return this;
+	  if (current) return snapshot;
+	  
+	  synchronized(this)
+	  {
+	    IndexReader[] subSnapshots = new IndexReader[count];
+	    for (int i = 0; i < count; ++i)
+	    {
+	      subSnapshots[i] = _subZoieReaders.get(i).getDeletesSnapshot();
+	    }
+	    snapshot = newSnapshot(subSnapshots);
+	    _snapshot = snapshot;
+	  }
+	  return snapshot;
+	}
+	
+	@Override
+	public boolean hasDuplicates()
+	{
+	  for (ZoieSegmentReader<R> subReader : _subZoieReaders)
+	  {
+	    if (subReader.hasDuplicates()) return true;
+	  }
+	  return false;
+	}
+	
+	@Override
+	public boolean isDuplicate(int docid)
+	{
+	  if (docid < 0) return false;
+	  int idx = readerIndex(docid);
+	  return _subZoieReaders.get(idx).isDuplicate(docid-_starts[idx]);
+	}
+	
+	@Override
+	public int[] getDelDocIds()
+	{
+	  int[][] subDelDocIds = new int[_subZoieReaders.size()][];
+	  int count = 0;
+	  for (int i = 0; i < subDelDocIds.length; ++i)
+	  {
+	    subDelDocIds[i] = _subZoieReaders.get(i).getDelDocIds();
+	    count += subDelDocIds[i].length;
+	  }
+	  int[] delDocIds = new int[count];
+	  int idx = 0;
+	  for (int i = 0; i < subDelDocIds.length; ++i)
 	  {
-	    subReader.setDelDocIds();
+	    for (int docid : subDelDocIds[i])
+	    {
+	      delDocIds[idx++] = docid + _starts[i];
+	    }
 	  }
+	  return delDocIds;
 	}
 
 	@Override
@@ -208,6 +314,7 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 	
 	@Override
 	protected void doClose() throws IOException {
+	  if (_origin != null) return; // the origin owns the inner reader
 	  try{
 	    super.doClose();
 	  }
@@ -218,26 +325,127 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  }
 	}
 
-	/*
-   * This code will be JIT optimized since it doesn't return anything.
-	 * (non-Javadoc)
+	/**
+	 * Takes a reference without locking. The count is kept here instead of in {@link IndexReader}, whose
+	 * <code>incRef()</code> and <code>decRef()</code> are synchronized and would serialize all searches on the disk reader.
 	 * @see org.apache.lucene.index.IndexReader#incRef()
 	 */
 	@Override
-	public synchronized void incRef()
+	public void incRef()
 	{
-    super.incRef();
-  }
+	  if (_origin != null)
+	  {
+	    _origin.incRef();
+	    return;
+	  }
+	  if (!tryIncRef()) throw new AlreadyClosedException("this IndexReader is closed");
+	}
+
+	@Override
+	public boolean tryIncRef()
+	{
+	  if (_origin != null) return _origin.tryIncRef();
+	  while (true)
+	  {
+	    int count = _refCount.get();
+	    if (count <= 0) return false;
+	    if (_refCount.compareAndSet(count, count + 1))
+	    {
+	      if (_trackAcquireSites) _acquireSites.add(new AcquireSite());
+	      return true;
+	    }
+	  }
+	}
 
-	/*
-	 * This code will be JIT optimized since it doesn't return anything.
-	 * (non-Javadoc)
+	/**
+	 * Releases a reference without locking. The last one closes the reader through {@link IndexReader#decRef()},
+	 * so the reader is closed the way Lucene closes it.
 	 * @see org.apache.lucene.index.IndexReader#decRef()
 	 */
 	@Override
-  public synchronized void decRef() throws IOException
+  public void decRef() throws IOException
+  {
+    if (_origin != null)
+    {
+      _origin.decRef();
+      return;
+    }
+    int count = _refCount.decrementAndGet();
+    if (!_acquireSites.isEmpty()) releaseAcquireSite(count);
+    if (count == 0)
+    {
+      super.decRef();
+    }
+    else if (count < 0)
+    {
+      _refCount.incrementAndGet();
+      throw new AlreadyClosedException("this IndexReader is closed");
+    }
+  }
+  
+  @Override
+  public int getRefCount()
+  {
+    if (_origin != null) return _origin.getRefCount();
+    return _refCount.get();
+  }
+  
+  /**
+   * Turns on recording where references on multi readers are taken, see {@link #getAcquireSites()}.
+   * It costs a stack trace per reference and is meant for finding readers that are not returned.
+   */
+  public static void setTrackAcquireSites(boolean trackAcquireSites)
+  {
+    _trackAcquireSites = trackAcquireSites;
+  }
+  
+  public static boolean isTrackAcquireSites()
+  {
+    return _trackAcquireSites;
+  }
+  
+  /**
+   * @return the stack traces of the references taken while tracking was on and not released yet, oldest first.
+   * References are not named, so a release drops the newest site of the releasing thread. A release by a thread
+   * without a site drops nothing, so a reference handed over to another thread keeps its site until the reader is
+   * closed.
+   */
+  public List<Throwable> getAcquireSites()
+  {
+    if (_origin != null) return _origin.getAcquireSites();
+    return new ArrayList<Throwable>(_acquireSites);
+  }
+  
+  private void releaseAcquireSite(int refCount)
+  {
+    if (refCount <= 0)
+    {
+      // nothing is held any more
+      _acquireSites.clear();
+      return;
+    }
+    Thread thread = Thread.currentThread();
+    AcquireSite site = null;
+    for (AcquireSite s : _acquireSites)
+    {
+      if (s._thread == thread) site = s;
+    }
+    if (site != null)
+    {
+      _acquireSites.remove(site);
+    }
+  }
+  
+  private static final class AcquireSite extends Throwable
   {
-    super.decRef();
+    private static final long serialVersionUID = 1L;
+    final Thread _thread;
+    
+    AcquireSite()
+    {
+      super("reader acquired by " + Thread.currentThread().getName() + " at " + System.currentTimeMillis());
+      _thread = Thread.currentThread();
+    }
   }
 
 	@Override
@@ -251,6 +459,7 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 		}
 		
 		IndexReader[] subReaders = inner.getSequentialSubReaders();
+		boolean writeUIDColumn = isWriteUIDColumn();
 		ArrayList<IndexReader> subReaderList = new ArrayList<IndexReader>(subReaders.length);
 		for (IndexReader subReader : subReaders){
 			if (subReader instanceof SegmentReader){
@@ -260,16 +469,20 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 				if (zoieSegmentReader!=null){
 					int numDocs = sr.numDocs();
 					int maxDocs = sr.maxDoc();
-					if (zoieSegmentReader.numDocs() != numDocs || zoieSegmentReader.maxDoc() != maxDocs){
+					if (zoieSegmentReader.maxDoc() != maxDocs || numDocs > zoieSegmentReader.numDocs()){
 						// segment has changed
-						zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator);
+						zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator,writeUIDColumn);
+					}
+					else if (numDocs < zoieSegmentReader.numDocs()){
+						// same documents, only more deletes: keep the uids and the mapper
+						zoieSegmentReader = new ZoieSegmentReader<R>(zoieSegmentReader,sr,_decorator);
 					}
 					else{
 						zoieSegmentReader = new ZoieSegmentReader<R>(zoieSegmentReader,sr);
 					}
 				}
 				else{
-					zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator);
+					zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator,writeUIDColumn);
 				}
 				subReaderList.add(zoieSegmentReader);
 			}
@@ -284,4 +497,8 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R>
 	protected ZoieMultiReader<R> newInstance(IndexReader inner,IndexReader[] subReaders) throws IOException{
 		return new ZoieMultiReader<R>(inner, subReaders ,_decorator);
 	}
+	
+	protected ZoieMultiReader<R> newSnapshot(IndexReader[] subSnapshots) throws IOException{
+		return new ZoieMultiReader<R>(this, subSnapshots);
+	}
 }
@@ -15,15 +15,16 @@ package proj.zoie.api;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
@@ -35,28 +36,70 @@ import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.NumericUtils;
 
-import proj.zoie.api.impl.util.ArrayDocIdSet;
+import proj.zoie.api.impl.DocIDMapperImpl;
+import proj.zoie.api.impl.util.ImmutableDocIdSet;
+import proj.zoie.api.impl.util.UIDColumnFile;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.impl.indexing.internal.ZoieSegmentTermDocs;
 import proj.zoie.impl.indexing.internal.ZoieSegmentTermPositions;
 
 public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>{
+	private static final Logger log = Logger.getLogger(ZoieSegmentReader.class);
 	static final String termVal="_UID";
 	static final Term UID_TERM = new Term(AbstractZoieIndexable.DOCUMENT_ID_PAYLOAD_FIELD,termVal);
     private R _decoratedReader;
     private long[] _uidArray;
-    private IntRBTreeSet _delDocIdSet = new IntRBTreeSet();
-    private int[] _currentDelDocIds;
+    // duplicates marked since the last commit
+    private IntArrayList _pendingDelDocs = new IntArrayList();
+    // the latest generation of duplicates, each commit makes a new one from the previous and the pending ones
+    private volatile CommittedDeletes _committed = CommittedDeletes.EMPTY;
+    private volatile ZoieSegmentReader<R> _snapshot = null;
+    // true if documents deleted from the index after the uid array was read still have their uids in it
+    private boolean _staleUIDs = false;
+    
+    private static final AtomicLong DEL_GEN = new AtomicLong(0L);
+    // the documents this reader hides, see getDelGen()
+    private final long _delGen;
+    
+    /**
+     * Committed duplicates and their generation, replaced together so a snapshot never pairs the set of one
+     * commit with the generation of another.
+     */
+    private static final class CommittedDeletes {
+      static final CommittedDeletes EMPTY = new CommittedDeletes(ImmutableDocIdSet.EMPTY, 0L);
+      
+      final ImmutableDocIdSet _delDocs;
+      final long _gen;
+      
+      CommittedDeletes(ImmutableDocIdSet delDocs, long gen){
+        _delDocs = delDocs;
+        _gen = gen;
+      }
+    }
     
     static class UIDTokenStream extends TokenStream {
         private boolean returnToken = false;
 
         private PayloadAttribute payloadAttr;
         private TermAttribute termAttr;
+        private final byte[] buffer = new byte[8];
         UIDTokenStream(long uid) {
-          byte[] buffer = new byte[8];
+          payloadAttr = (PayloadAttribute)addAttribute(PayloadAttribute.class);
+          payloadAttr.setPayload(new Payload(buffer));
+          termAttr = (TermAttribute)addAttribute(TermAttribute.class);
+          termAttr.setTermBuffer(termVal);
+          setUID(uid);
+        }
+        
+        // the payload shares the buffer, so the stream can be reused for another document
+        void setUID(long uid) {
           buffer[0] = (byte) (uid);
           buffer[1] = (byte) (uid >> 8);
           buffer[2] = (byte) (uid >> 16);
@@ -65,10 +108,11 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
           buffer[5] = (byte) (uid >> 40);
           buffer[6] = (byte) (uid >> 48);
           buffer[7] = (byte) (uid >> 56);
-          payloadAttr = (PayloadAttribute)addAttribute(PayloadAttribute.class);
-          payloadAttr.setPayload(new Payload(buffer));
-          termAttr = (TermAttribute)addAttribute(TermAttribute.class);
-          termAttr.setTermBuffer(termVal);
+          returnToken = true;
+        }
+        
+        @Override
+        public void reset() throws IOException {
           returnToken = true;
         }
 
@@ -83,30 +127,141 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		}  
     }
 
+    /**
+     * The uid fields of a document, see {@link ZoieSegmentReader#fillDocumentID(Document, long, boolean)}.
+     * Once a document is indexed, the same instance can fill the next one.
+     */
+    public static final class UIDFields {
+        private final UIDTokenStream _tokenStream;
+        private final Field _uidField;
+        private final Field _uidTermField;
+        
+        public UIDFields() {
+          _tokenStream = new UIDTokenStream(0L);
+          _uidField = new Field(ZoieSegmentReader.UID_TERM.field(), _tokenStream);
+          _uidField.setOmitNorms(true);
+          // one term per uid so an IndexWriter can delete the document without a reader, only added on request
+          _uidTermField = new Field(AbstractZoieIndexable.DOCUMENT_ID_TERM_FIELD, NumericUtils.longToPrefixCoded(0L), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS);
+          _uidTermField.setOmitTermFreqAndPositions(true);
+        }
+        
+        public void fill(Document doc, long id) {
+          fill(doc, id, false);
+        }
+        
+        public void fill(Document doc, long id, boolean indexUIDTerm) {
+          _tokenStream.setUID(id);
+          doc.add(_uidField);
+          if (indexUIDTerm) {
+            _uidTermField.setValue(NumericUtils.longToPrefixCoded(id));
+            doc.add(_uidTermField);
+          }
+        }
+    }
+
 	public static void fillDocumentID(Document doc,long id){
-	  Field uidField = new Field(ZoieSegmentReader.UID_TERM.field(), new UIDTokenStream(id));
-	  uidField.setOmitNorms(true);
-      doc.add(uidField); 
+	  fillDocumentID(doc, id, false);
+	}
+	
+	/**
+	 * @param indexUIDTerm if true, the uid is also indexed as a term of its own, see {@link #getUIDTerm(long)}.
+	 * This adds a field to the index format, the uid payload is always there.
+	 */
+	public static void fillDocumentID(Document doc,long id,boolean indexUIDTerm){
+	  new UIDFields().fill(doc, id, indexUIDTerm);
+	}
+	
+	/**
+	 * @return the term that matches exactly the document of the given uid, if the uid term was indexed
+	 */
+	public static Term getUIDTerm(long id){
+	  return new Term(AbstractZoieIndexable.DOCUMENT_ID_TERM_FIELD, NumericUtils.longToPrefixCoded(id));
+	}
+	
+	/**
+	 * @return a query that matches the documents of the given uids by their uid payloads, on any reader. It reads
+	 * the uids of every document, so it is meant for small indexes, e.g. to delete through an IndexWriter.
+	 */
+	public static Query getUIDPayloadQuery(LongSet uids){
+	  return new ConstantScoreQuery(new UIDPayloadFilter(uids));
+	}
+	
+	private static final class UIDPayloadFilter extends Filter {
+	  private static final long serialVersionUID = 1L;
+	  
+	  private final LongSet _uids;
+	  
+	  UIDPayloadFilter(LongSet uids){
+	    _uids = uids;
+	  }
+	  
+	  @Override
+	  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+	    IntArrayList docs = new IntArrayList();
+	    TermPositions tp = reader.termPositions(UID_TERM);
+	    if (tp != null){
+	      try{
+	        byte[] payloadBuffer = new byte[8];
+	        while(tp.next()){
+	          tp.nextPosition();
+	          tp.getPayload(payloadBuffer, 0);
+	          if (_uids.contains(bytesToLong(payloadBuffer))){
+	            docs.add(tp.doc());
+	          }
+	        }
+	      }
+	      finally{
+	        tp.close();
+	      }
+	    }
+	    return ImmutableDocIdSet.newInstance(docs.toIntArray(), reader.maxDoc());
+	  }
 	}
 
 	public ZoieSegmentReader(IndexReader in, IndexReaderDecorator<R> decorator)
 			throws IOException {
+		this(in,decorator,false);
+	}
+	
+	/**
+	 * @param writeUIDColumn if true and the segment has no deletions, the uids are saved in a {@link UIDColumnFile}
+	 * when they have to be read from the postings. An existing column file is always used.
+	 */
+	public ZoieSegmentReader(IndexReader in, IndexReaderDecorator<R> decorator, boolean writeUIDColumn)
+			throws IOException {
 		super(in,decorator);
+		_delGen = DEL_GEN.incrementAndGet();
 		if (!(in instanceof SegmentReader)){
 			throw new IllegalStateException("ZoieSegmentReader can only be constucted from "+SegmentReader.class);
 		}
-		init(in);
+		init(in, writeUIDColumn);
 		_decoratedReader = (decorator == null ? null : decorator.decorate(this));
 	}
 	
+	/**
+	 * For a reopened segment that did not change. The duplicates committed on <code>copyFrom</code> are kept, the
+	 * pending ones are copied, so each reader commits its own and neither clears the marks of the other.
+	 * The delete generation is kept too, so cached results of the segment stay valid.
+	 */
 	ZoieSegmentReader(ZoieSegmentReader<R> copyFrom,IndexReader innerReader) throws IOException{
+		this(copyFrom,innerReader,ImmutableDocIdSet.EMPTY,copyFrom._delGen);
+		synchronized(copyFrom){
+			_pendingDelDocs = new IntArrayList(copyFrom._pendingDelDocs);
+		}
+	}
+	
+	private ZoieSegmentReader(ZoieSegmentReader<R> copyFrom,IndexReader innerReader,ImmutableDocIdSet delDocs,long delGen) throws IOException{
 		super(innerReader,copyFrom._decorator);
+		_delDocs = delDocs;
+		_delGen = delGen;
 		_uidArray = copyFrom._uidArray;
 		_maxUID = copyFrom._maxUID;
 		_minUID = copyFrom._minUID;
 		_noDedup = copyFrom._noDedup;
 		_docIDMapper = copyFrom._docIDMapper;
-		_delDocIdSet = copyFrom._delDocIdSet;
+		_committed = copyFrom._committed;
+		
+		_staleUIDs = copyFrom._staleUIDs;
 		
 		if (copyFrom._decorator == null){
 			_decoratedReader = null;
@@ -116,12 +271,90 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		}
 	}
 	
+	/**
+	 * For a reopened segment that only has more deletions than <code>copyFrom</code>. The uid array and doc id
+	 * mapper are shared, the mapper just stops returning deleted documents, so nothing is scanned or sorted.
+	 */
+	ZoieSegmentReader(ZoieSegmentReader<R> copyFrom,IndexReader innerReader,IndexReaderDecorator<R> decorator) throws IOException{
+		super(innerReader,decorator);
+		_delGen = DEL_GEN.incrementAndGet();
+		_uidArray = copyFrom._uidArray;
+		_maxUID = copyFrom._maxUID;
+		_minUID = copyFrom._minUID;
+		_noDedup = copyFrom._noDedup;
+		_staleUIDs = true;
+		DocIDMapper mapper = copyFrom._docIDMapper;
+		if (mapper instanceof LiveDocIDMapper){
+			mapper = ((LiveDocIDMapper)mapper)._inner;
+		}
+		_docIDMapper = (mapper == null ? null : new LiveDocIDMapper(mapper, innerReader));
+		_decoratedReader = (decorator == null ? null : decorator.decorate(this));
+	}
+	
+	/**
+	 * Builds the mapper of this segment on first use if no {@link DocIDMapperFactory} set one.
+	 */
+	@Override
+	public DocIDMapper getDocIDMaper(){
+		DocIDMapper mapper = _docIDMapper;
+		if (mapper == null){
+			synchronized(this){
+				mapper = _docIDMapper;
+				if (mapper == null){
+					mapper = new DocIDMapperImpl(_uidArray);
+					if (_staleUIDs){
+						mapper = new LiveDocIDMapper(mapper, in);
+					}
+					_docIDMapper = mapper;
+				}
+			}
+		}
+		return mapper;
+	}
+	
+	/**
+	 * @return approximate heap size of the uid array and of the doc id mapper, if it is built
+	 */
+	public long getUIDMemorySize(){
+		long size = 8L * _uidArray.length;
+		DocIDMapper mapper = _docIDMapper;
+		if (mapper instanceof LiveDocIDMapper){
+			mapper = ((LiveDocIDMapper)mapper)._inner;
+		}
+		if (mapper instanceof DocIDMapperImpl){
+			size += ((DocIDMapperImpl)mapper).sizeInBytes();
+		}
+		return size;
+	}
+	
+	/**
+	 * Hides documents deleted from the index since the inner mapper was built.
+	 */
+	private static final class LiveDocIDMapper implements DocIDMapper{
+		final DocIDMapper _inner;
+		private final IndexReader _reader;
+		
+		LiveDocIDMapper(DocIDMapper inner, IndexReader reader){
+			_inner = inner;
+			_reader = reader;
+		}
+		
+		public int getDocID(long uid){
+			int docid = _inner.getDocID(uid);
+			if (docid != DocIDMapper.NOT_FOUND && _reader.isDeleted(docid)){
+				return DocIDMapper.NOT_FOUND;
+			}
+			return docid;
+		}
+	}
+	
 	@Override
-	public void markDeletes(LongSet delDocs, LongSet deletedUIDs)
+	public synchronized void markDeletes(LongSet delDocs, LongSet deletedUIDs)
 	{
       DocIDMapper idMapper = getDocIDMaper();
       LongIterator iter = delDocs.iterator();
-      IntRBTreeSet delDocIdSet = _delDocIdSet;
+      ImmutableDocIdSet committed = _committed._delDocs;
+      IntArrayList pending = _pendingDelDocs;
 
       while(iter.hasNext())
       {
@@ -131,7 +364,7 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
           int docid = idMapper.getDocID(uid);
           if(docid != DocIDMapper.NOT_FOUND)
           {
-            delDocIdSet.add(docid);
+            if (!committed.contains(docid)) pending.add(docid);
             deletedUIDs.add(uid);
           }
         }
@@ -139,14 +372,37 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	}
 	
 	@Override
-	public void commitDeletes()
+	public synchronized void commitDeletes()
 	{
-	  _currentDelDocIds = _delDocIdSet.toIntArray();
+	  IntArrayList pending = _pendingDelDocs;
+	  if (pending.isEmpty()) return; // nothing new, the current snapshot stays valid
+	  ImmutableDocIdSet delDocs = _committed._delDocs.union(pending.elements(), pending.size(), maxDoc());
+	  _committed = new CommittedDeletes(delDocs, DEL_GEN.incrementAndGet());
+	  pending.clear();
 	}
 	
-	public void setDelDocIds()
+	@Override
+	public ZoieSegmentReader<R> getDeletesSnapshot() throws IOException
 	{
-	  _delDocIds.set(_currentDelDocIds);
+	  if (!_delDocs.isEmpty()) return this; // already a snapshot
+	  CommittedDeletes committed = _committed;
+	  if (committed._delDocs.isEmpty()) return this;
+	  
+	  ZoieSegmentReader<R> snapshot = _snapshot;
+	  if (snapshot == null || snapshot._delGen != committed._gen)
+	  {
+	    synchronized(this)
+	    {
+	      snapshot = _snapshot;
+	      if (snapshot == null || snapshot._delGen != committed._gen)
+	      {
+	        getDocIDMaper(); // built once here, not by every snapshot
+	        snapshot = new ZoieSegmentReader<R>(this, in, committed._delDocs, committed._gen);
+	        _snapshot = snapshot;
+	      }
+	    }
+	  }
+	  return snapshot;
 	}
 	
 	public R getDecoratedReader(){
@@ -163,7 +419,82 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  return list;
     }
 	
-	private void init(IndexReader reader) throws IOException
+	private void init(IndexReader reader, boolean writeUIDColumn) throws IOException
+	{
+		int maxDoc = reader.maxDoc();
+		String segment = ((SegmentReader)reader).getSegmentName();
+		long[] uids = UIDColumnFile.read(reader.directory(), segment, maxDoc);
+		if (uids != null && !checkUIDs(reader, uids))
+		{
+		  log.warn("ignoring UID column that does not match the postings of segment " + segment);
+		  uids = null;
+		}
+		if (uids != null)
+		{
+		  // the column has all documents, deleted ones are left out like in the postings
+		  for (int i = 0; i < maxDoc; ++i)
+		  {
+		    if (reader.isDeleted(i))
+		    {
+		      uids[i] = DELETED_UID;
+		      continue;
+		    }
+		    long uid = uids[i];
+		    if(uid < _minUID) _minUID = uid;
+		    if(uid > _maxUID) _maxUID = uid;
+		  }
+		  _uidArray = uids;
+		  return;
+		}
+		
+		readUIDsFromPayloads(reader);
+		
+		if (writeUIDColumn && !reader.hasDeletions())
+		{
+		  try
+		  {
+		    UIDColumnFile.write(reader.directory(), segment, _uidArray);
+		  }
+		  catch(IOException ioe)
+		  {
+		    log.warn("cannot write UID column of segment " + segment + ": " + ioe.getMessage());
+		  }
+		}
+	}
+	
+	/**
+	 * Compares the first and the last document of the posting list with the column, so a column left over by an
+	 * earlier segment of the same name is not taken.
+	 */
+	private static boolean checkUIDs(IndexReader reader, long[] uids) throws IOException
+	{
+		TermPositions tp = reader.termPositions(UID_TERM);
+		try
+		{
+		  byte[] payloadBuffer = new byte[8];
+		  if (!tp.next()) return true; // nothing to compare, every document is deleted
+		  tp.nextPosition();
+		  tp.getPayload(payloadBuffer, 0);
+		  if (bytesToLong(payloadBuffer) != uids[tp.doc()]) return false;
+		  
+		  int last = uids.length - 1;
+		  while (last > tp.doc() && reader.isDeleted(last)) last--;
+		  if (last > tp.doc())
+		  {
+		    if (!tp.skipTo(last) || tp.doc() != last) return false;
+		    tp.nextPosition();
+		    tp.getPayload(payloadBuffer, 0);
+		    if (bytesToLong(payloadBuffer) != uids[last]) return false;
+		  }
+		  return true;
+		}
+		finally
+		{
+		  tp.close();
+		}
+	}
+	
+	private void readUIDsFromPayloads(IndexReader reader) throws IOException
 	{
 		int maxDoc = reader.maxDoc();
 		_uidArray = new long[maxDoc]; 
@@ -222,11 +553,7 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	@Override
 	public boolean isDeleted(int docid)
 	{
-	  if(!_noDedup)
-	  {
-		int[] delSet = _delDocIds.get();
-	    if(delSet != null && Arrays.binarySearch(delSet, docid) >= 0) return true;
-	  }
+	  if(!_noDedup && _delDocs.contains(docid)) return true;
 	  return in.isDeleted(docid);
 	}
 	
@@ -236,9 +563,8 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		 TermDocs td = in.termDocs(term);
 		 if(_noDedup) return td;
 		  
-		 int[] delDocIds = _delDocIds.get();
-		 if(td == null || delDocIds == null || delDocIds.length == 0) return td;
-	     return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+		 if(td == null || _delDocs.isEmpty()) return td;
+	     return new ZoieSegmentTermDocs(td, _delDocs);
 	}
 
 	@Override
@@ -248,10 +574,9 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  TermDocs td = in.termDocs();
 	  if(_noDedup) return td;
 	  
-	  int[] delDocIds = _delDocIds.get();
-	  if(td == null || delDocIds == null || delDocIds.length == 0) return td;
+	  if(td == null || _delDocs.isEmpty()) return td;
       
-      return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+      return new ZoieSegmentTermDocs(td, _delDocs);
 	}
 	
 	@Override
@@ -260,10 +585,9 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		  TermPositions tp = in.termPositions(term);
 	      if(_noDedup) return tp;
 	      
-	      int[] delDocIds = _delDocIds.get();
-	      if(tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+	      if(tp == null || _delDocs.isEmpty()) return tp;
 	      
-	      return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+	      return new ZoieSegmentTermPositions(tp, _delDocs);
 	}
 
 	@Override
@@ -273,10 +597,9 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  TermPositions tp = in.termPositions();
       if(_noDedup) return tp;
       
-      int[] delDocIds = _delDocIds.get();
-      if(tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+      if(tp == null || _delDocs.isEmpty()) return tp;
       
-      return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+      return new ZoieSegmentTermPositions(tp, _delDocs);
 	}
 
 	@Override
@@ -287,6 +610,16 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	public String getSegmentName(){
 		return ((SegmentReader)in).getSegmentName();
 	}
+	
+	/**
+	 * Identifies the documents this reader hides, deleted from the index or duplicates. Readers of a segment with
+	 * the same generation hide the same documents: a reader carries it over to the copy a reopen makes of an
+	 * unchanged segment, and a snapshot has the generation of its commit of duplicates, which the copy shares.
+	 * Deletions in the index and each commit of duplicates make a new one.
+	 */
+	public long getDelGen(){
+		return _delGen;
+	}
 
 	@Override
 	protected void doClose() throws IOException {
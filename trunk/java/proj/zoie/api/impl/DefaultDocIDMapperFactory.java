@@ -5,24 +5,22 @@ import proj.zoie.api.DocIDMapperFactory;
 import proj.zoie.api.ZoieMultiReader;
 import proj.zoie.api.ZoieSegmentReader;
 
+/**
+ * Composes the per segment mappers. A segment mapper is built on first use and kept on the
+ * {@link ZoieSegmentReader}, which passes it on when the segment survives a reopen, so only new
+ * segments pay for building one.
+ */
 public class DefaultDocIDMapperFactory implements DocIDMapperFactory {
 	public DocIDMapper getDocIDMapper(ZoieMultiReader<?> multireader) {
 		final ZoieSegmentReader<?>[] subreaders =(ZoieSegmentReader<?>[])(multireader.getSequentialSubReaders());
 		final int[] starts = multireader.getStarts();
-		for (int i = 0; i < subreaders.length; ++i){
-			ZoieSegmentReader<?> subReader = subreaders[i];
-			DocIDMapper mapper = subReader.getDocIDMaper();
-			if (mapper == null){
-				mapper = new DocIDMapperImpl(subReader.getUIDArray());
-			}
-			subReader.setDocIDMapper(mapper);
-		}
 		
 		return new DocIDMapper() {
-			// do the samething as DefaultDocIDMapperFactory since range does not really matter here
+			// newest segments first, they are the most likely to have the uid
 			public int getDocID(long uid) {
 				for (int i = subreaders.length-1; i >= 0; --i){
 					ZoieSegmentReader<?> subReader = subreaders[i];
+					if (uid < subReader.getMinUID() || uid > subReader.getMaxUID()) continue;
 					DocIDMapper mapper = subReader.getDocIDMaper();
 					int docid = mapper.getDocID(uid);
 					if (docid!=DocIDMapper.NOT_FOUND) {
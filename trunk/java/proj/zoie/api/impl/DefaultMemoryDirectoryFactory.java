@@ -0,0 +1,42 @@
+package proj.zoie.api.impl;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import proj.zoie.api.MemoryDirectoryFactory;
+
+/**
+ * Keeps the in-memory indexes in Lucene's heap based {@link RAMDirectory}.
+ */
+public class DefaultMemoryDirectoryFactory implements MemoryDirectoryFactory {
+	// only to report memory usage, directories are forgotten once they are collected
+	private final Map<RAMDirectory,Boolean> _dirs = new WeakHashMap<RAMDirectory,Boolean>();
+
+	public Directory newDirectory() {
+		RAMDirectory dir = new RAMDirectory();
+		synchronized(_dirs){
+			_dirs.put(dir, Boolean.TRUE);
+		}
+		return dir;
+	}
+
+	public long getAllocatedBytes() {
+		return getUsedBytes();
+	}
+
+	public long getUsedBytes() {
+		ArrayList<RAMDirectory> dirs;
+		synchronized(_dirs){
+			dirs = new ArrayList<RAMDirectory>(_dirs.keySet());
+		}
+		long size = 0L;
+		for (RAMDirectory dir : dirs){
+			size += dir.sizeInBytes();
+		}
+		return size;
+	}
+}
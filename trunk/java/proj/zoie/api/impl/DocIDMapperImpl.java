@@ -119,6 +119,14 @@ public class DocIDMapperImpl implements DocIDMapper
 	    _docArray = docArray;
 	  }
 	  
+	  /**
+	   * @return approximate heap size of the lookup structures
+	   */
+	  public long sizeInBytes()
+	  {
+	    return 8L * _uidArray.length + 4L * _docArray.length + 8L * _filter.length + 4L * _start.length;
+	  }
+	  
 	  public int getDocID(final long uid)
 	  {
 	    final int h = (int)((uid >>> 32) ^ uid) * MIXER;
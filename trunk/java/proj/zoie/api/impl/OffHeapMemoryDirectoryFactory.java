@@ -0,0 +1,41 @@
+package proj.zoie.api.impl;
+
+import org.apache.lucene.store.Directory;
+
+import proj.zoie.api.MemoryDirectoryFactory;
+import proj.zoie.api.impl.util.SlabDirectory;
+import proj.zoie.api.impl.util.SlabPool;
+
+/**
+ * Keeps the in-memory indexes off the Java heap, in direct buffer slabs shared through one {@link SlabPool}.
+ * Remember to size <code>-XX:MaxDirectMemorySize</code> for the RAM indexes plus the pooled free slabs.
+ */
+public class OffHeapMemoryDirectoryFactory implements MemoryDirectoryFactory {
+	private final SlabPool _pool;
+
+	public OffHeapMemoryDirectoryFactory() {
+		this(new SlabPool());
+	}
+
+	public OffHeapMemoryDirectoryFactory(SlabPool pool) {
+		_pool = pool;
+	}
+
+	public SlabPool getPool() {
+		return _pool;
+	}
+
+	public Directory newDirectory() {
+		return new SlabDirectory(_pool);
+	}
+
+	public long getAllocatedBytes() {
+		_pool.reclaim();
+		return _pool.getAllocatedBytes();
+	}
+
+	public long getUsedBytes() {
+		_pool.reclaim();
+		return _pool.getUsedBytes();
+	}
+}
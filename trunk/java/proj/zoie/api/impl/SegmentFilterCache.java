@@ -0,0 +1,276 @@
+package proj.zoie.api.impl;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.impl.util.ImmutableDocIdSet;
+
+/**
+ * Caches filter results per segment, keyed by segment name, delete generation and filter key.
+ * <br><br>
+ * A reopen carries the delete generation of a segment that did not change over to its new reader, and the snapshot
+ * of its duplicates keeps its generation until new ones are committed, see {@link ZoieSegmentReader#getDelGen()}. Cached results of such segments
+ * survive every refresh, only new and changed segments are filtered again. The cache works on segment readers,
+ * that is when the searcher walks the sub readers, other readers are filtered without it.
+ * <br><br>
+ * Results are kept as {@link ImmutableDocIdSet}s. The least recently used ones are evicted once the cache is
+ * over its size in bytes.
+ */
+public class SegmentFilterCache
+{
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private final LinkedHashMap<Key,ImmutableDocIdSet> _cache = new LinkedHashMap<Key,ImmutableDocIdSet>(16, 0.75f, true);
+  private long _sizeInBytes = 0L; // guarded by this
+  private volatile long _maxBytes;
+
+  private final AtomicLong _hits = new AtomicLong(0L);
+  private final AtomicLong _misses = new AtomicLong(0L);
+  private final AtomicLong _evictions = new AtomicLong(0L);
+
+  public SegmentFilterCache()
+  {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  public SegmentFilterCache(long maxBytes)
+  {
+    _maxBytes = Math.max(0L, maxBytes);
+  }
+
+  /**
+   * @return a filter that caches the results of <code>filter</code>, which is its own key
+   */
+  public Filter wrap(Filter filter)
+  {
+    return wrap(filter, filter);
+  }
+
+  /**
+   * @param filter the filter to cache
+   * @param key equal for filters that match the same documents
+   */
+  public Filter wrap(Filter filter, Object key)
+  {
+    return new CachingFilter(this, filter, key);
+  }
+
+  /**
+   * @return the cached result of the filter on the segment of <code>reader</code>, computed if it is not cached
+   */
+  public DocIdSet getDocIdSet(Filter filter, Object key, IndexReader reader) throws IOException
+  {
+    if (!(reader instanceof ZoieSegmentReader<?>))
+    {
+      return filter.getDocIdSet(reader);
+    }
+    ZoieSegmentReader<?> segmentReader = (ZoieSegmentReader<?>)reader;
+    Key cacheKey = new Key(segmentReader.getSegmentName(), segmentReader.getDelGen(), key);
+
+    ImmutableDocIdSet docs;
+    synchronized(this)
+    {
+      docs = _cache.get(cacheKey);
+    }
+    if (docs != null)
+    {
+      _hits.incrementAndGet();
+      return docs;
+    }
+
+    // concurrent misses compute the same result, the last one is kept
+    _misses.incrementAndGet();
+    docs = toImmutable(filter.getDocIdSet(reader), reader.maxDoc());
+    put(cacheKey, docs);
+    return docs;
+  }
+
+  private synchronized void put(Key key, ImmutableDocIdSet docs)
+  {
+    long size = docs.sizeInBytes();
+    if (size > _maxBytes) return;
+    ImmutableDocIdSet old = _cache.put(key, docs);
+    if (old != null) _sizeInBytes -= old.sizeInBytes();
+    _sizeInBytes += size;
+    evict();
+  }
+
+  // least recently used first
+  private void evict()
+  {
+    Iterator<Map.Entry<Key,ImmutableDocIdSet>> iter = _cache.entrySet().iterator();
+    while (_sizeInBytes > _maxBytes && iter.hasNext())
+    {
+      _sizeInBytes -= iter.next().getValue().sizeInBytes();
+      iter.remove();
+      _evictions.incrementAndGet();
+    }
+  }
+
+  private static ImmutableDocIdSet toImmutable(DocIdSet set, int maxDoc) throws IOException
+  {
+    if (set instanceof ImmutableDocIdSet) return (ImmutableDocIdSet)set;
+    DocIdSetIterator iter = (set == null ? null : set.iterator());
+    if (iter == null) return ImmutableDocIdSet.EMPTY;
+    IntArrayList docs = new IntArrayList();
+    int doc;
+    while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+    {
+      docs.add(doc);
+    }
+    return ImmutableDocIdSet.newInstance(docs.toIntArray(), maxDoc);
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public synchronized void setMaxBytes(long maxBytes)
+  {
+    _maxBytes = Math.max(0L, maxBytes);
+    evict();
+  }
+
+  /**
+   * @return bytes of the cached results
+   */
+  public synchronized long getSizeInBytes()
+  {
+    return _sizeInBytes;
+  }
+
+  public synchronized int getEntryCount()
+  {
+    return _cache.size();
+  }
+
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public long getEvictionCount()
+  {
+    return _evictions.get();
+  }
+
+  /**
+   * @return hits of all lookups so far, 0 if there were none
+   */
+  public double getHitRate()
+  {
+    long hits = _hits.get();
+    long total = hits + _misses.get();
+    return total == 0L ? 0.0 : (double)hits / total;
+  }
+
+  public synchronized void clear()
+  {
+    _cache.clear();
+    _sizeInBytes = 0L;
+  }
+
+  private static final class Key
+  {
+    private final String _segmentName;
+    private final long _delGen;
+    private final Object _filterKey;
+
+    Key(String segmentName, long delGen, Object filterKey)
+    {
+      _segmentName = segmentName;
+      _delGen = delGen;
+      _filterKey = filterKey;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key)o;
+      return _delGen == other._delGen && _segmentName.equals(other._segmentName) && _filterKey.equals(other._filterKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = _segmentName.hashCode();
+      h = 31 * h + (int)(_delGen ^ (_delGen >>> 32));
+      return 31 * h + _filterKey.hashCode();
+    }
+  }
+
+  private static final class CachingFilter extends Filter
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final SegmentFilterCache _cache;
+    private final Filter _filter;
+    private final Object _key;
+
+    CachingFilter(SegmentFilterCache cache, Filter filter, Object key)
+    {
+      _cache = cache;
+      _filter = filter;
+      _key = key;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+    {
+      return _cache.getDocIdSet(_filter, _key, reader);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof CachingFilter)) return false;
+      CachingFilter other = (CachingFilter)o;
+      return _cache == other._cache && _key.equals(other._key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return _key.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "SegmentFilterCache(" + _filter + ")";
+    }
+  }
+}
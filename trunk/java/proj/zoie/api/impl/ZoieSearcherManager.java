@@ -0,0 +1,225 @@
+package proj.zoie.api.impl;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+
+import proj.zoie.api.IndexReaderFactory;
+
+/**
+ * Shares one searcher among all searches over the same reader set.
+ * <br><br>
+ * Every {@link #acquire()} gets the readers from the factory. If they are the same reader instances the current
+ * searcher was built on, the searcher is reused and the readers go straight back to the factory. Otherwise the
+ * readers are taken again under the lock of the manager and a new searcher is built on them. It replaces the current
+ * one, which is closed and gives its readers back once the last search using it calls
+ * {@link #release(ManagedSearcher)}. As every searcher is built on readers taken under the lock, each one has a
+ * newer reader set than the one it replaces, so a search that got an older set never publishes it again.
+ * <br><br>
+ * Reader instances identify a reader set, because {@link proj.zoie.impl.indexing.ZoieSystem} hands out the same
+ * instances until a batch is indexed or deletes are committed.
+ */
+public class ZoieSearcherManager<R extends IndexReader>
+{
+  private static final Logger log = Logger.getLogger(ZoieSearcherManager.class);
+
+  private final IndexReaderFactory<R> _idxReaderFactory;
+  private volatile ManagedSearcher<R> _current = null;
+  private long _generation = 0L; // guarded by this
+  private boolean _closed = false; // guarded by this
+
+  public ZoieSearcherManager(IndexReaderFactory<R> idxReaderFactory)
+  {
+    _idxReaderFactory = idxReaderFactory;
+  }
+
+  public IndexReaderFactory<R> getIndexReaderFactory()
+  {
+    return _idxReaderFactory;
+  }
+
+  /**
+   * @return the searcher over the current readers, must be given back by {@link #release(ManagedSearcher)}
+   * @throws IOException
+   */
+  public ManagedSearcher<R> acquire() throws IOException
+  {
+    List<R> readers = _idxReaderFactory.getIndexReaders();
+    try
+    {
+      ManagedSearcher<R> searcher = _current;
+      if (searcher != null && searcher.isOver(readers) && searcher.tryIncRef())
+      {
+        return searcher;
+      }
+
+      synchronized(this)
+      {
+        if (_closed)
+        {
+          throw new IllegalStateException("searcher manager is closed");
+        }
+        // readers taken before the lock may be older than the ones of the current searcher
+        List<R> staleReaders = readers;
+        readers = _idxReaderFactory.getIndexReaders();
+        _idxReaderFactory.returnIndexReaders(staleReaders);
+
+        searcher = _current;
+        if (searcher != null && searcher.isOver(readers) && searcher.tryIncRef())
+        {
+          return searcher;
+        }
+
+        // the new searcher keeps the readers until it is closed
+        ManagedSearcher<R> newSearcher = new ManagedSearcher<R>(readers, ++_generation);
+        readers = null;
+        newSearcher.incRef(); // for the caller
+        _current = newSearcher;
+        if (searcher != null)
+        {
+          release(searcher); // the reference of the manager
+        }
+        return newSearcher;
+      }
+    }
+    finally
+    {
+      if (readers != null)
+      {
+        _idxReaderFactory.returnIndexReaders(readers);
+      }
+    }
+  }
+
+  public void release(ManagedSearcher<R> searcher)
+  {
+    if (searcher != null && searcher.decRef() == 0)
+    {
+      try
+      {
+        searcher._reader.close();
+      }
+      catch(IOException e)
+      {
+        log.error(e.getMessage(), e);
+      }
+      finally
+      {
+        _idxReaderFactory.returnIndexReaders(searcher._readers);
+      }
+    }
+  }
+
+  /**
+   * Releases the current searcher. Searches still running keep it open until they release it, no searcher can be
+   * acquired afterwards.
+   */
+  public void close()
+  {
+    ManagedSearcher<R> searcher;
+    synchronized(this)
+    {
+      _closed = true;
+      searcher = _current;
+      _current = null;
+    }
+    release(searcher);
+  }
+
+  /**
+   * A searcher over one reader set. It belongs to the manager, searches must not close it.
+   */
+  public static final class ManagedSearcher<R extends IndexReader>
+  {
+    private final List<R> _readers;
+    private final MultiReader _reader;
+    private final IndexSearcher _searcher;
+    private final long _generation;
+    // one reference is the manager's as long as this is the current searcher
+    private final AtomicInteger _refCount = new AtomicInteger(1);
+
+    ManagedSearcher(List<R> readers, long generation)
+    {
+      _readers = readers;
+      _generation = generation;
+      _reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+      _searcher = new IndexSearcher(_reader);
+    }
+
+    public IndexSearcher getSearcher()
+    {
+      return _searcher;
+    }
+
+    /**
+     * @return the reader the searcher runs on, with the readers of the set as its sub readers
+     */
+    public MultiReader getIndexReader()
+    {
+      return _reader;
+    }
+
+    public List<R> getReaders()
+    {
+      return _readers;
+    }
+
+    /**
+     * @return the number of the searcher within its manager, a searcher replaces only ones with a lower number
+     */
+    public long getGeneration()
+    {
+      return _generation;
+    }
+
+    boolean isOver(List<R> readers)
+    {
+      if (readers.size() != _readers.size()) return false;
+      for (int i = 0; i < readers.size(); ++i)
+      {
+        if (readers.get(i) != _readers.get(i)) return false;
+      }
+      return true;
+    }
+
+    void incRef()
+    {
+      _refCount.incrementAndGet();
+    }
+
+    boolean tryIncRef()
+    {
+      while (true)
+      {
+        int count = _refCount.get();
+        if (count <= 0) return false;
+        if (_refCount.compareAndSet(count, count + 1)) return true;
+      }
+    }
+
+    int decRef()
+    {
+      return _refCount.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * A set of doc ids that is never changed once built, so readers can share it without locking.
+ * <br><br>
+ * A set with few docs relative to the segment is a sorted array, anything larger a bitset, whichever is smaller.
+ * Membership in a bitset is a single word test, and its iterator skips by whole words.
+ * <br><br>
+ * New generations are made by {@link #union(int[], int, int)}. The bitset is split into pages and a new
+ * generation only copies the pages it sets bits in, all others are shared with the previous generation.
+ */
+public abstract class ImmutableDocIdSet extends DocIdSet
+{
+  public static final ImmutableDocIdSet EMPTY = new SparseSet(new int[0]);
+
+  /**
+   * @param sortedDocs distinct doc ids in ascending order, kept by the set if it is sparse
+   * @param maxDoc upper bound of the doc ids
+   */
+  public static ImmutableDocIdSet newInstance(int[] sortedDocs, int maxDoc)
+  {
+    if (sortedDocs.length == 0) return EMPTY;
+    if (isSparse(sortedDocs.length, maxDoc))
+    {
+      return new SparseSet(sortedDocs);
+    }
+    return emptyPagedSet(maxDoc).union(sortedDocs, sortedDocs.length, maxDoc);
+  }
+
+  // 32 bits per doc in an array against one bit per doc of the segment in a bitset
+  private static boolean isSparse(int count, int maxDoc)
+  {
+    return count < (maxDoc >>> 5);
+  }
+
+  private static PagedSet emptyPagedSet(int maxDoc)
+  {
+    return new PagedSet(new long[(maxDoc + PAGE_BITS - 1) >>> PAGE_SHIFT][], maxDoc, 0);
+  }
+
+  public abstract boolean contains(int docid);
+
+  public abstract int size();
+
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  /**
+   * @return the doc ids in ascending order, a new array
+   */
+  public abstract int[] toArray();
+  
+  /**
+   * @return approximate heap size of the set
+   */
+  public abstract long sizeInBytes();
+
+  /**
+   * Makes the next generation of this set, this set is not changed.
+   * @param docids doc ids to add, in any order and possibly already in the set. The array may be reordered.
+   * @param count number of doc ids to take from the array
+   * @param maxDoc upper bound of the doc ids
+   * @return this set if nothing was added
+   */
+  public abstract ImmutableDocIdSet union(int[] docids, int count, int maxDoc);
+
+  private static final class SparseSet extends ImmutableDocIdSet
+  {
+    private final int[] _docids;
+    private final ArrayDocIdSet _set;
+
+    SparseSet(int[] docids)
+    {
+      _docids = docids;
+      _set = new ArrayDocIdSet(docids);
+    }
+
+    @Override
+    public boolean contains(int docid)
+    {
+      return _docids.length > 0 && Arrays.binarySearch(_docids, docid) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+      return _docids.length;
+    }
+
+    @Override
+    public int[] toArray()
+    {
+      return _docids.clone();
+    }
+
+    @Override
+    public long sizeInBytes()
+    {
+      return 4L * _docids.length;
+    }
+
+    @Override
+    public ImmutableDocIdSet union(int[] docids, int count, int maxDoc)
+    {
+      if (count == 0) return this;
+      if (!isSparse(_docids.length + count, maxDoc))
+      {
+        ImmutableDocIdSet set = emptyPagedSet(maxDoc).union(_docids.clone(), _docids.length, maxDoc);
+        return set.union(docids, count, maxDoc);
+      }
+
+      // the set is small, a merge of the two sorted arrays is cheap
+      Arrays.sort(docids, 0, count);
+      int[] merged = new int[_docids.length + count];
+      int i = 0, j = 0, n = 0;
+      while (i < _docids.length || j < count)
+      {
+        int docid;
+        if (j >= count || (i < _docids.length && _docids[i] <= docids[j]))
+        {
+          docid = _docids[i++];
+        }
+        else
+        {
+          docid = docids[j++];
+        }
+        if (n == 0 || merged[n - 1] != docid) merged[n++] = docid;
+      }
+      if (n == _docids.length) return this;
+      return new SparseSet(n == merged.length ? merged : Arrays.copyOf(merged, n));
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      return _set.iterator();
+    }
+  }
+
+  private static final int PAGE_SHIFT = 12;
+  private static final int PAGE_BITS = 1 << PAGE_SHIFT;
+  private static final int PAGE_WORDS = PAGE_BITS >>> 6;
+
+  private static final class PagedSet extends ImmutableDocIdSet
+  {
+    // a null page has no bits set
+    private final long[][] _pages;
+    private final int _numBits;
+    private final int _size;
+
+    PagedSet(long[][] pages, int numBits, int size)
+    {
+      _pages = pages;
+      _numBits = numBits;
+      _size = size;
+    }
+
+    @Override
+    public boolean contains(int docid)
+    {
+      if (docid < 0 || docid >= _numBits) return false;
+      long[] page = _pages[docid >>> PAGE_SHIFT];
+      return page != null && (page[(docid >>> 6) & (PAGE_WORDS - 1)] & (1L << docid)) != 0;
+    }
+
+    @Override
+    public int size()
+    {
+      return _size;
+    }
+
+    @Override
+    public int[] toArray()
+    {
+      int[] docids = new int[_size];
+      int i = 0;
+      for (int docid = nextSetBit(0); docid >= 0; docid = nextSetBit(docid + 1))
+      {
+        docids[i++] = docid;
+      }
+      return docids;
+    }
+
+    @Override
+    public long sizeInBytes()
+    {
+      // pages are shared between generations, each counts them fully
+      long size = 8L * _pages.length;
+      for (long[] page : _pages)
+      {
+        if (page != null) size += 8L * PAGE_WORDS;
+      }
+      return size;
+    }
+
+    /**
+     * @return the first doc id in the set not below <code>from</code>, or -1
+     */
+    int nextSetBit(int from)
+    {
+      if (from < 0) from = 0;
+      if (from >= _numBits) return -1;
+      int pageIdx = from >>> PAGE_SHIFT;
+      int wordIdx = (from >>> 6) & (PAGE_WORDS - 1);
+      long[] page = _pages[pageIdx];
+      if (page != null)
+      {
+        long word = page[wordIdx] & (-1L << from);
+        while (true)
+        {
+          if (word != 0) return (pageIdx << PAGE_SHIFT) + (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+          if (++wordIdx == PAGE_WORDS) break;
+          word = page[wordIdx];
+        }
+      }
+      // whole pages without bits are skipped
+      for (pageIdx++; pageIdx < _pages.length; pageIdx++)
+      {
+        page = _pages[pageIdx];
+        if (page == null) continue;
+        for (wordIdx = 0; wordIdx < PAGE_WORDS; wordIdx++)
+        {
+          long word = page[wordIdx];
+          if (word != 0) return (pageIdx << PAGE_SHIFT) + (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public ImmutableDocIdSet union(int[] docids, int count, int maxDoc)
+    {
+      if (count == 0) return this;
+      long[][] pages = _pages.clone();
+      int size = _size;
+      for (int i = 0; i < count; i++)
+      {
+        int docid = docids[i];
+        int pageIdx = docid >>> PAGE_SHIFT;
+        long[] page = pages[pageIdx];
+        if (page == _pages[pageIdx])
+        {
+          // first write to this page in this generation
+          page = (page == null ? new long[PAGE_WORDS] : page.clone());
+          pages[pageIdx] = page;
+        }
+        int wordIdx = (docid >>> 6) & (PAGE_WORDS - 1);
+        long bit = 1L << docid;
+        if ((page[wordIdx] & bit) == 0)
+        {
+          page[wordIdx] |= bit;
+          size++;
+        }
+      }
+      if (size == _size) return this;
+      return new PagedSet(pages, _numBits, size);
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      return new DocIdSetIterator()
+      {
+        private int _doc = -1;
+
+        @Override
+        public int docID()
+        {
+          return _doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException
+        {
+          if (_doc == NO_MORE_DOCS) return NO_MORE_DOCS;
+          return advance(_doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException
+        {
+          int docid = nextSetBit(target);
+          _doc = (docid < 0 ? NO_MORE_DOCS : docid);
+          return _doc;
+        }
+      };
+    }
+  }
+}
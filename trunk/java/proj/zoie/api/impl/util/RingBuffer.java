@@ -0,0 +1,187 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A preallocated, bounded, lock-free ring buffer for many producers and a single consumer.
+ * <br><br>
+ * Every slot carries a sequence number. A producer claims a contiguous range of slots by a CAS on the tail
+ * and publishes each element by advancing the slot sequence, so nothing is allocated per element.
+ * The single consumer drains published elements in claim order. Since the consumer frees slots strictly in
+ * order, a range of slots is free as soon as its last slot is free.
+ * <br><br>
+ * Only one thread may call {@link #poll()} and {@link #drainTo(Collection, int)}.
+ *
+ * @param <E>
+ */
+public class RingBuffer<E>
+{
+  private final AtomicReferenceArray<E> _buffer;
+  private final AtomicLongArray _sequences;
+  private final int _mask;
+  private final int _capacity;
+  private final AtomicLong _tail = new AtomicLong(0L);
+  private volatile long _head = 0L;
+
+  /**
+   * @param capacity the minimum capacity, rounded up to a power of two
+   */
+  public RingBuffer(int capacity)
+  {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    if (capacity > (1 << 30)) throw new IllegalArgumentException("capacity too large: " + capacity);
+
+    int size = 1;
+    while (size < capacity) size <<= 1;
+
+    _capacity = size;
+    _mask = size - 1;
+    _buffer = new AtomicReferenceArray<E>(size);
+    _sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      _sequences.set(i, i);
+    }
+  }
+
+  public int capacity()
+  {
+    return _capacity;
+  }
+
+  /**
+   * @return the number of claimed but not yet consumed slots. This is only a snapshot.
+   */
+  public int size()
+  {
+    long size = _tail.get() - _head;
+    return (int)Math.max(0L, Math.min(size, _capacity));
+  }
+
+  public boolean isEmpty()
+  {
+    long head = _head;
+    return _sequences.get((int)head & _mask) != head + 1;
+  }
+
+  /**
+   * Adds one element if there is room.
+   * @param e element, must not be null
+   * @return false if the buffer is full
+   */
+  public boolean offer(E e)
+  {
+    if (e == null) throw new NullPointerException();
+
+    long pos = claim(1);
+    if (pos < 0) return false;
+    publish(pos, e);
+    return true;
+  }
+
+  /**
+   * Adds the first <code>count</code> elements from the iterator into contiguous slots, so they are not interleaved
+   * with elements from other producers. Either all of them are added or none.
+   * @param iter source of the elements, must yield at least <code>count</code> non-null elements
+   * @param count number of elements to add, at most {@link #capacity()}
+   * @return false if there is not enough room, in which case the iterator is not touched
+   */
+  public boolean offer(Iterator<? extends E> iter, int count)
+  {
+    if (count <= 0) return true;
+    if (count > _capacity) throw new IllegalArgumentException("cannot add " + count + " elements to a buffer of " + _capacity);
+
+    long pos = claim(count);
+    if (pos < 0) return false;
+    for (int i = 0; i < count; i++)
+    {
+      publish(pos + i, iter.next());
+    }
+    return true;
+  }
+
+  private long claim(int count)
+  {
+    while (true)
+    {
+      long pos = _tail.get();
+      long last = pos + count - 1;
+      long seq = _sequences.get((int)last & _mask);
+      if (seq == last)
+      {
+        if (_tail.compareAndSet(pos, pos + count)) return pos;
+      }
+      else if (seq < last)
+      {
+        return -1L; // full
+      }
+      // else another producer moved the tail, retry
+    }
+  }
+
+  private void publish(long pos, E e)
+  {
+    int idx = (int)pos & _mask;
+    _buffer.lazySet(idx, e);
+    _sequences.set(idx, pos + 1);
+  }
+
+  /**
+   * Removes the oldest published element. Consumer thread only.
+   * @return null if there is nothing published
+   */
+  public E poll()
+  {
+    long head = _head;
+    int idx = (int)head & _mask;
+    if (_sequences.get(idx) != head + 1) return null;
+
+    E e = _buffer.get(idx);
+    _buffer.lazySet(idx, null);
+    _sequences.lazySet(idx, head + _capacity);
+    _head = head + 1;
+    return e;
+  }
+
+  /**
+   * Moves up to <code>max</code> published elements into the collection. Consumer thread only.
+   * @return the number of elements moved
+   */
+  public int drainTo(Collection<? super E> dest, int max)
+  {
+    long head = _head;
+    int count = 0;
+    while (count < max)
+    {
+      int idx = (int)head & _mask;
+      if (_sequences.get(idx) != head + 1) break;
+
+      dest.add(_buffer.get(idx));
+      _buffer.lazySet(idx, null);
+      _sequences.lazySet(idx, head + _capacity);
+      head++;
+      count++;
+    }
+    if (count > 0) _head = head;
+    return count;
+  }
+}
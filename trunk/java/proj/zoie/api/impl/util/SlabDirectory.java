@@ -0,0 +1,333 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+
+/**
+ * An in-memory Lucene directory that keeps file contents in direct byte buffer slabs taken from a {@link SlabPool}.
+ * It behaves like {@link org.apache.lucene.store.RAMDirectory} but the index data is off the Java heap.
+ * <br><br>
+ * Deleting a file or closing the directory only drops the file; its slabs are recycled when no open input
+ * refers to it any more. See {@link SlabPool}.
+ */
+public class SlabDirectory extends Directory
+{
+  private final SlabPool _pool;
+  private final Map<String,SlabFile> _files = new ConcurrentHashMap<String,SlabFile>();
+
+  public SlabDirectory(SlabPool pool)
+  {
+    _pool = pool;
+    setLockFactory(new SingleInstanceLockFactory());
+  }
+
+  public SlabPool getPool()
+  {
+    return _pool;
+  }
+
+  public String[] listAll() throws IOException
+  {
+    return _files.keySet().toArray(new String[0]);
+  }
+
+  /**
+   * @deprecated use {@link #listAll()}
+   */
+  @Deprecated
+  public String[] list() throws IOException
+  {
+    return listAll();
+  }
+
+  public boolean fileExists(String name) throws IOException
+  {
+    return _files.containsKey(name);
+  }
+
+  public long fileModified(String name) throws IOException
+  {
+    return getFile(name)._lastModified;
+  }
+
+  public void touchFile(String name) throws IOException
+  {
+    getFile(name)._lastModified = System.currentTimeMillis();
+  }
+
+  public void deleteFile(String name) throws IOException
+  {
+    if (_files.remove(name) == null) throw new FileNotFoundException(name);
+  }
+
+  /**
+   * @deprecated not used by Lucene
+   */
+  @Deprecated
+  public synchronized void renameFile(String from, String to) throws IOException
+  {
+    SlabFile file = getFile(from);
+    _files.put(to, file);
+    _files.remove(from);
+  }
+
+  public long fileLength(String name) throws IOException
+  {
+    return getFile(name)._length;
+  }
+
+  /**
+   * @return bytes of slabs held by the files currently in this directory
+   */
+  public long sizeInBytes()
+  {
+    long size = 0L;
+    for (SlabFile file : _files.values())
+    {
+      size += (long)file.numSlabs() * _pool.getSlabSize();
+    }
+    return size;
+  }
+
+  public IndexOutput createOutput(String name) throws IOException
+  {
+    SlabFile file = new SlabFile();
+    _pool.releaseOnCollect(file, file._slabs);
+    _files.put(name, file);
+    return new SlabOutput(file, _pool);
+  }
+
+  public IndexInput openInput(String name) throws IOException
+  {
+    return new SlabInput(getFile(name), _pool.getSlabSize());
+  }
+
+  public void close() throws IOException
+  {
+    _files.clear();
+  }
+
+  private SlabFile getFile(String name) throws FileNotFoundException
+  {
+    SlabFile file = _files.get(name);
+    if (file == null) throw new FileNotFoundException(name);
+    return file;
+  }
+
+  private static final class SlabFile
+  {
+    // shared with the pool, which empties it once this file is collected
+    final ArrayList<ByteBuffer> _slabs = new ArrayList<ByteBuffer>();
+    volatile long _length = 0L;
+    volatile long _lastModified = System.currentTimeMillis();
+
+    ByteBuffer getSlab(int idx)
+    {
+      synchronized(_slabs)
+      {
+        return _slabs.get(idx);
+      }
+    }
+
+    void addSlab(ByteBuffer slab)
+    {
+      synchronized(_slabs)
+      {
+        _slabs.add(slab);
+      }
+    }
+
+    int numSlabs()
+    {
+      synchronized(_slabs)
+      {
+        return _slabs.size();
+      }
+    }
+  }
+
+  private static final class SlabOutput extends IndexOutput
+  {
+    private final SlabFile _file;
+    private final SlabPool _pool;
+    private final int _shift;
+    private final int _mask;
+    private ByteBuffer _cur = null;
+    private int _curIdx = -1;
+    private long _pos = 0L;
+    private long _length = 0L;
+
+    SlabOutput(SlabFile file, SlabPool pool)
+    {
+      _file = file;
+      _pool = pool;
+      _shift = Integer.numberOfTrailingZeros(pool.getSlabSize());
+      _mask = pool.getSlabSize() - 1;
+    }
+
+    private void switchSlab(int idx)
+    {
+      while (_file.numSlabs() <= idx)
+      {
+        _file.addSlab(_pool.allocate());
+      }
+      _cur = _file.getSlab(idx);
+      _curIdx = idx;
+    }
+
+    public void writeByte(byte b) throws IOException
+    {
+      int idx = (int)(_pos >>> _shift);
+      if (idx != _curIdx) switchSlab(idx);
+      _cur.put((int)_pos & _mask, b);
+      _pos++;
+      if (_pos > _length) _length = _pos;
+    }
+
+    public void writeBytes(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        int idx = (int)(_pos >>> _shift);
+        if (idx != _curIdx) switchSlab(idx);
+        int slabOffset = (int)_pos & _mask;
+        int n = Math.min(len, _cur.capacity() - slabOffset);
+        _cur.position(slabOffset);
+        _cur.put(b, offset, n);
+        offset += n;
+        len -= n;
+        _pos += n;
+      }
+      if (_pos > _length) _length = _pos;
+    }
+
+    public void flush() throws IOException
+    {
+      _file._length = _length;
+      _file._lastModified = System.currentTimeMillis();
+    }
+
+    public void close() throws IOException
+    {
+      flush();
+      _cur = null;
+    }
+
+    public long getFilePointer()
+    {
+      return _pos;
+    }
+
+    public void seek(long pos) throws IOException
+    {
+      _pos = pos;
+    }
+
+    public long length() throws IOException
+    {
+      return _length;
+    }
+  }
+
+  private static final class SlabInput extends IndexInput
+  {
+    private final SlabFile _file;
+    private final long _length;
+    private final int _shift;
+    private final int _mask;
+    // a private view of the current slab, so positions do not clash with other inputs
+    private ByteBuffer _cur = null;
+    private int _curIdx = -1;
+    private long _pos = 0L;
+
+    SlabInput(SlabFile file, int slabSize)
+    {
+      _file = file;
+      _length = file._length;
+      _shift = Integer.numberOfTrailingZeros(slabSize);
+      _mask = slabSize - 1;
+    }
+
+    private void switchSlab(int idx)
+    {
+      _cur = _file.getSlab(idx).duplicate();
+      _curIdx = idx;
+    }
+
+    public byte readByte() throws IOException
+    {
+      if (_pos >= _length) throw new IOException("read past EOF");
+      int idx = (int)(_pos >>> _shift);
+      if (idx != _curIdx) switchSlab(idx);
+      return _cur.get((int)(_pos++) & _mask);
+    }
+
+    public void readBytes(byte[] b, int offset, int len) throws IOException
+    {
+      if (_pos + len > _length) throw new IOException("read past EOF");
+      while (len > 0)
+      {
+        int idx = (int)(_pos >>> _shift);
+        if (idx != _curIdx) switchSlab(idx);
+        int slabOffset = (int)_pos & _mask;
+        int n = Math.min(len, _cur.capacity() - slabOffset);
+        _cur.position(slabOffset);
+        _cur.get(b, offset, n);
+        offset += n;
+        len -= n;
+        _pos += n;
+      }
+    }
+
+    public void close() throws IOException
+    {
+    }
+
+    public long getFilePointer()
+    {
+      return _pos;
+    }
+
+    public void seek(long pos) throws IOException
+    {
+      _pos = pos;
+    }
+
+    public long length()
+    {
+      return _length;
+    }
+
+    public Object clone()
+    {
+      SlabInput clone = (SlabInput)super.clone();
+      clone._cur = null;
+      clone._curIdx = -1;
+      return clone;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size direct byte buffers, used as storage slabs by {@link SlabDirectory}.
+ * <br><br>
+ * Slabs live outside the Java heap, so a large RAM index does not add to the work of the garbage collector.
+ * A file must not hand its slabs back while an open input may still read them. Instead the slabs of a file
+ * are registered together with the file object and go back to the pool once the garbage collector finds
+ * the file unreachable, which is after the last reader on it was dropped. Reclaimed slabs are picked up on
+ * the next allocation.
+ * <br><br>
+ * At most <code>maxPooledBytes</code> of free slabs are kept, the rest is left to the garbage collector.
+ */
+public class SlabPool
+{
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+  private final int _slabSize;
+  private volatile long _maxPooledBytes;
+
+  private final ConcurrentLinkedQueue<ByteBuffer> _freeSlabs = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger _freeCount = new AtomicInteger(0);
+  private final AtomicLong _allocatedBytes = new AtomicLong(0L);
+  private final AtomicLong _usedBytes = new AtomicLong(0L);
+
+  private final ReferenceQueue<Object> _refQueue = new ReferenceQueue<Object>();
+  // keeps the phantom references themselves reachable until they are enqueued
+  private final Set<SlabRef> _refs = Collections.newSetFromMap(new ConcurrentHashMap<SlabRef, Boolean>());
+
+  public SlabPool()
+  {
+    this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  public SlabPool(int slabSize, long maxPooledBytes)
+  {
+    if (slabSize <= 0 || (slabSize & (slabSize - 1)) != 0)
+      throw new IllegalArgumentException("slab size must be a positive power of two: " + slabSize);
+    _slabSize = slabSize;
+    _maxPooledBytes = Math.max(0L, maxPooledBytes);
+  }
+
+  public int getSlabSize()
+  {
+    return _slabSize;
+  }
+
+  public void setMaxPooledBytes(long maxPooledBytes)
+  {
+    _maxPooledBytes = Math.max(0L, maxPooledBytes);
+  }
+
+  public long getMaxPooledBytes()
+  {
+    return _maxPooledBytes;
+  }
+
+  /**
+   * @return bytes of direct memory currently owned by the pool, in use or free
+   */
+  public long getAllocatedBytes()
+  {
+    return _allocatedBytes.get();
+  }
+
+  /**
+   * @return bytes of slabs handed out and not yet reclaimed
+   */
+  public long getUsedBytes()
+  {
+    return _usedBytes.get();
+  }
+
+  /**
+   * @return bytes of free slabs waiting to be reused
+   */
+  public long getPooledBytes()
+  {
+    return (long)_freeCount.get() * _slabSize;
+  }
+
+  /**
+   * Gets a cleared slab, reusing a free one if there is any.
+   */
+  public ByteBuffer allocate()
+  {
+    reclaim();
+    ByteBuffer slab = _freeSlabs.poll();
+    if (slab != null)
+    {
+      _freeCount.decrementAndGet();
+      slab.clear();
+    }
+    else
+    {
+      slab = ByteBuffer.allocateDirect(_slabSize);
+      _allocatedBytes.addAndGet(_slabSize);
+    }
+    _usedBytes.addAndGet(_slabSize);
+    return slab;
+  }
+
+  /**
+   * Returns a slab that is known to be unreferenced.
+   */
+  public void release(ByteBuffer slab)
+  {
+    _usedBytes.addAndGet(-_slabSize);
+    if (getPooledBytes() + _slabSize <= _maxPooledBytes)
+    {
+      _freeCount.incrementAndGet();
+      _freeSlabs.offer(slab);
+    }
+    else
+    {
+      // dropped, the direct memory is freed when the buffer is collected
+      _allocatedBytes.addAndGet(-_slabSize);
+    }
+  }
+
+  /**
+   * Returns the slabs to the pool once <code>owner</code> becomes unreachable.
+   * The list must not be referenced by anything that outlives the owner except this pool.
+   * @param owner the object through which all readers of the slabs reach them
+   * @param slabs
+   */
+  public void releaseOnCollect(Object owner, List<ByteBuffer> slabs)
+  {
+    _refs.add(new SlabRef(owner, _refQueue, slabs));
+  }
+
+  /**
+   * Returns the slabs of owners that were collected since the last call.
+   */
+  public void reclaim()
+  {
+    Reference<?> ref;
+    while ((ref = _refQueue.poll()) != null)
+    {
+      SlabRef slabRef = (SlabRef)ref;
+      _refs.remove(slabRef);
+      List<ByteBuffer> slabs = slabRef._slabs;
+      synchronized(slabs)
+      {
+        for (ByteBuffer slab : slabs)
+        {
+          release(slab);
+        }
+        slabs.clear();
+      }
+    }
+  }
+
+  private static final class SlabRef extends PhantomReference<Object>
+  {
+    final List<ByteBuffer> _slabs;
+
+    SlabRef(Object owner, ReferenceQueue<Object> queue, List<ByteBuffer> slabs)
+    {
+      super(owner, queue);
+      _slabs = slabs;
+    }
+  }
+}
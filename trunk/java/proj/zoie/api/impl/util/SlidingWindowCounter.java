@@ -0,0 +1,73 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Counts events over the last minute in one-second buckets.
+ */
+public class SlidingWindowCounter
+{
+  private static final int NUM_BUCKETS = 60;
+  private static final long BUCKET_NANOS = 1000000000L;
+
+  private final long[] _counts = new long[NUM_BUCKETS];
+  private final long[] _seconds = new long[NUM_BUCKETS];
+  private final long _start = System.nanoTime();
+  private long _windowStart = _start;
+
+  public synchronized void add(long count)
+  {
+    long second = (System.nanoTime() - _start) / BUCKET_NANOS;
+    int idx = (int)(second % NUM_BUCKETS);
+    if (_seconds[idx] != second)
+    {
+      _seconds[idx] = second;
+      _counts[idx] = 0L;
+    }
+    _counts[idx] += count;
+  }
+
+  /**
+   * @return the number of events in the last minute, extrapolated while less than a minute has passed since start or reset
+   */
+  public synchronized long getCountPerMinute()
+  {
+    long now = System.nanoTime();
+    long second = (now - _start) / BUCKET_NANOS;
+    long total = 0L;
+    for (int i = 0; i < NUM_BUCKETS; ++i)
+    {
+      if (second - _seconds[i] < NUM_BUCKETS) total += _counts[i];
+    }
+    long elapsed = now - _windowStart;
+    if (elapsed < NUM_BUCKETS * BUCKET_NANOS)
+    {
+      long millis = Math.max(1L, elapsed / 1000000L);
+      return total * 60000L / millis;
+    }
+    return total;
+  }
+
+  public synchronized void reset()
+  {
+    for (int i = 0; i < NUM_BUCKETS; ++i)
+    {
+      _counts[i] = 0L;
+      _seconds[i] = 0L;
+    }
+    _windowStart = System.nanoTime();
+  }
+}
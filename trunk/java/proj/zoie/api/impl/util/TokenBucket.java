@@ -0,0 +1,109 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * Token-bucket rate limiter.
+ * <br><br>
+ * Tokens are added continuously at the configured rate, up to the burst capacity. Taking a token never blocks;
+ * if there are not enough tokens, {@link #acquire(int)} tells the caller how long to wait, so the caller can wait
+ * on its own monitor and still react to being paused or stopped.
+ */
+public class TokenBucket
+{
+  private long _ratePerMinute;
+  private long _burst;
+  private boolean _defaultBurst;
+  private double _tokens;
+  private long _lastRefill;
+
+  /**
+   * @param ratePerMinute tokens added per minute, 0 or less for no limit
+   */
+  public TokenBucket(long ratePerMinute)
+  {
+    _defaultBurst = true;
+    _lastRefill = System.nanoTime();
+    setRatePerMinute(ratePerMinute);
+    _tokens = _burst;
+  }
+
+  /**
+   * Changes the rate. Unless a burst capacity was set explicitly, it becomes one second worth of tokens.
+   * @param ratePerMinute tokens added per minute, 0 or less for no limit
+   */
+  public synchronized void setRatePerMinute(long ratePerMinute)
+  {
+    refill(System.nanoTime());
+    _ratePerMinute = ratePerMinute;
+    if (_defaultBurst)
+    {
+      _burst = Math.max(1L, ratePerMinute / 60);
+    }
+    _tokens = Math.min(_tokens, _burst);
+  }
+
+  public synchronized long getRatePerMinute()
+  {
+    return _ratePerMinute;
+  }
+
+  /**
+   * Sets the most tokens that can be taken at once after an idle period.
+   * @param burst burst capacity, 0 or less to go back to one second worth of tokens
+   */
+  public synchronized void setBurst(long burst)
+  {
+    refill(System.nanoTime());
+    _defaultBurst = (burst <= 0);
+    _burst = (_defaultBurst ? Math.max(1L, _ratePerMinute / 60) : burst);
+    _tokens = Math.min(_tokens, _burst);
+  }
+
+  public synchronized long getBurst()
+  {
+    return _burst;
+  }
+
+  /**
+   * Takes the tokens if they are available.
+   * @param permits number of tokens to take
+   * @return 0 if the tokens were taken, otherwise the number of nanoseconds until they will be available
+   */
+  public synchronized long acquire(int permits)
+  {
+    if (_ratePerMinute <= 0) return 0L;
+
+    long now = System.nanoTime();
+    refill(now);
+    // a request larger than the bucket can only ever be served from a full bucket
+    double needed = Math.min((double)permits, (double)_burst);
+    if (_tokens >= needed)
+    {
+      _tokens -= permits;
+      return 0L;
+    }
+    return Math.max(1L, (long)((needed - _tokens) * 60000000000.0 / _ratePerMinute));
+  }
+
+  private void refill(long now)
+  {
+    long elapsed = now - _lastRefill;
+    _lastRefill = now;
+    if (_ratePerMinute <= 0 || elapsed <= 0) return;
+    _tokens = Math.min((double)_burst, _tokens + elapsed * (double)_ratePerMinute / 60000000000.0);
+  }
+}
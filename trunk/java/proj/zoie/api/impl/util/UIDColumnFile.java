@@ -0,0 +1,197 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * A sidecar file holding the UIDs of one segment as a fixed width column, one long per document.
+ * Reading it replaces walking the payloads of the UID term when a segment is opened.
+ * <br><br>
+ * Lucene does not know about these files, so they are not removed with their segment, see {@link #purge(Directory)}.
+ * A file that is incomplete or does not match the segment is ignored.
+ */
+public class UIDColumnFile
+{
+  private static final Logger log = Logger.getLogger(UIDColumnFile.class);
+  
+  public static final String EXTENSION = "zuid";
+  
+  private static final int MAGIC = 0x5A554944; // "ZUID"
+  private static final int FORMAT = 1;
+  private static final int HEADER_LENGTH = 12;
+  private static final int CHUNK_SIZE = 64 * 1024; // bytes, a multiple of 8
+  
+  public static String getFileName(String segment)
+  {
+    return segment + "." + EXTENSION;
+  }
+  
+  /**
+   * Reads the UID column of a segment.
+   * @param dir directory of the segment
+   * @param segment segment name
+   * @param maxDoc number of documents of the segment, including deleted ones
+   * @return the UIDs by doc id, or null if there is no valid column for this segment
+   */
+  public static long[] read(Directory dir, String segment, int maxDoc)
+  {
+    String fileName = getFileName(segment);
+    IndexInput in = null;
+    try
+    {
+      if (!dir.fileExists(fileName)) return null;
+      in = dir.openInput(fileName);
+      if (in.length() != HEADER_LENGTH + 8L * maxDoc + 8L
+          || in.readInt() != MAGIC || in.readInt() != FORMAT || in.readInt() != maxDoc)
+      {
+        log.warn("ignoring UID column that does not match segment " + segment);
+        return null;
+      }
+      
+      long[] uids = new long[maxDoc];
+      CRC32 crc = new CRC32();
+      byte[] buf = new byte[(int)Math.min(CHUNK_SIZE, 8L * maxDoc)];
+      int idx = 0;
+      while (idx < maxDoc)
+      {
+        int count = Math.min(maxDoc - idx, buf.length >> 3);
+        in.readBytes(buf, 0, count << 3);
+        crc.update(buf, 0, count << 3);
+        for (int i = 0, off = 0; i < count; ++i, off += 8)
+        {
+          uids[idx++] = ((long)(buf[off] & 0xFF) << 56) | ((long)(buf[off+1] & 0xFF) << 48) | ((long)(buf[off+2] & 0xFF) << 40)
+                      | ((long)(buf[off+3] & 0xFF) << 32) | ((long)(buf[off+4] & 0xFF) << 24) | ((long)(buf[off+5] & 0xFF) << 16)
+                      | ((long)(buf[off+6] & 0xFF) << 8) | (long)(buf[off+7] & 0xFF);
+        }
+      }
+      if (in.readLong() != crc.getValue())
+      {
+        log.warn("ignoring corrupt UID column of segment " + segment);
+        return null;
+      }
+      return uids;
+    }
+    catch (FileNotFoundException e)
+    {
+      return null; // purged in the meantime
+    }
+    catch (IOException e)
+    {
+      log.warn("cannot read UID column of segment " + segment + ": " + e.getMessage());
+      return null;
+    }
+    finally
+    {
+      close(in);
+    }
+  }
+  
+  /**
+   * Writes the UID column of a segment. Writers of the same segment write the same content,
+   * and a reader never takes a partly written file, so no locking is needed.
+   * @param dir directory of the segment
+   * @param segment segment name
+   * @param uids UIDs by doc id, of all documents of the segment
+   * @throws IOException
+   */
+  public static void write(Directory dir, String segment, long[] uids) throws IOException
+  {
+    IndexOutput out = dir.createOutput(getFileName(segment));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeInt(uids.length);
+      CRC32 crc = new CRC32();
+      byte[] buf = new byte[(int)Math.min(CHUNK_SIZE, 8L * uids.length)];
+      int idx = 0;
+      while (idx < uids.length)
+      {
+        int count = Math.min(uids.length - idx, buf.length >> 3);
+        for (int i = 0, off = 0; i < count; ++i, off += 8)
+        {
+          long uid = uids[idx++];
+          buf[off] = (byte)(uid >>> 56);
+          buf[off+1] = (byte)(uid >>> 48);
+          buf[off+2] = (byte)(uid >>> 40);
+          buf[off+3] = (byte)(uid >>> 32);
+          buf[off+4] = (byte)(uid >>> 24);
+          buf[off+5] = (byte)(uid >>> 16);
+          buf[off+6] = (byte)(uid >>> 8);
+          buf[off+7] = (byte)uid;
+        }
+        out.writeBytes(buf, 0, count << 3);
+        crc.update(buf, 0, count << 3);
+      }
+      out.writeLong(crc.getValue());
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+  
+  /**
+   * Deletes the UID columns of segments that no longer exist in the directory.
+   * @param dir
+   * @throws IOException
+   */
+  public static void purge(Directory dir) throws IOException
+  {
+    String[] files = dir.listAll();
+    if (files == null) return;
+    for (String file : files)
+    {
+      if (!file.endsWith("." + EXTENSION)) continue;
+      String segment = file.substring(0, file.length() - EXTENSION.length() - 1);
+      // every segment has either a compound file or a field infos file
+      if (!dir.fileExists(segment + ".cfs") && !dir.fileExists(segment + ".fnm"))
+      {
+        try
+        {
+          dir.deleteFile(file);
+        }
+        catch (IOException e)
+        {
+          log.warn("cannot delete " + file + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+  
+  private static void close(IndexInput in)
+  {
+    if (in != null)
+    {
+      try
+      {
+        in.close();
+      }
+      catch (IOException e)
+      {
+        log.warn(e.getMessage());
+      }
+    }
+  }
+}
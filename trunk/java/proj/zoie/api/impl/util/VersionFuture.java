@@ -0,0 +1,174 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future that completes once a given version is reached, with the version reached as its value.
+ * <br><br>
+ * Besides blocking in {@link #get()}, callers can register listeners with {@link #addListener(Runnable, Executor)},
+ * which run when the future completes, is cancelled or fails.
+ *
+ * @see VersionWaiters
+ */
+public class VersionFuture implements Future<Long>
+{
+  private final long _version;
+  private final VersionWaiters _waiters;
+  private boolean _done;
+  private boolean _cancelled;
+  private long _reached;
+  private Throwable _failure;
+  private List<Runnable> _listeners;
+
+  VersionFuture(long version, VersionWaiters waiters)
+  {
+    _version = version;
+    _waiters = waiters;
+    _done = false;
+    _cancelled = false;
+    _reached = -1L;
+    _failure = null;
+    _listeners = null;
+  }
+
+  /**
+   * @return the version this future waits for
+   */
+  public long getVersion()
+  {
+    return _version;
+  }
+
+  boolean complete(long reached)
+  {
+    return finish(reached, null, false);
+  }
+
+  boolean fail(Throwable failure)
+  {
+    return finish(-1L, failure, false);
+  }
+
+  private boolean finish(long reached, Throwable failure, boolean cancelled)
+  {
+    List<Runnable> listeners;
+    synchronized(this)
+    {
+      if (_done) return false;
+      _done = true;
+      _reached = reached;
+      _failure = failure;
+      _cancelled = cancelled;
+      listeners = _listeners;
+      _listeners = null;
+      notifyAll();
+    }
+    if (listeners != null)
+    {
+      for (Runnable listener : listeners)
+      {
+        listener.run();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the listener on the executor when this future is done, or right away if it is done already.
+   * The executor should not run it inline unless the listener is trivial, since futures are usually completed
+   * by an indexing thread.
+   * @param listener
+   * @param executor
+   */
+  public void addListener(final Runnable listener, final Executor executor)
+  {
+    Runnable task = new Runnable()
+    {
+      public void run()
+      {
+        executor.execute(listener);
+      }
+    };
+    synchronized(this)
+    {
+      if (!_done)
+      {
+        if (_listeners == null) _listeners = new ArrayList<Runnable>(1);
+        _listeners.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning)
+  {
+    if (finish(-1L, null, true))
+    {
+      _waiters.remove(this);
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized boolean isCancelled()
+  {
+    return _cancelled;
+  }
+
+  public synchronized boolean isDone()
+  {
+    return _done;
+  }
+
+  public synchronized Long get() throws InterruptedException, ExecutionException
+  {
+    while (!_done)
+    {
+      wait();
+    }
+    return result();
+  }
+
+  public synchronized Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+  {
+    long nanos = unit.toNanos(timeout);
+    long due = System.nanoTime() + nanos;
+    while (!_done)
+    {
+      if (nanos <= 0L) throw new TimeoutException("version " + _version + " not reached");
+      TimeUnit.NANOSECONDS.timedWait(this, nanos);
+      nanos = due - System.nanoTime();
+    }
+    return result();
+  }
+
+  private Long result() throws ExecutionException
+  {
+    if (_cancelled) throw new CancellationException();
+    if (_failure != null) throw new ExecutionException(_failure);
+    return _reached;
+  }
+}
@@ -0,0 +1,129 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Waiters for versions, ordered by version.
+ * <br><br>
+ * When the version advances, only the waiters at or below the new version are woken, instead of every thread
+ * waiting on a shared monitor.
+ */
+public class VersionWaiters
+{
+  private final PriorityQueue<VersionFuture> _waiters;
+  private long _currentVersion;
+
+  public VersionWaiters(long currentVersion)
+  {
+    _currentVersion = currentVersion;
+    _waiters = new PriorityQueue<VersionFuture>(16, new Comparator<VersionFuture>()
+    {
+      public int compare(VersionFuture f1, VersionFuture f2)
+      {
+        long v1 = f1.getVersion();
+        long v2 = f2.getVersion();
+        return (v1 < v2 ? -1 : (v1 > v2 ? 1 : 0));
+      }
+    });
+  }
+
+  public synchronized long getCurrentVersion()
+  {
+    return _currentVersion;
+  }
+
+  /**
+   * @return the number of pending waiters
+   */
+  public synchronized int size()
+  {
+    return _waiters.size();
+  }
+
+  /**
+   * @param version version to wait for
+   * @return a future that completes when the version is reached; already completed if it has been reached
+   */
+  public VersionFuture waitFor(long version)
+  {
+    VersionFuture future = new VersionFuture(version, this);
+    long current;
+    synchronized(this)
+    {
+      current = _currentVersion;
+      if (current < version)
+      {
+        _waiters.add(future);
+        return future;
+      }
+    }
+    future.complete(current);
+    return future;
+  }
+
+  /**
+   * Moves the current version forward and completes all waiters at or below it.
+   * @param version the new version, ignored if lower than the current one
+   */
+  public void advance(long version)
+  {
+    List<VersionFuture> ready = null;
+    synchronized(this)
+    {
+      if (version <= _currentVersion) return;
+      _currentVersion = version;
+      while (!_waiters.isEmpty() && _waiters.peek().getVersion() <= version)
+      {
+        if (ready == null) ready = new ArrayList<VersionFuture>();
+        ready.add(_waiters.poll());
+      }
+    }
+    if (ready != null)
+    {
+      for (VersionFuture future : ready)
+      {
+        future.complete(version);
+      }
+    }
+  }
+
+  /**
+   * Fails all pending waiters, e.g. on shutdown.
+   */
+  public void failAll(Throwable failure)
+  {
+    List<VersionFuture> pending;
+    synchronized(this)
+    {
+      pending = new ArrayList<VersionFuture>(_waiters);
+      _waiters.clear();
+    }
+    for (VersionFuture future : pending)
+    {
+      future.fail(failure);
+    }
+  }
+
+  synchronized void remove(VersionFuture future)
+  {
+    _waiters.remove(future);
+  }
+}
@@ -18,6 +18,7 @@ package proj.zoie.api.indexing;
 
 public abstract class AbstractZoieIndexable implements ZoieIndexable {
 	public static final String DOCUMENT_ID_PAYLOAD_FIELD="_ID";
+	public static final String DOCUMENT_ID_TERM_FIELD="_IDT";
 	
 	public abstract IndexingReq[] buildIndexingReqs();
 
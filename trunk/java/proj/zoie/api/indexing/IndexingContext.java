@@ -0,0 +1,180 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+import proj.zoie.api.ZoieSegmentReader.UIDFields;
+
+/**
+ * Hands out {@link Document} and {@link Field} instances that are reused from one indexed document to the next,
+ * see {@link ReusableZoieIndexable}.
+ * <br><br>
+ * Everything obtained from a context is only valid until {@link #reset()}, which the indexing loop calls once the
+ * documents of an indexable are added to the index. A context belongs to one thread, see {@link #get()}.
+ */
+public class IndexingContext
+{
+  private static final ThreadLocal<IndexingContext> _contexts = new ThreadLocal<IndexingContext>()
+  {
+    protected IndexingContext initialValue()
+    {
+      return new IndexingContext();
+    }
+  };
+  
+  private final ArrayList<Document> _docs = new ArrayList<Document>();
+  private int _docCount = 0;
+  private final HashMap<String,FieldSlot> _fieldSlots = new HashMap<String,FieldSlot>();
+  private final ArrayList<FieldSlot> _usedSlots = new ArrayList<FieldSlot>();
+  private final ArrayList<UIDFields> _uidFields = new ArrayList<UIDFields>();
+  private int _uidCount = 0;
+  
+  /**
+   * @return the context of the calling thread
+   */
+  public static IndexingContext get()
+  {
+    return _contexts.get();
+  }
+  
+  /**
+   * @return an empty document
+   */
+  public Document newDocument()
+  {
+    Document doc;
+    if (_docCount < _docs.size())
+    {
+      doc = _docs.get(_docCount);
+      doc.getFields().clear();
+      doc.setBoost(1.0f);
+    }
+    else
+    {
+      doc = new Document();
+      _docs.add(doc);
+    }
+    _docCount++;
+    return doc;
+  }
+  
+  /**
+   * Gets a field with the given value. Calling this more than once for the same name before {@link #reset()}
+   * gives different instances, e.g. for multi-valued fields or several documents. Only the boost may be changed
+   * on the returned field.
+   * @param name
+   * @param value
+   * @param store
+   * @param index
+   * @return a field, not yet added to any document
+   */
+  public Field newField(String name, String value, Field.Store store, Field.Index index)
+  {
+    FieldSlot slot = _fieldSlots.get(name);
+    if (slot == null)
+    {
+      slot = new FieldSlot();
+      _fieldSlots.put(name, slot);
+    }
+    if (slot._used == 0)
+    {
+      _usedSlots.add(slot);
+    }
+    
+    Field field;
+    if (slot._used < slot._fields.size() && slot._stores.get(slot._used) == store && slot._indexes.get(slot._used) == index)
+    {
+      field = slot._fields.get(slot._used);
+      field.setValue(value);
+      field.setBoost(1.0f);
+    }
+    else
+    {
+      field = new Field(name, value, store, index);
+      if (slot._used < slot._fields.size())
+      {
+        slot._fields.set(slot._used, field);
+        slot._stores.set(slot._used, store);
+        slot._indexes.set(slot._used, index);
+      }
+      else
+      {
+        slot._fields.add(field);
+        slot._stores.add(store);
+        slot._indexes.add(index);
+      }
+    }
+    slot._used++;
+    return field;
+  }
+  
+  /**
+   * Adds the uid fields to the document, like {@link proj.zoie.api.ZoieSegmentReader#fillDocumentID(Document, long)}.
+   * @param doc
+   * @param uid
+   */
+  public void fillDocumentID(Document doc, long uid)
+  {
+    fillDocumentID(doc, uid, false);
+  }
+  
+  /**
+   * Adds the uid fields to the document,
+   * like {@link proj.zoie.api.ZoieSegmentReader#fillDocumentID(Document, long, boolean)}.
+   */
+  public void fillDocumentID(Document doc, long uid, boolean indexUIDTerm)
+  {
+    UIDFields uidFields;
+    if (_uidCount < _uidFields.size())
+    {
+      uidFields = _uidFields.get(_uidCount);
+    }
+    else
+    {
+      uidFields = new UIDFields();
+      _uidFields.add(uidFields);
+    }
+    _uidCount++;
+    uidFields.fill(doc, uid, indexUIDTerm);
+  }
+  
+  /**
+   * Makes all documents and fields handed out so far available again.
+   */
+  public void reset()
+  {
+    _docCount = 0;
+    _uidCount = 0;
+    for (FieldSlot slot : _usedSlots)
+    {
+      slot._used = 0;
+    }
+    _usedSlots.clear();
+  }
+  
+  private static final class FieldSlot
+  {
+    final ArrayList<Field> _fields = new ArrayList<Field>(1);
+    final ArrayList<Field.Store> _stores = new ArrayList<Field.Store>(1);
+    final ArrayList<Field.Index> _indexes = new ArrayList<Field.Index>(1);
+    int _used = 0;
+  }
+}
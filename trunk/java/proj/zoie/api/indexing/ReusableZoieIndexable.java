@@ -0,0 +1,36 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An indexable that builds its documents from the reusable documents and fields of an {@link IndexingContext}.
+ * The Zoie indexing loop builds such documents right before adding them to the index, instead of when the
+ * batch is interpreted, so the same instances serve every document of the batch.
+ * <br><br>
+ * {@link #buildIndexingReqs()} is still used where documents have to outlive the next one, e.g. by the bulk loader.
+ * It can simply call <code>buildIndexingReqs(new IndexingContext())</code>.
+ */
+public interface ReusableZoieIndexable extends ZoieIndexable
+{
+  /**
+   * Builder method. The documents must only be made of objects from the context, or of objects that are
+   * not shared with other documents.
+   * @param ctx context of the indexing thread
+   * @return An array of indexing requests
+   */
+  IndexingReq[] buildIndexingReqs(IndexingContext ctx);
+}
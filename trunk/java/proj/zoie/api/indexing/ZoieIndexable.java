@@ -34,6 +34,7 @@ public interface ZoieIndexable{
 	public static final class IndexingReq{
 		private final Document _doc;
 		private final Analyzer _analyzer;
+		private final ReusableZoieIndexable _deferred;
 		
 		public IndexingReq(Document doc){
 			this(doc,null);
@@ -42,6 +43,24 @@ public interface ZoieIndexable{
 		public IndexingReq(Document doc,Analyzer analyzer){
 			_doc = doc;
 			_analyzer = analyzer;
+			_deferred = null;
+		}
+		
+		/**
+		 * A request whose documents are built by the indexing loop, see {@link ReusableZoieIndexable}.
+		 * It has no document of its own.
+		 */
+		public IndexingReq(ReusableZoieIndexable deferred){
+			_doc = null;
+			_analyzer = null;
+			_deferred = deferred;
+		}
+		
+		/**
+		 * @return the indexable to build the documents from, or null if the document is already built
+		 */
+		public ReusableZoieIndexable getDeferredIndexable(){
+			return _deferred;
 		}
 		
 		public Document getDocument(){
@@ -1,36 +1,67 @@
 package proj.zoie.dataprovider.jdbc;
 
-import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.impl.indexing.IndexingThread;
 import proj.zoie.impl.indexing.StreamDataProvider;
 
+/**
+ * Streams rows from a database, starting after the version of the consumer.
+ * <br><br>
+ * Rows are fetched in pages by a background thread, so the next query runs while the current page is consumed.
+ * The statement must return rows ordered by version: each page starts after the last version of the previous one
+ * (keyset paging). Rows may share a version, so the rows of the last version of a full page are left to the next
+ * page, which reads that version again in full; if one version fills a whole page, the page is made larger.
+ * With a page size, a full page is followed by the next query right away; otherwise, or after
+ * a short page, the fetcher waits the pull time before asking again.
+ * If the connection fails, it is reopened with exponential backoff.
+ */
 public class JDBCStreamDataProvider<T> extends StreamDataProvider<T> {
   private static final Logger log = Logger.getLogger(JDBCStreamDataProvider.class);
   private static final long DEFAULT_PULL_TIME = 1000;
+  private static final int DEFAULT_PREFETCH_PAGES = 2;
+  private static final long DEFAULT_MIN_RECONNECT_DELAY = 1000;
+  private static final long DEFAULT_MAX_RECONNECT_DELAY = 60000;
+  private static final long POLL_TIME = 500;
+  
   private final JDBCConnectionFactory _connFactory;
   private final PreparedStatementBuilder<T> _stmtBuilder;
-  private long _version;
-  private Connection _conn;
-  private PreparedStatement _stmt;
-  private ResultSet _res;
-  private long _pullTime;
+  private volatile long _pullTime;
+  private volatile int _fetchSize;
+  private volatile int _pageSize;
+  private int _prefetchPages;
+  private volatile long _minReconnectDelay;
+  private volatile long _maxReconnectDelay;
+  
+  private BlockingQueue<List<DataEvent<T>>> _pages;
+  private Iterator<DataEvent<T>> _currentPage;
+  private FetchThread _fetcher;
 
   public JDBCStreamDataProvider(JDBCConnectionFactory connFactory,PreparedStatementBuilder<T> stmtBuilder){
     _connFactory = connFactory;
     _stmtBuilder = stmtBuilder;
-    _version = 0L;
-    _conn = null;
-    _stmt = null;
-    _res = null;
     _pullTime = DEFAULT_PULL_TIME;
+    _fetchSize = 0;
+    _pageSize = 0;
+    _prefetchPages = DEFAULT_PREFETCH_PAGES;
+    _minReconnectDelay = DEFAULT_MIN_RECONNECT_DELAY;
+    _maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    _pages = null;
+    _currentPage = null;
+    _fetcher = null;
   }
 
   public void setPullTime(long pullTime){
@@ -41,107 +72,288 @@ public class JDBCStreamDataProvider<T> extends StreamDataProvider<T> {
     return _pullTime;
   }
 
+  /**
+   * Sets the JDBC fetch size hint of each query. 0 leaves the driver default.
+   */
+  public void setFetchSize(int fetchSize){
+    _fetchSize = Math.max(0, fetchSize);
+  }
+
+  public int getFetchSize(){
+    return _fetchSize;
+  }
+
+  /**
+   * Sets the maximum number of rows per query. 0 means no limit.
+   * A {@link PagedPreparedStatementBuilder} gets the limit for its query, any other builder gets
+   * it through {@link PreparedStatement#setMaxRows(int)}.
+   */
+  public void setPageSize(int pageSize){
+    _pageSize = Math.max(0, pageSize);
+  }
+
+  public int getPageSize(){
+    return _pageSize;
+  }
+
+  /**
+   * Sets how many fetched pages may wait to be consumed. Takes effect on the next start.
+   */
+  public synchronized void setPrefetchPages(int prefetchPages){
+    _prefetchPages = Math.max(1, prefetchPages);
+  }
+
+  public synchronized int getPrefetchPages(){
+    return _prefetchPages;
+  }
+
+  /**
+   * Sets the delays between attempts to reconnect after a failure, doubling from min to max.
+   */
+  public void setReconnectDelay(long minReconnectDelay, long maxReconnectDelay){
+    _minReconnectDelay = Math.max(1L, minReconnectDelay);
+    _maxReconnectDelay = Math.max(_minReconnectDelay, maxReconnectDelay);
+  }
+
+  public long getMinReconnectDelay(){
+    return _minReconnectDelay;
+  }
+
+  public long getMaxReconnectDelay(){
+    return _maxReconnectDelay;
+  }
+
   @Override
   public DataEvent<T> next() {
-    DataEvent<T> event = null;
-    try
+    while(_currentPage == null || !_currentPage.hasNext())
     {
-      while(!_res.next())
+      FetchThread fetcher;
+      BlockingQueue<List<DataEvent<T>>> pages;
+      synchronized(this)
       {
-        try{
-          _res.close();
-        }
-        finally{
-          _stmt.close();
-        }
-        try {
-          Thread.sleep(_pullTime);
-        } catch (InterruptedException e) {
-          log.error(e.getMessage(),e);
+        fetcher = _fetcher;
+        pages = _pages;
+      }
+      if (fetcher == null || fetcher._stop) return null;
+      try {
+        List<DataEvent<T>> page = pages.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+        if (page != null){
+          _currentPage = page.iterator();
         }
-        _stmt = _stmtBuilder.buildStatment(_conn, _version);
-        _res = _stmt.executeQuery();
+      } catch (InterruptedException e) {
+        log.error(e.getMessage(),e);
       }
-      event = _stmtBuilder.buildDataEvent(_res);
-      _version = event.getVersion();
-    } 
-    catch (SQLException sqle)
-    {
-      log.error(sqle.getMessage(),sqle);
     }
-    return event;
+    return _currentPage.next();
   }
 
   @Override
   public void reset() {
-    if (_res!=null){
-      try{
-        _res.close();
-      }
-      catch(SQLException sqle){
-        log.error(sqle.getMessage(),sqle);
-        _res = null;
-      }
-      finally{
-        try {
-          _stmt.close();
-        } catch (SQLException e) {
-          log.error(e.getMessage(),e);
-        }
-      }
-    }
+    stopFetcher();
 
+    long version;
     DataConsumer<T> dc = getDataConsumer(); 
     if (dc == null)
     {
-      _version = 0;
+      version = 0;
       log.warn("problem opening index, maynot exist, defaulting version to 0");
     } else
-      _version = dc.getVersion();
-    if (_conn == null){
-      try {
-        _conn = _connFactory.getConnection();
-        _stmt = _stmtBuilder.buildStatment(_conn, _version);
-        _res = _stmt.executeQuery();
-      } catch (SQLException sqle) {
-        log.fatal(sqle.getMessage(), sqle);
-        _res = null;
-      }
+      version = dc.getVersion();
+
+    synchronized(this)
+    {
+      _pages = new ArrayBlockingQueue<List<DataEvent<T>>>(_prefetchPages);
+      _currentPage = null;
+      _fetcher = new FetchThread(version, _pages);
+      _fetcher.setDaemon(true);
+      _fetcher.start();
     }
   }
 
   @Override
   public void stop() {
+    FetchThread fetcher;
+    synchronized(this)
+    {
+      fetcher = _fetcher;
+    }
+    if (fetcher != null){
+      fetcher.terminate(); // lets next() return, so the data thread can finish
+    }
     try{
       super.stop();
     }
     finally{
-      try{
-        if (_res!=null){
-          _res.close();
+      stopFetcher();
+    }
+  }
+
+  private void stopFetcher() {
+    FetchThread fetcher;
+    synchronized(this)
+    {
+      fetcher = _fetcher;
+      _fetcher = null;
+    }
+    if (fetcher != null){
+      fetcher.terminate();
+      try {
+        fetcher.join();
+      } catch (InterruptedException e) {
+        log.warn("stopping interrupted");
+      }
+    }
+  }
+
+  private final class FetchThread extends IndexingThread
+  {
+    private final BlockingQueue<List<DataEvent<T>>> _queue;
+    private long _version;
+    private Connection _conn;
+    private long _reconnectDelay;
+    volatile boolean _stop;
+
+    FetchThread(long version, BlockingQueue<List<DataEvent<T>>> queue)
+    {
+      super("jdbc prefetch thread");
+      _version = version;
+      _queue = queue;
+      _conn = null;
+      _reconnectDelay = _minReconnectDelay;
+      _stop = false;
+    }
+
+    void terminate()
+    {
+      _stop = true;
+      interrupt();
+    }
+
+    public void run()
+    {
+      try
+      {
+        while(!_stop)
+        {
+          List<DataEvent<T>> page;
+          int pageSize = _pageSize;
+          boolean full = false;
+          try
+          {
+            if (_conn == null){
+              _conn = _connFactory.getConnection();
+            }
+            page = fetchPage(pageSize);
+            int limit = pageSize;
+            while (limit > 0 && page.size() >= limit && !_stop){
+              full = true;
+              // the last version may go on past the page, leave it to the next one
+              int end = startOfLastVersion(page);
+              if (end > 0){
+                page = new ArrayList<DataEvent<T>>(page.subList(0, end));
+                break;
+              }
+              limit = (limit > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : limit * 2);
+              page = fetchPage(limit);
+              full = false;
+            }
+            _reconnectDelay = _minReconnectDelay;
+          }
+          catch (SQLException sqle)
+          {
+            log.error("query failed, reconnecting in "+_reconnectDelay+"ms: "+sqle.getMessage(),sqle);
+            closeConnection();
+            pause(_reconnectDelay);
+            _reconnectDelay = Math.min(_maxReconnectDelay, _reconnectDelay*2);
+            continue;
+          }
+
+          if (page.size() > 0){
+            _version = page.get(page.size()-1).getVersion();
+            while(!_stop){
+              try {
+                if (_queue.offer(page, POLL_TIME, TimeUnit.MILLISECONDS)) break;
+              } catch (InterruptedException e) {
+                // stopped
+              }
+            }
+          }
+          if (!full){
+            // caught up, wait for new rows
+            pause(_pullTime);
+          }
         }
       }
-      catch(SQLException sqle){
-        log.error(sqle.getMessage(),sqle);
+      finally
+      {
+        closeConnection();
       }
-      finally{
+    }
+
+    private List<DataEvent<T>> fetchPage(int pageSize) throws SQLException
+    {
+      PreparedStatement stmt;
+      if (pageSize > 0 && _stmtBuilder instanceof PagedPreparedStatementBuilder){
+        stmt = ((PagedPreparedStatementBuilder<T>)_stmtBuilder).buildStatment(_conn, _version, pageSize);
+      }
+      else{
+        stmt = _stmtBuilder.buildStatment(_conn, _version);
+        if (pageSize > 0){
+          stmt.setMaxRows(pageSize);
+        }
+      }
+      try{
+        if (_fetchSize > 0){
+          stmt.setFetchSize(_fetchSize);
+        }
+        ResultSet res = stmt.executeQuery();
         try{
-          if (_stmt!=null){
-            _stmt.close();
+          List<DataEvent<T>> page = new ArrayList<DataEvent<T>>(pageSize > 0 ? pageSize : 16);
+          while(!_stop && res.next()){
+            page.add(_stmtBuilder.buildDataEvent(res));
           }
-        }
-        catch(SQLException sqle){
-          log.error(sqle.getMessage(),sqle);
+          return page;
         }
         finally{
-          if (_conn != null){
-            try {
-              _conn.close();
-            } catch (SQLException e) {
-              log.error(e.getMessage(),e);
-            }
-          }
+          res.close();
+        }
+      }
+      finally{
+        stmt.close();
+      }
+    }
+
+    /**
+     * @return the index of the first row that has the version of the last row
+     */
+    private int startOfLastVersion(List<DataEvent<T>> page)
+    {
+      long last = page.get(page.size()-1).getVersion();
+      int i = page.size()-1;
+      while (i > 0 && page.get(i-1).getVersion() == last){
+        --i;
+      }
+      return i;
+    }
+
+    private void pause(long time)
+    {
+      try {
+        Thread.sleep(time);
+      } catch (InterruptedException e) {
+        // stopped
+      }
+    }
+
+    private void closeConnection()
+    {
+      if (_conn != null){
+        try {
+          _conn.close();
+        } catch (SQLException e) {
+          log.error(e.getMessage(),e);
         }
+        _conn = null;
       }
     }
   }
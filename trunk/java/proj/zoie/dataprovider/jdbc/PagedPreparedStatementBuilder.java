@@ -0,0 +1,13 @@
+package proj.zoie.dataprovider.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A statement builder that can limit the number of rows per query itself, e.g. with a LIMIT clause.
+ * The statement must return rows ordered by version, so the next page starts after the last version seen.
+ */
+public interface PagedPreparedStatementBuilder<T> extends PreparedStatementBuilder<T> {
+	PreparedStatement buildStatment(Connection conn, long fromVersion, int limit) throws SQLException;
+}
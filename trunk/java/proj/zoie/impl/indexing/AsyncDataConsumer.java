@@ -15,23 +15,36 @@ package proj.zoie.impl.indexing;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
+import proj.zoie.api.impl.util.RingBuffer;
+import proj.zoie.api.impl.util.VersionFuture;
+import proj.zoie.api.impl.util.VersionWaiters;
 
 /**
  * Runs a background thread that sends incoming data events to the background DataConsumer.
  * The incoming events are buffered locally and sent to background DataConsumer in batch.
  * <br><br>
+ * Events are buffered in a preallocated lock-free ring buffer. Producers claim slots without taking a lock,
+ * and the consumer thread drains everything that has been published as one batch.
+ * <br><br>
  * The private member _batchSize is the 'soft' size limit of each event batch.
  * If the events are coming in too fast and
- * it already accumulate this many, then we block the incoming events until the number of
+ * it already accumulate this many, then we hold the incoming events until the number of
  * buffered events drop below this limit after some of them being sent to background
- * DataConsumer.
+ * DataConsumer. How the producers are held is decided by the {@link Backpressure} policy.
  * 
  * @param <V>
  */
@@ -39,24 +52,66 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
 {
   private static final Logger log = Logger.getLogger(AsyncDataConsumer.class);
   
+  public static final int DEFAULT_CAPACITY = 8192;
+  
+  private static final int SPIN_TRIES = 100;
+  private static final long MAX_PARK_NANOS = 1000000L; // 1ms
+  private static final long CONSUMER_PARK_NANOS = 100000000L; // 100ms
+  
+  /**
+   * What a producer does when the buffer is full.
+   */
+  public static enum Backpressure
+  {
+    /**
+     * wait on a monitor until the consumer thread frees some space
+     */
+    BLOCK,
+    /**
+     * spin for a while, then park with growing intervals
+     */
+    SPIN_THEN_PARK,
+    /**
+     * fail with a ZoieException right away
+     */
+    REJECT
+  }
+  
   private volatile ConsumerThread _consumerThread;
   private volatile DataConsumer<V> _consumer;
   private long _currentVersion;
-  private volatile long _bufferedVersion;
-  private LinkedList<DataEvent<V>> _batch;
+  private final AtomicLong _bufferedVersion;
+  private final AtomicLong _bufferedCount = new AtomicLong(0L);
+  private long _consumedCount = 0L;
+  private final VersionWaiters _versionWaiters;
+  private final RingBuffer<DataEvent<V>> _buffer;
+  private volatile Backpressure _backpressure;
+  private final Object _spaceSignal = new Object();
+  private final AtomicInteger _blockedProducers = new AtomicInteger(0);
+  private volatile boolean _consumerParked = false;
   /**
    * The 'soft' size limit of each event batch. If the events are coming in too fast and
    * it already accumulate this many, then we block the incoming events until the number of
    * buffered events drop below this limit after some of them being sent to background
    * DataConsumer.
    */
-  private int _batchSize;
+  private volatile int _batchSize;
 
   public AsyncDataConsumer()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * @param capacity the size of the event buffer, rounded up to a power of two.
+   */
+  public AsyncDataConsumer(int capacity)
   {
     _currentVersion = -1L;
-    _bufferedVersion = -1L;
-    _batch = new LinkedList<DataEvent<V>>();
+    _versionWaiters = new VersionWaiters(-1L);
+    _bufferedVersion = new AtomicLong(-1L);
+    _buffer = new RingBuffer<DataEvent<V>>(capacity);
+    _backpressure = Backpressure.BLOCK;
     _batchSize = 1; // default
     _consumerThread = null;
   }
@@ -81,7 +136,9 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public void stop()
   {
-    _consumerThread.terminate();
+    ConsumerThread consumerThread = _consumerThread;
+    if (consumerThread != null) consumerThread.terminate(); // null if it was never started
+    _versionWaiters.failAll(new ZoieException("consumer thread has stopped"));
   }
   
   /**
@@ -90,10 +147,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public void setDataConsumer(DataConsumer<V> consumer)
   {
-    synchronized(this)
-    {
-      _consumer = consumer;
-    }
+    _consumer = consumer;
   }
   
   /**
@@ -105,14 +159,12 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    * DataConsumer.
    * The actual size of each batch is variable, though the intention is that it is not bigger than the limit.
    * If the incoming batch is big, then the outgoing batch will be big too and likely bigger than the limit.
+   * The buffered events never exceed the buffer capacity.
    * @param batchSize
    */
   public void setBatchSize(int batchSize)
   {
-    synchronized(this)
-    {
-      _batchSize = Math.max(1, batchSize);
-    }
+    _batchSize = Math.max(1, batchSize);
   }
   
   /**
@@ -120,10 +172,30 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public int getBatchSize()
   {
-    synchronized(this)
-    {
-      return _batchSize;
-    }
+    return _batchSize;
+  }
+  
+  /**
+   * Sets how producers are held back when the buffer is full. The default is {@link Backpressure#BLOCK}.
+   * @param backpressure
+   */
+  public void setBackpressure(Backpressure backpressure)
+  {
+    if (backpressure == null) throw new IllegalArgumentException("null backpressure policy");
+    _backpressure = backpressure;
+  }
+  
+  public Backpressure getBackpressure()
+  {
+    return _backpressure;
+  }
+  
+  /**
+   * @return the capacity of the event buffer.
+   */
+  public int getCapacity()
+  {
+    return _buffer.capacity();
   }
   
   /**
@@ -131,10 +203,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public int getCurrentBatchSize()
   {
-    synchronized(this)
-    {
-      return (_batch != null ? _batch.size() : 0);
-    }
+    return _buffer.size();
   }
   
   public long getCurrentVersion()
@@ -147,48 +216,82 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   
   /**
    * Waits until all the buffered data events are processed.
+   * This counts events rather than comparing versions, since concurrent producers may buffer
+   * versions out of order.
    * @param timeout the max amount of time to wait in milliseconds. 
    * @throws ZoieException
    */
   public void flushEvents(long timeout) throws ZoieException
   {
-    syncWthVersion(timeout, _bufferedVersion);
-  }
-  
-  /**
-   * Waits until all the buffered data events up to specified version are processed.
-   * @param timeInMillis the max amount of time to wait in milliseconds.
-   * @param version the version of events which it waits for.
-   * @throws ZoieException
-   */
-  public void syncWthVersion(long timeInMillis, long version) throws ZoieException
-  {
-    
     if(_consumerThread == null) throw new ZoieException("not running");
     
+    long count = _bufferedCount.get();
     synchronized(this)
     {
-      while(_currentVersion < version)
+      while(_consumedCount < count)
       {
-    	long now1 = System.currentTimeMillis();
-        if(timeInMillis<=0)
+        long now1 = System.currentTimeMillis();
+        if(timeout<=0)
         {
           throw new ZoieException("sync timed out");
         }
         try
         {
-          this.wait(timeInMillis);
+          this.wait(timeout);
         }
         catch(InterruptedException e)
         {
           log.warn(e.getMessage(), e);
         }
         long now2 = System.currentTimeMillis();
-        timeInMillis-=(now2 - now1);
+        timeout-=(now2 - now1);
       }
     }
   }
   
+  /**
+   * Waits until all the buffered data events up to specified version are processed.
+   * @param timeInMillis the max amount of time to wait in milliseconds.
+   * @param version the version of events which it waits for.
+   * @throws ZoieException
+   */
+  public void syncWthVersion(long timeInMillis, long version) throws ZoieException
+  {
+    
+    if(_consumerThread == null) throw new ZoieException("not running");
+    
+    VersionFuture future = _versionWaiters.waitFor(version);
+    try
+    {
+      future.get(timeInMillis, TimeUnit.MILLISECONDS);
+    }
+    catch(TimeoutException e)
+    {
+      future.cancel(false);
+      throw new ZoieException("sync timed out");
+    }
+    catch(InterruptedException e)
+    {
+      future.cancel(false);
+      throw new ZoieException(e.getMessage(), e);
+    }
+    catch(ExecutionException e)
+    {
+      throw new ZoieException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+  
+  /**
+   * Returns right away with a future that completes once all the data events up to the version are processed,
+   * so the caller does not have to hold a thread while waiting.
+   * @param version the version of events to wait for.
+   * @return the future, already completed if the version is processed. Cancel it to stop waiting.
+   */
+  public VersionFuture syncWthVersionAsync(long version)
+  {
+    return _versionWaiters.waitFor(version);
+  }
+  
   /**
    * consumption of a collection of data events. Note that this method may have a side
    * effect. That is it may empty the Collection passed in after execution. <br><br>
@@ -196,6 +299,9 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    * If too many (>=_batchSize) amount of data events are already buffered,
    * it waits until the background DataConsumer consumes some of the events before
    * it add new events to the buffer. This throttles the amount of events in each batch.
+   * <br><br>
+   * Events of one call are put into the buffer as contiguous runs, so they are not interleaved with events
+   * from other producers unless the collection is bigger than the buffer.
    * 
    * @param data
    * @throws ZoieException
@@ -206,61 +312,194 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   {
     if (data == null || data.size() == 0) return;
     
-    synchronized(this)
+    int remaining = data.size();
+    int attempt = 0;
+    long maxVersion = -1L;
+    Iterator<DataEvent<V>> iter = data.iterator();
+    ArrayList<DataEvent<V>> chunk = null;
+    while(remaining > 0)
     {
-      while(_batch.size() >= _batchSize)
+      int count = Math.min(remaining, _buffer.capacity());
+      if (_buffer.size() < _batchSize)
       {
-        if(_consumerThread == null || !_consumerThread.isAlive() || _consumerThread._stop)
+        if (chunk == null)
         {
-          throw new ZoieException("consumer thread has stopped");
+          chunk = new ArrayList<DataEvent<V>>(count);
+          for (int i = 0; i < count; i++)
+          {
+            DataEvent<V> event = iter.next();
+            maxVersion = Math.max(maxVersion, event.getVersion());
+            chunk.add(event);
+          }
         }
-        try
+        if (_buffer.offer(chunk.iterator(), count))
         {
-          this.wait();
+          remaining -= count;
+          _bufferedCount.addAndGet(count);
+          attempt = 0;
+          signalConsumer();
+          accepted(chunk);
+          chunk = null;
+          continue;
         }
-        catch (InterruptedException e)
+      }
+      waitForSpace(attempt++, count);
+    }
+    
+    long bufferedVersion;
+    do
+    {
+      bufferedVersion = _bufferedVersion.get();
+    }
+    while(maxVersion > bufferedVersion && !_bufferedVersion.compareAndSet(bufferedVersion, maxVersion));
+  }
+  
+  /**
+   * Called on the producer thread with each run of events {@link #consume(Collection)} has put into the buffer,
+   * so nothing is seen here for events that are rejected or never buffered. Does nothing by default.
+   * @param events the events just buffered
+   * @throws ZoieException fails the consume call, the events stay buffered
+   */
+  protected void accepted(Collection<DataEvent<V>> events) throws ZoieException
+  {
+  }
+  
+  /**
+   * Hands the events to the background DataConsumer on the calling thread, bypassing the buffer, and counts their
+   * version as processed once it returns. Meant for events that must come before anything buffered, e.g. replayed
+   * on startup before {@link #start()}.
+   * @param data
+   * @throws ZoieException from the background DataConsumer
+   */
+  protected void consumeDirectly(Collection<DataEvent<V>> data) throws ZoieException
+  {
+    if (data == null || data.size() == 0) return;
+    
+    long maxVersion = -1L;
+    for (DataEvent<V> event : data)
+    {
+      maxVersion = Math.max(maxVersion, event.getVersion());
+    }
+    DataConsumer<V> consumer = _consumer;
+    if (consumer != null)
+    {
+      consumer.consume(data);
+    }
+    
+    long bufferedVersion;
+    do
+    {
+      bufferedVersion = _bufferedVersion.get();
+    }
+    while(maxVersion > bufferedVersion && !_bufferedVersion.compareAndSet(bufferedVersion, maxVersion));
+    synchronized(this)
+    {
+      _currentVersion = Math.max(_currentVersion, maxVersion);
+    }
+    _versionWaiters.advance(maxVersion);
+  }
+  
+  private void waitForSpace(int attempt, int count) throws ZoieException
+  {
+    ConsumerThread consumerThread = _consumerThread;
+    if(consumerThread == null || !consumerThread.isAlive() || consumerThread._stop)
+    {
+      throw new ZoieException("consumer thread has stopped");
+    }
+    
+    switch(_backpressure)
+    {
+    case REJECT:
+      throw new ZoieException("event buffer is full");
+    case SPIN_THEN_PARK:
+      if (attempt < SPIN_TRIES)
+      {
+        Thread.yield();
+      }
+      else
+      {
+        LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, attempt - SPIN_TRIES)));
+      }
+      break;
+    default:
+      _blockedProducers.incrementAndGet();
+      try
+      {
+        synchronized(_spaceSignal)
         {
+          int size = _buffer.size();
+          if (size >= _batchSize || size + count > _buffer.capacity())
+          {
+            _spaceSignal.wait(100); // re-check periodically whether the consumer thread is still alive
+          }
         }
       }
-      for(DataEvent<V> event : data)
+      catch (InterruptedException e)
+      {
+      }
+      finally
       {
-        _bufferedVersion = Math.max(_bufferedVersion, event.getVersion());
-        _batch.add(event);
+        _blockedProducers.decrementAndGet();
       }
-      this.notifyAll(); // wake up the thread waiting in flushBuffer()
+    }
+  }
+  
+  private void signalConsumer()
+  {
+    if (_consumerParked)
+    {
+      ConsumerThread consumerThread = _consumerThread;
+      if (consumerThread != null) LockSupport.unpark(consumerThread);
     }
   }
   
   protected final void flushBuffer()
   {
-    long version;
-    LinkedList<DataEvent<V>> currentBatch;
+    ConsumerThread consumerThread = _consumerThread;
+    int spins = 0;
+    while(_buffer.isEmpty())
+    {
+      if(consumerThread._stop) return;
+      if (spins++ < SPIN_TRIES)
+      {
+        Thread.yield();
+        continue;
+      }
+      _consumerParked = true;
+      if (_buffer.isEmpty() && !consumerThread._stop)
+      {
+        LockSupport.parkNanos(CONSUMER_PARK_NANOS);
+      }
+      _consumerParked = false;
+    }
     
-    synchronized(this)
+    ArrayList<DataEvent<V>> currentBatch = new ArrayList<DataEvent<V>>(Math.max(_buffer.size(), 1));
+    _buffer.drainTo(currentBatch, _buffer.capacity());
+    
+    if (_blockedProducers.get() > 0)
     {
-      while(_batch.size() == 0)
+      synchronized(_spaceSignal)
       {
-        if(_consumerThread._stop) return;
-        try
-        {
-          this.wait();
-        }
-        catch (InterruptedException e)
-        {
-        }
+        _spaceSignal.notifyAll(); // wake up the threads waiting in consume(...)
       }
-      version = Math.max(_currentVersion, _bufferedVersion);
-      currentBatch = _batch;
-      _batch = new LinkedList<DataEvent<V>>();
-      
-      this.notifyAll(); // wake up the thread waiting in consume(...)
     }
     
-    if(_consumer != null)
+    long version;
+    synchronized(this)
+    {
+      version = _currentVersion;
+    }
+    for (DataEvent<V> event : currentBatch)
+    {
+      version = Math.max(version, event.getVersion());
+    }
+    
+    DataConsumer<V> consumer = _consumer;
+    if(consumer != null)
     {
       try
       {
-        _consumer.consume(currentBatch);
+        consumer.consume(currentBatch);
       }
       catch (Exception e)
       {
@@ -271,13 +510,15 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
     synchronized(this)
     {
       _currentVersion = version;
-      this.notifyAll(); // wake up the thread waiting in syncWthVersion()
-    }    
+      _consumedCount += currentBatch.size();
+      this.notifyAll(); // wake up the threads waiting in flushEvents()
+    }
+    _versionWaiters.advance(version); // only wakes the threads waiting for this version or lower    
   }
   
   private final class ConsumerThread extends IndexingThread
   {
-    boolean _stop = false;
+    volatile boolean _stop = false;
     
     ConsumerThread()
     {
@@ -287,6 +528,11 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
     public void terminate()
     {
       _stop = true;
+      LockSupport.unpark(this);
+      synchronized(_spaceSignal)
+      {
+        _spaceSignal.notifyAll();
+      }
       synchronized(AsyncDataConsumer.this)
       {
         AsyncDataConsumer.this.notifyAll();
@@ -307,6 +553,6 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    * @see proj.zoie.api.DataConsumer#getVersion()
    */
   public long getVersion(){
-    return _bufferedVersion;
+    return _bufferedVersion.get();
   }
 }
@@ -0,0 +1,321 @@
+package proj.zoie.impl.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataProvider;
+import proj.zoie.api.ZoieException;
+import proj.zoie.mbean.DataProviderAdminMBean;
+
+/**
+ * Pulls from several {@link StreamDataProvider}s at once, one thread each, and sends all their events to one consumer.
+ * <br><br>
+ * Each partition must produce monotonically increasing versions. Versions of different partitions interleave, so the
+ * version that is known to be complete is the lowest version committed by any partition that has not reached the end
+ * of its stream; see {@link #getCommittedVersion()}. {@link #syncWthVersion(long, long)} waits until every such
+ * partition has committed the version, and fails if one of them was stopped before it did.
+ * <br><br>
+ * The consumer is called from all partition threads concurrently and must be thread-safe, which
+ * {@link AsyncDataConsumer} and {@link ZoieSystem} are.
+ *
+ * @param <V>
+ */
+public class PartitionedStreamDataProvider<V> implements DataProvider<V>,DataProviderAdminMBean
+{
+  private static final Logger log = Logger.getLogger(PartitionedStreamDataProvider.class);
+
+  private final List<StreamDataProvider<V>> _partitions;
+  private final long[] _committedVersions;
+  private volatile DataConsumer<V> _consumer;
+  private long _maxEventsPerMinute;
+  private long _maxEventsBurst;
+
+  public PartitionedStreamDataProvider(List<? extends StreamDataProvider<V>> partitions)
+  {
+    if (partitions == null || partitions.isEmpty()) throw new IllegalArgumentException("no partitions.");
+    _partitions = new ArrayList<StreamDataProvider<V>>(partitions);
+    _committedVersions = new long[_partitions.size()];
+    Arrays.fill(_committedVersions, -1L);
+    _consumer = null;
+    _maxEventsPerMinute = 0L;
+    _maxEventsBurst = 0L;
+    for (int i = 0; i < _partitions.size(); ++i)
+    {
+      _partitions.get(i).setDataConsumer(new PartitionConsumer(i));
+    }
+    setMaxEventsPerMinute(_partitions.get(0).getMaxEventsPerMinute() * _partitions.size());
+  }
+
+  public void setDataConsumer(DataConsumer<V> consumer)
+  {
+    _consumer = consumer;
+  }
+
+  public DataConsumer<V> getDataConsumer()
+  {
+    return _consumer;
+  }
+
+  public int getNumPartitions()
+  {
+    return _partitions.size();
+  }
+
+  public StreamDataProvider<V> getPartition(int i)
+  {
+    return _partitions.get(i);
+  }
+
+  /**
+   * @return the highest version all partitions that have not reached the end of their stream have handed to the
+   * consumer. If all of them have, the highest version committed by any of them.
+   */
+  public synchronized long getCommittedVersion()
+  {
+    long min = Long.MAX_VALUE;
+    long max = -1L;
+    for (int i = 0; i < _committedVersions.length; ++i)
+    {
+      max = Math.max(max, _committedVersions[i]);
+      if (!_partitions.get(i).isEndOfStream())
+      {
+        min = Math.min(min, _committedVersions[i]);
+      }
+    }
+    return (min == Long.MAX_VALUE ? max : min);
+  }
+
+  public void start()
+  {
+    synchronized(this)
+    {
+      Arrays.fill(_committedVersions, -1L);
+    }
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.start();
+    }
+  }
+
+  public void stop()
+  {
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.stop();
+    }
+  }
+
+  public void pause()
+  {
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.pause();
+    }
+  }
+
+  public void resume()
+  {
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.resume();
+    }
+  }
+
+  public void setBatchSize(int batchSize)
+  {
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.setBatchSize(batchSize);
+    }
+  }
+
+  public int getBatchSize()
+  {
+    return _partitions.get(0).getBatchSize();
+  }
+
+  /**
+   * Limits the total rate over all partitions, split evenly between them.
+   * @param maxEventsPerMinute 0 or less for no limit
+   */
+  public synchronized void setMaxEventsPerMinute(long maxEventsPerMinute)
+  {
+    _maxEventsPerMinute = maxEventsPerMinute;
+    long perPartition = (maxEventsPerMinute <= 0 ? 0 : Math.max(1L, maxEventsPerMinute / _partitions.size()));
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.setMaxEventsPerMinute(perPartition);
+    }
+  }
+
+  public synchronized long getMaxEventsPerMinute()
+  {
+    return _maxEventsPerMinute;
+  }
+
+  public synchronized void setMaxEventsBurst(long maxEventsBurst)
+  {
+    _maxEventsBurst = maxEventsBurst;
+    long perPartition = (maxEventsBurst <= 0 ? 0 : Math.max(1L, maxEventsBurst / _partitions.size()));
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      partition.setMaxEventsBurst(perPartition);
+    }
+  }
+
+  public synchronized long getMaxEventsBurst()
+  {
+    if (_maxEventsBurst > 0) return _maxEventsBurst;
+    long burst = 0L;
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      burst += partition.getMaxEventsBurst();
+    }
+    return burst;
+  }
+
+  public long getEventCount()
+  {
+    long count = 0L;
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      count += partition.getEventCount();
+    }
+    return count;
+  }
+
+  public long getEventsPerMinute()
+  {
+    long rate = 0L;
+    for (StreamDataProvider<V> partition : _partitions)
+    {
+      rate += partition.getEventsPerMinute();
+    }
+    return rate;
+  }
+
+  public String getStatus()
+  {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < _partitions.size(); ++i)
+    {
+      if (i > 0) buf.append(", ");
+      buf.append(i).append(": ").append(_partitions.get(i).getStatus());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Waits until every partition that has not reached the end of its stream has handed events up to the version
+   * to the consumer.
+   * @param timeInMillis timeout
+   * @param version version to wait for
+   * @throws ZoieException if timed out, or if a partition that has not committed the version is not running
+   */
+  public void syncWthVersion(long timeInMillis, long version) throws ZoieException
+  {
+    long now = System.currentTimeMillis();
+    long due = now + timeInMillis;
+    synchronized(this)
+    {
+      while(!isSynced(version))
+      {
+        if(now >= due)
+        {
+          throw new ZoieException("sync timed out");
+        }
+        try
+        {
+          // partitions reaching the end of their stream do not notify, so check again periodically
+          this.wait(Math.min(due - now, 100L));
+        }
+        catch(InterruptedException e)
+        {
+          log.warn(e.getMessage(), e);
+        }
+        now = System.currentTimeMillis();
+      }
+    }
+  }
+
+  private boolean isSynced(long version) throws ZoieException
+  {
+    boolean synced = true;
+    for (int i = 0; i < _committedVersions.length; ++i)
+    {
+      if (_committedVersions[i] >= version) continue;
+      StreamDataProvider<V> partition = _partitions.get(i);
+      if (partition.isRunning())
+      {
+        synced = false;
+      }
+      else if (!partition.isEndOfStream())
+      {
+        // stopped or never started, the version will not come
+        throw new ZoieException("partition " + i + " is not running, committed version: " + _committedVersions[i]);
+      }
+    }
+    return synced;
+  }
+
+  private final class PartitionConsumer implements DataConsumer<V>
+  {
+    private final int _partition;
+
+    PartitionConsumer(int partition)
+    {
+      _partition = partition;
+    }
+
+    public void consume(Collection<DataEvent<V>> events) throws ZoieException
+    {
+      DataConsumer<V> consumer = _consumer;
+      if (consumer == null || events == null || events.isEmpty()) return;
+
+      consumer.consume(events);
+
+      long version = -1L;
+      for (DataEvent<V> event : events)
+      {
+        version = Math.max(version, event.getVersion());
+      }
+      synchronized(PartitionedStreamDataProvider.this)
+      {
+        if (version < _committedVersions[_partition])
+        {
+          log.warn("partition " + _partition + " went back from version " + _committedVersions[_partition] + " to " + version);
+        }
+        _committedVersions[_partition] = Math.max(_committedVersions[_partition], version);
+        PartitionedStreamDataProvider.this.notifyAll();
+      }
+    }
+
+    public long getVersion()
+    {
+      synchronized(PartitionedStreamDataProvider.this)
+      {
+        return _committedVersions[_partition];
+      }
+    }
+  }
+}
@@ -17,6 +17,9 @@ package proj.zoie.impl.indexing;
  */
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
@@ -25,6 +28,10 @@ import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DataProvider;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.impl.util.SlidingWindowCounter;
+import proj.zoie.api.impl.util.TokenBucket;
+import proj.zoie.api.impl.util.VersionFuture;
+import proj.zoie.api.impl.util.VersionWaiters;
 import proj.zoie.mbean.DataProviderAdminMBean;
 
 public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProviderAdminMBean{
@@ -33,11 +40,17 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	private int _batchSize;
 	private DataConsumer<V> _consumer;
 	private DataThread<V> _thread;
+	private volatile boolean _stopped;
+	private final TokenBucket _rateLimiter;
+	
+	public static final long DEFAULT_MAX_EVENTS_PER_MINUTE = 40000;
 	
 	public StreamDataProvider()
 	{
 		_batchSize=1;
 		_consumer=null;
+		_stopped=false;
+		_rateLimiter = new TokenBucket(DEFAULT_MAX_EVENTS_PER_MINUTE);
 	}
 	
 	public void setDataConsumer(DataConsumer<V> consumer)
@@ -65,15 +78,27 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	}
 	
 	public long getMaxEventsPerMinute() {
-      DataThread<V> thread = _thread;
-      if (thread==null) return 0;
-      return thread.getMaxEventsPerMinute();
+      return _rateLimiter.getRatePerMinute();
 	}
 
+	/**
+	 * Limits the rate at which events are pulled from the stream. Takes effect immediately.
+	 * @param maxEventsPerMinute 0 or less for no limit
+	 */
 	public void setMaxEventsPerMinute(long maxEventsPerMinute) {
-      DataThread<V> thread = _thread;
-      if (thread==null) return;
-      thread.setMaxEventsPerMinute(maxEventsPerMinute);
+      _rateLimiter.setRatePerMinute(maxEventsPerMinute);
+	}
+	
+	public long getMaxEventsBurst() {
+	  return _rateLimiter.getBurst();
+	}
+	
+	/**
+	 * Sets how many events may be pulled at once, beyond the steady rate, after the stream was idle.
+	 * @param maxEventsBurst 0 or less for one second worth of events at the maximum rate
+	 */
+	public void setMaxEventsBurst(long maxEventsBurst) {
+	  _rateLimiter.setBurst(maxEventsBurst);
 	}
 	
 	public String getStatus() {
@@ -82,6 +107,23 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
       return thread.getStatus() + " : " + thread.getState();
 	}
 
+	/**
+	 * @return true if the data thread is running, i.e. started and neither stopped nor at the end of the stream
+	 */
+	public boolean isRunning() {
+	  DataThread<V> thread = _thread;
+	  return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * @return true if the data thread ended because {@link #next()} returned null, false while it runs,
+	 * if it was never started or if it was stopped
+	 */
+	public boolean isEndOfStream() {
+	  DataThread<V> thread = _thread;
+	  return thread != null && !thread.isAlive() && thread._endOfStream && !_stopped;
+	}
+
 	public void pause() {
 		if (_thread != null)
 		{
@@ -111,6 +153,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	
 	public void stop()
 	{
+		_stopped=true;
 		if (_thread!=null && _thread.isAlive())
 		{
 			_thread.terminate();
@@ -126,6 +169,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		if (_thread==null || !_thread.isAlive())
 		{
 			reset();
+			_stopped=false;
 			_thread = new DataThread<V>(this);
 			_thread.start();
 		}
@@ -136,6 +180,15 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	  _thread.syncWthVersion(timeInMillis, version);
 	}
 	
+	/**
+	 * @param version
+	 * @return a future that completes once the data thread has pulled the version
+	 */
+	public VersionFuture syncWthVersionAsync(long version)
+	{
+	  return _thread.syncWthVersionAsync(version);
+	}
+	
 	private static final class DataThread<V> extends Thread
 	{
 	    private Collection<DataEvent<V>> _batch;
@@ -143,14 +196,17 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		private final StreamDataProvider<V> _dataProvider;
 		private boolean _paused;
 		private boolean _stop;
+		private volatile boolean _endOfStream = false;
+		// events that may be pulled before taking tokens again
+		private int _permits = 0;
 		private AtomicLong _eventCount = new AtomicLong(0);
-		private volatile long _eventStart = System.nanoTime();
-		private volatile long _throttle = 40000;//Long.MAX_VALUE;
+		private final SlidingWindowCounter _eventRate = new SlidingWindowCounter();
+		private final VersionWaiters _versionWaiters = new VersionWaiters(0L);
 		
 		private void resetEventTimer()
 		{
 		  _eventCount.set(0);
-		  _eventStart = System.nanoTime();
+		  _eventRate.reset();
 		}
 		
 		private String getStatus()
@@ -187,6 +243,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	            _stop = true;
 			   this.notifyAll();
 			}
+			_versionWaiters.failAll(new ZoieException("data provider stopped"));
 		}
 		
 		void pauseDataFeed()
@@ -219,6 +276,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		      if(_dataProvider._consumer!=null)
 		      {
 		        _eventCount.getAndAdd(tmp.size());
+		        _eventRate.add(tmp.size());
 		    	  _dataProvider._consumer.consume(tmp);
 		      }
 	        }
@@ -238,39 +296,73 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		
 		public void syncWthVersion(long timeInMillis, long version) throws ZoieException
 		{
-		  long now = System.currentTimeMillis();
-		  long due = now + timeInMillis;
-		  synchronized(this)
+		  VersionFuture future = _versionWaiters.waitFor(version);
+		  try
 		  {
-		    while(_currentVersion < version)
-		    {
-		      if(now > due)
-              {
-                throw new ZoieException("sync timed out");
-              }
-		      try
-		      {
-		        this.wait(due - now);
-		      }
-		      catch(InterruptedException e)
-		      {
-	              log.warn(e.getMessage(), e);
-		      }
-		      now = System.currentTimeMillis();
-		    }
+		    future.get(timeInMillis, TimeUnit.MILLISECONDS);
+		  }
+		  catch(TimeoutException e)
+		  {
+		    future.cancel(false);
+		    throw new ZoieException("sync timed out");
 		  }
+		  catch(InterruptedException e)
+		  {
+		    future.cancel(false);
+		    throw new ZoieException(e.getMessage(), e);
+		  }
+		  catch(ExecutionException e)
+		  {
+		    throw new ZoieException(e.getCause().getMessage(), e.getCause());
+		  }
+		}
+		
+		public VersionFuture syncWthVersionAsync(long version)
+		{
+		  return _versionWaiters.waitFor(version);
 		}
 
 		public void run()
+		{
+		  try
+		  {
+		    pull();
+		  }
+		  finally
+		  {
+		    // nothing advances the version any more, see terminate()
+		    _versionWaiters.failAll(new ZoieException(_endOfStream ? "data provider reached the end of its stream" : "data provider stopped"));
+		  }
+		}
+		
+		private void pull()
 		{
 		  while (!_stop)
 		  {
 		    synchronized(this)
 		    {
-		      while(!_stop && (_paused || (getEventsPerMinute() > _throttle)))
+		      while(!_stop)
 		      {
+		        long waitTime;
+		        if (_paused)
+		        {
+		          waitTime = 500;
+		        }
+		        else
+		        {
+		          if (_permits > 0) break;
+		          // one acquire for the rest of the batch rather than one per event
+		          int permits = Math.max(1, _dataProvider._batchSize - _batch.size());
+		          long waitNanos = _dataProvider._rateLimiter.acquire(permits);
+		          if (waitNanos <= 0)
+		          {
+		            _permits = permits;
+		            break;
+		          }
+		          waitTime = Math.max(1L, waitNanos / 1000000L);
+		        }
 		        try {
-		          this.wait(500);
+		          this.wait(waitTime);
 		        } catch (InterruptedException e) {
 		          continue;
 		        }
@@ -283,20 +375,22 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		      {
 		        synchronized(this)
 		        {
+		          _permits--;
 		          _batch.add(data);
 		          if (_batch.size()>=_dataProvider._batchSize)
 		          {
 		            flush();
 		          }
 		          _currentVersion=Math.max(_currentVersion, data.getVersion());
-		          this.notifyAll();
 		        }
+		        _versionWaiters.advance(data.getVersion());
 		      }
 		      else
 		      {
 		        synchronized(this)
 		        {
 		          flush();
+		          _endOfStream=true;
 		          _stop=true;
 		          return;
 		        }
@@ -312,18 +406,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 
 		private long getEventsPerMinute()
 		{
-		  if (! ( (System.nanoTime() - _eventStart)/1000000>0) ) return 0;
-		  return _eventCount.get()*60000/((System.nanoTime() - _eventStart)/1000000);
-		}
-		
-		private long getMaxEventsPerMinute()
-		{
-		  return _throttle;
+		  return _eventRate.getCountPerMinute();
 		}
-		
-        private void setMaxEventsPerMinute(long maxEventsPerMinute)
-        {
-          _throttle = maxEventsPerMinute;
-        }
 	}
 }
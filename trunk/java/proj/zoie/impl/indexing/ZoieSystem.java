@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Queue;
@@ -37,16 +38,21 @@ import proj.zoie.api.DefaultDirectoryManager;
 import proj.zoie.api.DirectoryManager;
 import proj.zoie.api.DocIDMapperFactory;
 import proj.zoie.api.IndexReaderFactory;
+import proj.zoie.api.MemoryDirectoryFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.impl.SegmentFilterCache;
 import proj.zoie.api.indexing.DefaultOptimizeScheduler;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.api.indexing.OptimizeScheduler;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
 import proj.zoie.impl.indexing.internal.BatchedIndexDataLoader;
+import proj.zoie.impl.indexing.internal.BulkIndexLoader;
 import proj.zoie.impl.indexing.internal.DiskLuceneIndexDataLoader;
 import proj.zoie.impl.indexing.internal.RealtimeIndexDataLoader;
 import proj.zoie.impl.indexing.internal.SearchIndexManager;
+import proj.zoie.impl.indexing.journal.EventJournal;
 import proj.zoie.mbean.ZoieSystemAdminMBean;
 
 /**
@@ -67,6 +73,11 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	private final Queue<IndexingEventListener> _lsnrList;
 	private final BatchedIndexDataLoader<R, V> _rtdc;
 	private final DiskLuceneIndexDataLoader<R> _diskLoader;
+	private volatile EventJournal<V> _journal;
+	private BulkIndexLoader<V> _bulkLoader;
+	// held while in bulk load mode, the bulk loader looks up disk index uids through its mapper
+	private ZoieIndexReader<R> _bulkDiskReader;
+	private final SegmentFilterCache _filterCache = new SegmentFilterCache();
 	
 	/**
 	 * Creates a new ZoieSystem.
@@ -123,6 +134,26 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		}
 		super.setDataConsumer(_rtdc);
 		super.setBatchSize(100); // realtime batch size
+		
+		// drops what the disk index has caught up with from whichever journal is set
+		_lsnrList.add(new IndexingEventListener()
+		{
+		  public void handleIndexingEvent(IndexingEvent evt)
+		  {
+		    EventJournal<V> journal = _journal;
+		    if (evt instanceof IndexUpdatedEvent && journal != null)
+		    {
+		      try
+		      {
+		        journal.truncate(getCurrentDiskVersion());
+		      }
+		      catch (IOException e)
+		      {
+		        log.error(e.getMessage(), e);
+		      }
+		    }
+		  }
+		});
 	}
 	
 	public static <V> ZoieSystem<IndexReader,V> buildDefaultInstance(File idxDir,ZoieIndexableInterpreter<V> interpreter,int batchSize,long batchDelay,boolean realtime){
@@ -137,10 +168,111 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		_searchIdxMgr.setDocIDMapperFactory(docIDMapperFactory);
 	}
 	
+	/**
+	 * Sets where the RAM indexes keep their data, e.g. {@link proj.zoie.api.impl.OffHeapMemoryDirectoryFactory}.
+	 * Should be called before {@link #start()}.
+	 */
+	public void setMemoryDirectoryFactory(MemoryDirectoryFactory memDirFactory){
+		_searchIdxMgr.setMemoryDirectoryFactory(memDirFactory);
+	}
+	
+	public MemoryDirectoryFactory getMemoryDirectoryFactory(){
+		return _searchIdxMgr.getMemoryDirectoryFactory();
+	}
+	
+	/**
+	 * Saves the uids of disk segments in sidecar column files, so opening the disk index does not have to walk
+	 * the uid postings of every segment. Column files that exist are used even if this is off.
+	 */
+	public void setUseUIDColumn(boolean useUIDColumn){
+		_searchIdxMgr.setUseUIDColumn(useUIDColumn);
+	}
+	
+	public boolean isUseUIDColumn(){
+		return _searchIdxMgr.isUseUIDColumn();
+	}
+	
+	/**
+	 * Indexes the uid of each realtime document as a term of its own, in the field
+	 * {@link proj.zoie.api.indexing.AbstractZoieIndexable#DOCUMENT_ID_TERM_FIELD}, so the RAM index writer deletes
+	 * updated documents by term instead of reading the uid payloads of the RAM index for every batch.
+	 * <br><br>
+	 * On by default. It changes the index format: RAM segments are copied into the disk index with the extra field,
+	 * one term per document, which older versions ignore. Turning it off keeps the old format, but then every batch
+	 * reads the uid payloads of the whole RAM index to delete the updated documents. Indexes written either way can
+	 * be read. Takes effect with the next RAM index.
+	 */
+	public void setIndexUIDTerm(boolean indexUIDTerm){
+		_searchIdxMgr.setIndexUIDTerm(indexUIDTerm);
+	}
+	
+	public boolean isIndexUIDTerm(){
+		return _searchIdxMgr.isIndexUIDTerm();
+	}
+	
+	/**
+	 * Sets a local scratch directory that sealed RAM indexes are spilled to when the RAM tier is over its memory budget,
+	 * instead of blocking producers. See {@link #setRamWatermarks(long, long)}.
+	 * @param spillDir null to disable spilling
+	 */
+	public void setSpillDirectory(File spillDir){
+		_searchIdxMgr.setSpillDirectory(spillDir);
+	}
+	
+	public File getSpillDirectory(){
+		return _searchIdxMgr.getSpillDirectory();
+	}
+	
+	/**
+	 * @return the cache to wrap filters with, so their results on unchanged segments are kept across refreshes
+	 */
+	public SegmentFilterCache getFilterCache(){
+		return _filterCache;
+	}
+	
 	public void addIndexingEventListener(IndexingEventListener lsnr){
 		_lsnrList.add(lsnr);
 	}
 	
+	/**
+	 * Sets a write-ahead journal for incoming events. Must be called before {@link #start()}.
+	 * Events are journaled as soon as they are accepted, the journal is truncated as the disk index version advances,
+	 * and on start the events newer than the disk index version are replayed from it.
+	 * @param journal the event journal, or null for none
+	 */
+	public void setEventJournal(EventJournal<V> journal)
+	{
+	  _journal = journal;
+	}
+	
+	public EventJournal<V> getEventJournal()
+	{
+	  return _journal;
+	}
+	
+	/**
+	 * Journals the events, if there is a journal, once they are buffered. Events that are rejected are never journaled,
+	 * so they are not replayed on the next start either.
+	 * @see proj.zoie.impl.indexing.AsyncDataConsumer#accepted(java.util.Collection)
+	 */
+	@Override
+	protected void accepted(Collection<DataEvent<V>> data) throws ZoieException
+	{
+	  EventJournal<V> journal = _journal;
+	  if (journal != null)
+	  {
+	    try
+	    {
+	      journal.append(data);
+	    }
+	    catch (IOException e)
+	    {
+	      log.error(e.getMessage(), e);
+	      throw new ZoieException(e.getMessage(), e);
+	    }
+	  }
+	}
+	
 	public OptimizeScheduler getOptimizeScheduler(){
 		return _diskLoader.getOptimizeScheduler();
 	}
@@ -181,10 +313,42 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		return _similarity;
 	}
 	
+	/**
+	 * Starts indexing. With an event journal, the events it holds that are newer than the disk index are indexed
+	 * first, before any new event is taken in.
+	 * @throws IllegalStateException if the journal cannot be replayed
+	 */
 	public void start()
 	{
 		log.info("starting zoie...");
 		_rtdc.start();
+		EventJournal<V> journal = _journal;
+		if (journal != null)
+		{
+		  try
+		  {
+		    // replayed events are already journaled, so bypass consume() and the event buffer
+		    journal.replay(getCurrentDiskVersion(), new DataConsumer<V>()
+		    {
+		      public void consume(Collection<DataEvent<V>> data) throws ZoieException
+		      {
+		        consumeDirectly(data);
+		      }
+
+		      public long getVersion()
+		      {
+		        return ZoieSystem.this.getVersion();
+		      }
+		    }, getBatchSize());
+		  }
+		  catch (Exception e)
+		  {
+		    log.error("failed to replay event journal: " + e.getMessage(), e);
+		    _rtdc.shutdown();
+		    throw new IllegalStateException("failed to replay event journal: " + e.getMessage(), e);
+		  }
+		  journal.start();
+		}
         super.start();
 		log.info("zoie started...");
 	}
@@ -195,10 +359,143 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		_rtdc.shutdown();
         super.stop();
     _searchIdxMgr.close();
+		EventJournal<V> journal = _journal;
+		if (journal != null)
+		{
+		  journal.close();
+		}
 		log.info("zoie shutdown successfully.");
 		
 	}
 	
+	/**
+	 * Switches to bulk load mode for an initial or full load. Incoming events skip the in-memory indexes and are
+	 * written by several parallel disk index writers into scratch indexes, which {@link #finishBulkLoad()} adds to
+	 * the disk index. Search sees the new documents only after that.
+	 * <br><br>
+	 * An event journal, if there is one, keeps journaling the events. Nothing is truncated from it until the bulk
+	 * load is finished, so a restart in the middle of a bulk load replays all of it the normal way.
+	 * @param numWriters number of parallel index writers
+	 * @param ramBufferSizeMB RAM buffer of each writer
+	 * @throws ZoieException
+	 */
+	public synchronized void startBulkLoad(int numWriters, double ramBufferSizeMB) throws ZoieException
+	{
+	  if (_bulkLoader != null) throw new ZoieException("already in bulk load mode");
+	  
+	  log.info("starting bulk load...");
+	  flushEvents(Long.MAX_VALUE);
+	  ZoieIndexReader<R> diskReader = null;
+	  try
+	  {
+	    diskReader = acquireDiskReader();
+	    _bulkLoader = new BulkIndexLoader<V>(_interpreter, _analyzer, _similarity, new File(_dirMgr.getPath() + "-bulk"),
+	                                         numWriters, ramBufferSizeMB, (diskReader == null ? null : diskReader.getDocIDMaper()),
+	                                         getCurrentDiskVersion());
+	  }
+	  catch(IOException ioe)
+	  {
+	    log.error(ioe.getMessage(), ioe);
+	    releaseDiskReader(diskReader);
+	    throw new ZoieException(ioe.getMessage(), ioe);
+	  }
+	  _bulkDiskReader = diskReader;
+	  super.setDataConsumer(_bulkLoader);
+	}
+	
+	/**
+	 * @return the current disk reader with a reference taken on it, null if the disk index is empty
+	 */
+	private ZoieIndexReader<R> acquireDiskReader() throws IOException
+	{
+	  while (true)
+	  {
+	    ZoieIndexReader<R> reader = _searchIdxMgr.getDiskIndex().openIndexReader();
+	    // a reader closed by a refresh in between is retried with the new one
+	    if (reader == null || reader.tryIncRef()) return reader;
+	  }
+	}
+	
+	private void releaseDiskReader(ZoieIndexReader<R> reader)
+	{
+	  if (reader == null) return;
+	  try
+	  {
+	    reader.decRef();
+	  }
+	  catch(IOException ioe)
+	  {
+	    log.error(ioe.getMessage(), ioe);
+	  }
+	}
+	
+	/**
+	 * Adds what was loaded in bulk to the disk index, writes its version and goes back to normal indexing.
+	 * Documents the load updated or deleted are deleted from the disk index first.
+	 * @throws ZoieException
+	 */
+	public synchronized void finishBulkLoad() throws ZoieException
+	{
+	  BulkIndexLoader<V> bulkLoader = _bulkLoader;
+	  if (bulkLoader == null) throw new ZoieException("not in bulk load mode");
+	  
+	  super.flushEvents(Long.MAX_VALUE);
+	  super.setDataConsumer(_rtdc);
+	  _bulkLoader = null;
+	  ZoieIndexReader<R> diskReader = _bulkDiskReader;
+	  _bulkDiskReader = null;
+	  try
+	  {
+	    _diskLoader.loadFromDirectories(bulkLoader.close(), bulkLoader.getDiskDeletes(), bulkLoader.getVersion());
+	  }
+	  catch(IOException ioe)
+	  {
+	    log.error(ioe.getMessage(), ioe);
+	    bulkLoader.abort();
+	    throw new ZoieException(ioe.getMessage(), ioe);
+	  }
+	  finally
+	  {
+	    releaseDiskReader(diskReader);
+	  }
+	  bulkLoader.deleteScratch();
+	  EventJournal<V> journal = _journal;
+	  if (journal != null)
+	  {
+	    try
+	    {
+	      journal.truncate(getCurrentDiskVersion());
+	    }
+	    catch(IOException ioe)
+	    {
+	      log.error(ioe.getMessage(), ioe);
+	    }
+	  }
+	  log.info("bulk load finished, version: " + bulkLoader.getVersion());
+	}
+	
+	/**
+	 * Leaves bulk load mode, dropping everything loaded in bulk.
+	 */
+	public synchronized void abortBulkLoad() throws ZoieException
+	{
+	  BulkIndexLoader<V> bulkLoader = _bulkLoader;
+	  if (bulkLoader == null) return;
+	  
+	  super.flushEvents(Long.MAX_VALUE);
+	  super.setDataConsumer(_rtdc);
+	  _bulkLoader = null;
+	  releaseDiskReader(_bulkDiskReader);
+	  _bulkDiskReader = null;
+	  bulkLoader.abort();
+	  log.info("bulk load aborted");
+	}
+	
+	public synchronized boolean isBulkLoading()
+	{
+	  return _bulkLoader != null;
+	}
+	
 	public void refreshDiskReader() throws IOException
 	{
 		_searchIdxMgr.refreshDiskReader();
@@ -248,6 +545,56 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	  _searchIdxMgr.purgeIndex();
 	}
 
+	/**
+	 * Sets the memory budget of the realtime RAM indexes, see {@link RealtimeIndexDataLoader#setRamLowWatermark(long)}
+	 * and {@link RealtimeIndexDataLoader#setRamHighWatermark(long)}. Has no effect unless indexing is realtime.
+	 * @param lowBytes the writable RAM index is flushed once it holds this many bytes, 0 to disable
+	 * @param highBytes producers block once all RAM indexes hold this many bytes, 0 to disable
+	 */
+	public void setRamWatermarks(long lowBytes, long highBytes)
+	{
+	  if (_rtdc instanceof RealtimeIndexDataLoader<?,?>)
+	  {
+	    RealtimeIndexDataLoader<R,V> rtdc = (RealtimeIndexDataLoader<R,V>)_rtdc;
+	    rtdc.setRamLowWatermark(lowBytes);
+	    rtdc.setRamHighWatermark(highBytes);
+	  }
+	}
+	
+	/**
+	 * Sets how many sealed RAM indexes may wait to be loaded into the disk index,
+	 * see {@link RealtimeIndexDataLoader#setMaxSealedMemoryIndexes(int)}. Has no effect unless indexing is realtime.
+	 */
+	public void setMaxSealedMemoryIndexes(int maxSealed)
+	{
+	  if (_rtdc instanceof RealtimeIndexDataLoader<?,?>)
+	  {
+	    ((RealtimeIndexDataLoader<R,V>)_rtdc).setMaxSealedMemoryIndexes(maxSealed);
+	  }
+	}
+	
+	public int getMaxSealedMemoryIndexes()
+	{
+	  return (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ? ((RealtimeIndexDataLoader<R,V>)_rtdc).getMaxSealedMemoryIndexes() : 0;
+	}
+	
+	/**
+	 * Sets how many sealed RAM indexes may wait in the spill directory,
+	 * see {@link RealtimeIndexDataLoader#setMaxSpilledMemoryIndexes(int)}. Has no effect unless indexing is realtime.
+	 */
+	public void setMaxSpilledMemoryIndexes(int maxSpilled)
+	{
+	  if (_rtdc instanceof RealtimeIndexDataLoader<?,?>)
+	  {
+	    ((RealtimeIndexDataLoader<R,V>)_rtdc).setMaxSpilledMemoryIndexes(maxSpilled);
+	  }
+	}
+	
+	public int getMaxSpilledMemoryIndexes()
+	{
+	  return (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ? ((RealtimeIndexDataLoader<R,V>)_rtdc).getMaxSpilledMemoryIndexes() : 0;
+	}
+	
 	public int getCurrentMemBatchSize()
 	{
 	  return getCurrentBatchSize(); 
@@ -262,6 +609,40 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	  _rtdc.setMaxBatchSize(maxBatchSize);
 	}
 
+	/**
+	 * Sets the number of threads used to convert incoming data into indexables before they are indexed.
+	 * The default is 1, i.e. interpretation happens on the consumer thread. When set to more than 1,
+	 * the interpreter must be thread-safe.
+	 * @param numThreads number of interpretation threads
+	 */
+	public void setInterpreterThreadCount(int numThreads) {
+	  _rtdc.setInterpreterThreadCount(numThreads);
+	}
+
+	public int getInterpreterThreadCount() {
+	  return _rtdc.getInterpreterThreadCount();
+	}
+
+	/**
+	 * Sets whether repeated updates to the same UID within one incoming batch are coalesced,
+	 * so only the latest one is analyzed and indexed. Off by default.
+	 * @param coalesce
+	 */
+	public void setCoalesceEvents(boolean coalesce) {
+	  _rtdc.setCoalesceEvents(coalesce);
+	}
+
+	public boolean isCoalesceEvents() {
+	  return _rtdc.isCoalesceEvents();
+	}
+
+	/**
+	 * @return number of events dropped so far because a later event in the same batch had the same UID
+	 */
+	public long getCoalescedEventCount() {
+	  return _rtdc.getCoalescedEventCount();
+	}
+
 	public void exportSnapshot(WritableByteChannel channel) throws IOException
 	{
 	  _diskLoader.exportSnapshot(channel);
@@ -346,6 +727,106 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	    return ZoieSystem.this._searchIdxMgr.getRamBVersion();
 	  }
 
+	  public long getRamASizeInBytes() {
+	    return ZoieSystem.this._searchIdxMgr.getRamASizeInBytes();
+	  }
+
+	  public long getRamBSizeInBytes() {
+	    return ZoieSystem.this._searchIdxMgr.getRamBSizeInBytes();
+	  }
+
+	  public long getRamLowWatermark() {
+	    return (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ? ((RealtimeIndexDataLoader<R,V>)_rtdc).getRamLowWatermark() : 0L;
+	  }
+
+	  public void setRamLowWatermark(long bytes) {
+	    if (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ((RealtimeIndexDataLoader<R,V>)_rtdc).setRamLowWatermark(bytes);
+	  }
+
+	  public long getRamHighWatermark() {
+	    return (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ? ((RealtimeIndexDataLoader<R,V>)_rtdc).getRamHighWatermark() : 0L;
+	  }
+
+	  public void setRamHighWatermark(long bytes) {
+	    if (_rtdc instanceof RealtimeIndexDataLoader<?,?>) ((RealtimeIndexDataLoader<R,V>)_rtdc).setRamHighWatermark(bytes);
+	  }
+
+	  public int getRamSealedIndexCount() {
+	    return ZoieSystem.this._searchIdxMgr.getSealedMemoryIndexCount();
+	  }
+
+	  public int getRamSpilledIndexCount() {
+	    return ZoieSystem.this._searchIdxMgr.getSpilledMemoryIndexCount();
+	  }
+
+	  public int getMaxSealedRamIndexes() {
+	    return ZoieSystem.this.getMaxSealedMemoryIndexes();
+	  }
+
+	  public void setMaxSealedRamIndexes(int maxSealed) {
+	    ZoieSystem.this.setMaxSealedMemoryIndexes(maxSealed);
+	  }
+
+	  public int getMaxSpilledRamIndexes() {
+	    return ZoieSystem.this.getMaxSpilledMemoryIndexes();
+	  }
+
+	  public void setMaxSpilledRamIndexes(int maxSpilled) {
+	    ZoieSystem.this.setMaxSpilledMemoryIndexes(maxSpilled);
+	  }
+
+	  public boolean isTrackReaderAcquireSites() {
+	    return ZoieMultiReader.isTrackAcquireSites();
+	  }
+
+	  public void setTrackReaderAcquireSites(boolean track) {
+	    ZoieMultiReader.setTrackAcquireSites(track);
+	  }
+
+	  public long getFilterCacheMaxBytes() {
+	    return _filterCache.getMaxBytes();
+	  }
+
+	  public void setFilterCacheMaxBytes(long bytes) {
+	    _filterCache.setMaxBytes(bytes);
+	  }
+
+	  public long getFilterCacheSizeInBytes() {
+	    return _filterCache.getSizeInBytes();
+	  }
+
+	  public int getFilterCacheEntryCount() {
+	    return _filterCache.getEntryCount();
+	  }
+
+	  public double getFilterCacheHitRate() {
+	    return _filterCache.getHitRate();
+	  }
+
+	  public long getFilterCacheHitCount() {
+	    return _filterCache.getHitCount();
+	  }
+
+	  public long getFilterCacheMissCount() {
+	    return _filterCache.getMissCount();
+	  }
+
+	  public long getFilterCacheEvictionCount() {
+	    return _filterCache.getEvictionCount();
+	  }
+
+	  public void clearFilterCache() {
+	    _filterCache.clear();
+	  }
+
+	  public long getRamIndexAllocatedBytes() {
+	    return ZoieSystem.this._searchIdxMgr.getMemoryDirectoryFactory().getAllocatedBytes();
+	  }
+
+	  public long getRamIndexUsedBytes() {
+	    return ZoieSystem.this._searchIdxMgr.getMemoryDirectoryFactory().getUsedBytes();
+	  }
+
 	  public void optimize(int numSegs) throws IOException {
 	    _diskLoader.optimize(numSegs);
 	  }
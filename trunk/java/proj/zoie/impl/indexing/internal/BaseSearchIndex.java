@@ -35,6 +35,8 @@ import org.apache.lucene.store.Directory;
 
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.indexing.IndexingContext;
+import proj.zoie.api.indexing.ReusableZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
 public abstract class BaseSearchIndex<R extends IndexReader> {
@@ -56,6 +58,15 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	   */
 	  abstract public long getVersion();
 	  
+	  /**
+	   * @return true if the documents of this index get their uid as a term too, see
+	   * {@link proj.zoie.api.ZoieSegmentReader#fillDocumentID(Document, long, boolean)}
+	   */
+	  public boolean isIndexUIDTerm()
+	  {
+	    return false;
+	  }
+	  
 	  /**
 	   * gets number of docs in the index, .e.g maxdoc - number of deleted docs
 	   * @return
@@ -95,17 +106,7 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	      idxMod = openIndexWriter(defaultAnalyzer,similarity);
 	      if (idxMod != null)
 	      { 
-	        for (IndexingReq idxPair : insertDocs)
-	        {
-	          Analyzer analyzer = idxPair.getAnalyzer();
-	          Document doc = idxPair.getDocument();
-	          if (analyzer == null){
-	            idxMod.addDocument(doc);
-	          }
-	          else{
-	        	idxMod.addDocument(doc,analyzer);
-	          }
-	        }
+	        addDocuments(idxMod, insertDocs, isIndexUIDTerm());
 	      }
 	    }
 	    finally
@@ -117,17 +118,78 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	    }
 	  }
 	  
-	  public LongSet getDelDocs()
+	  /**
+	   * Adds the documents of the requests. Deferred requests are built from the {@link IndexingContext} of the
+	   * calling thread, one indexable at a time, and the context is reset once its documents are added.
+	   */
+	  protected static void addDocuments(IndexWriter writer, List<IndexingReq> insertDocs, boolean indexUIDTerm) throws IOException
+	  {
+	    for (IndexingReq idxPair : insertDocs)
+	    {
+	      ReusableZoieIndexable deferred = idxPair.getDeferredIndexable();
+	      if (deferred == null)
+	      {
+	        addDocument(writer, idxPair);
+	        continue;
+	      }
+	      
+	      IndexingContext ctx = IndexingContext.get();
+	      try
+	      {
+	        IndexingReq[] reqs = deferred.buildIndexingReqs(ctx);
+	        if (reqs == null) continue;
+	        long uid = deferred.getUID();
+	        for (IndexingReq req : reqs)
+	        {
+	          if (req == null || req.getDocument() == null) continue; // nothing to add, e.g. update with nothing
+	          ctx.fillDocumentID(req.getDocument(), uid, indexUIDTerm);
+	          addDocument(writer, req);
+	        }
+	      }
+	      finally
+	      {
+	        ctx.reset();
+	      }
+	    }
+	  }
+	  
+	  private static void addDocument(IndexWriter writer, IndexingReq req) throws IOException
+	  {
+	    Analyzer analyzer = req.getAnalyzer();
+	    Document doc = req.getDocument();
+	    if (analyzer == null){
+	      writer.addDocument(doc);
+	    }
+	    else{
+	      writer.addDocument(doc,analyzer);
+	    }
+	  }
+	  
+	  /**
+	   * @return a copy of the marked deletes, others may keep marking while it is read
+	   */
+	  public synchronized LongSet getDelDocs()
+	  {
+	    return new LongOpenHashSet(_delDocs);
+	  }
+	  
+	  public synchronized void clearDeletes()
 	  {
-	    return _delDocs;
+	    _delDocs = new LongOpenHashSet();
 	  }
 	  
-	  public void clearDeletes()
+	  /**
+	   * Clears the marked deletes and returns them, in one step.
+	   */
+	  protected synchronized LongSet takeDeletes()
 	  {
+	    LongSet delDocs = _delDocs;
 	    _delDocs = new LongOpenHashSet();
+	    return delDocs;
 	  }
 	  
-	  public void markDeletes(LongSet delDocs) throws IOException
+	  // synchronized, deletes are propagated by the RAM indexing thread while the disk index loads a RAM index
+	  public synchronized void markDeletes(LongSet delDocs) throws IOException
 	  {
 	    if(delDocs != null && delDocs.size() > 0)
 	    {
@@ -139,7 +201,7 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	    }
 	  }
 	  
-	  public void commitDeletes() throws IOException
+	  public synchronized void commitDeletes() throws IOException
 	  {
         ZoieIndexReader<R> reader = openIndexReader();
         if(reader != null)
@@ -212,8 +274,7 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	    
 	    Directory dir = reader.directory();
 	    
-        LongSet delDocs = _delDocs;
-        clearDeletes();
+        LongSet delDocs = takeDeletes();
         deleteDocs(delDocs);
 	    
 	    IndexWriter writer = null;
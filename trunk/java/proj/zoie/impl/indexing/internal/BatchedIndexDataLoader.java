@@ -18,7 +18,6 @@ package proj.zoie.impl.indexing.internal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -62,6 +61,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	protected boolean _flush;
 	protected final SearchIndexManager<R> _idxMgr;
 	protected final ZoieIndexableInterpreter<V> _interpreter;
+	protected final IndexableInterpreterPool<V> _interpreterPool;
 	private final Queue<IndexingEventListener> _lsnrList;
 	  
 	  private static Logger log = Logger.getLogger(BatchedIndexDataLoader.class);
@@ -92,6 +92,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _flush=false;
 	    _idxMgr = idxMgr;
 	    _interpreter = interpreter;
+	    _interpreterPool = new IndexableInterpreterPool<V>(interpreter);
 	    _lsnrList = lsnrList;
 	  }
 	  
@@ -141,6 +142,40 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _delay=delay;
 	  }
 	  
+	  /**
+	   * Sets the number of threads used to interpret incoming events. With more than one thread
+	   * the interpreter must be thread-safe.
+	   * @param numThreads
+	   */
+	  public void setInterpreterThreadCount(int numThreads)
+	  {
+	    _interpreterPool.setNumThreads(numThreads);
+	  }
+	  
+	  public int getInterpreterThreadCount()
+	  {
+	    return _interpreterPool.getNumThreads();
+	  }
+	  
+	  /**
+	   * If true, only the last event for each UID in an incoming batch is indexed.
+	   * @param coalesce
+	   */
+	  public void setCoalesceEvents(boolean coalesce)
+	  {
+	    _interpreterPool.setCoalesceEvents(coalesce);
+	  }
+	  
+	  public boolean isCoalesceEvents()
+	  {
+	    return _interpreterPool.isCoalesceEvents();
+	  }
+	  
+	  public long getCoalescedEventCount()
+	  {
+	    return _interpreterPool.getCoalescedCount();
+	  }
+	  
 	  public synchronized int getEventCount()
 	  {
 	    return _eventCount;
@@ -154,28 +189,19 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	  {
 	    if (events != null)
 	    {
-	      // PriorityQueue<DataEvent<ZoieIndexable>> indexableList = new
-	      // PriorityQueue<DataEvent<ZoieIndexable>>(data.size(), DataEvent.getComparator());
-	      ArrayList<DataEvent<ZoieIndexable>> indexableList =
-	          new ArrayList<DataEvent<ZoieIndexable>>(events.size());
-	      Iterator<DataEvent<V>> iter = events.iterator();
-	      while (iter.hasNext())
-	      {
-	        try
-	        {
-	          DataEvent<V> event = iter.next();
-	          ZoieIndexable indexable = ((ZoieIndexableInterpreter<V>) _interpreter).convertAndInterpret(event.getData());
-	          
-	          DataEvent<ZoieIndexable> newEvent =
-	              new DataEvent<ZoieIndexable>(event.getVersion(), indexable);
-	          indexableList.add(newEvent);
-	        }
-	        catch (Exception e)
-	        {
-	          log.error(e.getMessage(), e);
-	        }
-	      }
-
+	      consumeIndexables(_interpreterPool.interpret(events));
+	    }
+	  }
+	  
+	  /**
+	   * Indexes events that are already interpreted.
+	   * @param indexableList
+	   * @throws ZoieException
+	   */
+	  public void consumeIndexables(List<DataEvent<ZoieIndexable>> indexableList) throws ZoieException
+	  {
+	    if (indexableList != null)
+	    {
 	      synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
 	      {
 	        while (_batchList.size() > _maxBatchSize)
@@ -368,6 +394,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 		} catch (InterruptedException e) {
 			log.error(e.getMessage(),e);
 		}
+	    _interpreterPool.shutdown();
 	  }
 
 	  protected static class ZoieIndexableDecorator extends AbstractZoieIndexable{
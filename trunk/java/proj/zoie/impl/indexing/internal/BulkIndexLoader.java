@@ -0,0 +1,444 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
+import proj.zoie.impl.indexing.IndexingThread;
+
+/**
+ * Indexes events straight into several scratch disk indexes, for initial loads.
+ * <br><br>
+ * Each writer has its own directory, thread and a large RAM buffer, and nothing is committed until {@link #close()}.
+ * Events are routed to writers by UID. The scratch indexes are then merged into the real disk index by the caller.
+ * <br><br>
+ * Nothing is kept in memory per event. UIDs that are already in the disk index are collected, see
+ * {@link #getDiskDeletes()}, so the caller deletes them from the disk index before the merge. Within the scratch
+ * indexes a fixed size bit filter over the UIDs tells first adds, the common case, from UIDs that may have been
+ * added before. Only the latter are remembered, and {@link #close()} keeps the documents of the last event of
+ * each of them, none if it was a delete.
+ *
+ * @param <V>
+ */
+public class BulkIndexLoader<V> implements DataConsumer<V>
+{
+  private static final Logger log = Logger.getLogger(BulkIndexLoader.class);
+
+  public static final double DEFAULT_RAM_BUFFER_SIZE_MB = 256.0;
+  // 8MB
+  private static final int UID_FILTER_BITS_LOG2 = 26;
+
+  private final File _scratchDir;
+  private final Analyzer _analyzer;
+  private final Similarity _similarity;
+  private final IndexableInterpreterPool<V> _interpreterPool;
+  private final DocIDMapper _diskMapper;
+  private final Directory[] _dirs;
+  private final IndexWriter[] _writers;
+  private final ExecutorService _executor;
+  // bit per hashed UID written to the scratch indexes, false positives only cost a check on close
+  private final long[] _uidFilter;
+  // per writer, UIDs that may be in its scratch index more than once, to the number of documents of their last event
+  private final Long2IntMap[] _repeatedUIDs;
+  private final LongOpenHashSet _diskDeletes;
+  private volatile long _version;
+  private int _numDocs;
+  // set once a document could not be written, the load can then only be aborted
+  private volatile boolean _failed = false;
+
+  /**
+   * @param interpreter data interpreter
+   * @param analyzer default analyzer
+   * @param similarity similarity, may be null
+   * @param scratchDir directory for the scratch indexes, emptied first
+   * @param numWriters number of parallel index writers
+   * @param ramBufferSizeMB RAM buffer of each writer
+   * @param diskMapper UID mapper of the disk index, null if the disk index is empty
+   * @param version current disk index version
+   * @throws IOException
+   */
+  public BulkIndexLoader(ZoieIndexableInterpreter<V> interpreter, Analyzer analyzer, Similarity similarity,
+                         File scratchDir, int numWriters, double ramBufferSizeMB, DocIDMapper diskMapper, long version) throws IOException
+  {
+    numWriters = Math.max(1, numWriters);
+    _scratchDir = scratchDir;
+    _analyzer = analyzer;
+    _similarity = similarity;
+    _diskMapper = diskMapper;
+    _version = version;
+    _numDocs = 0;
+    _uidFilter = new long[1 << (UID_FILTER_BITS_LOG2 - 6)];
+    _repeatedUIDs = new Long2IntMap[numWriters];
+    for (int i = 0; i < numWriters; ++i)
+    {
+      _repeatedUIDs[i] = new Long2IntOpenHashMap();
+    }
+    _diskDeletes = new LongOpenHashSet();
+    _interpreterPool = new IndexableInterpreterPool<V>(interpreter);
+    _interpreterPool.setNumThreads(numWriters);
+    // one event per UID and batch, so a batch never needs to replace its own documents
+    _interpreterPool.setCoalesceEvents(true);
+
+    delete(_scratchDir);
+    if (!_scratchDir.mkdirs() && !_scratchDir.isDirectory())
+    {
+      throw new IOException("cannot create bulk load directory: " + _scratchDir.getAbsolutePath());
+    }
+
+    _executor = Executors.newFixedThreadPool(numWriters, new ThreadFactory()
+    {
+      private final AtomicInteger _count = new AtomicInteger(0);
+
+      public Thread newThread(final Runnable r)
+      {
+        IndexingThread thread = new IndexingThread("bulk index writer-" + _count.incrementAndGet())
+        {
+          public void run()
+          {
+            r.run();
+          }
+        };
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    _dirs = new Directory[numWriters];
+    _writers = new IndexWriter[numWriters];
+    try
+    {
+      for (int i = 0; i < numWriters; ++i)
+      {
+        _dirs[i] = FSDirectory.open(new File(_scratchDir, "part-" + i));
+        IndexWriter writer = new IndexWriter(_dirs[i], _analyzer, true, MaxFieldLength.UNLIMITED);
+        writer.setRAMBufferSizeMB(ramBufferSizeMB);
+        writer.setMaxBufferedDocs(IndexWriter.DISABLE_AUTO_FLUSH);
+        if (_similarity != null)
+        {
+          writer.setSimilarity(_similarity);
+        }
+        _writers[i] = writer;
+      }
+    }
+    catch (IOException ioe)
+    {
+      abort();
+      throw ioe;
+    }
+    log.info("bulk load started with " + numWriters + " writers in " + _scratchDir.getAbsolutePath());
+  }
+
+  public void consume(Collection<DataEvent<V>> events) throws ZoieException
+  {
+    if (_failed) throw new ZoieException("bulk load failed, it can only be aborted");
+    if (events == null || events.size() == 0) return;
+
+    ArrayList<DataEvent<ZoieIndexable>> indexables = _interpreterPool.interpret(events);
+
+    int numWriters = _writers.length;
+    ArrayList<List<IndexingReq>> parts = new ArrayList<List<IndexingReq>>(numWriters);
+    for (int i = 0; i < numWriters; ++i)
+    {
+      parts.add(new ArrayList<IndexingReq>());
+    }
+
+    long version = _version;
+    for (DataEvent<V> event : events)
+    {
+      version = Math.max(version, event.getVersion());
+    }
+
+    // routing is cheap and needs the UID filter, so it is done here; the writers do the expensive part
+    for (DataEvent<ZoieIndexable> evt : indexables)
+    {
+      ZoieIndexable indexable = evt.getData();
+      if (indexable == null || indexable.isSkip()) continue;
+
+      long uid = indexable.getUID();
+      if (_diskMapper != null && _diskMapper.getDocID(uid) != DocIDMapper.NOT_FOUND)
+      {
+        _diskDeletes.add(uid);
+      }
+      int w = (int)((uid & Long.MAX_VALUE) % numWriters);
+      int numDocs = 0;
+      if (!indexable.isDeleted())
+      {
+        List<IndexingReq> part = parts.get(w);
+        for (IndexingReq req : indexable.buildIndexingReqs())
+        {
+          if (req == null) continue;
+          Document doc = req.getDocument();
+          if (doc == null) continue;
+          ZoieSegmentReader.fillDocumentID(doc, uid);
+          part.add(req);
+          numDocs++;
+        }
+      }
+      if (!addToFilter(uid))
+      {
+        _repeatedUIDs[w].put(uid, numDocs);
+      }
+    }
+
+    ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>(numWriters);
+    for (int w = 0; w < numWriters; ++w)
+    {
+      if (parts.get(w).isEmpty()) continue;
+      final IndexWriter writer = _writers[w];
+      final List<IndexingReq> part = parts.get(w);
+      // a document that is not written would throw off the replace pass of close(), so any failure fails the load
+      futures.add(_executor.submit(new Callable<Integer>()
+      {
+        public Integer call() throws IOException
+        {
+          for (IndexingReq req : part)
+          {
+            Analyzer analyzer = req.getAnalyzer();
+            if (analyzer == null)
+            {
+              writer.addDocument(req.getDocument());
+            }
+            else
+            {
+              writer.addDocument(req.getDocument(), analyzer);
+            }
+          }
+          return part.size();
+        }
+      }));
+    }
+
+    for (Future<Integer> future : futures)
+    {
+      try
+      {
+        _numDocs += future.get();
+      }
+      catch (InterruptedException e)
+      {
+        _failed = true;
+        Thread.currentThread().interrupt();
+        throw new ZoieException(e.getMessage(), e);
+      }
+      catch (ExecutionException e)
+      {
+        _failed = true;
+        log.error("bulk load failed: " + e.getCause().getMessage(), e.getCause());
+        throw new ZoieException(e.getCause().getMessage(), e.getCause());
+      }
+    }
+    _version = version;
+  }
+
+  /**
+   * @return true if the UID was not in the filter yet, i.e. it is surely not in the scratch indexes
+   */
+  private boolean addToFilter(long uid)
+  {
+    int bit = (int)((uid * 0x9E3779B97F4A7C15L) >>> (64 - UID_FILTER_BITS_LOG2));
+    long mask = 1L << (bit & 63);
+    int word = bit >>> 6;
+    if ((_uidFilter[word] & mask) != 0L) return false;
+    _uidFilter[word] |= mask;
+    return true;
+  }
+
+  /**
+   * @return the highest version consumed so far
+   */
+  public long getVersion()
+  {
+    return _version;
+  }
+
+  public int getNumDocs()
+  {
+    return _numDocs;
+  }
+
+  /**
+   * @return the UIDs of the disk index that were updated or deleted, to be deleted from it before the scratch
+   * indexes are added
+   */
+  public LongSet getDiskDeletes()
+  {
+    return _diskDeletes;
+  }
+
+  /**
+   * Commits and closes the writers, then removes the documents replaced or deleted later in the load.
+   * @return the scratch index directories, ready to be added to the disk index
+   * @throws IOException if a document could not be written during the load, or on closing
+   */
+  public Directory[] close() throws IOException
+  {
+    _executor.shutdown();
+    _interpreterPool.shutdown();
+    if (_failed) throw new IOException("bulk load failed to write documents");
+    int numDeleted = 0;
+    for (int i = 0; i < _writers.length; ++i)
+    {
+      _writers[i].close();
+      numDeleted += deleteReplaced(_dirs[i], _repeatedUIDs[i]);
+    }
+    log.info("bulk load wrote " + _numDocs + " documents, " + numDeleted + " of them replaced or deleted, "
+             + _diskDeletes.size() + " disk index documents to delete");
+    return _dirs;
+  }
+
+  /**
+   * Deletes all but the documents of the last event of each of the UIDs. Documents are added in order and merges
+   * keep the order, so those of the last event have the highest doc ids.
+   * @param repeatedUIDs UIDs to the number of documents of their last event
+   * @return number of documents deleted
+   */
+  private static int deleteReplaced(Directory dir, Long2IntMap repeatedUIDs) throws IOException
+  {
+    if (repeatedUIDs.isEmpty()) return 0;
+
+    int numDeleted = 0;
+    IndexReader delReader = IndexReader.open(dir, false);
+    try
+    {
+      ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(IndexReader.open(dir, true));
+      try
+      {
+        for (int doc = reader.maxDoc() - 1; doc >= 0; --doc)
+        {
+          long uid = reader.getUID(doc);
+          if (!repeatedUIDs.containsKey(uid)) continue;
+          int toKeep = repeatedUIDs.get(uid);
+          if (toKeep > 0)
+          {
+            repeatedUIDs.put(uid, toKeep - 1);
+          }
+          else
+          {
+            delReader.deleteDocument(doc);
+            numDeleted++;
+          }
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    finally
+    {
+      delReader.close();
+    }
+    return numDeleted;
+  }
+
+  /**
+   * Drops everything written so far.
+   */
+  public void abort()
+  {
+    _interpreterPool.shutdown();
+    _executor.shutdownNow();
+    for (IndexWriter writer : _writers)
+    {
+      if (writer == null) continue;
+      try
+      {
+        writer.rollback();
+      }
+      catch (IOException e)
+      {
+        log.error(e.getMessage(), e);
+      }
+    }
+    deleteScratch();
+  }
+
+  /**
+   * Deletes the scratch indexes.
+   */
+  public void deleteScratch()
+  {
+    if (_dirs != null)
+    {
+      for (Directory dir : _dirs)
+      {
+        if (dir == null) continue;
+        try
+        {
+          dir.close();
+        }
+        catch (IOException e)
+        {
+          log.error(e.getMessage(), e);
+        }
+      }
+    }
+    delete(_scratchDir);
+  }
+
+  private static void delete(File file)
+  {
+    if (file.isDirectory())
+    {
+      File[] files = file.listFiles();
+      if (files != null)
+      {
+        for (File f : files)
+        {
+          delete(f);
+        }
+      }
+    }
+    if (file.exists() && !file.delete())
+    {
+      log.warn("cannot delete " + file.getAbsolutePath());
+    }
+  }
+}
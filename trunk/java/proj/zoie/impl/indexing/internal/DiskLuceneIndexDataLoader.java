@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
+import java.util.Collections;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -29,11 +30,13 @@ import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.search.Similarity;
+import org.apache.lucene.store.Directory;
 
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.OptimizeScheduler;
 import proj.zoie.api.indexing.OptimizeScheduler.OptimizeType;
 import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 import proj.zoie.impl.indexing.internal.SearchIndexManager.Status;
 
 public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneIndexDataLoader<R> {
@@ -123,21 +126,27 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
     {
       synchronized(_optimizeMonitor)
       {
+        boolean loaded = false;
         try
         {
           _idxMgr.setDiskIndexerStatus(Status.Working);
           
           OptimizeType optType = _optScheduler.getScheduledOptimizeType();
           _idxMgr.setPartialExpunge(optType == OptimizeType.PARTIAL);
+          _idxMgr.beginDiskLoad();
           try
           {
             super.loadFromIndex(ramIndex);
+            loaded = true;
           }
           finally
           {
             _optScheduler.finished();
             _idxMgr.setPartialExpunge(false);
+            remarkDeletes(_idxMgr.endDiskLoad());
           }
+          // in the same step as the new disk reader, so its documents are neither lost nor seen twice
+          _idxMgr.retireMemoryIndex(ramIndex);
           
           if(optType == OptimizeType.FULL)
           {
@@ -155,13 +164,81 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
             }
           }
         }
+        catch(IOException ioe)
+        {
+          throw new ZoieException(ioe.getMessage(), ioe);
+        }
         finally
         {
+          if (!loaded)
+          {
+            log.error("memory index is kept to be loaded again");
+          }
           _idxMgr.setDiskIndexerStatus(Status.Sleep);         
         }
       }
     }
     
+    /**
+     * Marks deletes that came in while the disk index was loading, the load replaced the reader they were marked on.
+     */
+    private void remarkDeletes(LongSet delDocs) throws ZoieException
+    {
+      if (delDocs == null || delDocs.isEmpty()) return;
+      BaseSearchIndex<R> idx = getSearchIndex();
+      try
+      {
+        idx.markDeletes(delDocs);
+        idx.commitDeletes();
+      }
+      catch(IOException ioe)
+      {
+        throw new ZoieException(ioe.getMessage(), ioe);
+      }
+    }
+    
+	/**
+	 * Adds whole indexes, e.g. from a bulk load, to the disk index in one go and updates the version.
+	 * @param dirs indexes to add
+	 * @param delDocs UIDs to delete from the disk index first, i.e. those the added indexes replace or delete
+	 * @param version version of the added indexes
+	 * @throws ZoieException
+	 */
+	public void loadFromDirectories(Directory[] dirs, LongSet delDocs, long version) throws ZoieException
+	{
+	  synchronized(_optimizeMonitor)
+	  {
+	    try
+	    {
+	      _idxMgr.setDiskIndexerStatus(Status.Working);
+	      BaseSearchIndex<R> idx = getSearchIndex();
+	      if (delDocs != null && delDocs.size() > 0)
+	      {
+	        idx.updateIndex(delDocs, Collections.<IndexingReq>emptyList(), _analyzer, _similarity);
+	      }
+	      try
+	      {
+	        IndexWriter writer = idx.openIndexWriter(_analyzer, _similarity);
+	        writer.addIndexesNoOptimize(dirs);
+	      }
+	      finally
+	      {
+	        idx.closeIndexWriter();
+	      }
+	      idx.setVersion(Math.max(idx.getVersion(), version));
+	      _idxMgr.refreshDiskReader();
+	    }
+	    catch(IOException ioe)
+	    {
+	      throw new ZoieException(ioe.getMessage(), ioe);
+	    }
+	    finally
+	    {
+	      _idxMgr.setDiskIndexerStatus(Status.Sleep);
+	    }
+	  }
+	}
+	
 	public void expungeDeletes() throws IOException
 	{
 		log.info("expunging deletes...");
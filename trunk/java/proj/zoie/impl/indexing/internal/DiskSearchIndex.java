@@ -56,6 +56,19 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
     _deletionPolicy = new ZoieIndexDeletionPolicy();
   }
 
+  /**
+   * See {@link IndexReaderDispenser#setWriteUIDColumn(boolean)}.
+   */
+  public void setWriteUIDColumn(boolean writeUIDColumn)
+  {
+    _dispenser.setWriteUIDColumn(writeUIDColumn);
+  }
+  
+  public boolean isWriteUIDColumn()
+  {
+    return _dispenser.isWriteUIDColumn();
+  }
+
   public long getVersion()
   {
     return _dispenser.getCurrentVersion();
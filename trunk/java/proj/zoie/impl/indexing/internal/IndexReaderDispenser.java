@@ -25,6 +25,7 @@ import proj.zoie.api.DirectoryManager;
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.impl.util.UIDColumnFile;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public class IndexReaderDispenser<R extends IndexReader>
@@ -42,7 +43,7 @@ public class IndexReaderDispenser<R extends IndexReader>
 
     InternalIndexReader(IndexReader in,IndexReaderDecorator<R> decorator,IndexReaderDispenser<R> dispenser) throws IOException
     {
-      super(in, decorator);
+      super(in, decorator, dispenser._writeUIDColumn);
       _dispenser = dispenser;
     }
 
@@ -52,11 +53,29 @@ public class IndexReaderDispenser<R extends IndexReader>
       _dispenser = dispenser;
     }
 
+    private InternalIndexReader(InternalIndexReader<R> origin, IndexReader[] subSnapshots) throws IOException
+    {
+      super(origin, subSnapshots);
+      _dispenser = origin._dispenser;
+    }
+
+    @Override
+    protected boolean isWriteUIDColumn()
+    {
+      return _dispenser._writeUIDColumn;
+    }
+
     @Override
     protected ZoieMultiReader<R> newInstance(IndexReader inner, IndexReader[] subReaders) throws IOException
     {
       return new InternalIndexReader<R>(inner,subReaders,_decorator,_dispenser);
     }
+
+    @Override
+    protected ZoieMultiReader<R> newSnapshot(IndexReader[] subSnapshots) throws IOException
+    {
+      return new InternalIndexReader<R>(this,subSnapshots);
+    }
   }
 
   private volatile InternalIndexReader<R> _currentReader;
@@ -64,6 +83,7 @@ public class IndexReaderDispenser<R extends IndexReader>
   private final IndexReaderDecorator<R> _decorator;
   private final DirectoryManager _dirMgr;
   private DiskSearchIndex<R> _idx;
+  private volatile boolean _writeUIDColumn = false;
   
   public IndexReaderDispenser(DirectoryManager dirMgr, IndexReaderDecorator<R> decorator,DiskSearchIndex<R> idx)
   {
@@ -85,6 +105,21 @@ public class IndexReaderDispenser<R extends IndexReader>
     }
   }
   
+  /**
+   * Saves the uids of new disk segments in {@link UIDColumnFile}s, so they are not read from the postings again
+   * on the next open. Existing column files are used either way.
+   * @param writeUIDColumn
+   */
+  public void setWriteUIDColumn(boolean writeUIDColumn)
+  {
+    _writeUIDColumn = writeUIDColumn;
+  }
+  
+  public boolean isWriteUIDColumn()
+  {
+    return _writeUIDColumn;
+  }
+  
   public long getCurrentVersion()
   {
     return _currentSignature!=null ? _currentSignature.getVersion(): 0L;
@@ -218,6 +253,19 @@ public class IndexReaderDispenser<R extends IndexReader>
     if (reader!=null){
       DocIDMapper mapper = _idx._idxMgr._docIDMapperFactory.getDocIDMapper((ZoieMultiReader<R>)reader);
       reader.setDocIDMapper(mapper);
+      
+      if (reader != _currentReader)
+      {
+        try
+        {
+          // columns of merged away segments
+          UIDColumnFile.purge(reader.directory());
+        }
+        catch(IOException ioe)
+        {
+          log.warn(ioe.getMessage());
+        }
+      }
     }
 
     // swap the internal readers
@@ -288,6 +336,10 @@ public class IndexReaderDispenser<R extends IndexReader>
         {
           log.warn("final closeReader call with reference count == " + count + " greater than 0. Potentially, " +
               "the IndexReaders are not properly return to ZoieSystem.");
+          for (Throwable site : _currentReader.getAcquireSites())
+          {
+            log.warn("reader not returned", site);
+          }
         }
       }
       catch(IOException e)
@@ -0,0 +1,447 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.indexing.ReusableZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+import proj.zoie.impl.indexing.IndexingThread;
+
+/**
+ * Converts a batch of data events into indexable events, optionally on a pool of worker threads.
+ * <br><br>
+ * With a single thread (the default) events are interpreted on the calling thread, exactly as before.
+ * With more threads the batch is split into contiguous ranges that are interpreted in parallel, and
+ * {@link ZoieIndexable#buildIndexingReqs()} is run eagerly on the workers so the consumer thread only
+ * has to add the prepared documents. The output is always in the order of the input batch, so versions
+ * stay ordered.
+ * <br><br>
+ * {@link ReusableZoieIndexable}s are not prebuilt, they build their documents on the indexing thread.
+ * <br><br>
+ * The interpreter must be thread-safe when more than one thread is configured.
+ *
+ * @param <V>
+ */
+public class IndexableInterpreterPool<V>
+{
+  private static final Logger log = Logger.getLogger(IndexableInterpreterPool.class);
+
+  private final ZoieIndexableInterpreter<V> _interpreter;
+  private int _numThreads;
+  private ExecutorService _executor;
+  private volatile boolean _coalesce;
+  private final AtomicLong _coalescedCount = new AtomicLong(0L);
+
+  public IndexableInterpreterPool(ZoieIndexableInterpreter<V> interpreter)
+  {
+    _interpreter = interpreter;
+    _numThreads = 1;
+    _executor = null;
+    _coalesce = false;
+  }
+
+  /**
+   * Sets the number of interpretation threads. 1 means interpret on the calling thread.
+   * @param numThreads
+   */
+  public synchronized void setNumThreads(int numThreads)
+  {
+    numThreads = Math.max(1, numThreads);
+    if (numThreads == _numThreads) return;
+
+    ExecutorService oldExecutor = _executor;
+    _numThreads = numThreads;
+    _executor = (numThreads > 1 ? newExecutor(numThreads) : null);
+    if (oldExecutor != null)
+    {
+      oldExecutor.shutdown(); // running batches are allowed to finish
+    }
+  }
+
+  public synchronized int getNumThreads()
+  {
+    return _numThreads;
+  }
+
+  /**
+   * Stops the worker threads. Later calls to {@link #interpret(Collection)} run on the calling thread.
+   */
+  public synchronized void shutdown()
+  {
+    if (_executor != null)
+    {
+      _executor.shutdown();
+      _executor = null;
+    }
+    _numThreads = 1;
+  }
+
+  /**
+   * If true, only the last event for each UID in a batch is indexed. See {@link #interpret(Collection)}.
+   */
+  public void setCoalesceEvents(boolean coalesce)
+  {
+    _coalesce = coalesce;
+  }
+
+  public boolean isCoalesceEvents()
+  {
+    return _coalesce;
+  }
+
+  /**
+   * @return number of events dropped by coalescing so far
+   */
+  public long getCoalescedCount()
+  {
+    return _coalescedCount.get();
+  }
+
+  /**
+   * Interprets the events. Events that fail to interpret are logged and dropped.
+   * <br><br>
+   * With coalescing on, the events are converted first, then all but the last event for each UID are dropped
+   * before any indexing request is built. The surviving event takes the highest version of the events it
+   * replaces, so the version of the batch does not change.
+   * @param events
+   * @return the indexable events, in the same order as the incoming events
+   */
+  public ArrayList<DataEvent<ZoieIndexable>> interpret(Collection<DataEvent<V>> events)
+  {
+    ExecutorService executor;
+    int numThreads;
+    synchronized(this)
+    {
+      executor = _executor;
+      numThreads = _numThreads;
+    }
+
+    int size = events.size();
+    boolean coalesce = _coalesce && size > 1;
+    if (!coalesce && (executor == null || numThreads <= 1 || size <= 1))
+    {
+      ArrayList<DataEvent<ZoieIndexable>> indexableList = new ArrayList<DataEvent<ZoieIndexable>>(size);
+      for (DataEvent<V> event : events)
+      {
+        DataEvent<ZoieIndexable> newEvent = interpretEvent(event, false);
+        if (newEvent != null) indexableList.add(newEvent);
+      }
+      return indexableList;
+    }
+
+    @SuppressWarnings("unchecked")
+    final DataEvent<V>[] src = events.toArray((DataEvent<V>[])new DataEvent<?>[size]);
+    @SuppressWarnings("unchecked")
+    final DataEvent<ZoieIndexable>[] dest = (DataEvent<ZoieIndexable>[])new DataEvent<?>[size];
+
+    if (!coalesce)
+    {
+      runParallel(executor, numThreads, size, new RangeTask()
+      {
+        public void run(int from, int to)
+        {
+          for (int i = from; i < to; ++i)
+          {
+            dest[i] = interpretEvent(src[i], true);
+          }
+        }
+      });
+      return toList(dest, size);
+    }
+
+    runParallel(executor, numThreads, size, new RangeTask()
+    {
+      public void run(int from, int to)
+      {
+        for (int i = from; i < to; ++i)
+        {
+          dest[i] = interpretEvent(src[i], false);
+        }
+      }
+    });
+
+    final int count = coalesce(dest);
+    if (executor != null && numThreads > 1)
+    {
+      runParallel(executor, numThreads, count, new RangeTask()
+      {
+        public void run(int from, int to)
+        {
+          for (int i = from; i < to; ++i)
+          {
+            dest[i] = prebuild(dest[i]);
+          }
+        }
+      });
+    }
+    return toList(dest, count);
+  }
+
+  /**
+   * Moves the last event of each UID to the front of the array, in order, and returns their count.
+   * Skipped and failed events do not replace anything and are dropped; their versions are carried over as well.
+   * If every event is skipped, the one with the highest version is kept so the version of the batch still arrives.
+   */
+  private int coalesce(DataEvent<ZoieIndexable>[] events)
+  {
+    int size = events.length;
+    Long2IntOpenHashMap lastPos = new Long2IntOpenHashMap(size);
+    lastPos.defaultReturnValue(-1);
+    long[] maxVersion = new long[size];
+    long droppedVersion = Long.MIN_VALUE;
+    DataEvent<ZoieIndexable> droppedEvent = null;
+    int lastKept = -1;
+
+    // backwards, so the first time we see a UID is its last event
+    for (int i = size - 1; i >= 0; --i)
+    {
+      DataEvent<ZoieIndexable> event = events[i];
+      if (event == null) continue;
+      ZoieIndexable indexable = event.getData();
+      if (indexable == null || indexable.isSkip())
+      {
+        if (droppedEvent == null || event.getVersion() > droppedVersion)
+        {
+          droppedVersion = event.getVersion();
+          droppedEvent = event;
+        }
+        events[i] = null;
+        continue;
+      }
+      long uid = indexable.getUID();
+      int pos = lastPos.get(uid);
+      if (pos < 0)
+      {
+        lastPos.put(uid, i);
+        maxVersion[i] = event.getVersion();
+        if (lastKept < 0) lastKept = i;
+      }
+      else
+      {
+        maxVersion[pos] = Math.max(maxVersion[pos], event.getVersion());
+        events[i] = null;
+      }
+    }
+    if (lastKept >= 0 && droppedVersion > maxVersion[lastKept])
+    {
+      maxVersion[lastKept] = droppedVersion;
+    }
+    else if (lastKept < 0 && droppedEvent != null)
+    {
+      // the loaders skip it, but count its version
+      events[0] = droppedEvent;
+      maxVersion[0] = droppedVersion;
+    }
+
+    int count = 0;
+    for (int i = 0; i < size; ++i)
+    {
+      DataEvent<ZoieIndexable> event = events[i];
+      if (event == null) continue;
+      if (maxVersion[i] != event.getVersion())
+      {
+        event = new DataEvent<ZoieIndexable>(maxVersion[i], event.getData());
+      }
+      events[i] = null;
+      events[count++] = event;
+    }
+    _coalescedCount.addAndGet(size - count);
+    return count;
+  }
+
+  private static ArrayList<DataEvent<ZoieIndexable>> toList(DataEvent<ZoieIndexable>[] events, int count)
+  {
+    ArrayList<DataEvent<ZoieIndexable>> indexableList = new ArrayList<DataEvent<ZoieIndexable>>(count);
+    for (int i = 0; i < count; ++i)
+    {
+      if (events[i] != null) indexableList.add(events[i]);
+    }
+    return indexableList;
+  }
+
+  private interface RangeTask
+  {
+    void run(int from, int to);
+  }
+
+  /**
+   * Splits [0, size) into contiguous ranges and runs them on the executor, waiting for all of them. If the calling
+   * thread is interrupted, the ranges still running are cancelled and it returns with its interrupt flag set.
+   */
+  private static void runParallel(ExecutorService executor, int numThreads, int size, final RangeTask rangeTask)
+  {
+    if (size <= 0) return;
+    if (executor == null || numThreads <= 1 || size == 1)
+    {
+      rangeTask.run(0, size);
+      return;
+    }
+
+    int numTasks = Math.min(numThreads, size);
+    int chunk = (size + numTasks - 1) / numTasks;
+    ArrayList<Future<?>> futures = new ArrayList<Future<?>>(numTasks);
+    for (int start = 0; start < size; start += chunk)
+    {
+      final int from = start;
+      final int to = Math.min(size, start + chunk);
+      Runnable task = new Runnable()
+      {
+        public void run()
+        {
+          rangeTask.run(from, to);
+        }
+      };
+      try
+      {
+        futures.add(executor.submit(task));
+      }
+      catch (RejectedExecutionException e)
+      {
+        // the pool is being resized or shut down, do this part ourselves
+        task.run();
+      }
+    }
+
+    for (Future<?> future : futures)
+    {
+      try
+      {
+        future.get();
+      }
+      catch (InterruptedException e)
+      {
+        // the ranges not done yet are dropped, like the one of a failed task
+        Thread.currentThread().interrupt();
+        for (Future<?> remaining : futures)
+        {
+          remaining.cancel(true);
+        }
+        log.error(e.getMessage(), e);
+        return;
+      }
+      catch (ExecutionException e)
+      {
+        log.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private DataEvent<ZoieIndexable> prebuild(DataEvent<ZoieIndexable> event)
+  {
+    ZoieIndexable indexable = event.getData();
+    if (indexable == null || indexable.isSkip() || indexable.isDeleted() || indexable instanceof ReusableZoieIndexable) return event;
+    try
+    {
+      return new DataEvent<ZoieIndexable>(event.getVersion(), new PrebuiltIndexable(indexable, indexable.buildIndexingReqs()));
+    }
+    catch (Exception e)
+    {
+      log.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  private DataEvent<ZoieIndexable> interpretEvent(DataEvent<V> event, boolean prebuild)
+  {
+    try
+    {
+      ZoieIndexable indexable = _interpreter.convertAndInterpret(event.getData());
+      // reusable indexables are built by the indexing loop, see ReusableZoieIndexable
+      if (prebuild && indexable != null && !indexable.isSkip() && !indexable.isDeleted() && !(indexable instanceof ReusableZoieIndexable))
+      {
+        indexable = new PrebuiltIndexable(indexable, indexable.buildIndexingReqs());
+      }
+      return new DataEvent<ZoieIndexable>(event.getVersion(), indexable);
+    }
+    catch (Exception e)
+    {
+      log.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  private static ExecutorService newExecutor(int numThreads)
+  {
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+    {
+      private final AtomicInteger _count = new AtomicInteger(0);
+
+      public Thread newThread(final Runnable r)
+      {
+        IndexingThread thread = new IndexingThread("interpreter-" + _count.incrementAndGet())
+        {
+          public void run()
+          {
+            r.run();
+          }
+        };
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * An indexable whose indexing requests were already built by a worker thread.
+   */
+  private static final class PrebuiltIndexable implements ZoieIndexable
+  {
+    private final ZoieIndexable _inner;
+    private final IndexingReq[] _reqs;
+
+    PrebuiltIndexable(ZoieIndexable inner, IndexingReq[] reqs)
+    {
+      _inner = inner;
+      _reqs = reqs;
+    }
+
+    public IndexingReq[] buildIndexingReqs()
+    {
+      return _reqs;
+    }
+
+    public long getUID()
+    {
+      return _inner.getUID();
+    }
+
+    public boolean isDeleted()
+    {
+      return _inner.isDeleted();
+    }
+
+    public boolean isSkip()
+    {
+      return _inner.isSkip();
+    }
+  }
+}
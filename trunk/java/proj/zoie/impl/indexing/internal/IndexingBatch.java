@@ -0,0 +1,252 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.indexing.ReusableZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
+
+/**
+ * The events of one batch, reduced to the last event of each UID. Events are kept in parallel arrays and looked up
+ * by UID through an open addressing index, so adding an event allocates nothing once the arrays are big enough.
+ * A batch is cleared and reused for the next one, see {@link LuceneIndexDataLoader#consume(java.util.Collection)}.
+ * <br><br>
+ * Not thread-safe.
+ */
+public final class IndexingBatch
+{
+  // arrays grown past this are dropped by clear(), so one huge batch does not pin its memory
+  private static final int MAX_RETAINED_SIZE = 1 << 16;
+  private static final int INITIAL_SIZE = 256;
+  
+  private long[] _uids;
+  // null once a later event of the same uid came in
+  private ZoieIndexable[] _indexables;
+  private int _size;
+  private int _distinct;
+  
+  // uid -> entry + 1, 0 for an empty slot
+  private long[] _keys;
+  private int[] _slots;
+  private int _mask;
+  
+  private final ArrayList<IndexingReq> _insertDocs = new ArrayList<IndexingReq>();
+  private final UIDSet _uidSet = new UIDSet();
+  
+  IndexingBatch()
+  {
+    allocate(INITIAL_SIZE);
+  }
+  
+  private void allocate(int size)
+  {
+    _uids = new long[size];
+    _indexables = new ZoieIndexable[size];
+    _keys = new long[size * 2];
+    _slots = new int[size * 2];
+    _mask = size * 2 - 1;
+  }
+  
+  private static int hash(long uid)
+  {
+    long h = uid * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+  
+  // position of the uid in the index, or of the empty slot where it goes
+  private int find(long uid)
+  {
+    int pos = hash(uid) & _mask;
+    while (_slots[pos] != 0 && _keys[pos] != uid)
+    {
+      pos = (pos + 1) & _mask;
+    }
+    return pos;
+  }
+  
+  /**
+   * Adds an event that is not skipped. An earlier event of the same UID is dropped.
+   */
+  public void add(ZoieIndexable indexable)
+  {
+    if (_size == _uids.length)
+    {
+      grow();
+    }
+    long uid = indexable.getUID();
+    int pos = find(uid);
+    if (_slots[pos] == 0)
+    {
+      _keys[pos] = uid;
+      _distinct++;
+    }
+    else
+    {
+      _indexables[_slots[pos] - 1] = null; // last writer wins
+    }
+    _uids[_size] = uid;
+    _indexables[_size] = indexable;
+    _size++;
+    _slots[pos] = _size;
+  }
+  
+  private void grow()
+  {
+    long[] uids = _uids;
+    ZoieIndexable[] indexables = _indexables;
+    int size = _size;
+    allocate(uids.length * 2);
+    System.arraycopy(uids, 0, _uids, 0, size);
+    System.arraycopy(indexables, 0, _indexables, 0, size);
+    // reindex the surviving entries, their order is kept
+    for (int i = 0; i < size; ++i)
+    {
+      if (_indexables[i] == null) continue;
+      int pos = find(_uids[i]);
+      _keys[pos] = _uids[i];
+      _slots[pos] = i + 1;
+    }
+  }
+  
+  /**
+   * @return number of events added, replaced ones included
+   */
+  public int size()
+  {
+    return _size;
+  }
+  
+  /**
+   * @return the UIDs of all events in the batch, each once. The set is only valid until {@link #clear()}.
+   */
+  public LongSet getUIDs()
+  {
+    return _uidSet;
+  }
+  
+  /**
+   * Builds the indexing requests of the last event of each UID, in the order of the events.
+   * Deletes and requests without a document add nothing. The list is only valid until {@link #clear()}.
+   * @param indexUIDTerm see {@link BaseSearchIndex#isIndexUIDTerm()}
+   */
+  public List<IndexingReq> buildInsertDocs(boolean indexUIDTerm)
+  {
+    _insertDocs.clear();
+    for (int i = 0; i < _size; ++i)
+    {
+      ZoieIndexable indexable = _indexables[i];
+      if (indexable == null || indexable.isDeleted()) continue;
+      
+      if (indexable instanceof ReusableZoieIndexable)
+      {
+        // built from reused objects when it is added, see BaseSearchIndex.addDocuments
+        _insertDocs.add(new IndexingReq((ReusableZoieIndexable)indexable));
+        continue;
+      }
+      IndexingReq[] reqs = indexable.buildIndexingReqs();
+      if (reqs == null) continue;
+      for (IndexingReq req : reqs)
+      {
+        // no document means a delete, e.g. update with nothing
+        if (req == null || req.getDocument() == null) continue;
+        ZoieSegmentReader.fillDocumentID(req.getDocument(), _uids[i], indexUIDTerm);
+        _insertDocs.add(req);
+      }
+    }
+    return _insertDocs;
+  }
+  
+  public void clear()
+  {
+    if (_uids.length > MAX_RETAINED_SIZE)
+    {
+      allocate(INITIAL_SIZE);
+    }
+    else
+    {
+      Arrays.fill(_indexables, 0, _size, null);
+      Arrays.fill(_slots, 0);
+    }
+    if (_insertDocs.size() > MAX_RETAINED_SIZE)
+    {
+      _insertDocs.clear();
+      _insertDocs.trimToSize();
+    }
+    else
+    {
+      _insertDocs.clear();
+    }
+    _size = 0;
+    _distinct = 0;
+  }
+  
+  /**
+   * A read-only view of the distinct UIDs, which are the UIDs of the entries still holding an event.
+   */
+  private final class UIDSet extends AbstractLongSet
+  {
+    /**
+     * @return number of distinct UIDs
+     */
+    public int size()
+    {
+      return _distinct;
+    }
+    
+    public boolean contains(long uid)
+    {
+      return _slots[find(uid)] != 0;
+    }
+    
+    public LongIterator iterator()
+    {
+      return new AbstractLongIterator()
+      {
+        private int _next = advance(0);
+        
+        private int advance(int from)
+        {
+          while (from < _size && _indexables[from] == null) from++;
+          return from;
+        }
+        
+        public boolean hasNext()
+        {
+          return _next < _size;
+        }
+        
+        public long nextLong()
+        {
+          if (_next >= _size) throw new NoSuchElementException();
+          long uid = _uids[_next];
+          _next = advance(_next + 1);
+          return uid;
+        }
+      };
+    }
+  }
+}
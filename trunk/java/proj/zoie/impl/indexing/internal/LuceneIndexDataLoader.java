@@ -15,26 +15,19 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Similarity;
 
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
-import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
@@ -44,11 +37,33 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 	protected final Similarity _similarity;
 	protected final SearchIndexManager<R> _idxMgr;
 
+	// reused by the next batch, see consume()
+	private IndexingBatch _spareBatch = null;
+
 	protected LuceneIndexDataLoader(Analyzer analyzer, Similarity similarity,SearchIndexManager<R> idxMgr) {
 		_analyzer = analyzer;
 		_similarity = similarity;
 		_idxMgr=idxMgr;
 	}
+	
+	/**
+	 * @return the spare batch if there is one, a new one otherwise
+	 */
+	protected synchronized IndexingBatch takeBatch() {
+		IndexingBatch batch = _spareBatch;
+		_spareBatch = null;
+		return (batch != null ? batch : new IndexingBatch());
+	}
+	
+	/**
+	 * Clears the batch and keeps it for the next {@link #takeBatch()}.
+	 */
+	protected void returnBatch(IndexingBatch batch) {
+		batch.clear();
+		synchronized(this) {
+			_spareBatch = batch;
+		}
+	}
 
 	protected abstract BaseSearchIndex<R> getSearchIndex();
 	
@@ -69,64 +84,36 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 
 		BaseSearchIndex<R> idx = getSearchIndex();
 
-		Long2ObjectMap<List<IndexingReq>> addList = new Long2ObjectOpenHashMap<List<IndexingReq>>();
+		IndexingBatch batch = takeBatch();
 		long version = idx.getVersion();		// current version
 
-		LongSet delSet =new LongOpenHashSet();
-		
 		try {
 		  for(DataEvent<ZoieIndexable> evt : events)
 		  {
 		    if (evt == null) continue;
-    		    version = Math.max(version, evt.getVersion());
-    		    // interpret and get get the indexable instance
-    		    ZoieIndexable indexable = evt.getData();
-    		    if (indexable == null || indexable.isSkip())
-    		      continue;
-    
-    		    long uid = indexable.getUID();
-    		    delSet.add(uid);
-    		    addList.remove(uid);
-				if (!indexable.isDeleted()) // update event
-				{
-					IndexingReq[] reqs = indexable.buildIndexingReqs();
-					for (IndexingReq req : reqs) {
-						if (req != null) // if doc is provided, interpret as
-											// a delete, e.g. update with
-											// nothing
-						{
-							Document doc = req.getDocument();
-							if (doc!=null){
-							  ZoieSegmentReader.fillDocumentID(doc, uid);
-							}
-							// add to the insert list
-							List<IndexingReq> docList = addList.get(uid);
-							if (docList == null) {
-								docList = new LinkedList<IndexingReq>();
-								addList.put(uid, docList);
-							}
-							docList.add(req);
-						}
-					}
-				} else {
-					addList.remove(uid);
-				}
-			}
+		    version = Math.max(version, evt.getVersion());
+		    // interpret and get get the indexable instance
+		    ZoieIndexable indexable = evt.getData();
+		    if (indexable == null || indexable.isSkip())
+		      continue;
+		    batch.add(indexable);
+		  }
 
-			List<IndexingReq> docList = new ArrayList<IndexingReq>(addList.size());
-			for (List<IndexingReq> tmpList : addList.values()) {
-				docList.addAll(tmpList);
-			}
-            idx.updateIndex(delSet, docList, _analyzer,_similarity);
-            propagateDeletes(delSet);
-			synchronized(_idxMgr)
-			{
-              idx.refresh();
-              commitPropagatedDeletes();
-			}
+		  // every uid in the batch is deleted first, the last update of each uid is added back
+		  LongSet delSet = batch.getUIDs();
+		  List<IndexingReq> docList = batch.buildInsertDocs(idx.isIndexUIDTerm());
+		  idx.updateIndex(delSet, docList, _analyzer,_similarity);
+		  propagateDeletes(delSet);
+		  synchronized(_idxMgr)
+		  {
+		    idx.refresh();
+		    commitPropagatedDeletes();
+		    _idxMgr.publishReaders();
+		  }
 		} catch (IOException ioe) {
 			log.error("Problem indexing batch: " + ioe.getMessage(), ioe);
 		} finally {
+			returnBatch(batch);
 			try {
 				if (idx != null) {
 					idx.incrementEventCount(eventCount);
@@ -37,32 +37,22 @@ public class RAMLuceneIndexDataLoader<R extends IndexReader> extends LuceneIndex
 	@Override
 	protected void propagateDeletes(LongSet delDocs) throws IOException
 	{
-	  RAMSearchIndex<R> readOnlyMemoryIdx = _idxMgr.getCurrentReadOnlyMemoryIndex();
-	  if(readOnlyMemoryIdx != null)
+	  for (RAMSearchIndex<R> sealedMemoryIdx : _idxMgr.getSealedMemoryIndexes())
 	  {
-	    readOnlyMemoryIdx.markDeletes(delDocs);
+	    sealedMemoryIdx.markDeletes(delDocs);
 	  }
 	  
-	  DiskSearchIndex<R> diskIdx = _idxMgr.getDiskIndex();
-	  if(diskIdx != null)
-	  {
-	    diskIdx.markDeletes(delDocs);
-	  }
+	  _idxMgr.markDiskDeletes(delDocs);
 	}
 	
 	@Override
 	protected void commitPropagatedDeletes() throws IOException
 	{
-	  RAMSearchIndex<R> readOnlyMemoryIdx = _idxMgr.getCurrentReadOnlyMemoryIndex();
-	  if(readOnlyMemoryIdx != null)
+	  for (RAMSearchIndex<R> sealedMemoryIdx : _idxMgr.getSealedMemoryIndexes())
 	  {
-	    readOnlyMemoryIdx.commitDeletes();
+	    sealedMemoryIdx.commitDeletes();
 	  }
 	  
-	  DiskSearchIndex<R> diskIdx = _idxMgr.getDiskIndex();
-	  if(diskIdx != null)
-	  {
-	    diskIdx.commitDeletes();
-	  }
+	  _idxMgr.commitDiskDeletes();
 	}
 }
@@ -16,54 +16,141 @@ package proj.zoie.impl.indexing.internal;
  * limitations under the License.
  */
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.Similarity;
-import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
 
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
 public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	  private long         _version;
-	  private final RAMDirectory _directory;
+	  private volatile Directory _directory;
+	  // the reference of this index on _directory, readers hold their own, see RAMIndexReader
+	  private volatile DirectoryRef _directoryRef;
+	  // scratch location once the index was spilled out of memory, see spill()
+	  private volatile File _spillDir;
 	  private final IndexReaderDecorator<R> _decorator;
+	  // fixed for the life of the index, so deletes by uid term find every document
+	  private final boolean _indexUIDTerm;
 	  
 	  // a consistent pair of reader and deleted set
       private volatile ZoieIndexReader<R> _currentReader;
+      private volatile long _sizeInBytes = 0L;
 	  
 	  public static final Logger log = Logger.getLogger(RAMSearchIndex.class);
 
 	  RAMSearchIndex(long version, IndexReaderDecorator<R> decorator,SearchIndexManager<R> idxMgr){
+		this(version, decorator, idxMgr, idxMgr._memDirFactory.newDirectory());
+	  }
+
+	  RAMSearchIndex(long version, IndexReaderDecorator<R> decorator,SearchIndexManager<R> idxMgr,Directory directory){
 		super(idxMgr);
-	    _directory = new RAMDirectory();
+	    _directory = directory;
+	    _directoryRef = new DirectoryRef(directory, null, null);
+	    _spillDir = null;
 	    _version = version;
 	    _decorator = decorator;
+	    _indexUIDTerm = idxMgr.isIndexUIDTerm();
 	    _currentReader = null;
 //	    ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
 //	    cms.setMaxThreadCount(1);
 	    _mergeScheduler = new SerialMergeScheduler();
 	  }
 	  
+	  /**
+	   * Closes the writer and releases the current reader. The directory is closed, and removed if the index was
+	   * spilled, once the readers still used by searches are closed as well.
+	   */
 	  public void close()
 	  {
 	    super.close();
-	    if (_directory!=null)
+	    DirectoryRef directoryRef;
+	    synchronized(this)
+	    {
+	      releaseReader(_currentReader);
+	      _currentReader = null;
+	      directoryRef = _directoryRef;
+	      _directoryRef = null;
+	    }
+	    if (directoryRef!=null)
 	    {
-	      _directory.close();
+	      directoryRef.decRef();
 	    }
 	  }
 	  
+	  /**
+	   * Moves a sealed index out of memory into a memory-mapped directory at <code>dir</code>. The index stays
+	   * searchable and can be loaded into the disk index as before, the directory is removed once the index and its
+	   * readers are closed.
+	   * Readers opened before keep using the in-memory copy until they are dropped.
+	   * @param dir an empty scratch directory
+	   * @throws IOException
+	   */
+	  public synchronized void spill(File dir) throws IOException
+	  {
+	    if (_indexWriter!=null)
+	    {
+	      throw new IllegalStateException("only a sealed memory index can be spilled");
+	    }
+	    if (_spillDir!=null || !IndexReader.indexExists(_directory)) return;
+	    
+	    Directory fsDir = new MMapDirectory(dir);
+	    DirectoryRef fsRef = new DirectoryRef(fsDir, dir, _idxMgr);
+	    ZoieIndexReader<R> reader = null;
+	    try
+	    {
+	      Directory.copy(_directory, fsDir, false);
+	      reader = openIndexReaderInternal(fsRef);
+	    }
+	    catch(IOException ioe)
+	    {
+	      fsRef.decRef();
+	      throw ioe;
+	    }
+	    
+	    DirectoryRef memRef = _directoryRef;
+	    ZoieIndexReader<R> oldReader = _currentReader;
+	    _directory = fsDir;
+	    _directoryRef = fsRef;
+	    _spillDir = dir;
+	    _currentReader = reader;
+	    releaseReader(oldReader);
+	    LongSet delDocs = _delDocs;
+	    clearDeletes();
+	    markDeletes(delDocs); // re-mark deletes on the new reader
+	    commitDeletes();
+	    _sizeInBytes = computeSizeInBytes();
+	    // readers still on the memory copy keep it open until they are closed
+	    memRef.decRef();
+	  }
+	  
+	  public boolean isSpilled()
+	  {
+	    return _spillDir!=null;
+	  }
+	  
 	  public long getVersion()
 	  {
 	    return _version;
@@ -75,6 +162,15 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	    _version = version;
 	  }
 
+	  /**
+	   * @return memory held by this index as of the last refresh: index files, the writer's buffer,
+	   * uid arrays and doc id mappers
+	   */
+	  public long getSizeInBytes()
+	  {
+	    return _sizeInBytes;
+	  }
+	  
 	  public int getNumdocs()
 	  {
 		ZoieIndexReader<R> reader=null;
@@ -97,11 +193,29 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	    }
 	  }
 	  
+	  /**
+	   * @return the current reader, which stays open while this index holds it. Whoever keeps it beyond that must
+	   * take a reference, as the reader set for searches does.
+	   */
 	  @Override
 	  public ZoieIndexReader<R> openIndexReader() throws IOException
 	  {
 	    return _currentReader;
 	  }
+	  
+	  // drops the reference of this index, searches still holding the reader keep it open
+	  private static <R extends IndexReader> void releaseReader(ZoieIndexReader<R> reader)
+	  {
+	    if (reader == null) return;
+	    try
+	    {
+	      reader.decRef();
+	    }
+	    catch (IOException e)
+	    {
+	      log.error(e.getMessage(),e);
+	    }
+	  }
       
 	  @Override
 	  protected IndexReader openIndexReaderForDelete() throws IOException {
@@ -113,17 +227,17 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 		}
 	  }
 	  
-      private ZoieIndexReader<R> openIndexReaderInternal() throws IOException
+      private ZoieIndexReader<R> openIndexReaderInternal(DirectoryRef directoryRef) throws IOException
       {
-	    if (IndexReader.indexExists(_directory))
+	    if (IndexReader.indexExists(directoryRef._directory))
 	    {
 	      IndexReader srcReader=null;
 	      ZoieIndexReader<R> finalReader=null;
 	      try
 	      {
 	        // for RAM indexes, just get a new index reader
-	    	srcReader=IndexReader.open(_directory,true);
-	    	finalReader=ZoieIndexReader.open(srcReader, _decorator);
+	    	srcReader=IndexReader.open(directoryRef._directory,true);
+	    	finalReader=new RAMIndexReader<R>(srcReader, _decorator, directoryRef);
 	    	DocIDMapper mapper = _idxMgr._docIDMapperFactory.getDocIDMapper((ZoieMultiReader<R>)finalReader);
 	    	finalReader.setDocIDMapper(mapper);
 	        return finalReader;
@@ -146,6 +260,7 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	  public IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity)
 	    throws IOException
 	  {
+	    // the writer stays open until the index is flushed to disk, readers come from IndexWriter.getReader()
 	    if(_indexWriter != null) return _indexWriter;
 	    
 	    // if index does not exist, create empty index
@@ -164,28 +279,239 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	    return idxWriter;
 	  }
 	  
+	  @Override
+	  public boolean isIndexUIDTerm()
+	  {
+	    return _indexUIDTerm;
+	  }
+	  
+	  /**
+	   * Applies the batch to the long-lived writer without committing. Deletes go through the writer, by uid term
+	   * if {@link #isIndexUIDTerm()}, else by the uid payloads, and only hit documents added before them, so an
+	   * update in the same batch is not deleted. The changes become visible with {@link #refresh()}.
+	   */
+	  @Override
+	  public void updateIndex(LongSet delDocs, List<IndexingReq> insertDocs,Analyzer defaultAnalyzer,Similarity similarity)
+	      throws IOException
+	  {
+	    IndexWriter writer = openIndexWriter(defaultAnalyzer,similarity);
+	    if (delDocs!=null && delDocs.size() > 0 && !_indexUIDTerm)
+	    {
+	      // applied when the writer flushes, so it keeps a copy of the set of the batch
+	      writer.deleteDocuments(ZoieSegmentReader.getUIDPayloadQuery(new LongOpenHashSet(delDocs)));
+	    }
+	    else if (delDocs!=null && delDocs.size() > 0)
+	    {
+	      Term[] delTerms = new Term[delDocs.size()];
+	      int count = 0;
+	      LongIterator iter = delDocs.iterator();
+	      while(iter.hasNext())
+	      {
+	        long uid = iter.nextLong();
+	        if (ZoieIndexReader.DELETED_UID!=uid)
+	        {
+	          delTerms[count++] = ZoieSegmentReader.getUIDTerm(uid);
+	        }
+	      }
+	      if (count < delTerms.length)
+	      {
+	        Term[] tmp = new Term[count];
+	        System.arraycopy(delTerms, 0, tmp, 0, count);
+	        delTerms = tmp;
+	      }
+	      writer.deleteDocuments(delTerms);
+	    }
+	    
+	    addDocuments(writer, insertDocs, _indexUIDTerm);
+	  }
+	  
 	  @Override
 	  public void refresh() throws IOException
 	  {
 	    synchronized(this)
 	    {
-	      ZoieIndexReader<R> reader = null;
-	      if (_currentReader==null)
+	      ZoieIndexReader<R> reader = _currentReader;
+	      if (_indexWriter!=null)
 	      {
-	        reader = openIndexReaderInternal();
+	        if (reader==null)
+	        {
+	          reader = openNRTReader();
+	        }
+	        else
+	        {
+	          // a reader from the writer reopens through the writer
+	          reader = (ZoieIndexReader<R>)reader.reopen(true);
+	          DocIDMapper mapper = _idxMgr._docIDMapperFactory.getDocIDMapper((ZoieMultiReader<R>)reader);
+	          reader.setDocIDMapper(mapper);
+	        }
 	      }
-	      else
+	      else if (reader==null)
 	      {
-	        reader = (ZoieIndexReader<R>)_currentReader.reopen(true);
-	        DocIDMapper mapper = _idxMgr._docIDMapperFactory.getDocIDMapper((ZoieMultiReader<R>)reader);
-	        reader.setDocIDMapper(mapper);
+	        reader = openIndexReaderInternal(_directoryRef);
 	      }
+	      // else the writer is closed and nothing can have changed
 	      
+	      ZoieIndexReader<R> oldReader = _currentReader;
 	      _currentReader = reader;
+	      if (oldReader != reader)
+	      {
+	        releaseReader(oldReader);
+	      }
 	      LongSet delDocs = _delDocs;
           clearDeletes();
           markDeletes(delDocs); // re-mark deletes
           commitDeletes();
+          _sizeInBytes = computeSizeInBytes();
+	    }
+	  }
+	  
+	  private long computeSizeInBytes() throws IOException
+	  {
+	    long size = 0L;
+	    IndexWriter writer = _indexWriter;
+	    if (writer!=null)
+	    {
+	      size += writer.ramSizeInBytes();
+	    }
+	    Directory directory = _directory;
+	    if (_spillDir==null) // a spilled index only keeps its uids in memory
+	    {
+	      for (String file : directory.listAll())
+	      {
+	        try
+	        {
+	          size += directory.fileLength(file);
+	        }
+	        catch(FileNotFoundException e)
+	        {
+	          // deleted by a merge in the meantime
+	        }
+	      }
+	    }
+	    ZoieIndexReader<R> reader = _currentReader;
+	    if (reader!=null)
+	    {
+	      for (ZoieIndexReader<R> subReader : reader.getSequentialSubReaders())
+	      {
+	        size += ((ZoieSegmentReader<R>)subReader).getUIDMemorySize();
+	      }
+	    }
+	    return size;
+	  }
+	  
+	  private ZoieIndexReader<R> openNRTReader() throws IOException
+	  {
+	    IndexReader srcReader = _indexWriter.getReader();
+	    try
+	    {
+	      ZoieIndexReader<R> finalReader=new RAMIndexReader<R>(srcReader, _decorator, _directoryRef);
+	      DocIDMapper mapper = _idxMgr._docIDMapperFactory.getDocIDMapper((ZoieMultiReader<R>)finalReader);
+	      finalReader.setDocIDMapper(mapper);
+	      return finalReader;
+	    }
+	    catch(IOException ioe)
+	    {
+	      srcReader.close();
+	      throw ioe;
+	    }
+	  }
+	  
+	  /**
+	   * Counts the references on the directory of a RAM index, held by the index and by every reader opened on it.
+	   * The last one closes the directory, and removes the spill directory if there is one.
+	   */
+	  private static final class DirectoryRef
+	  {
+	    final Directory _directory;
+	    private final File _spillDir;
+	    private final SearchIndexManager<?> _idxMgr;
+	    private final AtomicInteger _refCount = new AtomicInteger(1);
+	    
+	    DirectoryRef(Directory directory, File spillDir, SearchIndexManager<?> idxMgr)
+	    {
+	      _directory = directory;
+	      _spillDir = spillDir;
+	      _idxMgr = idxMgr;
+	    }
+	    
+	    void incRef()
+	    {
+	      _refCount.incrementAndGet();
+	    }
+	    
+	    void decRef()
+	    {
+	      if (_refCount.decrementAndGet() != 0) return;
+	      try
+	      {
+	        _directory.close();
+	      }
+	      catch (IOException e)
+	      {
+	        log.error(e.getMessage(),e);
+	      }
+	      if (_spillDir!=null)
+	      {
+	        _idxMgr.deleteSpillDir(_spillDir);
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * A reader of a RAM index. It holds a reference on the directory it was opened on until it is closed, and so do
+	   * the readers it is reopened to.
+	   */
+	  private static final class RAMIndexReader<R extends IndexReader> extends ZoieMultiReader<R>
+	  {
+	    private final DirectoryRef _directoryRef;
+	    
+	    RAMIndexReader(IndexReader in, IndexReaderDecorator<R> decorator, DirectoryRef directoryRef) throws IOException
+	    {
+	      super(in, decorator);
+	      _directoryRef = directoryRef;
+	      directoryRef.incRef();
+	    }
+	    
+	    RAMIndexReader(IndexReader in, IndexReader[] subReaders, IndexReaderDecorator<R> decorator, DirectoryRef directoryRef) throws IOException
+	    {
+	      super(in, subReaders, decorator);
+	      _directoryRef = directoryRef;
+	      directoryRef.incRef();
+	    }
+	    
+	    // a snapshot shares the reference of its origin
+	    private RAMIndexReader(RAMIndexReader<R> origin, IndexReader[] subSnapshots) throws IOException
+	    {
+	      super(origin, subSnapshots);
+	      _directoryRef = null;
+	    }
+	    
+	    @Override
+	    protected ZoieMultiReader<R> newInstance(IndexReader inner, IndexReader[] subReaders) throws IOException
+	    {
+	      return new RAMIndexReader<R>(inner, subReaders, _decorator, _directoryRef);
+	    }
+	    
+	    @Override
+	    protected ZoieMultiReader<R> newSnapshot(IndexReader[] subSnapshots) throws IOException
+	    {
+	      return new RAMIndexReader<R>(this, subSnapshots);
+	    }
+	    
+	    @Override
+	    protected void doClose() throws IOException
+	    {
+	      try
+	      {
+	        super.doClose();
+	      }
+	      finally
+	      {
+	        if (_directoryRef!=null)
+	        {
+	          _directoryRef.decRef();
+	        }
+	      }
 	    }
 	  }
 }
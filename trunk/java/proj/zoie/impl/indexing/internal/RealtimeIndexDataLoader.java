@@ -16,9 +16,9 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import org.apache.log4j.Logger;
@@ -35,6 +35,16 @@ import proj.zoie.impl.indexing.IndexingEventListener;
 
 /**
  * Keeps track of the number of incoming data events.
+ * <br><br>
+ * Events are indexed into the writable RAM index. Once a batch is complete the writable index is sealed and
+ * queued for the disk index, and a new writable index takes its place. Up to {@link #getMaxSealedMemoryIndexes()}
+ * sealed indexes can wait, so producers are only held up when the RAM tier is over its memory budget or the
+ * writable index has grown past the max batch size.
+ * <br><br>
+ * If the index manager has a spill directory, a producer held up by memory asks the disk loader thread to spill
+ * sealed indexes there, see {@link SearchIndexManager#spillMemoryIndex(RAMSearchIndex)}. The loader spills between
+ * two loads, all sealed indexes but the one it loads next. Spilled indexes do not count against
+ * {@link #getMaxSealedMemoryIndexes()}, up to {@link #getMaxSpilledMemoryIndexes()} of them can wait on top.
  * 
  * @author ymatsuda, xgu
  *
@@ -42,6 +52,15 @@ import proj.zoie.impl.indexing.IndexingEventListener;
 public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIndexDataLoader<R,V>
 {
   private int _currentBatchSize;
+  private int _maxSealed;
+  private int _maxSpilled;
+  // set by a producer held up by memory, the disk loader thread spills before its next load
+  private boolean _spillRequested;
+  // event counts of the sealed RAM indexes, oldest first like the indexes themselves
+  private final LinkedList<Integer> _sealedEventCounts;
+  private volatile long _ramLowWatermark;
+  private volatile long _ramHighWatermark;
+  private boolean _ramThrottled;
   private final DataConsumer<ZoieIndexable>  _ramConsumer;
   private final DiskLuceneIndexDataLoader<R> _luceneDataLoader;
   private final Analyzer                     _analyzer;
@@ -49,6 +68,9 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
   
   private static Logger log = Logger.getLogger(RealtimeIndexDataLoader.class);
   
+  public static final int DEFAULT_MAX_SEALED = 2;
+  public static final int DEFAULT_MAX_SPILLED = 8;
+  
   public RealtimeIndexDataLoader(DiskLuceneIndexDataLoader<R> dataLoader, int batchSize,int maxBatchSize,long delay,
                                  Analyzer analyzer,
                                  Similarity similarity,
@@ -60,47 +82,211 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
     _analyzer = analyzer;
     _similarity = similarity;
     _currentBatchSize = 0;
+    _maxSealed = DEFAULT_MAX_SEALED;
+    _maxSpilled = DEFAULT_MAX_SPILLED;
+    _spillRequested = false;
+    _sealedEventCounts = new LinkedList<Integer>();
+    _ramLowWatermark = 0L;
+    _ramHighWatermark = 0L;
+    _ramThrottled = false;
     _ramConsumer = new RAMLuceneIndexDataLoader<R>(_analyzer, _similarity, _idxMgr);
     _luceneDataLoader = dataLoader;
   }
   
-  /* (non-Javadoc)
-   * @see proj.zoie.impl.indexing.internal.BatchedIndexDataLoader#consume(java.util.Collection)
+  /**
+   * Once the writable RAM index holds this many bytes it is flushed to disk, as if the batch size was reached.
+   * @param bytes 0 to flush by event count and time only
    */
-  @Override
-  public void consume(Collection<DataEvent<V>> events) throws ZoieException
+  public synchronized void setRamLowWatermark(long bytes)
+  {
+    _ramLowWatermark = Math.max(0L, bytes);
+    this.notifyAll();
+  }
+  
+  public long getRamLowWatermark()
+  {
+    return _ramLowWatermark;
+  }
+  
+  /**
+   * Once all RAM indexes together hold this many bytes, producers block until they are back under the low watermark,
+   * or under this one if no lower low watermark is set.
+   * @param bytes 0 to block by event count only
+   */
+  public synchronized void setRamHighWatermark(long bytes)
+  {
+    _ramHighWatermark = Math.max(0L, bytes);
+    this.notifyAll();
+  }
+  
+  public long getRamHighWatermark()
+  {
+    return _ramHighWatermark;
+  }
+  
+  /**
+   * @return bytes held by the RAM indexes, as of their last refresh
+   */
+  public long getRamSizeInBytes()
+  {
+    return _idxMgr.getRamASizeInBytes() + _idxMgr.getRamBSizeInBytes();
+  }
+  
+  // caller holds the lock
+  private boolean isWritableRamFull()
+  {
+    long low = _ramLowWatermark;
+    if (low <= 0L || _currentBatchSize == 0) return false;
+    RAMSearchIndex<R> memIndex = _idxMgr.getCurrentWritableMemoryIndex();
+    return memIndex != null && memIndex.getSizeInBytes() >= low;
+  }
+  
+  // caller holds the lock
+  private boolean isRamThrottled()
   {
-    if (events != null)
+    long high = _ramHighWatermark;
+    if (high <= 0L)
     {
-      ArrayList<DataEvent<ZoieIndexable>> indexableList =
-          new ArrayList<DataEvent<ZoieIndexable>>(events.size());
-      Iterator<DataEvent<V>> iter = events.iterator();
-      while (iter.hasNext())
+      _ramThrottled = false;
+    }
+    else
+    {
+      long size = getRamSizeInBytes();
+      long low = _ramLowWatermark;
+      if (_ramThrottled && low > 0L && low < high)
       {
-        try
-        {
-          DataEvent<V> event = iter.next();
-          ZoieIndexable indexable =
-                ((ZoieIndexableInterpreter<V>) _interpreter).convertAndInterpret(event.getData());
-          
-          DataEvent<ZoieIndexable> newEvent =
-              new DataEvent<ZoieIndexable>(event.getVersion(), indexable);
-          indexableList.add(newEvent);
-        }
-        catch (Exception e)
+        _ramThrottled = (size > low);
+      }
+      else
+      {
+        _ramThrottled = (size >= high);
+      }
+    }
+    return _ramThrottled;
+  }
+  
+  /**
+   * Sets how many sealed RAM indexes may wait to be loaded into the disk index. While that many are waiting,
+   * the writable RAM index keeps growing instead of being sealed.
+   * @param maxSealed at least 1
+   */
+  public synchronized void setMaxSealedMemoryIndexes(int maxSealed)
+  {
+    _maxSealed = Math.max(1, maxSealed);
+    this.notifyAll();
+  }
+  
+  public synchronized int getMaxSealedMemoryIndexes()
+  {
+    return _maxSealed;
+  }
+  
+  /**
+   * Sets how many sealed RAM indexes may wait spilled to the spill directory, on top of
+   * {@link #getMaxSealedMemoryIndexes()}. Once that many are spilled, producers held up by memory wait for the
+   * disk loader.
+   * @param maxSpilled 0 not to spill
+   */
+  public synchronized void setMaxSpilledMemoryIndexes(int maxSpilled)
+  {
+    _maxSpilled = Math.max(0, maxSpilled);
+    this.notifyAll();
+  }
+  
+  public synchronized int getMaxSpilledMemoryIndexes()
+  {
+    return _maxSpilled;
+  }
+  
+  public int getSealedMemoryIndexCount()
+  {
+    return _idxMgr.getSealedMemoryIndexCount();
+  }
+  
+  // caller holds the lock
+  private int getInMemorySealedCount()
+  {
+    int count = 0;
+    for (RAMSearchIndex<R> memIndex : _idxMgr.getSealedMemoryIndexes())
+    {
+      if (!memIndex.isSpilled()) count++;
+    }
+    return count;
+  }
+  
+  // caller holds the lock
+  private boolean canSpill()
+  {
+    return _idxMgr.getSpillDirectory() != null && _idxMgr.getSpilledMemoryIndexCount() < _maxSpilled;
+  }
+  
+  /**
+   * Spills the sealed indexes in memory but <code>next</code>, which is about to be loaded. Runs on the disk
+   * loader thread, without the lock, so producers are not held up by the copying.
+   */
+  private void spillSealed(RAMSearchIndex<R> next)
+  {
+    synchronized(this)
+    {
+      if (!_spillRequested) return;
+      _spillRequested = false;
+    }
+    for (RAMSearchIndex<R> memIndex : _idxMgr.getSealedMemoryIndexes())
+    {
+      if (memIndex == next || memIndex.isSpilled()) continue;
+      synchronized(this)
+      {
+        if (!canSpill()) break;
+      }
+      try
+      {
+        if (_idxMgr.spillMemoryIndex(memIndex))
         {
-          log.error(e.getMessage(), e);
+          synchronized(this)
+          {
+            this.notifyAll(); // less memory in use now
+          }
         }
       }
-
-      synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
+      catch (IOException e)
+      {
+        log.error(e.getMessage(), e);
+        break; // producers wait for the load instead
+      }
+    }
+  }
+  
+  // caller holds the lock
+  private void sealWritable()
+  {
+    _idxMgr.sealWritableMemoryIndex();
+    _sealedEventCounts.addLast(_currentBatchSize);
+    _currentBatchSize = 0;
+  }
+  
+  /* (non-Javadoc)
+   * @see proj.zoie.impl.indexing.internal.BatchedIndexDataLoader#consumeIndexables(java.util.List)
+   */
+  @Override
+  public void consumeIndexables(List<DataEvent<ZoieIndexable>> indexableList) throws ZoieException
+  {
+    if (indexableList != null)
+    {
+      synchronized (this) // only sealing the writable index has to wait for this, loading to disk does not
       {
         int size = indexableList.size();
         _ramConsumer.consume(indexableList);// consumer clear the list!
         _currentBatchSize += size;
         _eventCount += size;
         
-        while (_currentBatchSize > _maxBatchSize)
+        if ((_currentBatchSize >= _batchSize || isWritableRamFull()) && getInMemorySealedCount() < _maxSealed)
+        {
+          sealWritable();
+          this.notifyAll(); // time to flush
+        }
+        
+        // the writable index only grows past the batch size while the disk loader is behind
+        while (_currentBatchSize > _maxBatchSize || isRamThrottled())
         {
           // check if load manager thread is alive
           if(_loadMgrThread == null || !_loadMgrThread.isAlive())
@@ -108,6 +294,14 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
             throw new ZoieException("load manager has stopped");
           }
           
+          if (_currentBatchSize > 0 && getInMemorySealedCount() < _maxSealed)
+          {
+            sealWritable();
+          }
+          if (getInMemorySealedCount() > 0 && canSpill())
+          {
+            _spillRequested = true;
+          }
           this.notifyAll(); // wake up load manager thread      
           
           try
@@ -128,46 +322,57 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
     return _currentBatchSize;
   }
   
+  /**
+   * Loads the oldest sealed RAM index into the disk index. The loader lock is only held to pick the index,
+   * so producers keep writing to the writable RAM index during the load.
+   */
   @Override
-  protected synchronized void processBatch()
+  protected void processBatch()
   {
-    RAMSearchIndex<R> readOnlyMemIndex = null;
-    long now = System.currentTimeMillis();
-    long duration = now - _lastFlushTime;
+    RAMSearchIndex<R> sealedMemIndex = null;
     int eventCount = 0;
-    while(_currentBatchSize < _batchSize && !_stop && !_flush && duration < _delay)
+    boolean drain;
+    synchronized(this)
     {
-      try
+      long now = System.currentTimeMillis();
+      long duration = now - _lastFlushTime;
+      while(_sealedEventCounts.isEmpty() && _currentBatchSize < _batchSize && !_stop && !_flush && duration < _delay && !isWritableRamFull())
       {
-        wait(_delay - duration);
+        try
+        {
+          wait(_delay - duration);
+        }
+        catch (InterruptedException e)
+        {
+          log.warn(e.getMessage());
+        }
+        now = System.currentTimeMillis();
+        duration = now - _lastFlushTime;
       }
-      catch (InterruptedException e)
+      drain = (_stop || _flush);
+      _flush = false;
+      _lastFlushTime = now;
+
+      if (_sealedEventCounts.isEmpty() && _currentBatchSize > 0)
       {
-        log.warn(e.getMessage());
+        sealWritable();
+      }
+      if (!_sealedEventCounts.isEmpty())
+      {
+        sealedMemIndex = _idxMgr.getCurrentReadOnlyMemoryIndex();
+        eventCount = _sealedEventCounts.getFirst();
       }
-      now = System.currentTimeMillis();
-      duration = now - _lastFlushTime;
-    }
-    _flush = false;
-    _lastFlushTime = now;
-
-    if (_currentBatchSize > 0)
-    {
-      // change the status and get the read only memory index
-      // this has to be done in the block synchronized on CopyingBatchIndexDataLoader
-      _idxMgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
-      readOnlyMemIndex = _idxMgr.getCurrentReadOnlyMemoryIndex();
-      eventCount = _currentBatchSize;
-      _currentBatchSize = 0;
     }
 
-    if (eventCount > 0)
+    while (sealedMemIndex != null)
     {
+      spillSealed(sealedMemIndex);
       long t1=System.currentTimeMillis();
+      boolean loaded = false;
       try
       {
-        if(readOnlyMemIndex != null)
-          _luceneDataLoader.loadFromIndex(readOnlyMemIndex);
+        _luceneDataLoader.loadFromIndex(sealedMemIndex);
+        loaded = true;
       }
       catch (ZoieException e)
       {
@@ -176,16 +381,45 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
       finally
       {
         long t2=System.currentTimeMillis();
-        _eventCount -= eventCount;
-        log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
-        IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
-        fireIndexingEvent(evt);
-        notifyAll();
+        synchronized(this)
+        {
+          if (loaded)
+          {
+            _sealedEventCounts.removeFirst();
+            _eventCount -= eventCount;
+            log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
+            IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
+            fireIndexingEvent(evt);
+          }
+          else if (!_stop)
+          {
+            try
+            {
+              this.wait(Math.max(_delay, 1000L)); // the index stays sealed, do not retry right away
+            }
+            catch (InterruptedException e)
+            {
+              log.warn(e.getMessage());
+            }
+          }
+          this.notifyAll();
+
+          sealedMemIndex = null;
+          // keep going while loads are backed up, or until everything is on disk on a flush or stop
+          if (loaded && (drain || _sealedEventCounts.size() >= _maxSealed))
+          {
+            if (drain && _sealedEventCounts.isEmpty() && _currentBatchSize > 0)
+            {
+              sealWritable();
+            }
+            if (!_sealedEventCounts.isEmpty())
+            {
+              sealedMemIndex = _idxMgr.getCurrentReadOnlyMemoryIndex();
+              eventCount = _sealedEventCounts.getFirst();
+            }
+          }
+        }
       }
     }
-    else
-    {
-      log.debug("batch size is 0");
-    }
   }
 }
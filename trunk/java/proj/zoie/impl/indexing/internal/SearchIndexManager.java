@@ -16,20 +16,32 @@ package proj.zoie.impl.indexing.internal;
  * limitations under the License.
  */
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 
 import proj.zoie.api.DirectoryManager;
 import proj.zoie.api.DocIDMapperFactory;
+import proj.zoie.api.MemoryDirectoryFactory;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.impl.DefaultDocIDMapperFactory;
+import proj.zoie.api.impl.DefaultMemoryDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
+/**
+ * Holds the disk index and the RAM tier in front of it. The RAM tier is one writable RAM index plus a queue of
+ * sealed, read-only RAM indexes waiting to be loaded into the disk index, oldest first.
+ */
 public class SearchIndexManager<R extends IndexReader>{
     private static final Logger log = Logger.getLogger(SearchIndexManager.class);
     
@@ -42,6 +54,7 @@ public class SearchIndexManager<R extends IndexReader>{
 	  private final	IndexReaderDecorator<R>	_indexReaderDecorator;
 
 	  DocIDMapperFactory _docIDMapperFactory;
+	  volatile MemoryDirectoryFactory _memDirFactory;
 	  private volatile DiskSearchIndex<R> _diskIndex;
 	  
 	  private volatile Status _diskIndexerStatus;
@@ -51,6 +64,15 @@ public class SearchIndexManager<R extends IndexReader>{
 	   * for disk IndexReader
 	   */
 	  private final Object _memLock = new Object();
+	  // uids deleted while a sealed RAM index is loaded into the disk index, guarded by _memLock
+	  private LongOpenHashSet _pendingDiskDeletes = null;
+	  private volatile File _spillDirectory = null;
+	  private volatile boolean _indexUIDTerm = true;
+	  private final AtomicInteger _spillCount = new AtomicInteger(0);
+	  // spill directories that could not be removed yet, see deleteSpillDir()
+	  private final ConcurrentLinkedQueue<File> _undeletedSpillDirs = new ConcurrentLinkedQueue<File>();
+	  // the readers handed to searches, null when it has to be rebuilt, see publishReaders()
+	  private volatile ReaderSnapshot<R> _readerSnapshot = null;
 
 	  
 	  /**
@@ -61,6 +83,7 @@ public class SearchIndexManager<R extends IndexReader>{
 	  {
 	    _dirMgr = dirMgr;
 	    _docIDMapperFactory = new DefaultDocIDMapperFactory();
+	    _memDirFactory = new DefaultMemoryDirectoryFactory();
 	    
 	    if (indexReaderDecorator!=null)
 	    {
@@ -83,6 +106,59 @@ public class SearchIndexManager<R extends IndexReader>{
 		  return _docIDMapperFactory;
 	  }
 	  
+	  /**
+	   * Sets where the RAM indexes keep their data. Only RAM indexes created after this call use the new factory,
+	   * the current RAM index is replaced when it is flushed to disk.
+	   */
+	  public void setMemoryDirectoryFactory(MemoryDirectoryFactory memDirFactory){
+		  if (memDirFactory != null){
+		    _memDirFactory = memDirFactory;
+		  }
+	  }
+	  
+	  public MemoryDirectoryFactory getMemoryDirectoryFactory(){
+		  return _memDirFactory;
+	  }
+	  
+	  /**
+	   * Sets a local scratch directory that sealed RAM indexes can be spilled to under memory pressure,
+	   * see {@link #spillMemoryIndex(RAMSearchIndex)}.
+	   * @param spillDirectory null to keep sealed RAM indexes in memory
+	   */
+	  public void setSpillDirectory(File spillDirectory){
+		  _spillDirectory = spillDirectory;
+	  }
+	  
+	  public File getSpillDirectory(){
+		  return _spillDirectory;
+	  }
+	  
+	  /**
+	   * If true, the uids of new disk segments are saved in sidecar column files when a reader first opens them,
+	   * so later opens read the column instead of walking the uid postings.
+	   * See {@link proj.zoie.api.impl.util.UIDColumnFile}.
+	   */
+	  public void setUseUIDColumn(boolean useUIDColumn){
+		  _diskIndex.setWriteUIDColumn(useUIDColumn);
+	  }
+	  
+	  public boolean isUseUIDColumn(){
+		  return _diskIndex.isWriteUIDColumn();
+	  }
+	  
+	  /**
+	   * If true, the default, RAM indexes created from now on index the uid of each document as a term of its own as well,
+	   * see {@link RAMSearchIndex#updateIndex}. They are loaded into the disk index as they are, so this adds a field
+	   * to the disk index format too.
+	   */
+	  public void setIndexUIDTerm(boolean indexUIDTerm){
+		  _indexUIDTerm = indexUIDTerm;
+	  }
+	  
+	  public boolean isIndexUIDTerm(){
+		  return _indexUIDTerm;
+	  }
+	  
 //	  public File getDiskIndexLocation()
 //	  {
 //	    return _dirMgr;
@@ -162,87 +238,136 @@ public class SearchIndexManager<R extends IndexReader>{
 	  }
 	  
 	  
+	  /**
+	   * Releases the references taken on the readers by {@link #getIndexReaders()}.
+	   */
 	  public void returnReaders(List<ZoieIndexReader<R>> readers) throws IOException{
-		  _diskIndex.returnReaders(readers);
+	    IOException error = null;
+	    for (ZoieIndexReader<R> r : readers){
+	      try {
+	        r.decRef();
+	      } catch (IOException e) {
+	        log.error(r + " " + e);
+	        error = e;
+	      }
+	    }
+	    if (error != null) throw error;
 	  }
 	  
+	  /**
+	   * Gets the readers of the published reader set without taking any lock of the manager. Only if no set is
+	   * published, or one of its readers was released meanwhile, a new set is built under the lock.
+	   * A reference is taken on every reader, so they must be given back by {@link #returnReaders(List)}.
+	   */
 	  public List<ZoieIndexReader<R>> getIndexReaders()
 	  throws IOException
 	  {
-	    ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>();
-	    ZoieIndexReader<R> reader = null;
-
+	    while(true)
+	    {
+	      ReaderSnapshot<R> snapshot = _readerSnapshot;
+	      if (snapshot == null)
+	      {
+	        snapshot = publishReaders();
+	      }
+	      if (snapshot.acquire())
+	      {
+	        return new ArrayList<ZoieIndexReader<R>>(snapshot._readers);
+	      }
+	      // the set was dropped and one of its readers released since it was published
+	      synchronized(_memLock)
+	      {
+	        if (_readerSnapshot == snapshot) invalidateReaders();
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * Builds the reader set for searches from the current readers and their committed deletes, and publishes it.
+	   * Called by the indexing thread once a batch is visible, so searches do not have to build the set themselves.
+	   * The caller must not hold the lock of any index.
+	   * @return the published set
+	   * @throws IOException
+	   */
+	  public ReaderSnapshot<R> publishReaders() throws IOException
+	  {
 	    synchronized(this)
-      {
+	    {
 	      synchronized(_memLock)
 	      {
-	        Mem<R> mem = _mem;
-	        RAMSearchIndex<R> memIndexB = mem.get_memIndexB();
-	        RAMSearchIndex<R> memIndexA = mem.get_memIndexA();
+	        while(true)
+	        {
+	          Mem<R> mem = _mem;
+	          ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>();
 
-	        // the following order, e.g. B,A,Disk matters, see ZoieIndexReader.getSubZoieReaderAccessor:
-	        // when doing UID->docid mapping, the freshest index needs to be first
+	          // the following order, e.g. writable, sealed from newest to oldest, disk matters,
+	          // see ZoieIndexReader.getSubZoieReaderAccessor:
+	          // when doing UID->docid mapping, the freshest index needs to be first
 
-	        if (memIndexB != null)                           // load memory index B
-	        {
-	          reader = memIndexB.openIndexReader();            
-	          if (reader != null)
+	          RAMSearchIndex<R> writable = mem.get_currentWritable();
+	          if (writable != null)
 	          {
-	            reader.setDelDocIds();
-	            readers.add(reader);
+	            addReader(readers, writable.openIndexReader());
 	          }
-	        }
 
-	        if (memIndexA != null)                           // load memory index A
-	        {
-	          reader = memIndexA.openIndexReader();
-	          if (reader != null)
+	          List<RAMSearchIndex<R>> sealed = mem.get_sealed();
+	          for (int i = sealed.size() - 1; i >= 0; --i)
 	          {
-	            reader.setDelDocIds();
-	            readers.add(reader);
+	            addReader(readers, sealed.get(i).openIndexReader());
 	          }
-	        }
 
-	        if (_diskIndex != null)                           // load disk index
-	        {
-	          reader = mem.get_diskIndexReader();
-	          if (reader != null)
+	          if (_diskIndex != null)                           // load disk index
 	          {
-	            reader.incRef();
-	            reader.setDelDocIds();
-	            readers.add(reader);
+	            addReader(readers, mem.get_diskIndexReader());
+	          }
+
+	          ReaderSnapshot<R> snapshot = new ReaderSnapshot<R>(readers);
+	          // the set holds a reference on each reader, a reader already released by its index is replaced meanwhile
+	          if (snapshot.acquire())
+	          {
+	            invalidateReaders();
+	            _readerSnapshot = snapshot;
+	            return snapshot;
 	          }
 	        }
 	      }
 	    }
-	    return readers;
 	  }
 	  
+	  private static <R extends IndexReader> void addReader(List<ZoieIndexReader<R>> readers, ZoieIndexReader<R> reader) throws IOException
+	  {
+	    if (reader != null)
+	    {
+	      readers.add(reader.getDeletesSnapshot());
+	    }
+	  }
+	  
+	  /**
+	   * Drops the published reader set and its references, the next search builds a new one. Must be called, under
+	   * the mem lock, before a reader of the set is released by its index.
+	   */
+	  private void invalidateReaders()
+	  {
+	    ReaderSnapshot<R> snapshot = _readerSnapshot;
+	    _readerSnapshot = null;
+	    if (snapshot != null)
+	    {
+	      snapshot.release();
+	    }
+	  }
+	  
+	  /**
+	   * Working marks the start of a load into the disk index, Sleep its end, when the new disk reader is swapped in.
+	   * The RAM tier is changed separately, by {@link #sealWritableMemoryIndex()} and {@link #retireMemoryIndex(RAMSearchIndex)}.
+	   */
 	  public void setDiskIndexerStatus(Status status)
 	  {
-	    
-	    // going from sleep to wake, disk index starts to index
-	    // which according to the spec, index B is created and it starts to collect data
 	    // IMPORTANT: do nothing if the status is not being changed.
 	    if (_diskIndexerStatus != status)
 	    {
 
 	      log.info("updating batch indexer status from "+_diskIndexerStatus+" to "+status);
 	      
-	      if (status == Status.Working)
-	      { // sleeping to working
-	        long version = _diskIndex.getVersion();
-	        Mem<R> oldMem = _mem;
-
-	        RAMSearchIndex<R> memIndexA = oldMem.get_memIndexA();
-	        if(memIndexA != null) memIndexA.closeIndexWriter();
-
-	        RAMSearchIndex<R> memIndexB = new RAMSearchIndex<R>(version, _indexReaderDecorator,this);
-	        Mem<R> mem = new Mem<R>(memIndexA, memIndexB, memIndexB, memIndexA, oldMem.get_diskIndexReader());
-	        _mem = mem;
-	        log.info("Current writable index is B, new B created");
-	      }
-	      else
+	      if (status == Status.Sleep)
 	      {
 	        // from working to sleep
 	        ZoieIndexReader<R> diskIndexReader = null;
@@ -256,14 +381,203 @@ public class SearchIndexManager<R extends IndexReader>{
 	          log.error(e.getMessage(),e);
 	          return;
 	        }
-	        Mem<R> oldMem = _mem;
-	        Mem<R> mem = new Mem<R>(oldMem.get_memIndexB(), null, oldMem.get_memIndexB(), null, diskIndexReader);
-	        lockAndSwapMem(diskIndexReader, oldMem.get_diskIndexReader(), mem);
-	        log.info("Current writable index is A, B is flushed");
+	        lockAndSwapMem(diskIndexReader, null);
 	      }
 	      _diskIndexerStatus = status;
 	    }
 	  }
+	  
+	  /**
+	   * Seals the writable RAM index. It becomes read-only and goes to the end of the queue of indexes waiting to be
+	   * loaded into the disk index, and an empty writable index takes its place.
+	   * The caller must make sure nothing is being written to the writable index meanwhile.
+	   * @return the sealed index
+	   */
+	  public RAMSearchIndex<R> sealWritableMemoryIndex()
+	  {
+	    synchronized(_memLock)
+	    {
+	      Mem<R> oldMem = _mem;
+	      RAMSearchIndex<R> writable = oldMem.get_currentWritable();
+	      writable.closeIndexWriter(); // commits, loadFromIndex copies the committed segments
+	      RAMSearchIndex<R> newWritable = new RAMSearchIndex<R>(writable.getVersion(), _indexReaderDecorator,this);
+	      ArrayList<RAMSearchIndex<R>> sealed = new ArrayList<RAMSearchIndex<R>>(oldMem.get_sealed());
+	      sealed.add(writable);
+	      _mem = new Mem<R>(newWritable, sealed, oldMem.get_diskIndexReader());
+	      invalidateReaders();
+	      log.info("writable memory index sealed, "+sealed.size()+" sealed memory indexes");
+	      return writable;
+	    }
+	  }
+	  
+	  /**
+	   * Takes a sealed RAM index out of the reader set once it is in the disk index, and swaps in the disk reader
+	   * that contains it, in one step so searchers never see its documents twice or not at all.
+	   * @param memIndex
+	   * @throws IOException
+	   */
+	  public void retireMemoryIndex(RAMSearchIndex<R> memIndex) throws IOException
+	  {
+	    // a new reader is already loaded in loadFromIndex
+	    ZoieIndexReader<R> diskIndexReader = _diskIndex.openIndexReader();
+	    lockAndSwapMem(diskIndexReader, memIndex);
+	    // searches still holding readers of the retired index keep its directory open until they return them
+	    memIndex.close();
+	    purgeSpillDirs();
+	  }
+	  
+	  /**
+	   * Moves a sealed RAM index to a new directory under the spill directory, where it stays searchable until it is
+	   * retired. Nothing is done if there is no spill directory.
+	   * @param memIndex a sealed RAM index that is not being loaded into the disk index
+	   * @return true if the index was spilled
+	   * @throws IOException
+	   */
+	  public boolean spillMemoryIndex(RAMSearchIndex<R> memIndex) throws IOException
+	  {
+	    File spillRoot = _spillDirectory;
+	    if (spillRoot == null || memIndex.isSpilled()) return false;
+	    purgeSpillDirs();
+	    
+	    File dir = new File(spillRoot, "spill-"+System.currentTimeMillis()+"-"+_spillCount.incrementAndGet());
+	    if (!dir.mkdirs())
+	    {
+	      throw new IOException("cannot create directory: "+dir.getAbsolutePath());
+	    }
+	    memIndex.spill(dir);
+	    synchronized(_memLock)
+	    {
+	      invalidateReaders();
+	    }
+	    if (!memIndex.isSpilled()) // empty index
+	    {
+	      dir.delete();
+	      return false;
+	    }
+	    log.info("memory index spilled to "+dir.getAbsolutePath());
+	    return true;
+	  }
+	  
+	  /**
+	   * Removes the directory of a spilled RAM index once it is closed. If that fails, e.g. because the files are
+	   * still mapped on some platforms, it is tried again on the next spill or retire, and on close.
+	   */
+	  void deleteSpillDir(File dir)
+	  {
+	    try
+	    {
+	      deleteDir(dir);
+	    }
+	    catch (IOException e)
+	    {
+	      log.warn(e.getMessage()+", trying again later");
+	      _undeletedSpillDirs.add(dir);
+	    }
+	  }
+	  
+	  private void purgeSpillDirs()
+	  {
+	    for (int i = _undeletedSpillDirs.size(); i > 0; --i)
+	    {
+	      File dir = _undeletedSpillDirs.poll();
+	      if (dir == null) return;
+	      try
+	      {
+	        deleteDir(dir);
+	      }
+	      catch (IOException e)
+	      {
+	        _undeletedSpillDirs.add(dir);
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * @return number of spill directories of closed RAM indexes that could not be removed yet
+	   */
+	  public int getUndeletedSpillDirCount()
+	  {
+	    return _undeletedSpillDirs.size();
+	  }
+	  
+	  /**
+	   * @return number of sealed RAM indexes that are spilled to the spill directory
+	   */
+	  public int getSpilledMemoryIndexCount()
+	  {
+	    int count = 0;
+	    for (RAMSearchIndex<R> memIndex : _mem.get_sealed())
+	    {
+	      if (memIndex.isSpilled()) count++;
+	    }
+	    return count;
+	  }
+	  
+	  /**
+	   * Starts recording deletes propagated to the disk index, see {@link #endDiskLoad()}.
+	   */
+	  void beginDiskLoad()
+	  {
+	    synchronized(_memLock)
+	    {
+	      _pendingDiskDeletes = new LongOpenHashSet();
+	    }
+	  }
+	  
+	  /**
+	   * Marks deletes propagated from the RAM tier on the disk index. A load or a refresh opens the new disk reader
+	   * some time before it is swapped in, and searches use the published one until then, so the deletes are marked
+	   * on both. Deletes that come in during a load are recorded as well, see {@link #endDiskLoad()}.
+	   */
+	  void markDiskDeletes(LongSet delDocs) throws IOException
+	  {
+	    if (_diskIndex == null) return;
+	    synchronized(_memLock)
+	    {
+	      if (_pendingDiskDeletes != null)
+	      {
+	        _pendingDiskDeletes.addAll(delDocs);
+	      }
+	      _diskIndex.markDeletes(delDocs);
+	      ZoieIndexReader<R> published = _mem.get_diskIndexReader();
+	      if (published != null && published != _diskIndex.openIndexReader())
+	      {
+	        published.markDeletes(delDocs, new LongOpenHashSet());
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * Commits the deletes marked by {@link #markDiskDeletes(LongSet)}, on the published disk reader too.
+	   */
+	  void commitDiskDeletes() throws IOException
+	  {
+	    if (_diskIndex == null) return;
+	    synchronized(_memLock)
+	    {
+	      _diskIndex.commitDeletes();
+	      ZoieIndexReader<R> published = _mem.get_diskIndexReader();
+	      if (published != null && published != _diskIndex.openIndexReader())
+	      {
+	        published.commitDeletes();
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * A load into the disk index replaces the disk reader and its marked deletes while producers keep propagating
+	   * deletes to it. The deletes recorded since {@link #beginDiskLoad()} have to be marked again on the new reader.
+	   * @return deletes recorded since {@link #beginDiskLoad()}
+	   */
+	  LongSet endDiskLoad()
+	  {
+	    synchronized(_memLock)
+	    {
+	      LongSet delDocs = _pendingDiskDeletes;
+	      _pendingDiskDeletes = null;
+	      return delDocs;
+	    }
+	  }
 
 	  /**
 	   * Initialization
@@ -287,7 +601,7 @@ public class SearchIndexManager<R extends IndexReader>{
 	    }
 	    long version = _diskIndex.getVersion();
         RAMSearchIndex<R> memIndexA = new RAMSearchIndex<R>(version, _indexReaderDecorator,this);
-	    Mem<R> mem = new Mem<R>(memIndexA, null, memIndexA, null, diskIndexReader);
+	    Mem<R> mem = new Mem<R>(memIndexA, Collections.<RAMSearchIndex<R>>emptyList(), diskIndexReader);
 	    if (diskIndexReader != null)
 	    {
 	      diskIndexReader.incRef();
@@ -305,23 +619,44 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return _mem.get_currentWritable();
 	  }
 	  
+	  /**
+	   * @return the oldest sealed RAM index, which is the next one to load into the disk index, or null
+	   */
 	  public RAMSearchIndex<R> getCurrentReadOnlyMemoryIndex()
 	  {
 	    return _mem.get_currentReadOnly();
 	  }
 	  
+	  /**
+	   * @return the sealed RAM indexes, oldest first
+	   */
+	  public List<RAMSearchIndex<R>> getSealedMemoryIndexes()
+	  {
+	    return _mem.get_sealed();
+	  }
+	  
+	  public int getSealedMemoryIndexCount()
+	  {
+	    return _mem.get_sealed().size();
+	  }
+	  
 	  /**
 	   * Clean up
 	   */
 	  public void close(){
-	    Mem<R> mem = _mem;
-	    if (mem.get_memIndexA()!=null)
+	    Mem<R> mem;
+	    synchronized(_memLock)
 	    {
-	      mem.get_memIndexA().close();
+	      invalidateReaders();
+	      mem = _mem;
 	    }
-	    if (mem.get_memIndexB()!=null)
+	    if (mem.get_currentWritable()!=null)
 	    {
-	      mem.get_memIndexB().close();
+	      mem.get_currentWritable().close();
+	    }
+	    for (RAMSearchIndex<R> memIndex : mem.get_sealed())
+	    {
+	      memIndex.close();
 	    }
 	    if (mem.get_diskIndexReader()!=null)
 	    {
@@ -337,6 +672,11 @@ public class SearchIndexManager<R extends IndexReader>{
           log.error("error closing remaining diskReader pooled in mem: " + e);
         }
 	    }
+	    purgeSpillDirs();
+	    if (!_undeletedSpillDirs.isEmpty())
+	    {
+	      log.warn(_undeletedSpillDirs.size()+" spill directories could not be removed: "+_undeletedSpillDirs);
+	    }
 	  }
 
 	  
@@ -350,28 +690,63 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return (_diskIndex==null) ? 0 : _diskIndex.getNumdocs();
 	  }
 	  
+	  /**
+	   * @return memory held by the writable RAM index, see {@link RAMSearchIndex#getSizeInBytes()}
+	   */
+	  public long getRamASizeInBytes()
+	  {
+        RAMSearchIndex<R> memIndexA = _mem.get_currentWritable();
+	    return (memIndexA==null) ? 0L : memIndexA.getSizeInBytes();
+	  }
+	  
+	  /**
+	   * @return memory held by all sealed RAM indexes, see {@link RAMSearchIndex#getSizeInBytes()}
+	   */
+	  public long getRamBSizeInBytes()
+	  {
+	    long size = 0L;
+	    for (RAMSearchIndex<R> memIndex : _mem.get_sealed())
+	    {
+	      size += memIndex.getSizeInBytes();
+	    }
+	    return size;
+	  }
+	  
+	  /**
+	   * @return number of documents in the writable RAM index
+	   */
 	  public int getRamAIndexSize()
 	  {
-        RAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
+        RAMSearchIndex<R> memIndexA = _mem.get_currentWritable();
 	    return (memIndexA==null) ? 0 : memIndexA.getNumdocs();
 	  }
 	  
 	  public long getRamAVersion()
 	  {
-        RAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
+        RAMSearchIndex<R> memIndexA = _mem.get_currentWritable();
 	    return (memIndexA==null) ? 0L : memIndexA.getVersion();
 	  }
 	  
+	  /**
+	   * @return number of documents in all sealed RAM indexes
+	   */
 	  public int getRamBIndexSize()
 	  {
-        RAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
-	    return (memIndexB==null) ? 0 : memIndexB.getNumdocs();
+	    int size = 0;
+	    for (RAMSearchIndex<R> memIndex : _mem.get_sealed())
+	    {
+	      size += memIndex.getNumdocs();
+	    }
+	    return size;
 	  }
 	  
+	  /**
+	   * @return version of the newest sealed RAM index
+	   */
 	  public long getRamBVersion()
 	  {
-	    RAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
-	    return (memIndexB==null) ? 0L : memIndexB.getVersion();
+	    List<RAMSearchIndex<R>> sealed = _mem.get_sealed();
+	    return sealed.isEmpty() ? 0L : sealed.get(sealed.size() - 1).getVersion();
 	  }
 	  
 	  /**
@@ -379,7 +754,7 @@ public class SearchIndexManager<R extends IndexReader>{
 	   * @param dir
 	   * @throws IOException
 	   */
-	  private static void deleteDir(File dir) throws IOException
+	  static void deleteDir(File dir) throws IOException
 	  {
 	    if (dir == null) return;
 	    
@@ -418,8 +793,18 @@ public class SearchIndexManager<R extends IndexReader>{
           _diskIndex.clearDeletes();
           _diskIndex.refresh();
           RAMSearchIndex<R> memIndexA = new RAMSearchIndex<R>(_diskIndex.getVersion(), _indexReaderDecorator,this);
-          Mem<R> mem = new Mem<R>(memIndexA, null, memIndexA, null, null);
-          _mem = mem;
+          Mem<R> oldMem;
+          synchronized(_memLock)
+          {
+            oldMem = _mem;
+            _mem = new Mem<R>(memIndexA, Collections.<RAMSearchIndex<R>>emptyList(), null);
+            invalidateReaders();
+          }
+          oldMem.get_currentWritable().close();
+          for (RAMSearchIndex<R> memIndex : oldMem.get_sealed())
+          {
+            memIndex.close();
+          }
 		}
 		
 		log.info("index purged");
@@ -441,13 +826,7 @@ public class SearchIndexManager<R extends IndexReader>{
 		    if(diskIndexReader != null) diskIndexReader.close();
 		    throw e;
 		  }
-		  Mem<R> oldMem = _mem;
-		  Mem<R> mem = new Mem<R>(oldMem.get_memIndexA(),
-		      oldMem.get_memIndexB(),
-		      oldMem.get_currentWritable(),
-		      oldMem.get_currentReadOnly(),
-		      diskIndexReader);
-		  lockAndSwapMem(diskIndexReader, oldMem.get_diskIndexReader(), mem);
+		  lockAndSwapMem(diskIndexReader, null);
 		  log.info("disk reader refreshed");
 	  }
 
@@ -455,15 +834,24 @@ public class SearchIndexManager<R extends IndexReader>{
    * swap the disk IndexReader cached in mem. In order to count the reference properly,
    * we need to lock the access to _mem so that it is safe to compare whether the old
    * and new disk IndexReader are different. decRef the old IndexReader only when they
-   * differ.
+   * differ. The new mem is built under the same lock, so a concurrent seal is not lost.
    * @param diskIndexReader the new disk IndexReader
-   * @param oldDiskReader the old disk IndexReader from old mem
-   * @param mem the new mem
+   * @param retired a sealed memory index to drop in the same step, or null
    */
-  private void lockAndSwapMem(ZoieIndexReader<R> diskIndexReader, ZoieIndexReader<R>  oldDiskReader, Mem<R> mem)
+  private void lockAndSwapMem(ZoieIndexReader<R> diskIndexReader, RAMSearchIndex<R> retired)
   {
     synchronized(_memLock)
     {
+      invalidateReaders(); // before the old disk reader is released
+      Mem<R> oldMem = _mem;
+      ZoieIndexReader<R> oldDiskReader = oldMem.get_diskIndexReader();
+      List<RAMSearchIndex<R>> sealed = oldMem.get_sealed();
+      if (retired != null)
+      {
+        ArrayList<RAMSearchIndex<R>> newSealed = new ArrayList<RAMSearchIndex<R>>(sealed);
+        newSealed.remove(retired);
+        sealed = newSealed;
+      }
       if (oldDiskReader!=diskIndexReader)
       {
         if (oldDiskReader != null)
@@ -477,37 +865,83 @@ public class SearchIndexManager<R extends IndexReader>{
             e.printStackTrace();
           }
         }
-        diskIndexReader.incRef();
-        _mem = mem;
+        if (diskIndexReader != null)
+        {
+          diskIndexReader.incRef();
+        }
       }
+      _mem = new Mem<R>(oldMem.get_currentWritable(), sealed, diskIndexReader);
     }
   }
 
-  private final static class Mem<R extends IndexReader>
+  /**
+   * An immutable reader set for searches. The set holds a reference on each of its readers while it is published,
+   * and every search takes one more, so a reader is closed only after the set is dropped and the searches are done.
+   */
+  public final static class ReaderSnapshot<R extends IndexReader>
   {
-    private final RAMSearchIndex<R> _memIndexA;
-    private final RAMSearchIndex<R> _memIndexB;
-    private final RAMSearchIndex<R> _currentWritable;
-    private final RAMSearchIndex<R> _currentReadOnly;
-    private final ZoieIndexReader<R> _diskIndexReader;
-    Mem(RAMSearchIndex<R> a, RAMSearchIndex<R> b, RAMSearchIndex<R> w, 
-    	RAMSearchIndex<R> r, ZoieIndexReader<R> d)
+    // writable, sealed from newest to oldest, disk
+    private final List<ZoieIndexReader<R>> _readers;
+    
+    ReaderSnapshot(List<ZoieIndexReader<R>> readers)
     {
-      _memIndexA = a;
-      _memIndexB = b;
-      _currentWritable = w;
-      _currentReadOnly = r;
-      _diskIndexReader = d;
+      _readers = Collections.unmodifiableList(readers);
+    }
+    
+    /**
+     * Takes a reference on every reader of the set.
+     * @return false if one of the readers is already closed, no reference is kept then
+     */
+    boolean acquire()
+    {
+      for (int i = 0; i < _readers.size(); ++i)
+      {
+        if (!_readers.get(i).tryIncRef())
+        {
+          release(i);
+          return false;
+        }
+      }
+      return true;
     }
     
-    protected RAMSearchIndex<R> get_memIndexA()
+    void release()
     {
-      return _memIndexA;
+      release(_readers.size());
     }
+    
+    private void release(int count)
+    {
+      for (int i = 0; i < count; ++i)
+      {
+        try
+        {
+          _readers.get(i).decRef();
+        }
+        catch (IOException e)
+        {
+          log.error(e.getMessage(), e);
+        }
+      }
+    }
+    
+    public List<ZoieIndexReader<R>> getReaders()
+    {
+      return _readers;
+    }
+  }
 
-    protected RAMSearchIndex<R> get_memIndexB()
+  private final static class Mem<R extends IndexReader>
+  {
+    private final RAMSearchIndex<R> _currentWritable;
+    // oldest first, never modified
+    private final List<RAMSearchIndex<R>> _sealed;
+    private final ZoieIndexReader<R> _diskIndexReader;
+    Mem(RAMSearchIndex<R> w, List<RAMSearchIndex<R>> sealed, ZoieIndexReader<R> d)
     {
-      return _memIndexB;
+      _currentWritable = w;
+      _sealed = Collections.unmodifiableList(sealed);
+      _diskIndexReader = d;
     }
 
     protected RAMSearchIndex<R> get_currentWritable()
@@ -515,9 +949,14 @@ public class SearchIndexManager<R extends IndexReader>{
       return _currentWritable;
     }
 
+    protected List<RAMSearchIndex<R>> get_sealed()
+    {
+      return _sealed;
+    }
+
     protected RAMSearchIndex<R> get_currentReadOnly()
     {
-      return _currentReadOnly;
+      return _sealed.isEmpty() ? null : _sealed.get(0);
     }
 
     protected ZoieIndexReader<R> get_diskIndexReader()
@@ -0,0 +1,739 @@
+package proj.zoie.impl.indexing.journal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.impl.indexing.IndexingThread;
+
+/**
+ * Append-only write-ahead journal of data events that are accepted but not yet in the disk index.
+ * <br><br>
+ * Events are serialized with an {@link EventCodec} into memory-mapped segment files. Once written into the
+ * mapping, a record survives a crash of the JVM. To survive a crash of the machine the segments are forced
+ * to disk by a background thread, which groups all appends since the last force into one fsync. If
+ * {@link #setWaitForSync(boolean)} is on, {@link #append(Collection)} does not return until its events are forced.
+ * <br><br>
+ * A full segment is deleted by {@link #truncate(long)} once the disk index version has passed the highest version
+ * in it, and {@link #replay(long, DataConsumer, int)} sends the events newer than a given version back to a consumer
+ * on restart. Segments are unmapped when they are closed or deleted, not left to the garbage collector.
+ * <br><br>
+ * Record layout: marker (int), payload length (int), version (long), crc32 of version and payload (long), payload.
+ *
+ * @param <V>
+ */
+public class EventJournal<V>
+{
+  private static final Logger log = Logger.getLogger(EventJournal.class);
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final long DEFAULT_SYNC_INTERVAL = 100L;
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final int RECORD_MARKER = 0x5A4F4945;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+  private final File _dir;
+  private final EventCodec<V> _codec;
+  private final int _segmentSize;
+  private final LinkedList<Segment> _segments;
+  private Segment _active;
+  private long _nextSegmentId;
+  private long _truncatedVersion;
+  private int _replays;
+
+  private volatile long _syncInterval;
+  private volatile boolean _waitForSync;
+  private final Object _syncLock = new Object();
+  private long _writeSeq;
+  private long _syncedSeq;
+  private SyncThread _syncThread;
+
+  private static final class Segment
+  {
+    final long id;
+    final File file;
+    RandomAccessFile raf;
+    MappedByteBuffer buffer;
+    long maxVersion = -1L;
+    int count = 0;
+    // scans and syncs using the mapping outside of the journal lock, it is unmapped after the last one
+    int users = 0;
+    boolean closed = false;
+
+    Segment(long id, File file)
+    {
+      this.id = id;
+      this.file = file;
+    }
+
+    // called with the journal lock held, like every access to the fields above
+    void close()
+    {
+      closed = true;
+      if (users == 0) release();
+    }
+
+    void use()
+    {
+      users++;
+    }
+
+    void unuse()
+    {
+      if (--users == 0 && closed) release();
+    }
+
+    void release()
+    {
+      if (buffer != null)
+      {
+        unmap(buffer);
+        buffer = null;
+      }
+      if (raf != null)
+      {
+        try
+        {
+          raf.close();
+        }
+        catch (IOException e)
+        {
+          log.error(e.getMessage(), e);
+        }
+        raf = null;
+      }
+    }
+  }
+
+  public EventJournal(File dir, EventCodec<V> codec) throws IOException
+  {
+    this(dir, codec, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens the journal in the given directory. Existing segments are kept for replay; new events go to a new segment.
+   * @param dir journal directory, created if missing
+   * @param codec event codec
+   * @param segmentSize size of each memory-mapped segment file in bytes
+   * @throws IOException
+   */
+  public EventJournal(File dir, EventCodec<V> codec, int segmentSize) throws IOException
+  {
+    if (dir == null) throw new IllegalArgumentException("null journal directory.");
+    if (codec == null) throw new IllegalArgumentException("null event codec.");
+    if (!dir.exists() && !dir.mkdirs()) throw new IOException("cannot create journal directory: " + dir.getAbsolutePath());
+
+    _dir = dir;
+    _codec = codec;
+    _segmentSize = Math.max(segmentSize, HEADER_SIZE + 4);
+    _segments = new LinkedList<Segment>();
+    _syncInterval = DEFAULT_SYNC_INTERVAL;
+    _waitForSync = false;
+    _writeSeq = 0L;
+    _syncedSeq = 0L;
+    _nextSegmentId = 0L;
+    _truncatedVersion = Long.MIN_VALUE;
+    _replays = 0;
+
+    loadSegments();
+  }
+
+  private void loadSegments() throws IOException
+  {
+    File[] files = _dir.listFiles(new FilenameFilter()
+    {
+      public boolean accept(File dir, String name)
+      {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null) return;
+
+    ArrayList<Segment> segments = new ArrayList<Segment>(files.length);
+    for (File file : files)
+    {
+      String name = file.getName();
+      try
+      {
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        segments.add(new Segment(id, file));
+      }
+      catch (NumberFormatException e)
+      {
+        log.warn("ignoring unknown journal file: " + file.getAbsolutePath());
+      }
+    }
+    Segment[] sorted = segments.toArray(new Segment[segments.size()]);
+    Arrays.sort(sorted, new Comparator<Segment>()
+    {
+      public int compare(Segment s1, Segment s2)
+      {
+        return (s1.id < s2.id ? -1 : (s1.id > s2.id ? 1 : 0));
+      }
+    });
+
+    for (Segment segment : sorted)
+    {
+      final Segment seg = segment;
+      scan(seg, new RecordHandler()
+      {
+        public void handle(long version, byte[] payload)
+        {
+          seg.maxVersion = Math.max(seg.maxVersion, version);
+          seg.count++;
+        }
+      });
+      _segments.add(seg);
+      _nextSegmentId = Math.max(_nextSegmentId, seg.id + 1);
+    }
+    if (sorted.length > 0)
+    {
+      log.info("found " + sorted.length + " journal segments in " + _dir.getAbsolutePath());
+    }
+  }
+
+  public File getDirectory()
+  {
+    return _dir;
+  }
+
+  /**
+   * Sets the interval in milliseconds between two forces of the journal to disk.
+   */
+  public void setSyncInterval(long syncInterval)
+  {
+    _syncInterval = Math.max(1L, syncInterval);
+  }
+
+  public long getSyncInterval()
+  {
+    return _syncInterval;
+  }
+
+  /**
+   * If true, {@link #append(Collection)} waits until the appended events are forced to disk.
+   * Concurrent appenders share the same fsync.
+   */
+  public void setWaitForSync(boolean waitForSync)
+  {
+    _waitForSync = waitForSync;
+  }
+
+  public boolean isWaitForSync()
+  {
+    return _waitForSync;
+  }
+
+  /**
+   * Starts the background sync thread.
+   */
+  public void start()
+  {
+    synchronized(_syncLock)
+    {
+      if (_syncThread == null)
+      {
+        _syncThread = new SyncThread();
+        _syncThread.setDaemon(true);
+        _syncThread.start();
+      }
+    }
+  }
+
+  /**
+   * Forces everything to disk, stops the sync thread and releases the segments. The segment files are kept.
+   */
+  public void close()
+  {
+    SyncThread syncThread;
+    synchronized(_syncLock)
+    {
+      syncThread = _syncThread;
+      _syncThread = null;
+      if (syncThread != null)
+      {
+        syncThread._stop = true;
+        _syncLock.notifyAll();
+      }
+    }
+    if (syncThread != null)
+    {
+      try
+      {
+        syncThread.join();
+      }
+      catch (InterruptedException e)
+      {
+        log.warn(e.getMessage());
+      }
+    }
+    sync();
+    synchronized(this)
+    {
+      for (Segment segment : _segments)
+      {
+        segment.close();
+      }
+      _active = null;
+    }
+  }
+
+  /**
+   * Appends the events to the journal.
+   * @param events
+   * @throws IOException
+   */
+  public void append(Collection<DataEvent<V>> events) throws IOException
+  {
+    if (events == null || events.size() == 0) return;
+
+    // encode outside of the lock
+    ArrayList<byte[]> payloads = new ArrayList<byte[]>(events.size());
+    for (DataEvent<V> event : events)
+    {
+      payloads.add(_codec.encode(event.getData()));
+    }
+
+    long seq;
+    synchronized(this)
+    {
+      int i = 0;
+      CRC32 crc = new CRC32();
+      for (DataEvent<V> event : events)
+      {
+        byte[] payload = payloads.get(i++);
+        long version = event.getVersion();
+        int recordSize = HEADER_SIZE + payload.length;
+        Segment active = _active;
+        if (active == null || active.buffer.remaining() < recordSize + 4)
+        {
+          active = roll(recordSize + 4);
+        }
+        crc.reset();
+        updateCrc(crc, version);
+        crc.update(payload, 0, payload.length);
+
+        MappedByteBuffer buffer = active.buffer;
+        buffer.putInt(RECORD_MARKER);
+        buffer.putInt(payload.length);
+        buffer.putLong(version);
+        buffer.putLong(crc.getValue());
+        buffer.put(payload);
+        active.maxVersion = Math.max(active.maxVersion, version);
+        active.count++;
+      }
+      seq = ++_writeSeq;
+    }
+
+    if (_waitForSync)
+    {
+      awaitSync(seq);
+    }
+  }
+
+  private void awaitSync(long seq) throws IOException
+  {
+    synchronized(_syncLock)
+    {
+      if (_syncThread == null)
+      {
+        // no background thread, sync ourselves
+        sync();
+        return;
+      }
+      _syncLock.notifyAll();
+      while(_syncedSeq < seq)
+      {
+        if (_syncThread == null) throw new IOException("journal closed");
+        try
+        {
+          _syncLock.wait(_syncInterval);
+        }
+        catch (InterruptedException e)
+        {
+          throw new IOException("interrupted while waiting for journal sync");
+        }
+      }
+    }
+  }
+
+  /**
+   * Forces all appended events to disk.
+   */
+  public void sync()
+  {
+    long seq;
+    Segment active;
+    synchronized(this)
+    {
+      seq = _writeSeq;
+      active = _active;
+      if (active != null) active.use();
+    }
+    if (active != null)
+    {
+      try
+      {
+        active.buffer.force();
+      }
+      finally
+      {
+        synchronized(this)
+        {
+          active.unuse();
+        }
+      }
+    }
+    synchronized(_syncLock)
+    {
+      if (seq > _syncedSeq)
+      {
+        _syncedSeq = seq;
+      }
+      _syncLock.notifyAll();
+    }
+  }
+
+  private Segment roll(int minSize) throws IOException
+  {
+    Segment old = _active;
+    if (old != null)
+    {
+      old.buffer.force(); // sealed segments are always on disk
+      old.close(); // scans map it again
+      if (old.count == 0)
+      {
+        _segments.remove(old);
+        if (!old.file.delete())
+        {
+          log.warn("cannot delete empty journal segment: " + old.file.getAbsolutePath());
+        }
+      }
+    }
+
+    long id = _nextSegmentId++;
+    File file = new File(_dir, String.format("%020d", id) + SEGMENT_SUFFIX);
+    Segment segment = new Segment(id, file);
+    int size = Math.max(_segmentSize, minSize);
+    segment.raf = new RandomAccessFile(file, "rw");
+    segment.raf.setLength(size);
+    segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    _segments.add(segment);
+    _active = segment;
+    return segment;
+  }
+
+  /**
+   * Deletes the full segments whose events are all at or below the given version, i.e. already in the disk index.
+   * The active segment is kept until it is full, replay skips its events that are already in the index.
+   * Returns right away if the version has not moved since the last call, or while a replay is running.
+   * @param version the current disk index version
+   */
+  public void truncate(long version)
+  {
+    synchronized(this)
+    {
+      if (version <= _truncatedVersion || _replays > 0) return;
+      _truncatedVersion = version;
+
+      while(_segments.size() > 0)
+      {
+        Segment segment = _segments.getFirst();
+        if (segment == _active || segment.maxVersion > version) break;
+
+        _segments.removeFirst();
+        segment.close();
+        if (segment.file.delete())
+        {
+          log.info("truncated journal segment " + segment.file.getName() + ", max version: " + segment.maxVersion);
+        }
+        else
+        {
+          log.warn("cannot delete journal segment: " + segment.file.getAbsolutePath());
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends all journaled events with a version greater than fromVersion to the consumer, in journal order.
+   * @param fromVersion version already in the index
+   * @param consumer where the events are sent
+   * @param batchSize number of events sent in each call to the consumer
+   * @return number of events replayed
+   * @throws IOException
+   * @throws ZoieException
+   */
+  public int replay(long fromVersion, final DataConsumer<V> consumer, final int batchSize) throws IOException, ZoieException
+  {
+    ArrayList<Segment> segments;
+    synchronized(this)
+    {
+      segments = new ArrayList<Segment>(_segments);
+      _replays++; // keeps truncate() from deleting the segments
+    }
+    try
+    {
+      final long minVersion = fromVersion;
+      final ArrayList<DataEvent<V>> batch = new ArrayList<DataEvent<V>>(Math.max(1, batchSize));
+      final ZoieException[] error = new ZoieException[1];
+      final int[] count = new int[1];
+      for (Segment segment : segments)
+      {
+        if (segment.maxVersion <= fromVersion) continue;
+
+        scan(segment, new RecordHandler()
+        {
+          public void handle(long version, byte[] payload) throws IOException
+          {
+            if (version <= minVersion || error[0] != null) return;
+            batch.add(new DataEvent<V>(version, _codec.decode(payload)));
+            count[0]++;
+            if (batch.size() >= batchSize)
+            {
+              try
+              {
+                consumer.consume(new ArrayList<DataEvent<V>>(batch));
+              }
+              catch (ZoieException e)
+              {
+                error[0] = e;
+              }
+              batch.clear();
+            }
+          }
+        });
+        if (error[0] != null) throw error[0];
+      }
+      if (batch.size() > 0)
+      {
+        consumer.consume(batch);
+      }
+      log.info("replayed " + count[0] + " events from journal after version " + fromVersion);
+      return count[0];
+    }
+    finally
+    {
+      synchronized(this)
+      {
+        _replays--;
+      }
+    }
+  }
+
+  private interface RecordHandler
+  {
+    void handle(long version, byte[] payload) throws IOException;
+  }
+
+  private void scan(Segment segment, RecordHandler handler) throws IOException
+  {
+    ByteBuffer buffer = null;
+    boolean shared = false;
+    RandomAccessFile raf = null;
+    MappedByteBuffer mapped = null;
+    try
+    {
+      synchronized(this)
+      {
+        if (segment.buffer != null)
+        {
+          // the active segment, only look at what is written so far
+          buffer = segment.buffer.duplicate();
+          buffer.flip();
+          segment.use();
+          shared = true;
+        }
+      }
+      if (buffer == null)
+      {
+        raf = new RandomAccessFile(segment.file, "r");
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        buffer = mapped;
+      }
+
+      CRC32 crc = new CRC32();
+      while(buffer.remaining() >= HEADER_SIZE)
+      {
+        if (buffer.getInt() != RECORD_MARKER) break;
+        int len = buffer.getInt();
+        long version = buffer.getLong();
+        long checksum = buffer.getLong();
+        if (len < 0 || len > buffer.remaining())
+        {
+          log.warn("truncated record in journal segment " + segment.file.getName());
+          break;
+        }
+        byte[] payload = new byte[len];
+        buffer.get(payload);
+
+        crc.reset();
+        updateCrc(crc, version);
+        crc.update(payload, 0, len);
+        if (crc.getValue() != checksum)
+        {
+          log.warn("corrupt record in journal segment " + segment.file.getName() + ", ignoring the rest of it");
+          break;
+        }
+        handler.handle(version, payload);
+      }
+    }
+    finally
+    {
+      if (shared)
+      {
+        synchronized(this)
+        {
+          segment.unuse();
+        }
+      }
+      if (mapped != null)
+      {
+        unmap(mapped);
+      }
+      if (raf != null)
+      {
+        raf.close();
+      }
+    }
+  }
+
+  private static volatile boolean _unmapWarned = false;
+
+  /**
+   * Releases a mapping right away rather than when it is garbage collected, so its address space is given back
+   * and the file can be deleted on every platform. The buffer must not be used afterwards. Does nothing, apart
+   * from a warning, on JVMs that allow neither of the two ways.
+   */
+  private static void unmap(ByteBuffer buffer)
+  {
+    if (!clean(buffer) && !_unmapWarned)
+    {
+      _unmapWarned = true;
+      log.warn("cannot unmap journal segments, they are released when garbage collected");
+    }
+  }
+
+  private static boolean clean(ByteBuffer buffer)
+  {
+    try
+    {
+      // java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return true;
+    }
+    catch (Exception e)
+    {
+      // try the cleaner of the buffer
+    }
+    try
+    {
+      Method getCleaner = buffer.getClass().getMethod("cleaner");
+      getCleaner.setAccessible(true);
+      Object cleaner = getCleaner.invoke(buffer);
+      if (cleaner != null)
+      {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+      return true;
+    }
+    catch (Exception e)
+    {
+      return false;
+    }
+  }
+
+  private static void updateCrc(CRC32 crc, long val)
+  {
+    for (int i = 0; i < 8; i++)
+    {
+      crc.update((int)(val >>> (i * 8)) & 0xFF);
+    }
+  }
+
+  private final class SyncThread extends IndexingThread
+  {
+    volatile boolean _stop = false;
+
+    SyncThread()
+    {
+      super("journal sync thread");
+    }
+
+    public void run()
+    {
+      while(!_stop)
+      {
+        synchronized(_syncLock)
+        {
+          try
+          {
+            _syncLock.wait(_syncInterval);
+          }
+          catch (InterruptedException e)
+          {
+            continue;
+          }
+        }
+        long writeSeq;
+        synchronized(EventJournal.this)
+        {
+          writeSeq = _writeSeq;
+        }
+        boolean dirty;
+        synchronized(_syncLock)
+        {
+          dirty = writeSeq > _syncedSeq;
+        }
+        if (dirty)
+        {
+          try
+          {
+            sync();
+          }
+          catch (Exception e)
+          {
+            log.error(e.getMessage(), e);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package proj.zoie.impl.indexing.journal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * {@link EventCodec} based on java serialization. Works for any {@link Serializable} data,
+ * but a codec specific to the data type is usually much more compact and faster.
+ */
+public class SerializableEventCodec<V extends Serializable> implements EventCodec<V>
+{
+  public byte[] encode(V data) throws IOException
+  {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bout);
+    try
+    {
+      out.writeObject(data);
+    }
+    finally
+    {
+      out.close();
+    }
+    return bout.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  public V decode(byte[] bytes) throws IOException
+  {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+    try
+    {
+      return (V)in.readObject();
+    }
+    catch (ClassNotFoundException e)
+    {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
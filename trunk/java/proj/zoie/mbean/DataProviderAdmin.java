@@ -45,6 +45,14 @@ public class DataProviderAdmin implements DataProviderAdminMBean {
       _dataProvider.setMaxEventsPerMinute(maxEventsPerMinute);
     }
     
+    public long getMaxEventsBurst() {
+      return _dataProvider.getMaxEventsBurst();
+    }
+    
+    public void setMaxEventsBurst(long maxEventsBurst) {
+      _dataProvider.setMaxEventsBurst(maxEventsBurst);
+    }
+    
     public String getStatus() {
       return _dataProvider.getStatus();
     }
@@ -26,9 +26,11 @@ public interface DataProviderAdminMBean {
 	void resume();
 	void setBatchSize(int batchSize);
     void setMaxEventsPerMinute(long maxEventsPerMinute);
+    void setMaxEventsBurst(long maxEventsBurst);
 	int getBatchSize();
 	long getEventCount();
 	long getEventsPerMinute();
 	long getMaxEventsPerMinute();
+	long getMaxEventsBurst();
     public String getStatus();
 }
@@ -0,0 +1,245 @@
+package proj.zoie.mbean;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.log4j.Logger;
+
+import proj.zoie.impl.indexing.IndexUpdatedEvent;
+import proj.zoie.impl.indexing.IndexingEventListener;
+import proj.zoie.impl.indexing.ZoieSystem;
+
+/**
+ * Adjusts the disk batch size and batch delay of a {@link ZoieSystem} from the observed flushes.
+ * <br><br>
+ * After every {@link IndexUpdatedEvent} the controller updates moving averages of the indexing cost per document
+ * and of the incoming event rate, then
+ * <ul>
+ * <li>sets the batch size to what can be flushed within the target flush latency, and grows it while events pile up
+ * in the queue,</li>
+ * <li>sets the batch delay to the time it takes to fill a batch at the current rate, so flushes happen by size under
+ * high load and no later than the maximum delay (the freshness bound) under low load.</li>
+ * </ul>
+ * Both values are kept within the configured bounds. To keep the two rules from undoing each other, a batch size
+ * grown for a backlog is only shrunk again after a few flushes without one, and changes within a band around the
+ * current values are ignored.
+ */
+public class ZoieAdaptiveBatchController implements ZoieAdaptiveBatchControllerMBean,IndexingEventListener{
+	private static final Logger log = Logger.getLogger(ZoieAdaptiveBatchController.class);
+
+	private static final double SMOOTHING = 0.3;
+	private static final double GROWTH = 1.5;
+	// relative change below which the current batch size and delay are kept
+	private static final double HYSTERESIS = 0.2;
+	// flushes without a backlog before the batch size may shrink again
+	private static final int SETTLE_FLUSHES = 3;
+
+	private final ZoieSystemAdminMBean _zoieAdmin;
+	private volatile boolean _enabled;
+	private int _minBatchSize;
+	private int _maxBatchSize;
+	private long _minBatchDelay;
+	private long _maxBatchDelay;
+	private long _targetFlushLatency;
+
+	private double _costPerDoc;
+	private double _eventRate;
+	private long _lastFlushEndTime;
+	private int _lastLeftOver;
+	private int _flushesSinceBacklog;
+	private long _adjustmentCount;
+	private String _lastDecision;
+
+	public ZoieAdaptiveBatchController(ZoieSystem<?,?> zoieSystem){
+		_zoieAdmin = zoieSystem.getAdminMBean();
+		_enabled = true;
+		_minBatchSize = 100;
+		_maxBatchSize = Math.max(_minBatchSize, _zoieAdmin.getMaxBatchSize());
+		_minBatchDelay = 100L;
+		_maxBatchDelay = Math.max(_minBatchDelay, _zoieAdmin.getBatchDelay());
+		_targetFlushLatency = 1000L;
+		_costPerDoc = 0.0;
+		_eventRate = 0.0;
+		_lastFlushEndTime = 0L;
+		_lastLeftOver = 0;
+		_flushesSinceBacklog = SETTLE_FLUSHES;
+		_adjustmentCount = 0L;
+		_lastDecision = "none";
+		zoieSystem.addIndexingEventListener(this);
+	}
+
+	public boolean isEnabled() {
+		return _enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		_enabled = enabled;
+	}
+
+	public synchronized int getMinBatchSize() {
+		return _minBatchSize;
+	}
+
+	public synchronized void setMinBatchSize(int minBatchSize) {
+		_minBatchSize = Math.max(1, minBatchSize);
+		_maxBatchSize = Math.max(_minBatchSize, _maxBatchSize);
+	}
+
+	public synchronized int getMaxBatchSize() {
+		return _maxBatchSize;
+	}
+
+	public synchronized void setMaxBatchSize(int maxBatchSize) {
+		_maxBatchSize = Math.max(1, maxBatchSize);
+		_minBatchSize = Math.min(_minBatchSize, _maxBatchSize);
+	}
+
+	public synchronized long getMinBatchDelay() {
+		return _minBatchDelay;
+	}
+
+	public synchronized void setMinBatchDelay(long minBatchDelay) {
+		_minBatchDelay = Math.max(1L, minBatchDelay);
+		_maxBatchDelay = Math.max(_minBatchDelay, _maxBatchDelay);
+	}
+
+	public synchronized long getMaxBatchDelay() {
+		return _maxBatchDelay;
+	}
+
+	/**
+	 * The longest an event may wait in the queue before a flush is triggered, i.e. the freshness bound.
+	 */
+	public synchronized void setMaxBatchDelay(long maxBatchDelay) {
+		_maxBatchDelay = Math.max(1L, maxBatchDelay);
+		_minBatchDelay = Math.min(_minBatchDelay, _maxBatchDelay);
+	}
+
+	public synchronized long getTargetFlushLatency() {
+		return _targetFlushLatency;
+	}
+
+	/**
+	 * The time a single flush should take. Larger batches are cheaper per document but hold the indexer longer.
+	 */
+	public synchronized void setTargetFlushLatency(long targetFlushLatency) {
+		_targetFlushLatency = Math.max(1L, targetFlushLatency);
+	}
+
+	public int getBatchSize() {
+		return _zoieAdmin.getBatchSize();
+	}
+
+	public long getBatchDelay() {
+		return _zoieAdmin.getBatchDelay();
+	}
+
+	/**
+	 * @return estimated number of incoming events per second
+	 */
+	public synchronized double getEstimatedEventRate() {
+		return _eventRate * 1000.0;
+	}
+
+	/**
+	 * @return estimated indexing time per document in milliseconds
+	 */
+	public synchronized double getEstimatedCostPerDoc() {
+		return _costPerDoc;
+	}
+
+	public synchronized long getAdjustmentCount() {
+		return _adjustmentCount;
+	}
+
+	public synchronized String getLastDecision() {
+		return _lastDecision;
+	}
+
+	public void handleIndexingEvent(IndexingEvent evt) {
+		// only interested in IndexUpdateEvent
+		if (_enabled && evt instanceof IndexUpdatedEvent){
+			adjust((IndexUpdatedEvent)evt);
+		}
+	}
+
+	private synchronized void adjust(IndexUpdatedEvent evt) {
+		int numDocs = evt.getNumDocsIndexed();
+		if (numDocs <= 0) return;
+
+		long duration = Math.max(0L, evt.getEndIndexingTime() - evt.getStartIndexingTime());
+		double cost = (double)duration / numDocs;
+		_costPerDoc = (_costPerDoc == 0.0 ? cost : _costPerDoc + SMOOTHING * (cost - _costPerDoc));
+
+		if (_lastFlushEndTime > 0L){
+			// events indexed plus the growth of the queue since the last flush, per millisecond
+			long interval = Math.max(1L, evt.getEndIndexingTime() - _lastFlushEndTime);
+			double rate = (double)Math.max(0, numDocs + evt.getNumDocsLeftInQueue() - _lastLeftOver) / interval;
+			_eventRate = (_eventRate == 0.0 ? rate : _eventRate + SMOOTHING * (rate - _eventRate));
+		}
+		_lastFlushEndTime = evt.getEndIndexingTime();
+		_lastLeftOver = evt.getNumDocsLeftInQueue();
+
+		int oldBatchSize = _zoieAdmin.getBatchSize();
+		long oldDelay = _zoieAdmin.getBatchDelay();
+
+		int batchSize;
+		String reason;
+		if (evt.getNumDocsLeftInQueue() > oldBatchSize){
+			batchSize = (int)Math.min((long)_maxBatchSize, (long)(oldBatchSize * GROWTH));
+			reason = "backlog of " + evt.getNumDocsLeftInQueue();
+			_flushesSinceBacklog = 0;
+		}
+		else if (_costPerDoc > 0.0){
+			_flushesSinceBacklog++;
+			int target = (int)Math.min((double)_maxBatchSize, _targetFlushLatency / _costPerDoc);
+			if (target > oldBatchSize * (1.0 + HYSTERESIS)
+			    || (target < oldBatchSize * (1.0 - HYSTERESIS) && _flushesSinceBacklog > SETTLE_FLUSHES)){
+				batchSize = target;
+				reason = "flush latency target";
+			}
+			else{
+				batchSize = oldBatchSize;
+				reason = "flush latency target, kept";
+			}
+		}
+		else{
+			_flushesSinceBacklog++;
+			batchSize = oldBatchSize;
+			reason = "no estimate";
+		}
+		batchSize = Math.max(_minBatchSize, Math.min(_maxBatchSize, batchSize));
+
+		long delay = (_eventRate > 0.0 ? (long)(batchSize / _eventRate) : _maxBatchDelay);
+		delay = Math.max(_minBatchDelay, Math.min(_maxBatchDelay, delay));
+		if (batchSize == oldBatchSize && oldDelay >= _minBatchDelay && oldDelay <= _maxBatchDelay
+		    && Math.abs(delay - oldDelay) <= oldDelay * HYSTERESIS){
+			delay = oldDelay;
+		}
+
+		if (batchSize != oldBatchSize || delay != oldDelay){
+			if (batchSize > _zoieAdmin.getMaxBatchSize()){
+				_zoieAdmin.setMaxBatchSize(batchSize);
+			}
+			_zoieAdmin.setBatchSize(batchSize);
+			_zoieAdmin.setBatchDelay(delay);
+			_adjustmentCount++;
+			_lastDecision = "batchSize: " + oldBatchSize + " -> " + batchSize + ", batchDelay: " + oldDelay + " -> " + delay + " (" + reason + ")";
+			if (log.isDebugEnabled()){
+				log.debug(_lastDecision);
+			}
+		}
+	}
+}
@@ -82,6 +82,106 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean {
 		return _internalMBean.getRamBVersion();
 	}
 
+	public long getRamASizeInBytes() {
+		return _internalMBean.getRamASizeInBytes();
+	}
+
+	public long getRamBSizeInBytes() {
+		return _internalMBean.getRamBSizeInBytes();
+	}
+
+	public long getRamLowWatermark() {
+		return _internalMBean.getRamLowWatermark();
+	}
+
+	public void setRamLowWatermark(long bytes) {
+		_internalMBean.setRamLowWatermark(bytes);
+	}
+
+	public int getRamSealedIndexCount() {
+		return _internalMBean.getRamSealedIndexCount();
+	}
+
+	public int getRamSpilledIndexCount() {
+		return _internalMBean.getRamSpilledIndexCount();
+	}
+
+	public int getMaxSealedRamIndexes() {
+		return _internalMBean.getMaxSealedRamIndexes();
+	}
+
+	public void setMaxSealedRamIndexes(int maxSealed) {
+		_internalMBean.setMaxSealedRamIndexes(maxSealed);
+	}
+
+	public int getMaxSpilledRamIndexes() {
+		return _internalMBean.getMaxSpilledRamIndexes();
+	}
+
+	public void setMaxSpilledRamIndexes(int maxSpilled) {
+		_internalMBean.setMaxSpilledRamIndexes(maxSpilled);
+	}
+
+	public boolean isTrackReaderAcquireSites() {
+		return _internalMBean.isTrackReaderAcquireSites();
+	}
+
+	public void setTrackReaderAcquireSites(boolean track) {
+		_internalMBean.setTrackReaderAcquireSites(track);
+	}
+
+	public long getFilterCacheMaxBytes() {
+		return _internalMBean.getFilterCacheMaxBytes();
+	}
+
+	public void setFilterCacheMaxBytes(long bytes) {
+		_internalMBean.setFilterCacheMaxBytes(bytes);
+	}
+
+	public long getFilterCacheSizeInBytes() {
+		return _internalMBean.getFilterCacheSizeInBytes();
+	}
+
+	public int getFilterCacheEntryCount() {
+		return _internalMBean.getFilterCacheEntryCount();
+	}
+
+	public double getFilterCacheHitRate() {
+		return _internalMBean.getFilterCacheHitRate();
+	}
+
+	public long getFilterCacheHitCount() {
+		return _internalMBean.getFilterCacheHitCount();
+	}
+
+	public long getFilterCacheMissCount() {
+		return _internalMBean.getFilterCacheMissCount();
+	}
+
+	public long getFilterCacheEvictionCount() {
+		return _internalMBean.getFilterCacheEvictionCount();
+	}
+
+	public void clearFilterCache() {
+		_internalMBean.clearFilterCache();
+	}
+
+	public long getRamHighWatermark() {
+		return _internalMBean.getRamHighWatermark();
+	}
+
+	public void setRamHighWatermark(long bytes) {
+		_internalMBean.setRamHighWatermark(bytes);
+	}
+
+	public long getRamIndexAllocatedBytes() {
+		return _internalMBean.getRamIndexAllocatedBytes();
+	}
+
+	public long getRamIndexUsedBytes() {
+		return _internalMBean.getRamIndexUsedBytes();
+	}
+
 	public void optimize(int numSegs) throws IOException {
 		_internalMBean.optimize(numSegs);
 	}
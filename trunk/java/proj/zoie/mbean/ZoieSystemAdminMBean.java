@@ -25,14 +25,113 @@ public interface ZoieSystemAdminMBean {
 	
 	long getCurrentDiskVersion() throws IOException;
 	
+	/**
+	 * @return number of documents in the writable RAM index
+	 */
 	int getRamAIndexSize();
 	
 	long getRamAVersion();
 	
+	/**
+	 * @return number of documents in all sealed RAM indexes waiting for the disk index
+	 */
 	int getRamBIndexSize();
 	
+	/**
+	 * @return version of the newest sealed RAM index
+	 */
 	long getRamBVersion();
 	
+	/**
+	 * @return bytes held by the writable RAM index: index files, writer buffer, uid arrays and mappers
+	 */
+	long getRamASizeInBytes();
+	
+	/**
+	 * @return bytes held by all sealed RAM indexes: index files, writer buffer, uid arrays and mappers
+	 */
+	long getRamBSizeInBytes();
+	
+	/**
+	 * @return number of sealed RAM indexes waiting to be loaded into the disk index
+	 */
+	int getRamSealedIndexCount();
+	
+	/**
+	 * @return number of sealed RAM indexes spilled to the local scratch directory
+	 */
+	int getRamSpilledIndexCount();
+	
+	/**
+	 * @return how many sealed RAM indexes may wait for the disk index before the writable one stops being sealed
+	 */
+	int getMaxSealedRamIndexes();
+	
+	void setMaxSealedRamIndexes(int maxSealed);
+	
+	/**
+	 * @return how many sealed RAM indexes may wait spilled to the local scratch directory
+	 */
+	int getMaxSpilledRamIndexes();
+	
+	void setMaxSpilledRamIndexes(int maxSpilled);
+	
+	/**
+	 * @return true if the stack traces of disk reader references are recorded, so readers that are never returned
+	 * are logged with where they were taken when the reader is closed
+	 */
+	boolean isTrackReaderAcquireSites();
+	
+	void setTrackReaderAcquireSites(boolean track);
+	
+	/**
+	 * @return bytes of filter results the segment filter cache may hold
+	 */
+	long getFilterCacheMaxBytes();
+	
+	void setFilterCacheMaxBytes(long bytes);
+	
+	long getFilterCacheSizeInBytes();
+	
+	int getFilterCacheEntryCount();
+	
+	/**
+	 * @return fraction of filter cache lookups that found the result of the segment
+	 */
+	double getFilterCacheHitRate();
+	
+	long getFilterCacheHitCount();
+	
+	long getFilterCacheMissCount();
+	
+	long getFilterCacheEvictionCount();
+	
+	void clearFilterCache();
+	
+	/**
+	 * @return bytes in the writable RAM index that trigger a flush to disk, 0 if disabled
+	 */
+	long getRamLowWatermark();
+	
+	void setRamLowWatermark(long bytes);
+	
+	/**
+	 * @return bytes in all RAM indexes at which producers block until the low watermark is reached, 0 if disabled
+	 */
+	long getRamHighWatermark();
+	
+	void setRamHighWatermark(long bytes);
+	
+	/**
+	 * @return bytes reserved for the RAM indexes, including pooled free space
+	 */
+	long getRamIndexAllocatedBytes();
+	
+	/**
+	 * @return bytes holding RAM index data
+	 */
+	long getRamIndexUsedBytes();
+	
 	String getDiskIndexerStatus();
 	
 	long getBatchDelay();
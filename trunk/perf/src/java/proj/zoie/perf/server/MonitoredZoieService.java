@@ -3,17 +3,13 @@ package proj.zoie.perf.server;
 import it.unimi.dsi.fastutil.longs.Long2IntLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
 
-import java.io.IOException;
 import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searcher;
@@ -22,6 +18,7 @@ import org.apache.lucene.util.Version;
 
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
+import proj.zoie.api.impl.ZoieSearcherManager;
 import proj.zoie.service.api.SearchRequest;
 import proj.zoie.service.api.SearchResult;
 import proj.zoie.service.api.ZoieSearchService;
@@ -38,26 +35,34 @@ public class MonitoredZoieService<R extends IndexReader> implements ZoieSearchSe
   private static final Logger log = Logger.getLogger(MonitoredZoieService.class);
 	
   private final IndexReaderFactory<R> _idxReaderFactory;
+  private final ZoieSearcherManager<R> _searcherManager;
+  
+  // a query parser is not thread safe, but can parse any number of queries
+  private final ThreadLocal<QueryParser> _qparser = new ThreadLocal<QueryParser>()
+  {
+    @Override
+    protected QueryParser initialValue()
+    {
+      return new QueryParser(Version.LUCENE_CURRENT,"content",_idxReaderFactory.getAnalyzer());
+    }
+  };
   
   private long _sum = 0L;
   
   public MonitoredZoieService(IndexReaderFactory<R> idxReaderFactory)
   {
 	  _idxReaderFactory = idxReaderFactory;
+	  _searcherManager = new ZoieSearcherManager<R>(idxReaderFactory);
   }
   
   public SearchResult search(SearchRequest req) throws ZoieException
   {
 	long start = System.nanoTime();
     String queryString=req.getQuery();
-	Analyzer analyzer=_idxReaderFactory.getAnalyzer();
-	QueryParser qparser=new QueryParser(Version.LUCENE_CURRENT,"content",analyzer);
 	
 	SearchResult result=new SearchResult();
 	
-	List<R> readers=null;
-	Searcher searcher = null;
-	MultiReader multiReader=null;
+	ZoieSearcherManager.ManagedSearcher<R> managedSearcher=null;
 	try
 	{
 		Query q=null;
@@ -67,11 +72,11 @@ public class MonitoredZoieService<R extends IndexReader> implements ZoieSearchSe
 		}
 		else
 		{
-			q = qparser.parse(queryString); 
+			q = _qparser.get().parse(queryString); 
 		}
-		readers=_idxReaderFactory.getIndexReaders();
-		multiReader=new MultiReader(readers.toArray(new IndexReader[readers.size()]));
-		searcher=new IndexSearcher(multiReader);
+		managedSearcher=_searcherManager.acquire();
+		MultiReader multiReader=managedSearcher.getIndexReader();
+		Searcher searcher=managedSearcher.getSearcher();
 		TopDocs hits = searcher.search(q,10);
 		result.setTotalDocs(multiReader.numDocs());
 		result.setTotalHits(hits.totalHits);
@@ -105,21 +110,18 @@ public class MonitoredZoieService<R extends IndexReader> implements ZoieSearchSe
 	}
 	finally
 	{
-		try{
-		  if (searcher!=null){
-		    try {
-              searcher.close();
-	       } catch (IOException e) {
-			  log.error(e.getMessage(),e);
-			}
-		  }
-		}
-		finally{
-		  _idxReaderFactory.returnIndexReaders(readers);
-		}
+		_searcherManager.release(managedSearcher);
 	}
   }
   
+  /**
+   * Gives the readers of the shared searcher back to the index reader factory, before the factory shuts down.
+   */
+  public void shutdown()
+  {
+    _searcherManager.close();
+  }
+  
   protected void countQuery(long time)
   {
     if(!_qps.containsKey(time)) { _qps.put(time, 0); }
@@ -1,49 +1,120 @@
 package proj.zoie.test;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.DefaultSimilarity;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 
+import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DefaultDirectoryManager;
+import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.DirectoryManager;
+import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.UIDDocIdSet;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.impl.DefaultDocIDMapperFactory;
+import proj.zoie.api.impl.DefaultMemoryDirectoryFactory;
 import proj.zoie.api.impl.DocIDMapperImpl;
+import proj.zoie.api.impl.OffHeapMemoryDirectoryFactory;
+import proj.zoie.api.impl.SegmentFilterCache;
+import proj.zoie.api.impl.ZoieSearcherManager;
+import proj.zoie.api.impl.util.ImmutableDocIdSet;
+import proj.zoie.api.impl.util.RingBuffer;
+import proj.zoie.api.impl.util.SlabDirectory;
+import proj.zoie.api.impl.util.SlabPool;
+import proj.zoie.api.impl.util.TokenBucket;
+import proj.zoie.api.impl.util.UIDColumnFile;
+import proj.zoie.api.impl.util.VersionFuture;
+import proj.zoie.api.impl.util.VersionWaiters;
+import proj.zoie.api.indexing.AbstractZoieIndexable;
+import proj.zoie.api.indexing.DefaultOptimizeScheduler;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.IndexingContext;
+import proj.zoie.api.indexing.ReusableZoieIndexable;
+import proj.zoie.dataprovider.jdbc.JDBCConnectionFactory;
+import proj.zoie.dataprovider.jdbc.JDBCStreamDataProvider;
+import proj.zoie.dataprovider.jdbc.PagedPreparedStatementBuilder;
 import proj.zoie.impl.indexing.AsyncDataConsumer;
+import proj.zoie.impl.indexing.DefaultIndexReaderDecorator;
+import proj.zoie.impl.indexing.IndexUpdatedEvent;
+import proj.zoie.impl.indexing.IndexingEventListener;
 import proj.zoie.impl.indexing.MemoryStreamDataProvider;
+import proj.zoie.impl.indexing.PartitionedStreamDataProvider;
+import proj.zoie.impl.indexing.StreamDataProvider;
 import proj.zoie.impl.indexing.ZoieSystem;
+import proj.zoie.api.indexing.ZoieIndexable;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
+import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+import proj.zoie.impl.indexing.journal.EventJournal;
+import proj.zoie.mbean.ZoieAdaptiveBatchController;
+import proj.zoie.impl.indexing.journal.SerializableEventCodec;
+import proj.zoie.impl.indexing.internal.DiskLuceneIndexDataLoader;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser;
+import proj.zoie.impl.indexing.internal.IndexableInterpreterPool;
+import proj.zoie.impl.indexing.internal.IndexingBatch;
 import proj.zoie.impl.indexing.internal.IndexSignature;
+import proj.zoie.impl.indexing.internal.RAMSearchIndex;
+import proj.zoie.impl.indexing.internal.RealtimeIndexDataLoader;
+import proj.zoie.impl.indexing.internal.SearchIndexManager;
 import proj.zoie.test.data.TestData;
 import proj.zoie.test.data.TestDataInterpreter;
 import proj.zoie.test.mock.MockDataLoader;
@@ -322,7 +393,7 @@ public class ZoieTest extends ZoieTestCase
     }	
   }
 
-  public void testStreamDataProvider() throws ZoieException
+  public void testStreamDataProvider() throws Exception
   {
     MockDataLoader<Integer> consumer=new MockDataLoader<Integer>();
     MemoryStreamDataProvider<Integer> memoryProvider=new MemoryStreamDataProvider<Integer>();
@@ -347,6 +418,133 @@ public class ZoieTest extends ZoieTestCase
     {
       memoryProvider.stop();
     }
+
+    // a sync waiting when the stream ends fails rather than times out
+    final Semaphore end = new Semaphore(0);
+    StreamDataProvider<Integer> finite = new StreamDataProvider<Integer>()
+    {
+      public DataEvent<Integer> next()
+      {
+        end.acquireUninterruptibly();
+        return null;
+      }
+      public void reset()
+      {
+      }
+    };
+    finite.setDataConsumer(consumer);
+    finite.start();
+    try
+    {
+      VersionFuture future = finite.syncWthVersionAsync(100);
+      end.release();
+      try
+      {
+        future.get(10, TimeUnit.SECONDS);
+        fail("synced past the end of the stream");
+      }
+      catch (ExecutionException e)
+      {
+        assertTrue(finite.isEndOfStream());
+      }
+    }
+    finally
+    {
+      end.release();
+      finite.stop();
+    }
+  }
+
+  public void testPartitionedStreamDataProvider() throws ZoieException
+  {
+    MockDataLoader<Integer> mockLoader=new MockDataLoader<Integer>();
+    mockLoader.setDelay(0L);
+    AsyncDataConsumer<Integer> asyncConsumer = new AsyncDataConsumer<Integer>();
+    asyncConsumer.setDataConsumer(mockLoader);
+    asyncConsumer.start();
+
+    int numPartitions=3;
+    List<MemoryStreamDataProvider<Integer>> partitions=new ArrayList<MemoryStreamDataProvider<Integer>>(numPartitions);
+    for (int i=0;i<numPartitions;++i)
+    {
+      partitions.add(new MemoryStreamDataProvider<Integer>());
+    }
+    PartitionedStreamDataProvider<Integer> provider=new PartitionedStreamDataProvider<Integer>(partitions);
+    provider.setDataConsumer(asyncConsumer);
+    provider.start();
+    try
+    {
+      int count=100;
+      for (int p=0;p<numPartitions;++p)
+      {
+        // versions interleave across partitions
+        List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(count);
+        for (int i=0;i<count;++i)
+        {
+          list.add(new DataEvent<Integer>(i*numPartitions+p,i));
+        }
+        partitions.get(p).addEvents(list);
+      }
+      // the last version of partition 0 is the lowest last version
+      long version=(count-1)*numPartitions;
+      provider.syncWthVersion(10000, version);
+      assertEquals(version, provider.getCommittedVersion());
+      asyncConsumer.flushEvents(10000);
+      assertEquals(numPartitions*count, mockLoader.getCount());
+      assertEquals(numPartitions*count, provider.getEventCount());
+    }
+    finally
+    {
+      provider.stop();
+    }
+
+    // a partition at the end of its stream no longer counts, a stopped one fails the sync
+    StreamDataProvider<Integer> finite = new StreamDataProvider<Integer>()
+    {
+      private int _next = 0;
+      public DataEvent<Integer> next()
+      {
+        return (_next < 10 ? new DataEvent<Integer>(_next, _next++) : null);
+      }
+      public void reset()
+      {
+        _next = 0;
+      }
+    };
+    MemoryStreamDataProvider<Integer> endless = new MemoryStreamDataProvider<Integer>();
+    List<StreamDataProvider<Integer>> finiteAndEndless = new ArrayList<StreamDataProvider<Integer>>(2);
+    finiteAndEndless.add(finite);
+    finiteAndEndless.add(endless);
+    provider = new PartitionedStreamDataProvider<Integer>(finiteAndEndless);
+    provider.setDataConsumer(asyncConsumer);
+    provider.start();
+    try
+    {
+      List<DataEvent<Integer>> list = new ArrayList<DataEvent<Integer>>();
+      list.add(new DataEvent<Integer>(100, 100));
+      endless.addEvents(list);
+      provider.syncWthVersion(10000, 100);
+      assertTrue(finite.isEndOfStream());
+      assertEquals(100L, provider.getCommittedVersion());
+
+      endless.stop();
+      assertFalse(endless.isEndOfStream());
+      long start = System.currentTimeMillis();
+      try
+      {
+        provider.syncWthVersion(10000, 200);
+        fail("synced with a stopped partition");
+      }
+      catch (ZoieException e)
+      {
+        assertTrue("waited for the timeout", System.currentTimeMillis() - start < 5000);
+      }
+    }
+    finally
+    {
+      provider.stop();
+      asyncConsumer.stop();
+    }
   }
 
   public void testAsyncDataConsumer() throws ZoieException
@@ -961,4 +1159,2202 @@ public class ZoieTest extends ZoieTestCase
     int[] answer = new int[]{0,1,10,11,20,21,30,31,40,41,50,51,60,61,70,71,80,81,90,91};
     assertTrue("wrong result from mix of next and skip",Arrays.equals(answer, intList.toIntArray()));
   }
+
+  public void testIndexableInterpreterPool()
+  {
+    IndexableInterpreterPool<String> pool = new IndexableInterpreterPool<String>(new TestDataInterpreter());
+    pool.setNumThreads(4);
+    try
+    {
+      int count = 1000;
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+      for (int i=0;i<count;++i)
+      {
+        list.add(new DataEvent<String>(i,"hao,yan "+i));
+      }
+      List<DataEvent<ZoieIndexable>> indexables = pool.interpret(list);
+      assertEquals(count, indexables.size());
+      long base = ((long)(Integer.MAX_VALUE)*2L);
+      for (int i=0;i<count;++i)
+      {
+        DataEvent<ZoieIndexable> evt = indexables.get(i);
+        assertEquals("version out of order", (long)i, evt.getVersion());
+        assertEquals("wrong uid", base+i, evt.getData().getUID());
+        assertEquals(1, evt.getData().buildIndexingReqs().length);
+      }
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  public void testEventCoalescing()
+  {
+    IndexableInterpreterPool<String> pool = new IndexableInterpreterPool<String>(new TestDataInterpreter());
+    pool.setCoalesceEvents(true);
+    try
+    {
+      // uids 0..9, each updated 10 times, interleaved
+      int count = 100;
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+      for (int i=0;i<count;++i)
+      {
+        list.add(new DataEvent<String>(i,"hao,yan "+(i%10)));
+      }
+      for (int numThreads=1;numThreads<=4;numThreads+=3)
+      {
+        pool.setNumThreads(numThreads);
+        List<DataEvent<ZoieIndexable>> indexables = pool.interpret(list);
+        assertEquals(10, indexables.size());
+        long base = ((long)(Integer.MAX_VALUE)*2L);
+        for (int i=0;i<10;++i)
+        {
+          DataEvent<ZoieIndexable> evt = indexables.get(i);
+          assertEquals("not the latest version", (long)(90+i), evt.getVersion());
+          assertEquals("wrong uid", base+i, evt.getData().getUID());
+        }
+      }
+      assertEquals(180L, pool.getCoalescedCount());
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    // skipped events only: the version of the batch still gets through
+    final ZoieIndexableInterpreter<String> interpreter = new TestDataInterpreter();
+    IndexableInterpreterPool<String> skipPool = new IndexableInterpreterPool<String>(new ZoieIndexableInterpreter<String>()
+    {
+      public ZoieIndexable convertAndInterpret(final String src)
+      {
+        final ZoieIndexable indexable = interpreter.convertAndInterpret(src);
+        return new ZoieIndexable()
+        {
+          public IndexingReq[] buildIndexingReqs()
+          {
+            return indexable.buildIndexingReqs();
+          }
+          public long getUID()
+          {
+            return indexable.getUID();
+          }
+          public boolean isDeleted()
+          {
+            return false;
+          }
+          public boolean isSkip()
+          {
+            return src.startsWith("skip");
+          }
+        };
+      }
+    });
+    skipPool.setCoalesceEvents(true);
+    try
+    {
+      for (int numThreads=1;numThreads<=4;numThreads+=3)
+      {
+        skipPool.setNumThreads(numThreads);
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+        list.add(new DataEvent<String>(5,"skip 0"));
+        list.add(new DataEvent<String>(7,"skip 1"));
+        list.add(new DataEvent<String>(6,"skip 2"));
+        List<DataEvent<ZoieIndexable>> indexables = skipPool.interpret(list);
+        assertEquals(1, indexables.size());
+        assertEquals(7L, indexables.get(0).getVersion());
+        assertTrue(indexables.get(0).getData().isSkip());
+
+        list.add(new DataEvent<String>(8,"zoie 3"));
+        list.add(new DataEvent<String>(9,"skip 4"));
+        indexables = skipPool.interpret(list);
+        assertEquals(1, indexables.size());
+        assertEquals(9L, indexables.get(0).getVersion());
+        assertFalse(indexables.get(0).getData().isSkip());
+      }
+    }
+    finally
+    {
+      skipPool.shutdown();
+    }
+  }
+
+  public void testRingBuffer()
+  {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(5);
+    assertEquals("capacity not rounded to power of two", 8, buffer.capacity());
+    assertTrue(buffer.isEmpty());
+
+    List<Integer> src = new ArrayList<Integer>();
+    for (int i=0;i<6;++i) src.add(i);
+    assertTrue(buffer.offer(src.iterator(), 6));
+    assertFalse("offer beyond capacity", buffer.offer(src.iterator(), 3));
+    assertTrue(buffer.offer(6));
+    assertTrue(buffer.offer(7));
+    assertFalse(buffer.offer(8));
+    assertEquals(8, buffer.size());
+
+    assertEquals(Integer.valueOf(0), buffer.poll());
+    List<Integer> drained = new ArrayList<Integer>();
+    assertEquals(3, buffer.drainTo(drained, 3));
+    assertEquals(Arrays.asList(1,2,3), drained);
+
+    // wraps around
+    assertTrue(buffer.offer(src.iterator(), 4));
+    drained.clear();
+    assertEquals(8, buffer.drainTo(drained, 100));
+    assertEquals(Arrays.asList(4,5,6,7,0,1,2,3), drained);
+    assertTrue(buffer.isEmpty());
+    assertNull(buffer.poll());
+  }
+
+  public void testVersionWaiters() throws Exception
+  {
+    VersionWaiters waiters = new VersionWaiters(-1L);
+    VersionFuture f5 = waiters.waitFor(5L);
+    VersionFuture f10 = waiters.waitFor(10L);
+    VersionFuture f3 = waiters.waitFor(3L);
+    assertEquals(3, waiters.size());
+
+    final int[] called = new int[1];
+    f10.addListener(new Runnable()
+    {
+      public void run()
+      {
+        called[0]++;
+      }
+    }, new Executor()
+    {
+      public void execute(Runnable command)
+      {
+        command.run();
+      }
+    });
+
+    waiters.advance(5L);
+    assertTrue(f3.isDone());
+    assertTrue(f5.isDone());
+    assertFalse("woke a waiter above the version", f10.isDone());
+    assertEquals(Long.valueOf(5L), f3.get());
+    try
+    {
+      f10.get(10, TimeUnit.MILLISECONDS);
+      fail("should have timed out");
+    }
+    catch(TimeoutException e)
+    {
+    }
+    assertEquals(0, called[0]);
+
+    waiters.advance(12L);
+    assertEquals(Long.valueOf(12L), f10.get());
+    assertEquals(1, called[0]);
+    assertTrue("reached version should complete at once", waiters.waitFor(7L).isDone());
+
+    VersionFuture f20 = waiters.waitFor(20L);
+    assertTrue(f20.cancel(false));
+    assertEquals(0, waiters.size());
+  }
+
+  public void testUIDColumnFile() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    long[] uids = new long[20000];
+    for (int i=0;i<uids.length;++i) uids[i] = (i % 7 == 0) ? ZoieIndexReader.DELETED_UID : i * 3L;
+
+    UIDColumnFile.write(dir, "_0", uids);
+    assertTrue(Arrays.equals(uids, UIDColumnFile.read(dir, "_0", uids.length)));
+    assertNull("length mismatch accepted", UIDColumnFile.read(dir, "_0", uids.length - 1));
+    assertNull("missing column", UIDColumnFile.read(dir, "_1", uids.length));
+
+    // flip a byte in the body, the checksum must catch it
+    String name = UIDColumnFile.getFileName("_0");
+    IndexInput in = dir.openInput(name);
+    byte[] bytes = new byte[(int)in.length()];
+    in.readBytes(bytes, 0, bytes.length);
+    in.close();
+    bytes[100] ^= 0x1;
+    IndexOutput out = dir.createOutput(name);
+    out.writeBytes(bytes, bytes.length);
+    out.close();
+    assertNull("corrupt column accepted", UIDColumnFile.read(dir, "_0", uids.length));
+
+    // _0 has no segment files, so its column goes
+    dir.createOutput("_2.cfs").close();
+    UIDColumnFile.write(dir, "_2", uids);
+    UIDColumnFile.purge(dir);
+    assertFalse(dir.fileExists(name));
+    assertTrue(dir.fileExists(UIDColumnFile.getFileName("_2")));
+  }
+
+  public void testImmutableDocIdSet() throws Exception
+  {
+    int maxDoc = 10000;
+    int[] sparse = new int[]{3, 17, 4096, 9999};
+    int[] dense = new int[2000];
+    for (int i=0;i<dense.length;++i) dense[i] = i * 5;
+
+    for (int[] docids : new int[][]{sparse, dense})
+    {
+      ImmutableDocIdSet set = ImmutableDocIdSet.newInstance(docids.clone(), maxDoc);
+      assertEquals(docids.length, set.size());
+      assertTrue(Arrays.equals(docids, set.toArray()));
+      for (int docid : docids) assertTrue(set.contains(docid));
+      assertFalse(set.contains(1));
+      assertFalse(set.contains(-1));
+
+      DocIdSetIterator iter = set.iterator();
+      assertEquals(docids[0], iter.nextDoc());
+      assertEquals(docids[docids.length-1], iter.advance(docids[docids.length-1] - 1));
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+    }
+    assertTrue(ImmutableDocIdSet.newInstance(new int[0], maxDoc).isEmpty());
+
+    // a new generation leaves the previous one as it was
+    ImmutableDocIdSet gen1 = ImmutableDocIdSet.newInstance(sparse.clone(), maxDoc);
+    assertSame("nothing new", gen1, gen1.union(new int[]{3}, 1, maxDoc));
+    ImmutableDocIdSet gen2 = gen1.union(new int[]{5, 3}, 2, maxDoc);
+    assertEquals(5, gen2.size());
+    assertFalse(gen1.contains(5));
+    ImmutableDocIdSet gen3 = gen2.union(dense.clone(), dense.length, maxDoc);
+    assertEquals(2004, gen3.size());
+    assertTrue(gen3.contains(9995));
+    assertTrue(gen3.contains(4096));
+    assertFalse(gen2.contains(9995));
+  }
+
+  public void testReaderRefCount() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+    Document doc = new Document();
+    ZoieSegmentReader.fillDocumentID(doc, 1L);
+    writer.addDocument(doc);
+    writer.close();
+
+    ZoieMultiReader.setTrackAcquireSites(true);
+    try
+    {
+      ZoieMultiReader<IndexReader> reader = (ZoieMultiReader<IndexReader>)ZoieIndexReader.open(dir, new DefaultIndexReaderDecorator());
+      assertEquals(1, reader.getRefCount());
+      assertTrue(reader.tryIncRef());
+      reader.incRef();
+      assertEquals(3, reader.getRefCount());
+      assertEquals(2, reader.getAcquireSites().size());
+      reader.decRef();
+      reader.decRef();
+      assertTrue(reader.getAcquireSites().isEmpty());
+
+      // a release by a thread without a site leaves the sites of others alone
+      reader.incRef();
+      final ZoieMultiReader<IndexReader> shared = reader;
+      final Exception[] error = new Exception[1];
+      Thread releaser = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            shared.incRef();
+            shared.decRef();
+            shared.decRef();
+          }
+          catch (Exception e)
+          {
+            error[0] = e;
+          }
+        }
+      };
+      releaser.start();
+      releaser.join(10000);
+      if (error[0] != null) throw error[0];
+      assertEquals(1, reader.getRefCount());
+      List<Throwable> sites = reader.getAcquireSites();
+      assertEquals(1, sites.size());
+      assertTrue(sites.get(0).getMessage().contains(Thread.currentThread().getName()));
+
+      ZoieIndexReader<IndexReader> snapshot = reader.getDeletesSnapshot();
+      reader.close();
+      assertEquals(0, reader.getRefCount());
+      assertTrue("sites left on a closed reader", reader.getAcquireSites().isEmpty());
+      assertFalse("closed reader acquired", reader.tryIncRef());
+      assertFalse("snapshot of a closed reader acquired", snapshot.tryIncRef());
+    }
+    finally
+    {
+      ZoieMultiReader.setTrackAcquireSites(false);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testSegmentFilterCache() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+    for (int i = 0; i < 10; ++i)
+    {
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, i);
+      doc.add(new Field("tag", (i % 2 == 0 ? "even" : "odd"), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new DefaultIndexReaderDecorator());
+    ZoieIndexReader<IndexReader> reopened = null;
+    ZoieIndexReader<IndexReader> reopenedAgain = null;
+    ZoieIndexReader<IndexReader> reopenedDeleted = null;
+    try
+    {
+      ZoieIndexReader<IndexReader> segmentReader = reader.getSequentialSubReaders()[0];
+      Filter even = new QueryWrapperFilter(new TermQuery(new Term("tag", "even")));
+      SegmentFilterCache cache = new SegmentFilterCache();
+      Filter cached = cache.wrap(even);
+
+      DocIdSet docs = cached.getDocIdSet(segmentReader);
+      assertEquals(0, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      assertTrue(Arrays.equals(new int[]{0, 2, 4, 6, 8}, ((ImmutableDocIdSet)docs).toArray()));
+      assertSame(docs, cached.getDocIdSet(segmentReader));
+      assertSame("equal filters share results", docs, cache.wrap(new QueryWrapperFilter(new TermQuery(new Term("tag", "even")))).getDocIdSet(segmentReader));
+      assertEquals(2, cache.getHitCount());
+      assertEquals(1, cache.getEntryCount());
+      assertTrue(cache.getSizeInBytes() > 0);
+
+      // a filter on a reader that is not a segment is not cached
+      cached.getDocIdSet(reader);
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getEntryCount());
+
+      // a reopen that only adds a segment keeps the results of the first one
+      addTaggedDocument(dir, 10);
+      reopened = (ZoieIndexReader<IndexReader>)reader.reopen(true);
+      assertEquals(2, reopened.getSequentialSubReaders().length);
+      ZoieIndexReader<IndexReader> reopenedSegment = reopened.getSequentialSubReaders()[0];
+      assertSame(docs, cached.getDocIdSet(reopenedSegment));
+      assertEquals(3, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+
+      // committed duplicates are a new generation, which the copy made by the next reopen shares
+      LongOpenHashSet delDocs = new LongOpenHashSet();
+      delDocs.add(2L);
+      reopenedSegment.markDeletes(delDocs, new LongOpenHashSet());
+      reopenedSegment.commitDeletes();
+      DocIdSet dedupDocs = cached.getDocIdSet(reopenedSegment.getDeletesSnapshot());
+      assertEquals(2, cache.getMissCount());
+      assertTrue(Arrays.equals(new int[]{0, 4, 6, 8}, ((ImmutableDocIdSet)dedupDocs).toArray()));
+      addTaggedDocument(dir, 12);
+      reopenedAgain = (ZoieIndexReader<IndexReader>)reopened.reopen(true);
+      assertSame(dedupDocs, cached.getDocIdSet(reopenedAgain.getSequentialSubReaders()[0].getDeletesSnapshot()));
+      assertEquals(4, cache.getHitCount());
+      assertEquals(2, cache.getMissCount());
+
+      // a delete in the index changes the segment
+      IndexReader deleter = IndexReader.open(dir, false);
+      deleter.deleteDocument(4);
+      deleter.close();
+      reopenedDeleted = (ZoieIndexReader<IndexReader>)reopenedAgain.reopen(true);
+      DocIdSet deletedDocs = cached.getDocIdSet(reopenedDeleted.getSequentialSubReaders()[0]);
+      assertEquals(3, cache.getMissCount());
+      assertTrue(Arrays.equals(new int[]{0, 2, 6, 8}, ((ImmutableDocIdSet)deletedDocs).toArray()));
+
+      cache.setMaxBytes(0L);
+      assertEquals(0, cache.getEntryCount());
+      assertEquals(3, cache.getEvictionCount());
+      cached.getDocIdSet(segmentReader);
+      assertEquals("result over the size bound was cached", 0, cache.getEntryCount());
+    }
+    finally
+    {
+      if (reopenedDeleted != null) reopenedDeleted.close();
+      if (reopenedAgain != null) reopenedAgain.close();
+      if (reopened != null) reopened.close();
+      reader.close();
+    }
+  }
+
+  private static void addTaggedDocument(Directory dir, long uid) throws IOException
+  {
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), false, IndexWriter.MaxFieldLength.UNLIMITED);
+    Document doc = new Document();
+    ZoieSegmentReader.fillDocumentID(doc, uid);
+    doc.add(new Field("tag", (uid % 2 == 0 ? "even" : "odd"), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+    writer.addDocument(doc);
+    writer.close();
+  }
+  @SuppressWarnings("unchecked")
+  public void testCopiedReaderDeletes() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+    for (int i = 0; i < 10; ++i)
+    {
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, i);
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new DefaultIndexReaderDecorator());
+    ZoieIndexReader<IndexReader> reopened = null;
+    try
+    {
+      LongOpenHashSet delDocs = new LongOpenHashSet();
+      delDocs.add(3L);
+      delDocs.add(4L);
+      reader.markDeletes(delDocs, new LongOpenHashSet());
+
+      // a new segment, the first one is copied by the reopen with its pending marks
+      writer = new IndexWriter(dir, new WhitespaceAnalyzer(), false, IndexWriter.MaxFieldLength.UNLIMITED);
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, 100L);
+      writer.addDocument(doc);
+      writer.close();
+      reopened = (ZoieIndexReader<IndexReader>)reader.reopen(true);
+      assertNotSame(reader, reopened);
+
+      reader.commitDeletes();
+      ZoieIndexReader<IndexReader> snapshot = reader.getDeletesSnapshot();
+      assertTrue(snapshot.isDeleted(3));
+      assertTrue(snapshot.isDeleted(4));
+      assertFalse(snapshot.isDeleted(5));
+      assertFalse("commit of the old reader reached the copy", reopened.getDeletesSnapshot().isDeleted(3));
+
+      reopened.commitDeletes();
+      ZoieIndexReader<IndexReader> reopenedSnapshot = reopened.getDeletesSnapshot();
+      assertTrue("pending marks of the copy were lost", reopenedSnapshot.isDeleted(3));
+      assertTrue(reopenedSnapshot.isDeleted(4));
+      assertFalse(reopenedSnapshot.isDeleted(10));
+
+      // marks on one reader stay off the other
+      delDocs.clear();
+      delDocs.add(5L);
+      reopened.markDeletes(delDocs, new LongOpenHashSet());
+      reopened.commitDeletes();
+      reader.commitDeletes();
+      assertTrue(reopened.getDeletesSnapshot().isDeleted(5));
+      assertFalse(reader.getDeletesSnapshot().isDeleted(5));
+    }
+    finally
+    {
+      if (reopened != null) reopened.close();
+      reader.close();
+    }
+  }
+  public void testConcurrentReaders() throws Exception
+  {
+    File idxDir = getIdxDir();
+    final ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true, 0);
+    idxSystem.setMaxSealedMemoryIndexes(2);
+    idxSystem.start();
+    final Query q = new TermQuery(new Term("contents", "zoie"));
+    QueryThread[] queryThreads = new QueryThread[4];
+    for (int i = 0; i < queryThreads.length; i++)
+    {
+      queryThreads[i] = new QueryThread()
+      {
+        public void run()
+        {
+          while(!stop)
+          {
+            List<ZoieIndexReader<IndexReader>> readers = null;
+            try
+            {
+              readers = idxSystem.getIndexReaders();
+              for (ZoieIndexReader<IndexReader> r : readers)
+              {
+                if (r.getRefCount() <= 0) throw new IllegalStateException("closed reader handed out: " + r);
+              }
+              // reads the files of every reader, a closed reader or directory fails here
+              MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+              IndexSearcher searcher = new IndexSearcher(reader);
+              TopDocs hits = searcher.search(q, 100);
+              for (ScoreDoc sd : hits.scoreDocs)
+              {
+                searcher.doc(sd.doc);
+              }
+              searcher.close();
+              reader.close();
+            }
+            catch(Exception e)
+            {
+              e.printStackTrace();
+              exception = e;
+              stop = true;
+            }
+            finally
+            {
+              if (readers != null) idxSystem.returnIndexReaders(readers);
+            }
+          }
+        }
+      };
+    }
+
+    MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>();
+    memoryProvider.setDataConsumer(idxSystem);
+    memoryProvider.start();
+    try
+    {
+      idxSystem.setBatchSize(10);
+      for (QueryThread queryThread : queryThreads) queryThread.start();
+
+      // every batch seals the writable index, the loader retires sealed ones while the searches run
+      long version = 0;
+      for (int round = 0; round < 30; ++round)
+      {
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(20);
+        for (int i = 0; i < 20; ++i)
+        {
+          list.add(new DataEvent<String>(version++, "zoie round" + round + " " + i));
+        }
+        memoryProvider.addEvents(list);
+        if (round % 10 == 9) idxSystem.syncWthVersion(100000, version - 1);
+      }
+      idxSystem.syncWthVersion(100000, version - 1);
+
+      for (QueryThread queryThread : queryThreads) queryThread.stop = true;
+      for (QueryThread queryThread : queryThreads)
+      {
+        queryThread.join();
+        if (queryThread.exception != null) throw queryThread.exception;
+      }
+      assertTrue("nothing was loaded into the disk index", idxSystem.getAdminMBean().getDiskIndexSize() > 0);
+    }
+    finally
+    {
+      for (QueryThread queryThread : queryThreads) queryThread.stop = true;
+      memoryProvider.stop();
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+  public void testConcurrentUpdates() throws Exception
+  {
+    File idxDir = getIdxDir();
+    final ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true, 100);
+    idxSystem.setBatchSize(10);
+    idxSystem.start();
+    final int numUIDs = 10;
+    final Query q = new TermQuery(new Term("contents", "zoie"));
+    MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>();
+    memoryProvider.setDataConsumer(idxSystem);
+    memoryProvider.start();
+    QueryThread[] queryThreads = new QueryThread[4];
+    try
+    {
+      long version = 0;
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(numUIDs);
+      for (int i = 0; i < numUIDs; ++i)
+      {
+        list.add(new DataEvent<String>(version++, "zoie round0 " + i));
+      }
+      memoryProvider.addEvents(list);
+      idxSystem.syncWthVersion(100000, version - 1);
+
+      for (int i = 0; i < queryThreads.length; i++)
+      {
+        queryThreads[i] = new QueryThread()
+        {
+          public void run()
+          {
+            while(!stop)
+            {
+              List<ZoieIndexReader<IndexReader>> readers = null;
+              try
+              {
+                readers = idxSystem.getIndexReaders();
+                MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+                IndexSearcher searcher = new IndexSearcher(reader);
+                int count = searcher.search(q, 100).totalHits;
+                searcher.close();
+                reader.close();
+                if (count != numUIDs)
+                {
+                  mismatch = true;
+                  message = "hit count: " + count + " / expected: " + numUIDs;
+                  stop = true;
+                }
+              }
+              catch(Exception e)
+              {
+                e.printStackTrace();
+                exception = e;
+                stop = true;
+              }
+              finally
+              {
+                if (readers != null) idxSystem.returnIndexReaders(readers);
+              }
+            }
+          }
+        };
+        queryThreads[i].start();
+      }
+
+      // the same uids over and over, updates land while sealed indexes are loaded into the disk index and retired
+      for (int round = 1; round <= 5; ++round)
+      {
+        for (int i = 0; i < numUIDs; ++i)
+        {
+          list = new ArrayList<DataEvent<String>>(1);
+          list.add(new DataEvent<String>(version, "zoie round" + round + " " + i));
+          memoryProvider.addEvents(list);
+          idxSystem.syncWthVersion(100000, version++);
+        }
+      }
+      idxSystem.syncWthVersion(100000, version - 1);
+
+      for (QueryThread queryThread : queryThreads) queryThread.stop = true;
+      for (QueryThread queryThread : queryThreads)
+      {
+        queryThread.join();
+        if (queryThread.exception != null) throw queryThread.exception;
+        assertFalse(queryThread.message, queryThread.mismatch);
+      }
+      assertEquals(numUIDs, countHits(idxSystem, q));
+      assertTrue("nothing was loaded into the disk index", idxSystem.getAdminMBean().getDiskIndexSize() > 0);
+    }
+    finally
+    {
+      for (QueryThread queryThread : queryThreads)
+      {
+        if (queryThread != null) queryThread.stop = true;
+      }
+      memoryProvider.stop();
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+  /**
+   * Holds every load into the disk index until a permit is released.
+   */
+  private static class GatedDiskLoader extends DiskLuceneIndexDataLoader<IndexReader>
+  {
+    private final Semaphore _gate = new Semaphore(0);
+
+    GatedDiskLoader(SearchIndexManager<IndexReader> idxMgr)
+    {
+      super(new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr);
+      setOptimizeScheduler(new DefaultOptimizeScheduler(null));
+    }
+
+    @Override
+    public void loadFromIndex(RAMSearchIndex<IndexReader> ramIndex) throws ZoieException
+    {
+      _gate.acquireUninterruptibly();
+      super.loadFromIndex(ramIndex);
+    }
+  }
+
+  public void testSpillSealed() throws Exception
+  {
+    File idxDir = getIdxDir();
+    File spillDir = new File(idxDir.getParentFile(), idxDir.getName() + "-spill");
+    final SearchIndexManager<IndexReader> idxMgr = new SearchIndexManager<IndexReader>(new DefaultDirectoryManager(idxDir), new TestIndexReaderDecorator());
+    idxMgr.setSpillDirectory(spillDir);
+    GatedDiskLoader diskLoader = new GatedDiskLoader(idxMgr);
+    final RealtimeIndexDataLoader<IndexReader,String> loader = new RealtimeIndexDataLoader<IndexReader,String>(diskLoader, 10, 10, 100,
+        new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr, new TestDataInterpreter(),
+        new ConcurrentLinkedQueue<IndexingEventListener>());
+    loader.setMaxSealedMemoryIndexes(3);
+    loader.setMaxSpilledMemoryIndexes(1);
+    loader.start();
+    final Exception[] error = new Exception[1];
+    Thread producer = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          for (int batch = 0; batch < 8; ++batch)
+          {
+            List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(10);
+            for (int i = 0; i < 10; ++i)
+            {
+              int uid = batch * 10 + i;
+              list.add(new DataEvent<String>(uid, "zoie " + uid));
+            }
+            loader.consume(list);
+          }
+        }
+        catch (Exception e)
+        {
+          error[0] = e;
+        }
+      }
+    };
+    try
+    {
+      producer.start();
+      // three sealed indexes in memory, the first one held in its load, the producer waits for memory
+      long timeout = System.currentTimeMillis() + 10000;
+      while (loader.getCurrentBatchSize() < 20 && System.currentTimeMillis() < timeout) Thread.sleep(10);
+      assertEquals(20, loader.getCurrentBatchSize());
+      assertEquals(3, idxMgr.getSealedMemoryIndexCount());
+      assertEquals("spilled before the loader got to it", 0, idxMgr.getSpilledMemoryIndexCount());
+
+      // the loader spills between two loads, at most one index
+      diskLoader._gate.release();
+      timeout = System.currentTimeMillis() + 10000;
+      while (idxMgr.getSpilledMemoryIndexCount() == 0 && System.currentTimeMillis() < timeout) Thread.sleep(10);
+      assertEquals(1, idxMgr.getSpilledMemoryIndexCount());
+      assertEquals(1, spillDir.listFiles().length);
+      Thread.sleep(200);
+      assertEquals(1, idxMgr.getSpilledMemoryIndexCount());
+      assertTrue(idxMgr.getSealedMemoryIndexCount() <= 4);
+
+      diskLoader._gate.release(1000);
+      producer.join(10000);
+      if (error[0] != null) throw error[0];
+      loader.flushEvents(10000);
+      assertEquals(80, idxMgr.getDiskIndexSize());
+      assertEquals(0, idxMgr.getSpilledMemoryIndexCount());
+      assertEquals("spill directory left behind", 0, spillDir.listFiles().length);
+      assertEquals(0, idxMgr.getUndeletedSpillDirCount());
+    }
+    finally
+    {
+      diskLoader._gate.release(1000);
+      loader.shutdown();
+      idxMgr.close();
+      deleteDirectory(spillDir);
+      deleteDirectory(idxDir);
+    }
+  }
+  /**
+   * Hands out the readers queued in <code>_next</code>, then <code>_current</code>, and counts the sets not given back.
+   */
+  private static class ScriptedReaderFactory implements IndexReaderFactory<IndexReader>
+  {
+    final LinkedList<List<IndexReader>> _next = new LinkedList<List<IndexReader>>();
+    List<IndexReader> _current;
+    int _outstanding = 0;
+
+    public synchronized List<IndexReader> getIndexReaders()
+    {
+      _outstanding++;
+      return new ArrayList<IndexReader>(_next.isEmpty() ? _current : _next.removeFirst());
+    }
+
+    public Analyzer getAnalyzer()
+    {
+      return new WhitespaceAnalyzer();
+    }
+
+    public synchronized void returnIndexReaders(List<IndexReader> r)
+    {
+      _outstanding--;
+    }
+  }
+
+  public void testSearcherManager() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+    Document doc = new Document();
+    doc.add(new Field("contents", "zoie", Field.Store.NO, Field.Index.ANALYZED));
+    writer.addDocument(doc);
+    writer.close();
+    IndexReader reader1 = IndexReader.open(dir, true);
+    IndexReader reader2 = IndexReader.open(dir, true);
+    try
+    {
+      ScriptedReaderFactory factory = new ScriptedReaderFactory();
+      List<IndexReader> set1 = Arrays.asList(reader1);
+      List<IndexReader> set2 = Arrays.asList(reader1, reader2);
+      ZoieSearcherManager<IndexReader> manager = new ZoieSearcherManager<IndexReader>(factory);
+
+      factory._current = set1;
+      ZoieSearcherManager.ManagedSearcher<IndexReader> searcher1 = manager.acquire();
+      assertEquals(1, searcher1.getSearcher().search(new TermQuery(new Term("contents", "zoie")), 10).totalHits);
+      ZoieSearcherManager.ManagedSearcher<IndexReader> shared = manager.acquire();
+      assertSame("the same reader set shares its searcher", searcher1, shared);
+      manager.release(shared);
+
+      factory._current = set2;
+      ZoieSearcherManager.ManagedSearcher<IndexReader> searcher2 = manager.acquire();
+      assertNotSame(searcher1, searcher2);
+      assertTrue(searcher2.getGeneration() > searcher1.getGeneration());
+      assertEquals(2, searcher2.getSearcher().search(new TermQuery(new Term("contents", "zoie")), 10).totalHits);
+
+      // a search that got the older set late does not publish it again
+      factory._next.add(set1);
+      ZoieSearcherManager.ManagedSearcher<IndexReader> late = manager.acquire();
+      assertSame(searcher2, late);
+      manager.release(late);
+      ZoieSearcherManager.ManagedSearcher<IndexReader> current = manager.acquire();
+      assertSame(searcher2, current);
+      manager.release(current);
+
+      // the replaced searcher gives its readers back once its last search is done
+      assertEquals(2, factory._outstanding);
+      manager.release(searcher1);
+      assertEquals(1, factory._outstanding);
+
+      manager.close();
+      assertEquals("a running search keeps the searcher", 1, factory._outstanding);
+      manager.release(searcher2);
+      assertEquals(0, factory._outstanding);
+      try
+      {
+        manager.acquire();
+        fail("acquired from a closed manager");
+      }
+      catch (IllegalStateException e)
+      {
+        // expected
+      }
+      assertEquals(0, factory._outstanding);
+    }
+    finally
+    {
+      reader1.close();
+      reader2.close();
+    }
+  }
+  // documents that have the uid term and are neither deleted nor replaced
+  private static int uidTermDocCount(List<ZoieIndexReader<IndexReader>> readers, long uid) throws IOException
+  {
+    int count = 0;
+    for (ZoieIndexReader<IndexReader> reader : readers)
+    {
+      // the segment readers hide the replaced documents
+      ZoieIndexReader<IndexReader>[] subReaders = reader.getSequentialSubReaders();
+      if (subReaders == null) continue;
+      for (ZoieIndexReader<IndexReader> subReader : subReaders)
+      {
+        TermDocs td = subReader.termDocs(ZoieSegmentReader.getUIDTerm(uid));
+        try
+        {
+          while (td.next()) count++;
+        }
+        finally
+        {
+          td.close();
+        }
+      }
+    }
+    return count;
+  }
+
+  public void testUIDTerm() throws Exception
+  {
+    File idxDir = getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true);
+    idxSystem.setBatchSize(1000);
+    // the writable RAM index is only sealed by flushEvents
+    idxSystem.getAdminMBean().setBatchDelay(600000);
+    idxSystem.start();
+    MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>();
+    memoryProvider.setDataConsumer(idxSystem);
+    memoryProvider.start();
+    final int numUIDs = 10;
+    try
+    {
+      assertTrue(idxSystem.isIndexUIDTerm());
+      long version = 0;
+      for (int round = 0; round < 4; ++round)
+      {
+        if (round == 2)
+        {
+          // the current writable RAM index keeps its format
+          idxSystem.setIndexUIDTerm(false);
+        }
+        else if (round == 3)
+        {
+          // seals it, the next one has no uid terms
+          idxSystem.flushEvents(10000);
+        }
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(numUIDs);
+        for (int i = 0; i < numUIDs; ++i)
+        {
+          list.add(new DataEvent<String>(version++, "zoie round" + round + " " + i));
+        }
+        memoryProvider.addEvents(list);
+        idxSystem.syncWthVersion(10000, version - 1);
+
+        // updates in the RAM index are deleted by their uid payloads when there is no uid term
+        assertEquals(numUIDs, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+        assertEquals(numUIDs, countHits(idxSystem, new TermQuery(new Term("contents", "round" + round))));
+        for (int r = 0; r < round; ++r)
+        {
+          assertEquals(0, countHits(idxSystem, new TermQuery(new Term("contents", "round" + r))));
+        }
+
+        List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+        try
+        {
+          for (int i = 0; i < numUIDs; ++i)
+          {
+            long uid = (long)Integer.MAX_VALUE * 2L + i;
+            assertEquals("uid term of " + uid + " in round " + round, round == 3 ? 0 : 1, uidTermDocCount(readers, uid));
+          }
+        }
+        finally
+        {
+          idxSystem.returnIndexReaders(readers);
+        }
+      }
+    }
+    finally
+    {
+      memoryProvider.stop();
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+  private static final class CollectingConsumer implements DataConsumer<String>
+  {
+    private final List<DataEvent<String>> _events = new ArrayList<DataEvent<String>>();
+
+    public synchronized void consume(Collection<DataEvent<String>> data)
+    {
+      _events.addAll(data);
+    }
+
+    public synchronized long getVersion()
+    {
+      return _events.isEmpty() ? -1L : _events.get(_events.size() - 1).getVersion();
+    }
+
+    synchronized int size()
+    {
+      return _events.size();
+    }
+
+    synchronized List<DataEvent<String>> getEvents()
+    {
+      return new ArrayList<DataEvent<String>>(_events);
+    }
+  }
+
+  private static int countJournalSegments(File dir)
+  {
+    int count = 0;
+    for (String name : dir.list())
+    {
+      if (name.endsWith(".journal")) count++;
+    }
+    return count;
+  }
+
+  public void testEventJournal() throws Exception
+  {
+    SerializableEventCodec<String> codec = new SerializableEventCodec<String>();
+    assertEquals("zoie 1", codec.decode(codec.encode("zoie 1")));
+    assertEquals("", codec.decode(codec.encode("")));
+
+    File journalDir = getIdxDir();
+    journalDir.mkdirs();
+    try
+    {
+      // small segments, so the events are spread over several of them
+      EventJournal<String> journal = new EventJournal<String>(journalDir, codec, 512);
+      journal.start();
+      int count = 100;
+      for (int i = 0; i < count; i += 10)
+      {
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(10);
+        for (int j = i; j < i + 10; ++j)
+        {
+          list.add(new DataEvent<String>(j, "zoie " + j));
+        }
+        journal.append(list);
+      }
+      journal.close();
+      int segments = countJournalSegments(journalDir);
+      assertTrue("events in one segment", segments > 2);
+
+      journal = new EventJournal<String>(journalDir, codec, 512);
+      CollectingConsumer consumer = new CollectingConsumer();
+      assertEquals(50, journal.replay(49, consumer, 7));
+      assertEquals(50, consumer.getEvents().size());
+      for (int i = 0; i < 50; ++i)
+      {
+        DataEvent<String> event = consumer.getEvents().get(i);
+        assertEquals(50L + i, event.getVersion());
+        assertEquals("zoie " + (50 + i), event.getData());
+      }
+
+      // only segments that are fully in the index go
+      journal.truncate(59);
+      int truncated = countJournalSegments(journalDir);
+      assertTrue(truncated < segments);
+      consumer = new CollectingConsumer();
+      int replayed = journal.replay(-1L, consumer, 100);
+      assertTrue(replayed >= 40 && replayed < count);
+      assertEquals(count - replayed, consumer.getEvents().get(0).getVersion());
+      assertEquals(count - 1L, consumer.getVersion());
+      journal.truncate(59);
+      assertEquals(truncated, countJournalSegments(journalDir));
+      journal.close();
+    }
+    finally
+    {
+      deleteDirectory(journalDir);
+    }
+  }
+
+  public void testEventJournalReplay() throws Exception
+  {
+    File journalDir = getIdxDir();
+    journalDir.mkdirs();
+    File idxDir = getIdxDir();
+    try
+    {
+      // events that were journaled, but never indexed; version 0 is the one of an empty index
+      EventJournal<String> journal = new EventJournal<String>(journalDir, new SerializableEventCodec<String>());
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(TestData.testdata.length);
+      for (int i = 0; i < TestData.testdata.length; ++i)
+      {
+        list.add(new DataEvent<String>(i + 1, TestData.testdata[i]));
+      }
+      journal.append(list);
+      journal.close();
+
+      ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true);
+      idxSystem.setEventJournal(new EventJournal<String>(journalDir, new SerializableEventCodec<String>()));
+      idxSystem.start();
+      try
+      {
+        idxSystem.syncWthVersion(10000, TestData.testdata.length);
+        assertEquals(TestData.testdata.length, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+      }
+      finally
+      {
+        idxSystem.shutdown();
+      }
+
+      // a journal that cannot be replayed fails the start
+      journal = new EventJournal<String>(journalDir, new SerializableEventCodec<String>());
+      list = new ArrayList<DataEvent<String>>(1);
+      list.add(new DataEvent<String>(1000, "zoie 1000"));
+      journal.append(list);
+      journal.close();
+      idxSystem = createZoie(idxDir, true);
+      idxSystem.setEventJournal(new EventJournal<String>(journalDir, new SerializableEventCodec<String>()
+      {
+        public String decode(byte[] bytes) throws IOException
+        {
+          throw new IOException("corrupt event");
+        }
+      }));
+      try
+      {
+        idxSystem.start();
+        fail("started with a journal that cannot be replayed");
+      }
+      catch (IllegalStateException e)
+      {
+        // expected
+      }
+      finally
+      {
+        idxSystem.getEventJournal().close();
+        idxSystem.shutdown();
+      }
+    }
+    finally
+    {
+      deleteDirectory(journalDir);
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testTokenBucket() throws Exception
+  {
+    // 1000 tokens a second, one second worth of burst
+    TokenBucket bucket = new TokenBucket(60000);
+    assertEquals(1000L, bucket.getBurst());
+    assertEquals(0L, bucket.acquire(1000));
+    long waitNanos = bucket.acquire(1);
+    assertTrue(waitNanos > 0L && waitNanos <= 1000000L);
+
+    // refills at the rate
+    Thread.sleep(50);
+    assertEquals(0L, bucket.acquire(20));
+
+    // never more than the burst after an idle period
+    bucket.setBurst(50);
+    Thread.sleep(200);
+    assertEquals(0L, bucket.acquire(50));
+    assertTrue(bucket.acquire(1) > 0L);
+
+    // a batch over the burst is taken from a full bucket and paid back afterwards
+    Thread.sleep(100);
+    assertEquals(0L, bucket.acquire(100));
+    assertTrue(bucket.acquire(1) > 40L * 1000000L);
+
+    bucket.setRatePerMinute(0);
+    assertEquals(0L, bucket.acquire(1000000));
+
+    // a provider takes its tokens a batch at a time and keeps to the rate
+    final int count = 600;
+    StreamDataProvider<Integer> provider = new StreamDataProvider<Integer>()
+    {
+      private int _next = 0;
+      public DataEvent<Integer> next()
+      {
+        return (_next < count ? new DataEvent<Integer>(_next, _next++) : null);
+      }
+      public void reset()
+      {
+        _next = 0;
+      }
+    };
+    MockDataLoader<Integer> consumer = new MockDataLoader<Integer>();
+    provider.setDataConsumer(consumer);
+    provider.setBatchSize(50);
+    provider.setMaxEventsPerMinute(60000);
+    provider.setMaxEventsBurst(100);
+    long start = System.currentTimeMillis();
+    provider.start();
+    try
+    {
+      provider.syncWthVersion(10000, count - 1);
+      // 100 right away, the other 500 at 1000 a second
+      assertTrue("too fast", System.currentTimeMillis() - start >= 400);
+      while (provider.isRunning()) Thread.sleep(10);
+      assertEquals(count, consumer.getCount());
+    }
+    finally
+    {
+      provider.stop();
+    }
+  }
+
+  /**
+   * A table of (version, data) rows behind JDBC proxies, queried for the rows after a version, in version order.
+   */
+  private static final class TableStatementBuilder implements PagedPreparedStatementBuilder<String>, JDBCConnectionFactory
+  {
+    private final long[] _versions;
+    private final String[] _data;
+
+    TableStatementBuilder(long[] versions, String[] data)
+    {
+      _versions = versions;
+      _data = data;
+    }
+
+    public Connection getConnection()
+    {
+      return (Connection)proxy(Connection.class, new InvocationHandler()
+      {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+          return null; // close()
+        }
+      });
+    }
+
+    public PreparedStatement buildStatment(Connection conn, long fromVersion) throws SQLException
+    {
+      return buildStatment(conn, fromVersion, Integer.MAX_VALUE);
+    }
+
+    public PreparedStatement buildStatment(Connection conn, final long fromVersion, final int limit) throws SQLException
+    {
+      return (PreparedStatement)proxy(PreparedStatement.class, new InvocationHandler()
+      {
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+          if (!method.getName().equals("executeQuery")) return null; // setFetchSize(), close()
+          final ArrayList<Integer> rows = new ArrayList<Integer>();
+          for (int i = 0; i < _versions.length && rows.size() < limit; ++i)
+          {
+            if (_versions[i] > fromVersion) rows.add(i);
+          }
+          return proxy(ResultSet.class, new InvocationHandler()
+          {
+            private int _pos = -1;
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+              String name = method.getName();
+              if (name.equals("next")) return Boolean.valueOf(++_pos < rows.size());
+              if (name.equals("getLong")) return Long.valueOf(_versions[rows.get(_pos)]);
+              if (name.equals("getString")) return _data[rows.get(_pos)];
+              return null; // close()
+            }
+          });
+        }
+      });
+    }
+
+    public DataEvent<String> buildDataEvent(ResultSet rs) throws SQLException
+    {
+      return new DataEvent<String>(rs.getLong("version"), rs.getString("data"));
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler)
+    {
+      return Proxy.newProxyInstance(ZoieTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+  }
+
+  public void testJDBCStreamDataProvider() throws Exception
+  {
+    // pages of 3 rows end in the middle of versions 2, 5 and 6, and version 5 alone fills a page
+    long[] versions = { 1, 2, 2, 2, 3, 3, 4, 5, 5, 5, 5, 5, 6, 6 };
+    String[] data = new String[versions.length];
+    for (int i = 0; i < data.length; ++i)
+    {
+      data[i] = "row" + i;
+    }
+    TableStatementBuilder table = new TableStatementBuilder(versions, data);
+    JDBCStreamDataProvider<String> provider = new JDBCStreamDataProvider<String>(table, table);
+    provider.setPageSize(3);
+    provider.setPullTime(10);
+    provider.setBatchSize(1);
+    CollectingConsumer consumer = new CollectingConsumer();
+    provider.setDataConsumer(consumer);
+    provider.start();
+    try
+    {
+      provider.syncWthVersion(10000, 6);
+      long due = System.currentTimeMillis() + 10000;
+      while (consumer.size() < data.length && System.currentTimeMillis() < due)
+      {
+        Thread.sleep(10);
+      }
+      Thread.sleep(100); // no row comes twice
+      List<DataEvent<String>> events = consumer.getEvents();
+      assertEquals(data.length, events.size());
+      for (int i = 0; i < data.length; ++i)
+      {
+        assertEquals(versions[i], events.get(i).getVersion());
+        assertEquals(data[i], events.get(i).getData());
+      }
+    }
+    finally
+    {
+      provider.stop();
+    }
+  }
+
+  private static List<DataEvent<String>> bulkEvents(long version, String... data)
+  {
+    List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(data.length);
+    for (String src : data)
+    {
+      list.add(new DataEvent<String>(version++, src));
+    }
+    return list;
+  }
+
+  public void testBulkLoad() throws Exception
+  {
+    // "delete <n>" deletes uid n
+    final ZoieIndexableInterpreter<String> interpreter = new TestDataInterpreter(0);
+    File idxDir = getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem = new ZoieSystem<IndexReader,String>(idxDir, new ZoieIndexableInterpreter<String>()
+    {
+      public ZoieIndexable convertAndInterpret(final String src)
+      {
+        final ZoieIndexable indexable = interpreter.convertAndInterpret(src);
+        return new ZoieIndexable()
+        {
+          public IndexingReq[] buildIndexingReqs()
+          {
+            return indexable.buildIndexingReqs();
+          }
+          public long getUID()
+          {
+            return indexable.getUID();
+          }
+          public boolean isDeleted()
+          {
+            return src.startsWith("delete");
+          }
+          public boolean isSkip()
+          {
+            return false;
+          }
+        };
+      }
+    }, new TestIndexReaderDecorator(), null, null, 50, 100, true);
+    idxSystem.start();
+    try
+    {
+      idxSystem.consume(bulkEvents(1, "disk 0", "disk 1", "disk 2", "disk 3", "disk 4"));
+
+      idxSystem.startBulkLoad(2, 16);
+      assertTrue(idxSystem.isBulkLoading());
+      // uids 5 to 14, an update of disk uid 0 and a delete of disk uid 1
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+      for (int i = 5; i < 15; ++i)
+      {
+        list.add(new DataEvent<String>(5 + i, "first " + i));
+      }
+      list.add(new DataEvent<String>(20, "first 0"));
+      list.add(new DataEvent<String>(21, "delete 1"));
+      idxSystem.consume(list);
+      idxSystem.flushEvents(10000);
+      // updates and deletes of uids already in the scratch indexes, and of disk uid 2
+      idxSystem.consume(bulkEvents(22, "second 5", "delete 6", "second 2", "delete 7"));
+      idxSystem.flushEvents(10000);
+      idxSystem.consume(bulkEvents(26, "third 7", "third 5"));
+      idxSystem.finishBulkLoad();
+      assertFalse(idxSystem.isBulkLoading());
+      assertEquals(27L, idxSystem.getCurrentDiskVersion());
+
+      // 0, 8 to 14 / 2 / 5, 7 / 3, 4
+      assertEquals(8, countHits(idxSystem, new TermQuery(new Term("contents", "first"))));
+      assertEquals(1, countHits(idxSystem, new TermQuery(new Term("contents", "second"))));
+      assertEquals(2, countHits(idxSystem, new TermQuery(new Term("contents", "third"))));
+      assertEquals(2, countHits(idxSystem, new TermQuery(new Term("contents", "disk"))));
+
+      long base = (long)Integer.MAX_VALUE * 2L;
+      LongOpenHashSet uids = new LongOpenHashSet();
+      int numDocs = 0;
+      List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      try
+      {
+        for (ZoieIndexReader<IndexReader> reader : readers)
+        {
+          for (int doc = 0; doc < reader.maxDoc(); ++doc)
+          {
+            if (reader.isDeleted(doc)) continue;
+            uids.add(reader.getUID(doc));
+            numDocs++;
+          }
+        }
+      }
+      finally
+      {
+        idxSystem.returnIndexReaders(readers);
+      }
+      assertEquals("duplicate uids", uids.size(), numDocs);
+      assertEquals(13, numDocs);
+      assertFalse(uids.contains(base + 1));
+      assertFalse(uids.contains(base + 6));
+      assertTrue(uids.contains(base + 7));
+
+      // back to normal indexing
+      idxSystem.consume(bulkEvents(28, "fourth 3"));
+      idxSystem.syncWthVersion(10000, 28);
+      assertEquals(1, countHits(idxSystem, new TermQuery(new Term("contents", "disk"))));
+      assertEquals(1, countHits(idxSystem, new TermQuery(new Term("contents", "fourth"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  private static void addIdDocuments(Directory dir, boolean create, long... uids) throws IOException
+  {
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), create, IndexWriter.MaxFieldLength.UNLIMITED);
+    for (long uid : uids)
+    {
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, uid);
+      doc.add(new Field("id", String.valueOf(uid), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+    }
+    writer.close();
+  }
+
+  private static void deleteIdDocument(Directory dir, long uid) throws IOException
+  {
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), false, IndexWriter.MaxFieldLength.UNLIMITED);
+    writer.deleteDocuments(new Term("id", String.valueOf(uid)));
+    writer.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testSegmentDocIDMappers() throws Exception
+  {
+    RAMDirectory dir = new RAMDirectory();
+    // two segments, uids 0 to 4 and 10 to 14
+    addIdDocuments(dir, true, 0, 1, 2, 3, 4);
+    addIdDocuments(dir, false, 10, 11, 12, 13, 14);
+
+    DefaultDocIDMapperFactory factory = new DefaultDocIDMapperFactory();
+    ZoieMultiReader<IndexReader> reader = (ZoieMultiReader<IndexReader>)ZoieIndexReader.open(dir, new DefaultIndexReaderDecorator());
+    ZoieMultiReader<IndexReader> reopened = null;
+    ZoieMultiReader<IndexReader> reopened2 = null;
+    try
+    {
+      ZoieIndexReader<IndexReader>[] segments = reader.getSequentialSubReaders();
+      assertEquals(2, segments.length);
+      ZoieSegmentReader<IndexReader> seg0 = (ZoieSegmentReader<IndexReader>)segments[0];
+      ZoieSegmentReader<IndexReader> seg1 = (ZoieSegmentReader<IndexReader>)segments[1];
+      long uidArraySize = 8L * 5;
+      assertEquals("mapper built before use", uidArraySize, seg0.getUIDMemorySize());
+      assertEquals("mapper built before use", uidArraySize, seg1.getUIDMemorySize());
+
+      reader.setDocIDMapper(factory.getDocIDMapper(reader));
+      DocIDMapper mapper = reader.getDocIDMaper();
+      assertEquals(7, mapper.getDocID(12));
+      assertEquals("segment out of the uid range built its mapper", uidArraySize, seg0.getUIDMemorySize());
+      assertTrue(seg1.getUIDMemorySize() > uidArraySize);
+      assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(7));
+      assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(100));
+      assertEquals(3, mapper.getDocID(3));
+      assertTrue(seg0.getUIDMemorySize() > uidArraySize);
+
+      // only deletes in the second segment: its uids and mapper are kept, deleted documents are hidden
+      deleteIdDocument(dir, 11);
+      reopened = (ZoieMultiReader<IndexReader>)reader.reopen(true);
+      reopened.setDocIDMapper(factory.getDocIDMapper(reopened));
+      ZoieSegmentReader<IndexReader> reopenedSeg1 = (ZoieSegmentReader<IndexReader>)reopened.getSequentialSubReaders()[1];
+      assertNotSame(seg1, reopenedSeg1);
+      assertSame(seg1.getUIDArray(), reopenedSeg1.getUIDArray());
+      assertEquals("mapper rebuilt", seg1.getUIDMemorySize(), reopenedSeg1.getUIDMemorySize());
+      mapper = reopened.getDocIDMaper();
+      assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(11));
+      assertEquals(7, mapper.getDocID(12));
+      assertEquals(3, mapper.getDocID(3));
+      assertEquals("old reader sees the delete", 6, reader.getDocIDMaper().getDocID(11));
+
+      // a second delete only reopen still shares the uids of the first reader
+      deleteIdDocument(dir, 13);
+      reopened2 = (ZoieMultiReader<IndexReader>)reopened.reopen(true);
+      reopened2.setDocIDMapper(factory.getDocIDMapper(reopened2));
+      mapper = reopened2.getDocIDMaper();
+      assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(11));
+      assertEquals(DocIDMapper.NOT_FOUND, mapper.getDocID(13));
+      assertEquals(9, mapper.getDocID(14));
+      assertEquals(8, reopened.getDocIDMaper().getDocID(13));
+      assertSame(seg1.getUIDArray(), ((ZoieSegmentReader<IndexReader>)reopened2.getSequentialSubReaders()[1]).getUIDArray());
+    }
+    finally
+    {
+      if (reopened2 != null) reopened2.close();
+      if (reopened != null) reopened.close();
+      reader.close();
+    }
+  }
+
+  /**
+   * Reports a RAM size set by the test instead of the one of its RAM indexes.
+   */
+  private static class SizedIndexManager extends SearchIndexManager<IndexReader>
+  {
+    volatile long _ramSize = 0L;
+
+    SizedIndexManager(File idxDir)
+    {
+      super(new DefaultDirectoryManager(idxDir), new TestIndexReaderDecorator());
+    }
+
+    @Override
+    public long getRamASizeInBytes()
+    {
+      return _ramSize;
+    }
+
+    @Override
+    public long getRamBSizeInBytes()
+    {
+      return 0L;
+    }
+  }
+
+  public void testRamWatermarks() throws Exception
+  {
+    File idxDir = getIdxDir();
+    SizedIndexManager idxMgr = new SizedIndexManager(idxDir);
+    DiskLuceneIndexDataLoader<IndexReader> diskLoader = new DiskLuceneIndexDataLoader<IndexReader>(
+        new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr);
+    diskLoader.setOptimizeScheduler(new DefaultOptimizeScheduler(null));
+    final RealtimeIndexDataLoader<IndexReader,String> loader = new RealtimeIndexDataLoader<IndexReader,String>(diskLoader, 1000, 1000, 100000,
+        new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr, new TestDataInterpreter(0),
+        new ConcurrentLinkedQueue<IndexingEventListener>());
+    // far above what the real RAM indexes hold, so only the size set by the test counts
+    long low = 1L << 40;
+    long high = 2L << 40;
+    loader.setRamLowWatermark(low);
+    loader.setRamHighWatermark(high);
+    loader.start();
+
+    final Semaphore go = new Semaphore(0);
+    final Semaphore done = new Semaphore(0);
+    final Exception[] error = new Exception[1];
+    Thread producer = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          for (int batch = 0; batch < 4; ++batch)
+          {
+            go.acquire();
+            List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(10);
+            for (int i = 0; i < 10; ++i)
+            {
+              int uid = batch * 10 + i;
+              list.add(new DataEvent<String>(uid, "zoie " + uid));
+            }
+            loader.consume(list);
+            done.release();
+          }
+        }
+        catch (Exception e)
+        {
+          error[0] = e;
+        }
+      }
+    };
+    producer.setDaemon(true);
+    try
+    {
+      producer.start();
+      go.release();
+      assertTrue("blocked under the watermarks", done.tryAcquire(10, TimeUnit.SECONDS));
+
+      idxMgr._ramSize = high;
+      go.release();
+      assertFalse("not blocked at the high watermark", done.tryAcquire(300, TimeUnit.MILLISECONDS));
+
+      // setting a watermark wakes up the producer to check the size again
+      idxMgr._ramSize = (low + high) / 2;
+      loader.setRamHighWatermark(high);
+      assertFalse("resumed above the low watermark", done.tryAcquire(300, TimeUnit.MILLISECONDS));
+
+      idxMgr._ramSize = low;
+      loader.setRamHighWatermark(high);
+      assertTrue("not resumed at the low watermark", done.tryAcquire(10, TimeUnit.SECONDS));
+
+      // between the watermarks again, but only reaching the high one blocks
+      idxMgr._ramSize = (low + high) / 2;
+      go.release();
+      assertTrue("blocked under the high watermark", done.tryAcquire(10, TimeUnit.SECONDS));
+
+      idxMgr._ramSize = 0L;
+      go.release();
+      assertTrue(done.tryAcquire(10, TimeUnit.SECONDS));
+      if (error[0] != null) throw error[0];
+      loader.flushEvents(10000);
+      assertEquals(40, idxMgr.getDiskIndexSize());
+    }
+    finally
+    {
+      go.release(4);
+      loader.shutdown();
+      idxMgr.close();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testRamHighWatermark() throws Exception
+  {
+    File idxDir = getIdxDir();
+    SizedIndexManager idxMgr = new SizedIndexManager(idxDir);
+    DiskLuceneIndexDataLoader<IndexReader> diskLoader = new DiskLuceneIndexDataLoader<IndexReader>(
+        new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr);
+    diskLoader.setOptimizeScheduler(new DefaultOptimizeScheduler(null));
+    final RealtimeIndexDataLoader<IndexReader,String> loader = new RealtimeIndexDataLoader<IndexReader,String>(diskLoader, 1000, 1000, 100000,
+        new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr, new TestDataInterpreter(0),
+        new ConcurrentLinkedQueue<IndexingEventListener>());
+    // no low watermark, producers resume as soon as the size is under the high one
+    long high = 1L << 40;
+    loader.setRamHighWatermark(high);
+    loader.start();
+
+    final Semaphore go = new Semaphore(0);
+    final Semaphore done = new Semaphore(0);
+    final Exception[] error = new Exception[1];
+    Thread producer = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          for (int batch = 0; batch < 2; ++batch)
+          {
+            go.acquire();
+            List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(10);
+            for (int i = 0; i < 10; ++i)
+            {
+              int uid = batch * 10 + i;
+              list.add(new DataEvent<String>(uid, "zoie " + uid));
+            }
+            loader.consume(list);
+            done.release();
+          }
+        }
+        catch (Exception e)
+        {
+          error[0] = e;
+        }
+      }
+    };
+    producer.setDaemon(true);
+    try
+    {
+      producer.start();
+      idxMgr._ramSize = high;
+      go.release();
+      assertFalse("not blocked at the high watermark", done.tryAcquire(300, TimeUnit.MILLISECONDS));
+
+      // still far from empty, but under the high watermark
+      idxMgr._ramSize = high - 1;
+      loader.setRamHighWatermark(high);
+      assertTrue("not resumed under the high watermark", done.tryAcquire(10, TimeUnit.SECONDS));
+
+      go.release();
+      assertTrue("blocked under the high watermark", done.tryAcquire(10, TimeUnit.SECONDS));
+      if (error[0] != null) throw error[0];
+      loader.flushEvents(10000);
+      assertEquals(20, idxMgr.getDiskIndexSize());
+    }
+    finally
+    {
+      go.release(2);
+      loader.shutdown();
+      idxMgr.close();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testIndexingContext() throws Exception
+  {
+    IndexingContext ctx = new IndexingContext();
+    Document doc = ctx.newDocument();
+    Field contents = ctx.newField("contents", "first", Field.Store.NO, Field.Index.ANALYZED);
+    contents.setBoost(2.0f);
+    doc.add(contents);
+    doc.add(ctx.newField("tag", "even", Field.Store.YES, Field.Index.NOT_ANALYZED));
+    ctx.fillDocumentID(doc, 2L);
+    doc.setBoost(3.0f);
+    Document other = ctx.newDocument();
+    assertNotSame(doc, other);
+    Field otherContents = ctx.newField("contents", "second", Field.Store.NO, Field.Index.ANALYZED);
+    assertNotSame("field shared by two documents", contents, otherContents);
+    other.add(otherContents);
+    assertEquals("first", contents.stringValue());
+    ctx.reset();
+
+    // same instances, nothing left of the previous documents
+    Document reused = ctx.newDocument();
+    assertSame(doc, reused);
+    assertTrue(reused.getFields().isEmpty());
+    assertEquals(1.0f, reused.getBoost());
+    Field reusedContents = ctx.newField("contents", "third", Field.Store.NO, Field.Index.ANALYZED);
+    assertSame(contents, reusedContents);
+    assertEquals("third", reusedContents.stringValue());
+    assertEquals(1.0f, reusedContents.getBoost());
+    reused.add(reusedContents);
+    // other options get another field
+    Field tag = ctx.newField("tag", "odd", Field.Store.NO, Field.Index.NOT_ANALYZED);
+    assertFalse(tag.isStored());
+    reused.add(tag);
+    ctx.fillDocumentID(reused, 3L);
+    assertEquals("odd", reused.get("tag"));
+    assertEquals(1, reused.getFields("contents").length);
+    assertEquals(1, reused.getFields("tag").length);
+    assertEquals(1, reused.getFields(AbstractZoieIndexable.DOCUMENT_ID_PAYLOAD_FIELD).length);
+    ctx.reset();
+  }
+
+  /**
+   * Builds its documents from the indexing context. Even uids are tagged, odd ones are not, and only even tags are stored.
+   */
+  private static final class ReusableTestInterpreter implements ZoieIndexableInterpreter<String>
+  {
+    public ZoieIndexable convertAndInterpret(final String src)
+    {
+      String[] parts = src.split(" ");
+      final long uid = Long.parseLong(parts[parts.length - 1]);
+      return new ReusableZoieIndexable()
+      {
+        public IndexingReq[] buildIndexingReqs(IndexingContext ctx)
+        {
+          Document doc = ctx.newDocument();
+          doc.add(ctx.newField("contents", src, Field.Store.NO, Field.Index.ANALYZED));
+          doc.add(ctx.newField("id", String.valueOf(uid), Field.Store.YES, Field.Index.NO));
+          if (uid % 2 == 0)
+          {
+            doc.add(ctx.newField("tag", "even", Field.Store.YES, Field.Index.NOT_ANALYZED));
+          }
+          else if (uid % 3 == 0)
+          {
+            doc.add(ctx.newField("tag", "three", Field.Store.NO, Field.Index.NOT_ANALYZED));
+          }
+          return new IndexingReq[] { new IndexingReq(doc) };
+        }
+
+        public IndexingReq[] buildIndexingReqs()
+        {
+          return buildIndexingReqs(new IndexingContext());
+        }
+
+        public long getUID()
+        {
+          return uid;
+        }
+
+        public boolean isDeleted()
+        {
+          return false;
+        }
+
+        public boolean isSkip()
+        {
+          return false;
+        }
+      };
+    }
+  }
+
+  public void testReusableIndexable() throws Exception
+  {
+    File idxDir = getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem = new ZoieSystem<IndexReader,String>(idxDir, new ReusableTestInterpreter(),
+        new TestIndexReaderDecorator(), null, null, 50, 100, true);
+    idxSystem.start();
+    try
+    {
+      int count = 30;
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+      for (int i = 0; i < count; ++i)
+      {
+        list.add(new DataEvent<String>(i, "zoie " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.syncWthVersion(10000, count - 1);
+      assertReusedDocuments(idxSystem, count);
+
+      idxSystem.flushEvents(10000);
+      assertReusedDocuments(idxSystem, count);
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  private static void assertReusedDocuments(ZoieSystem<IndexReader,String> idxSystem, int count) throws IOException
+  {
+    assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+    assertEquals(count / 2, countHits(idxSystem, new TermQuery(new Term("tag", "even"))));
+    assertEquals(count / 6, countHits(idxSystem, new TermQuery(new Term("tag", "three"))));
+    int numDocs = 0;
+    List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+    try
+    {
+      for (ZoieIndexReader<IndexReader> reader : readers)
+      {
+        for (int i = 0; i < reader.maxDoc(); ++i)
+        {
+          if (reader.isDeleted(i)) continue;
+          long uid = reader.getUID(i);
+          Document doc = reader.document(i);
+          assertEquals(String.valueOf(uid), doc.get("id"));
+          assertEquals(1, doc.getValues("id").length);
+          assertEquals("tag of uid " + uid, uid % 2 == 0 ? "even" : null, doc.get("tag"));
+          numDocs++;
+        }
+      }
+    }
+    finally
+    {
+      idxSystem.returnIndexReaders(readers);
+    }
+    assertEquals(count, numDocs);
+  }
+
+  /**
+   * Opens up the batch pool of the loader.
+   */
+  private static class BatchTestLoader extends DiskLuceneIndexDataLoader<IndexReader>
+  {
+    BatchTestLoader(SearchIndexManager<IndexReader> idxMgr)
+    {
+      super(new StandardAnalyzer(Version.LUCENE_CURRENT), new DefaultSimilarity(), idxMgr);
+    }
+
+    IndexingBatch take()
+    {
+      return takeBatch();
+    }
+
+    void giveBack(IndexingBatch batch)
+    {
+      returnBatch(batch);
+    }
+  }
+
+  private static ZoieIndexable batchIndexable(final long uid, final String value, final boolean deleted)
+  {
+    return new ZoieIndexable()
+    {
+      public IndexingReq[] buildIndexingReqs()
+      {
+        Document doc = new Document();
+        doc.add(new Field("value", value, Field.Store.YES, Field.Index.NO));
+        return new IndexingReq[] { new IndexingReq(doc) };
+      }
+      public long getUID()
+      {
+        return uid;
+      }
+      public boolean isDeleted()
+      {
+        return deleted;
+      }
+      public boolean isSkip()
+      {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Checks that the batch holds exactly the given uids, in order, and their last values.
+   */
+  private static void assertBatch(IndexingBatch batch, long[] uids, String[] values)
+  {
+    LongSet uidSet = batch.getUIDs();
+    assertEquals(uids.length, uidSet.size());
+    LongIterator iter = uidSet.iterator();
+    for (long uid : uids)
+    {
+      assertTrue("missing uid " + uid, uidSet.contains(uid));
+      assertEquals(uid, iter.nextLong());
+    }
+    assertFalse(iter.hasNext());
+
+    List<IndexingReq> docs = batch.buildInsertDocs(false);
+    int i = 0;
+    for (int j = 0; j < uids.length; ++j)
+    {
+      if (values[j] == null) continue; // deleted
+      assertEquals("value of uid " + uids[j], values[j], docs.get(i++).getDocument().get("value"));
+    }
+    assertEquals(i, docs.size());
+  }
+
+  public void testIndexingBatch() throws Exception
+  {
+    File idxDir = getIdxDir();
+    SearchIndexManager<IndexReader> idxMgr = new SearchIndexManager<IndexReader>(new DefaultDirectoryManager(idxDir), new TestIndexReaderDecorator());
+    BatchTestLoader loader = new BatchTestLoader(idxMgr);
+    try
+    {
+      // a returned batch is handed out again, cleared; a second taker gets its own
+      IndexingBatch batch = loader.take();
+      IndexingBatch other = loader.take();
+      assertNotSame(batch, other);
+      batch.add(batchIndexable(1L, "stale", false));
+      loader.giveBack(batch);
+      assertSame(batch, loader.take());
+      assertEquals(0, batch.size());
+      assertTrue(batch.getUIDs().isEmpty());
+      assertFalse(batch.getUIDs().contains(1L));
+      assertTrue(batch.buildInsertDocs(false).isEmpty());
+
+      // uids 2^32 apart and uids next to each other, many of them share their first slot,
+      // past the initial capacity so the index grows while uids are replaced
+      int count = 1000;
+      long[] uids = new long[count];
+      String[] values = new String[count];
+      for (int i = 0; i < count; ++i)
+      {
+        uids[i] = (i % 2 == 0 ? (long)i << 32 : i);
+        values[i] = "first " + i;
+        batch.add(batchIndexable(uids[i], values[i], false));
+      }
+      // replace a third of them, delete some; replaced uids move to the end, in the order of their last event
+      long[] expectedUIDs = new long[count];
+      String[] expectedValues = new String[count];
+      int n = 0;
+      for (int i = 0; i < count; ++i)
+      {
+        if (i % 3 != 0)
+        {
+          expectedUIDs[n] = uids[i];
+          expectedValues[n++] = values[i];
+        }
+      }
+      for (int i = 0; i < count; i += 3)
+      {
+        boolean delete = (i % 9 == 0);
+        batch.add(batchIndexable(uids[i], "second " + i, delete));
+        expectedUIDs[n] = uids[i];
+        expectedValues[n++] = (delete ? null : "second " + i);
+      }
+      assertEquals(n, count);
+      assertEquals(count + (count + 2) / 3, batch.size());
+      assertBatch(batch, expectedUIDs, expectedValues);
+      assertFalse(batch.getUIDs().contains(1L << 60));
+      assertFalse(batch.getUIDs().contains(-1L));
+
+      // reused after growing, nothing left of the previous batch
+      loader.giveBack(batch);
+      assertSame(batch, loader.take());
+      assertEquals(0, batch.size());
+      for (int i = 0; i < count; ++i)
+      {
+        assertFalse(batch.getUIDs().contains(uids[i]));
+      }
+      batch.add(batchIndexable(-1L, "negative", false));
+      batch.add(batchIndexable(0L, "zero", false));
+      batch.add(batchIndexable(-1L, "negative again", false));
+      assertBatch(batch, new long[] { 0L, -1L }, new String[] { "zero", "negative again" });
+
+      // a batch that outgrew the retained size starts small again and still works
+      int huge = (1 << 16) + 1;
+      for (int i = 0; i < huge; ++i)
+      {
+        batch.add(batchIndexable(i, "huge", false));
+      }
+      assertEquals(huge + 3, batch.size());
+      assertEquals(huge + 1, batch.getUIDs().size());
+      loader.giveBack(batch);
+      batch = loader.take();
+      batch.add(batchIndexable(7L, "small", false));
+      assertBatch(batch, new long[] { 7L }, new String[] { "small" });
+      loader.giveBack(batch);
+      loader.giveBack(other);
+    }
+    finally
+    {
+      idxMgr.close();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  private static void flushed(ZoieAdaptiveBatchController controller, int numDocs, long start, long duration, int leftInQueue)
+  {
+    controller.handleIndexingEvent(new IndexUpdatedEvent(numDocs, start, start + duration, leftInQueue));
+  }
+
+  public void testAdaptiveBatchController() throws Exception
+  {
+    File idxDir = getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true, 0);
+    idxSystem.start();
+    try
+    {
+      // listens to the flushes of the system it is built on
+      ZoieAdaptiveBatchController wired = new ZoieAdaptiveBatchController(idxSystem);
+      wired.setMinBatchSize(200);
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(100);
+      for (int i = 0; i < 100; ++i)
+      {
+        list.add(new DataEvent<String>(i, "zoie " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(10000);
+      assertTrue("no flush seen", wired.getAdjustmentCount() > 0);
+      assertTrue(idxSystem.getAdminMBean().getBatchSize() >= 200);
+      wired.setEnabled(false);
+
+      idxSystem.getAdminMBean().setBatchSize(50);
+      ZoieAdaptiveBatchController controller = new ZoieAdaptiveBatchController(idxSystem);
+      controller.setMinBatchSize(10);
+      controller.setMaxBatchSize(1000);
+      controller.setMinBatchDelay(10);
+      controller.setMaxBatchDelay(10000);
+      controller.setTargetFlushLatency(1000);
+
+      // 2ms per document, 500 fit into the target latency; no event rate yet, so the longest delay
+      long t = System.currentTimeMillis();
+      flushed(controller, 100, t, 200, 0);
+      assertEquals(500, controller.getBatchSize());
+      assertEquals(10000L, controller.getBatchDelay());
+      t += 1000;
+      flushed(controller, 500, t, 1000, 0);
+      assertEquals(500, controller.getBatchSize());
+      long delay = controller.getBatchDelay();
+      assertTrue("delay " + delay, delay >= 10L && delay < 10000L);
+
+      // a backlog grows the batch, and the latency target does not shrink it back right away
+      t += 2000;
+      flushed(controller, 500, t, 1000, 800);
+      assertEquals(750, controller.getBatchSize());
+      for (int i = 0; i < 3; ++i)
+      {
+        t += 2000;
+        flushed(controller, 500, t, 1000, 0);
+        assertEquals("shrunk after " + (i + 1) + " flushes", 750, controller.getBatchSize());
+      }
+      t += 2000;
+      flushed(controller, 500, t, 1000, 0);
+      assertEquals(500, controller.getBatchSize());
+
+      // small changes of the cost keep the batch size
+      long adjustments = controller.getAdjustmentCount();
+      t += 2000;
+      flushed(controller, 500, t, 1200, 0);
+      assertEquals(500, controller.getBatchSize());
+      assertEquals(adjustments, controller.getAdjustmentCount());
+
+      // cheaper documents grow it once the target is out of the band
+      int flushes = 0;
+      while (controller.getBatchSize() == 500 && flushes < 10)
+      {
+        t += 2000;
+        flushed(controller, 500, t, 500, 0);
+        flushes++;
+      }
+      assertTrue("flushes " + flushes, flushes > 1);
+      assertTrue(controller.getBatchSize() > 600);
+
+      controller.setEnabled(false);
+      int batchSize = controller.getBatchSize();
+      t += 2000;
+      flushed(controller, 500, t, 1000, 5000);
+      assertEquals(batchSize, controller.getBatchSize());
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testSlabDirectory() throws Exception
+  {
+    SlabPool pool = new SlabPool(1024, 1024L * 1024);
+    SlabDirectory dir = new SlabDirectory(pool);
+
+    // a file over three slabs
+    byte[] data = new byte[3000];
+    for (int i = 0; i < data.length; ++i) data[i] = (byte)i;
+    IndexOutput out = dir.createOutput("a");
+    out.writeBytes(data, 0, 100);
+    out.writeByte(data[100]);
+    out.writeBytes(data, 101, data.length - 101);
+    out.close();
+    assertEquals(data.length, dir.fileLength("a"));
+    assertTrue(Arrays.asList(dir.listAll()).contains("a"));
+    assertEquals(3 * 1024L, dir.sizeInBytes());
+    assertEquals(3 * 1024L, pool.getUsedBytes());
+
+    IndexInput in = dir.openInput("a");
+    byte[] read = new byte[data.length];
+    in.readBytes(read, 0, read.length);
+    assertTrue(Arrays.equals(data, read));
+    in.seek(1023);
+    IndexInput clone = (IndexInput)in.clone();
+    assertEquals(data[1023], in.readByte());
+    assertEquals(data[1024], in.readByte());
+    assertEquals("a clone keeps its own position", data[1023], clone.readByte());
+    in.seek(data.length);
+    try
+    {
+      in.readByte();
+      fail("read past the end of the file");
+    }
+    catch(IOException e)
+    {
+      // expected
+    }
+    in.close();
+
+    // an open input still reads a deleted file
+    in = dir.openInput("a");
+    dir.deleteFile("a");
+    assertFalse(dir.fileExists("a"));
+    assertEquals(data[2999], readAt(in, 2999));
+    in.close();
+    try
+    {
+      dir.deleteFile("a");
+      fail("deleted a missing file");
+    }
+    catch(IOException e)
+    {
+      // expected
+    }
+
+    // a free slab is reused
+    pool.release(pool.allocate());
+    long allocated = pool.getAllocatedBytes();
+    assertEquals(1024L, pool.getPooledBytes());
+    pool.release(pool.allocate());
+    assertEquals(allocated, pool.getAllocatedBytes());
+
+    // an index on slabs
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+    for (int i = 0; i < 100; ++i)
+    {
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, i);
+      doc.add(new Field("tag", (i % 2 == 0 ? "even" : "odd"), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+    }
+    writer.optimize();
+    writer.close();
+    ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new DefaultIndexReaderDecorator());
+    try
+    {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      TopDocs hits = searcher.search(new TermQuery(new Term("tag", "odd")), 100);
+      assertEquals(50, hits.totalHits);
+      assertEquals("odd", searcher.doc(hits.scoreDocs[0].doc).get("tag"));
+      ZoieIndexReader<IndexReader> segmentReader = reader.getSequentialSubReaders()[0];
+      assertEquals(41L, segmentReader.getUID(segmentReader.getDocIDMaper().getDocID(41L)));
+      searcher.close();
+    }
+    finally
+    {
+      reader.close();
+    }
+    dir.close();
+    assertEquals(0, dir.listAll().length);
+  }
+
+  private static byte readAt(IndexInput in, long pos) throws IOException
+  {
+    in.seek(pos);
+    return in.readByte();
+  }
+
+  public void testMemoryDirectoryFactory() throws Exception
+  {
+    DefaultMemoryDirectoryFactory heapFactory = new DefaultMemoryDirectoryFactory();
+    Directory heapDir = heapFactory.newDirectory();
+    assertTrue(heapDir instanceof RAMDirectory);
+    IndexOutput out = heapDir.createOutput("a");
+    out.writeBytes(new byte[100], 0, 100);
+    out.close();
+    assertTrue(heapFactory.getUsedBytes() >= 100L);
+    assertEquals(((RAMDirectory)heapDir).sizeInBytes(), heapFactory.getUsedBytes());
+    assertEquals(heapFactory.getUsedBytes(), heapFactory.getAllocatedBytes());
+
+    OffHeapMemoryDirectoryFactory offHeapFactory = new OffHeapMemoryDirectoryFactory(new SlabPool(1024, 1024L * 1024));
+    Directory offHeapDir = offHeapFactory.newDirectory();
+    assertTrue(offHeapDir instanceof SlabDirectory);
+    out = offHeapDir.createOutput("a");
+    out.writeBytes(new byte[100], 0, 100);
+    out.close();
+    assertEquals(1024L, offHeapFactory.getUsedBytes());
+    assertTrue(offHeapFactory.getAllocatedBytes() >= 1024L);
+
+    // the RAM tier of a system on slabs
+    File idxDir = getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem = createZoie(idxDir, true);
+    idxSystem.setMemoryDirectoryFactory(offHeapFactory);
+    idxSystem.start();
+    MemoryStreamDataProvider<String> memoryProvider = new MemoryStreamDataProvider<String>();
+    memoryProvider.setDataConsumer(idxSystem);
+    memoryProvider.start();
+    try
+    {
+      int count = TestData.testdata.length;
+      List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+      for (int i = 0; i < count; i++)
+      {
+        list.add(new DataEvent<String>(i, TestData.testdata[i]));
+      }
+      memoryProvider.addEvents(list);
+      idxSystem.syncWthVersion(10000, count - 1);
+      assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents", "zoie"))));
+    }
+    finally
+    {
+      memoryProvider.stop();
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
 }
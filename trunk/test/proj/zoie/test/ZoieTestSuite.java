@@ -11,7 +11,30 @@ public class ZoieTestSuite extends TestSuite {
   public static List<String> allTests = Arrays.asList(new String[]{"testStreamDataProvider",
       "testRealtime", "testAsyncDataConsumer", "testDelSet",
       "testIndexWithAnalyzer", "testUpdates", "testIndexSignature", "testDocIDMapper",
-      "testUIDDocIdSet", "testExportImport"});
+      "testUIDDocIdSet", "testExportImport", "testIndexableInterpreterPool",
+      "testRingBuffer", "testEventCoalescing",
+      "testPartitionedStreamDataProvider", "testVersionWaiters",
+      "testUIDColumnFile", "testImmutableDocIdSet",
+      "testReaderRefCount", "testSegmentFilterCache",
+      "testCopiedReaderDeletes",
+      "testConcurrentReaders",
+      "testConcurrentUpdates",
+      "testSpillSealed",
+      "testSearcherManager",
+      "testUIDTerm",
+      "testEventJournal",
+      "testEventJournalReplay",
+      "testTokenBucket",
+      "testJDBCStreamDataProvider",
+      "testBulkLoad",
+      "testSegmentDocIDMappers",
+      "testRamWatermarks",
+      "testRamHighWatermark",
+      "testIndexingContext",
+      "testReusableIndexable",
+      "testIndexingBatch",
+      "testAdaptiveBatchController",
+      "testSlabDirectory", "testMemoryDirectoryFactory"});
 
   public static Test suite()
   {